@@ -0,0 +1,71 @@
+package de.danielh.hondae_insight;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+// Fills a scratch database with years of 30 s samples through the regular write path, then times
+// range queries over each tier. Runs for minutes on a phone, the report goes to logcat:
+//
+//   ./gradlew connectedAndroidTest -Pandroid.testInstrumentationRunnerArguments.class=de.danielh.hondae_insight.TelemetryStoreBenchmarkTest
+public class TelemetryStoreBenchmarkTest {
+
+    private static final String DATABASE_NAME = "telemetry-benchmark.db";
+    private static final int YEARS = 2;
+    private static final long SAMPLE_INTERVAL_MS = 30000;
+
+    private Context _context;
+    private TelemetryStore _store;
+
+    @Before
+    public void setUp() {
+        _context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        _context.deleteDatabase(DATABASE_NAME);
+        _store = new TelemetryStore(_context, DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        _store.close();
+        _context.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void insertAndQueryYearsOfSamples() {
+        Random random = new Random(1);
+        VehicleState state = new VehicleState();
+        long startMs = System.currentTimeMillis() - YEARS * 365L * TelemetryStore.DAY_MS;
+        long samples = YEARS * 365L * TelemetryStore.DAY_MS / SAMPLE_INTERVAL_MS;
+        long insertStartNanos = System.nanoTime();
+        for (long i = 0; i < samples; i++) {
+            state.setLocation(random.nextInt(120), 0, "0.0", "0.0");
+            _store.add(startMs + i * SAMPLE_INTERVAL_MS, state);
+        }
+        _store.flush();
+        double insertSeconds = (System.nanoTime() - insertStartNanos) / 1e9;
+        Log.i("TelemetryStoreBenchmark", String.format(Locale.ENGLISH, "%d samples x %d signals in %.1fs, %.0f samples/s",
+                samples, Signal.values().length, insertSeconds, samples / insertSeconds));
+
+        long endMs = startMs + samples * SAMPLE_INTERVAL_MS;
+        long[] rangesMs = {TelemetryStore.HOUR_MS, TelemetryStore.DAY_MS, 30 * TelemetryStore.DAY_MS,
+                365 * TelemetryStore.DAY_MS, YEARS * 365L * TelemetryStore.DAY_MS};
+        for (long rangeMs : rangesMs) {
+            long queryStartNanos = System.nanoTime();
+            TimeSeries series = _store.query(Signal.SPEED, endMs - rangeMs, endMs);
+            Log.i("TelemetryStoreBenchmark", String.format(Locale.ENGLISH, "%6dh %-6s %6d rows %7.1fms",
+                    rangeMs / TelemetryStore.HOUR_MS, TelemetryStore.Tier.forRange(endMs - rangeMs, endMs, endMs), series.size(),
+                    (System.nanoTime() - queryStartNanos) / 1e6));
+            assertTrue("no rows for " + rangeMs / TelemetryStore.HOUR_MS + "h", series.size() > 0);
+        }
+    }
+}
@@ -3,6 +3,7 @@ package de.danielh.hondae_insight;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.content.Context;
+import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.location.Location;
@@ -10,6 +11,10 @@ import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.view.KeyEvent;
 import android.view.MenuItem;
@@ -33,120 +38,132 @@ import androidx.core.content.ContextCompat;
 import androidx.lifecycle.ViewModelProvider;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Date;
 import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
-// MQTT Imports
-import org.eclipse.paho.client.mqttv3.MqttClient;
-import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
-import org.eclipse.paho.client.mqttv3.MqttMessage;
-import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import io.reactivex.Scheduler;
+import io.reactivex.android.schedulers.AndroidSchedulers;
+import io.reactivex.schedulers.Schedulers;
 
 public class CommunicateActivity extends AppCompatActivity implements LocationListener {
 
     public static final int CAN_BUS_SCAN_INTERVALL = 30000;
-    public static final int WAIT_FOR_NEW_MESSAGE_TIMEOUT = 1000;
-    public static final int WAIT_TIME_BETWEEN_COMMAND_SENDS_MS = 50;
-
-    // CAN Command IDs
-    public static final String VIN_ID = "1862F190";
-    public static final String AMBIENT_ID = "39627028";
-    public static final String SOH_ID = "F6622021";
-    public static final String SOC_ID = "F6622029";
-    public static final String BATTEMP_ID = "F662202A";
-    public static final String ODO_ID = "39627022";
-
-    public static final int RANGE_ESTIMATE_WINDOW_5KM = 5;
+    // Twice the response timeout, the CAN thread notices the stop after its current request
+    private static final long CAN_THREAD_JOIN_MS = 2 * PollingEngine.RESPONSE_TIMEOUT_MS;
 
     // PREFERENCES KEYS
     private static final String PREFS_KEY_MQTT_URL = "abrp_user_token";
     private static final String PREFS_KEY_MQTT_SWITCH = "iternioSendToAPISwitch";
-    
-    private static final int MAX_RETRY = 5;
+    private static final String PREFS_KEY_VIN_PREFIX = "vin_";
+    private static final String PREFS_KEY_FLOW_CONTROL_PREFIX = "flowControl_";
+    private static final String PREFS_KEY_METRICS_MQTT = "metricsToMqttSwitch";
+    private static final String PREFS_KEY_RECORD_TRAFFIC = "recordTrafficSwitch";
+    private static final String PREFS_KEY_CELL_DATA = "cellDataSwitch";
+    private static final String PREFS_KEY_HTTP_URL = "httpUploadUrl";
+    private static final String PREFS_KEY_HTTP_SWITCH = "httpUploadSwitch";
+    private static final String PREFS_KEY_LAN_SERVER = "lanLiveServerSwitch";
+
+    // Instance state, survives a rotation and the process being killed in the background
+    private static final String STATE_RECONNECTING = "reconnecting";
+    private static final String STATE_RECONNECT_ATTEMPT = "reconnectAttempt";
 
     private static final String NOTIFICATION_CHANNEL_ID = "SoC";
     private static final int NOTIFICATION_ID = 23;
+    // Tagged with the rule name, one notification per alert
+    private static final int ALERT_NOTIFICATION_ID = 24;
+    // Past the archiver's idle time, so the log that was just closed is picked up too
+    private static final long ARCHIVE_DELAY_MS = LogArchiver.MIN_IDLE_MS + 5000;
 
-    // Bluetooth Commands
-    private final ArrayList<String> _connectionCommands = new ArrayList<>(Arrays.asList(
-            "ATWS", "ATE0", "ATSP7", "ATAT1", "ATH1", "ATL0", "ATS0", "ATRV",
-            "ATAL", "ATCAF1", "ATSHDA01F1", "ATFCSH18DA01F1", "ATFCSD300000",
-            "ATFCSM1", "ATCFC1", "ATCP18", "ATSHDA07F1", "ATFCSH18DA07F1",
-            "ATCRA18DAF107", "22F190" //VIN
-    ));
-
-    private final ArrayList<String> _loopCommands = new ArrayList<>(Arrays.asList(
-            "ATSHDA60F1", "ATFCSH18DA60F1", "ATCRA18DAF160",
-            "227028", //AMBIENT
-            "2270229", //ODO
-            "ATSHDA15F1", "ATFCSH18DA15F1", "ATCRA18DAF115",
-            "222021", //SOH VOLT AMP
-            "222029", //SOC
-            "ATSHDA01F1", "ATFCSH18DA01F1", "ATCRA18DAF101",
-            "22202A", // BATTTEMP
-            "ATRV" // AUX BAT
-    ));
-
-    private final String LOG_FILE_HEADER = "sysTimeMs,ODO,SoC (dash),SoC (min),SoC (max),SoH,Battemp,Ambienttemp,kW,Amp,Volt,AuxBat,Connection,Charging,Speed,Lat,Lon";
     
     // UI Elements
     private TextView _connectionText, _vinText, _messageText, _socMinText, _socMaxText, _socDeltaText,
             _socDashText, _batTempText, _batTempDeltaText, _ambientTempText, _sohText, _kwText, _ampText, _voltText, _auxBatText, _odoText,
-            _rangeText, _chargingText, _speedText, _gpsStatusText, _apiStatusText;
+            _rangeText, _chargingText, _speedText, _gpsStatusText, _apiStatusText, _metricsText;
     
     private EditText _mqttUrlText;
     private Switch _mqttSwitch;
+    private EditText _httpUrlText;
+    private Switch _httpSwitch;
+    // Created on the main thread, only used by the http sink
+    private volatile HttpUploader _httpUploader;
+    private volatile String _httpReport = "";
+    private volatile String _archiveReport = "";
     
-    private CheckBox _isChargingCheckBox;
+    private CheckBox _isChargingCheckBox, _metricsMqttCheckBox, _recordTrafficCheckBox, _cellDataCheckBox, _lanServerCheckBox;
+    // Started and stopped on the main thread, published to from the lan sink
+    private volatile LiveServer _liveServer;
     
     // Switch for Connection
     private Switch _connectSwitch;
 
     // Data Variables
-    private double _soc, _socMin, _socMax, _socDelta, _soh, _speed, _power, _batTemp, _amp, _volt, _auxBat;
-    private byte _ambientTemp;
-    private final double[] _socHistory = new double[RANGE_ESTIMATE_WINDOW_5KM + 1];
-    private final double[] _socMinHistory = new double[RANGE_ESTIMATE_WINDOW_5KM + 1];
-    private final double[] _socMaxHistory = new double[RANGE_ESTIMATE_WINDOW_5KM + 1];
-    private final double[] _batTempHistory = new double[RANGE_ESTIMATE_WINDOW_5KM + 1];
-    private int _socHistoryPosition = 0;
-    private int _lastOdo = Integer.MIN_VALUE, _odo;
+    private final VehicleState _state = new VehicleState();
     
     private String _vin;
-    private String _lat = "0.0", _lon = "0.0";
+    private String _deviceMac;
+    private String _deviceName;
     private String _gpsStatus = "No Fix";
-    private double _elevation;
-    
-    private ChargingConnection _chargingConnection;
-    private boolean _isCharging;
     
     // System Variables
-    private PrintWriter _logFileWriter;
+    // The log being written, the archiver leaves it alone
+    private volatile File _logFile;
+    private LogArchiver _logArchiver;
+    // Compression is the least urgent thing the app does, it gets a background priority thread
+    private final ExecutorService _archiveExecutor = Executors.newSingleThreadExecutor(runnable -> new Thread(() -> {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        runnable.run();
+    }, "log-archive"));
+    private final Runnable _archiveLogs = this::archiveLogs;
+    private TrafficRecorder _trafficRecorder;
+    private TelemetryStore _telemetryStore;
+    private final ExecutorService _logExecutor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "telemetry-log"));
+    private final Scheduler _logScheduler = Schedulers.from(_logExecutor);
+    private volatile TelemetryPipeline _pipeline = new TelemetryPipeline();
+    private final AlertEngine _alertEngine = AlertEngine.compile(AlertEngine.DEFAULT_RULES);
     private SharedPreferences _preferences;
-    private long _sysTimeMs;
-    private long _epoch, _lastEpoch, _lastEpochNotification, _lastEpochSuccessfulApiSend;
+    private long _lastEpoch, _lastEpochNotification;
+    private volatile long _lastEpochSuccessfulApiSend;
     
     private CommunicateViewModel _viewModel;
-    private volatile boolean _loopRunning = false;
     private volatile boolean _mqttRunning = false;
-    private volatile int _retries = 0;
-    private boolean _carConnected = false;
-    private byte _newMessage;
+    private volatile boolean _metricsPanelVisible = false;
+    private TelemetryMetrics _metrics;
+    private long _connectedSysTimeMs;
+    private volatile long _timeToFirstSampleMs = -1;
+    private boolean _fastResume = false;
+
+    private final Handler _handler = new Handler(Looper.getMainLooper());
+    private ReconnectSupervisor _reconnectSupervisor;
+    // One per Bluetooth connection, the same session the gateway runs. Its steps run one after
+    // the other on the CAN thread, each one scheduling the next, see runSession().
+    private volatile VehicleSession _session;
+    private final ScheduledExecutorService _canExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "can-poll"));
+    // CAN thread only
+    private ScheduledFuture<?> _nextStep;
+    private long _lastMetricsUpdateMs;
+    // MQTT connects and the LAN server binds are network I/O, kept off the main thread in order
+    private final ExecutorService _networkExecutor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "network-setup"));
 
     // MQTT Persistent Client
-    private MqttClient _mqttClient;
-    private MqttConnectOptions _mqttConnOpts;
+    private volatile MqttPublisher _mqttPublisher;
 
     NotificationCompat.Builder _notificationBuilder;
     NotificationManagerCompat _notificationManagerCompat;
+    private boolean _notificationChannelCreated = false;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupTrace.get().markProcessStart(SystemClock.elapsedRealtime() - Process.getStartElapsedRealtime());
         setContentView(R.layout.activity_communicate);
         
         if (getSupportActionBar() != null) {
@@ -174,9 +191,41 @@ public class CommunicateActivity extends AppCompatActivity implements LocationLi
             finish();
             return;
         }
+        _deviceMac = deviceMac;
+        _deviceName = deviceName;
+        _metrics = _viewModel.getMetrics();
         // --- AUTO-CONNECT LOGIC END ---
 
+        _reconnectSupervisor = new ReconnectSupervisor(Clock.SYSTEM, new Random(), new ReconnectSupervisor.Scheduler() {
+            @Override
+            public void schedule(Runnable task, long delayMs) {
+                _handler.postDelayed(task, delayMs);
+            }
+
+            @Override
+            public void cancel(Runnable task) {
+                _handler.removeCallbacks(task);
+            }
+        }, () -> _viewModel.connect());
+
+        // Opening RFCOMM is the slowest startup step and needs nothing from the UI setup below
+        if (savedInstanceState == null) {
+            _reconnectSupervisor.start();
+            _viewModel.connect();
+        } else if (savedInstanceState.getBoolean(STATE_RECONNECTING)) {
+            // Recreated while the switch was on, the destroyed Activity's supervisor is gone
+            _reconnectSupervisor.resume(savedInstanceState.getInt(STATE_RECONNECT_ATTEMPT));
+            CommunicateViewModel.ConnectionStatus status = _viewModel.getConnectionStatus().getValue();
+            if (status == null || status == CommunicateViewModel.ConnectionStatus.DISCONNECTED) {
+                // A new process, the ViewModel never connected. A RETRY is rescheduled by onConnectionStatus().
+                _viewModel.connect();
+            }
+        }
+
         _preferences = getPreferences(MODE_PRIVATE);
+        _telemetryStore = new TelemetryStore(getApplicationContext());
+        // Catch up on logs of sessions that ended with the app being killed
+        _handler.postDelayed(_archiveLogs, ARCHIVE_DELAY_MS);
 
         // Notification Setup
         _notificationBuilder = new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL_ID)
@@ -185,8 +234,8 @@ public class CommunicateActivity extends AppCompatActivity implements LocationLi
                 .setContentText("Start")
                 .setOngoing(true)
                 .setPriority(NotificationCompat.PRIORITY_DEFAULT);
-        createNotificationChannel();
         _notificationManagerCompat = NotificationManagerCompat.from(this);
+        _alertEngine.setListener(this::onAlert);
 
         // UI Setup - Find Views
         _connectionText = findViewById(R.id.communicate_connection_text);
@@ -213,6 +262,36 @@ public class CommunicateActivity extends AppCompatActivity implements LocationLi
         _rangeText = findViewById(R.id.communicate_range);
         _apiStatusText = findViewById(R.id.communicate_api_status);
 
+        // Metrics debug panel, collapsed until the header is tapped
+        _metricsText = findViewById(R.id.communicate_metrics);
+        _metricsMqttCheckBox = findViewById(R.id.communicate_metrics_mqtt);
+        _metricsMqttCheckBox.setChecked(_preferences.getBoolean(PREFS_KEY_METRICS_MQTT, false));
+        _metricsMqttCheckBox.setOnCheckedChangeListener((buttonView, isChecked) ->
+                _preferences.edit().putBoolean(PREFS_KEY_METRICS_MQTT, isChecked).apply());
+        // Takes effect with the next log file
+        _recordTrafficCheckBox = findViewById(R.id.communicate_record_traffic);
+        _recordTrafficCheckBox.setChecked(_preferences.getBoolean(PREFS_KEY_RECORD_TRAFFIC, false));
+        _recordTrafficCheckBox.setOnCheckedChangeListener((buttonView, isChecked) ->
+                _preferences.edit().putBoolean(PREFS_KEY_RECORD_TRAFFIC, isChecked).apply());
+        // Experimental, also takes effect with the next log file
+        _cellDataCheckBox = findViewById(R.id.communicate_cell_data);
+        _cellDataCheckBox.setChecked(_preferences.getBoolean(PREFS_KEY_CELL_DATA, false));
+        _cellDataCheckBox.setOnCheckedChangeListener((buttonView, isChecked) ->
+                _preferences.edit().putBoolean(PREFS_KEY_CELL_DATA, isChecked).apply());
+        _lanServerCheckBox = findViewById(R.id.communicate_lan_server);
+        _lanServerCheckBox.setOnCheckedChangeListener((buttonView, isChecked) -> handleLanServer(isChecked));
+        _lanServerCheckBox.setChecked(_preferences.getBoolean(PREFS_KEY_LAN_SERVER, false));
+        findViewById(R.id.communicate_metrics_header).setOnClickListener(v -> {
+            _metricsPanelVisible = !_metricsPanelVisible;
+            _metricsText.setVisibility(_metricsPanelVisible ? View.VISIBLE : View.GONE);
+            _metricsMqttCheckBox.setVisibility(_metricsPanelVisible ? View.VISIBLE : View.GONE);
+            _recordTrafficCheckBox.setVisibility(_metricsPanelVisible ? View.VISIBLE : View.GONE);
+            _cellDataCheckBox.setVisibility(_metricsPanelVisible ? View.VISIBLE : View.GONE);
+            _lanServerCheckBox.setVisibility(_metricsPanelVisible ? View.VISIBLE : View.GONE);
+            _metricsText.setText(metricsSummary());
+        });
+        findViewById(R.id.communicate_history).setOnClickListener(v -> startActivity(new Intent(this, HistoryActivity.class)));
+
         // MQTT UI Setup
         _mqttUrlText = findViewById(R.id.communicate_mqtt_url);
         _mqttSwitch = findViewById(R.id.communicate_mqtt_switch);
@@ -246,6 +325,22 @@ public class CommunicateActivity extends AppCompatActivity implements LocationLi
         _mqttSwitch.setChecked(_preferences.getBoolean(PREFS_KEY_MQTT_SWITCH, false));
         _mqttUrlText.setText(_preferences.getString(PREFS_KEY_MQTT_URL, "tcp://"));
 
+        _httpUrlText = findViewById(R.id.communicate_http_url);
+        _httpSwitch = findViewById(R.id.communicate_http_switch);
+        _httpUrlText.setSingleLine(true);
+        _httpUrlText.setText(_preferences.getString(PREFS_KEY_HTTP_URL, ""));
+        _httpUrlText.setOnEditorActionListener((v, actionId, event) -> {
+            if (actionId == EditorInfo.IME_ACTION_DONE) {
+                v.clearFocus();
+                hideKeyboard(v);
+                handleHttpSwitch(_httpSwitch.isChecked());
+                return true;
+            }
+            return false;
+        });
+        _httpSwitch.setOnCheckedChangeListener((buttonView, isChecked) -> handleHttpSwitch(isChecked));
+        _httpSwitch.setChecked(_preferences.getBoolean(PREFS_KEY_HTTP_SWITCH, false));
+
         // Connection Switch Setup
         _connectSwitch = findViewById(R.id.communicate_connect);
         // Set initial listener
@@ -256,7 +351,8 @@ public class CommunicateActivity extends AppCompatActivity implements LocationLi
         if (disconnectButton != null) {
             disconnectButton.setOnClickListener(v -> {
                 // Manually stop everything
-                _loopRunning = false;
+                _reconnectSupervisor.stop();
+                stopSession();
                 _viewModel.disconnect();
                 getWindow().clearFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
                 finish();
@@ -285,16 +381,18 @@ public class CommunicateActivity extends AppCompatActivity implements LocationLi
         }
 
         checkExternalMedia();
-        
-        // Connect to MQTT immediately on startup
-        new Thread(this::connectToMqtt).start();
+
+        // MQTT is connected by handleMqttSwitch() once the restored switch state turns it on
+        StartupTrace.get().mark(StartupTrace.Span.ACTIVITY_READY);
     }
 
     // --- FIX: Simplified Connection Switch Logic ---
     private void handleConnectionSwitch(CompoundButton buttonView, boolean isChecked) {
         if (isChecked) {
+            _reconnectSupervisor.start();
             _viewModel.connect();
         } else {
+            _reconnectSupervisor.stop();
             _viewModel.disconnect();
         }
     }
@@ -309,10 +407,12 @@ private void onConnectionStatus(CommunicateViewModel.ConnectionStatus connection
                 _connectSwitch.setChecked(true);
                 _connectSwitch.setEnabled(true);
                 
-                // 2. Prevent double threads AND initialize the flag correctly
-                if (!_loopRunning) {
-                    _loopRunning = true; // <--- CRITICAL FIX: Set true BEFORE starting thread
-                    new Thread(this::connectCAN).start();
+                // 2. Prevent double sessions
+                if (_session == null) {
+                    _connectedSysTimeMs = Clock.SYSTEM.currentTimeMillis();
+                    StartupTrace.get().mark(StartupTrace.Span.RFCOMM_OPEN);
+                    _timeToFirstSampleMs = -1;
+                    startSession();
                 }
                 break;
 
@@ -324,18 +424,21 @@ private void onConnectionStatus(CommunicateViewModel.ConnectionStatus connection
                 break;
 
             case DISCONNECTED:
-                _loopRunning = false; // Stop loop
+                stopSession();
+                _reconnectSupervisor.stop();
                 _connectionText.setText(R.string.status_disconnected);
                 _connectSwitch.setChecked(false);
                 _connectSwitch.setEnabled(true);
-                closeLogFile();
-                _retries = 0;
+                closeTrafficRecorder();
                 break;
 
             case RETRY:
-                _retries++;
-                if (_viewModel.isRetry() && _retries < MAX_RETRY) {
-                    _viewModel.connect();
+                stopSession();
+                closeTrafficRecorder();
+                long delayMs = _viewModel.isRetry() ? _reconnectSupervisor.onConnectionLost() : -1;
+                if (delayMs >= 0) {
+                    _connectionText.setText(getString(R.string.status_retry, (delayMs + 999) / 1000, _reconnectSupervisor.getAttempt()));
+                    _connectSwitch.setChecked(true);
                 } else {
                     _viewModel.disconnect();
                 }
@@ -359,17 +462,51 @@ private void onConnectionStatus(CommunicateViewModel.ConnectionStatus connection
         }
     }
 
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        if (_reconnectSupervisor != null) {
+            outState.putBoolean(STATE_RECONNECTING, _reconnectSupervisor.isActive());
+            outState.putInt(STATE_RECONNECT_ATTEMPT, _reconnectSupervisor.getAttempt());
+        }
+    }
+
     @Override
     protected void onDestroy() {
         // --- FIX: Stop loop to prevent phantom threads ---
-        _loopRunning = false; 
+        // onCreate bails out before these exist when there is no device to connect to
+        if (_reconnectSupervisor != null) {
+            _reconnectSupervisor.stop();
+        }
+        // The session completes its pipeline on the CAN thread on the way out, the log sink needs
+        // the log thread for that, so it has to be done before the log thread goes
+        stopSession();
+        _canExecutor.shutdown();
+        try {
+            _canExecutor.awaitTermination(CAN_THREAD_JOIN_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        _pipeline.complete();
 
+        // A connect or bind still queued is of no use any more
+        _networkExecutor.shutdownNow();
+        if (_mqttPublisher != null) {
+            _mqttPublisher.close();
+        }
+        stopLiveServer();
+        // An archive cut short is thrown away and redone next time
+        _handler.removeCallbacks(_archiveLogs);
+        _archiveExecutor.shutdownNow();
+        // Lets the log thread write what is still queued, the store is closed after it
+        _logExecutor.shutdown();
         try {
-            if (_mqttClient != null && _mqttClient.isConnected()) {
-                _mqttClient.disconnect();
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
+            _logExecutor.awaitTermination(2, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (_telemetryStore != null) {
+            _telemetryStore.close();
         }
         super.onDestroy();
     }
@@ -377,20 +514,67 @@ private void onConnectionStatus(CommunicateViewModel.ConnectionStatus connection
     // --- HELPER METHODS ---
 
     private void restartMqtt() {
-        new Thread(() -> {
+        _networkExecutor.execute(() -> {
             try {
-                if (_mqttClient != null) {
-                    try {
-                        if (_mqttClient.isConnected()) _mqttClient.disconnect();
-                    } catch (Exception e) {}
-                    try { _mqttClient.close(); } catch (Exception e) {}
-                    _mqttClient = null; // Force recreation
+                if (_mqttPublisher != null) {
+                    _mqttPublisher.close();
+                    _mqttPublisher = null; // Force recreation
                 }
                 connectToMqtt();
             } catch (Exception e) {
                 e.printStackTrace();
             }
-        }).start();
+        });
+    }
+
+    // On the main thread once the RFCOMM link is up
+    private void startSession() {
+        setText(_apiStatusText, "⚪");
+        VehicleSession session = new VehicleSession(_viewModel.getTransport(), _state, _metrics, _reconnectSupervisor,
+                Clock.SYSTEM, CAN_BUS_SCAN_INTERVALL, _sessionListener);
+        // The range texts are formatted in onRangeUpdated(), off the poll thread with this
+        session.setPipelined(true);
+        session.setFlowControl(FlowControlProfile.parse(_preferences.getString(PREFS_KEY_FLOW_CONTROL_PREFIX + _deviceMac, null)));
+        session.setCachedVin(_preferences.getString(PREFS_KEY_VIN_PREFIX + _deviceMac, null));
+        _session = session;
+        _canExecutor.execute(() -> runSession(session));
+    }
+
+    // One step of the session, then the next one when the session wants it
+    private void runSession(VehicleSession session) {
+        if (session != _session) {
+            return;
+        }
+        session.run();
+        long nowMs = Clock.SYSTEM.currentTimeMillis();
+        // At most once a second, the charge curve runs its steps back to back
+        if (_metricsPanelVisible && nowMs - _lastMetricsUpdateMs >= 1000) {
+            _lastMetricsUpdateMs = nowMs;
+            setText(_metricsText, metricsSummary());
+        }
+        if (session == _session) {
+            _nextStep = _canExecutor.schedule(() -> runSession(session), session.getDelayUntilNextRunMs(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Stops polling right away, a request in flight ends within its timeout. The rest is done on
+    // the CAN thread after the step that is still running.
+    private void stopSession() {
+        VehicleSession session = _session;
+        _session = null;
+        if (session == null) {
+            return;
+        }
+        session.stop();
+        _canExecutor.execute(() -> {
+            if (_nextStep != null) {
+                _nextStep.cancel(false);
+                _nextStep = null;
+            }
+            session.close();
+            // The log sink closes the log and flushes the history store once it has written its backlog
+            _pipeline.complete();
+        });
     }
 
     private void hideKeyboard(View view) {
@@ -402,103 +586,64 @@ private void onConnectionStatus(CommunicateViewModel.ConnectionStatus connection
 
     private void connectToMqtt() {
         try {
-            if (_mqttClient == null) {
-                String rawInput = _preferences.getString(PREFS_KEY_MQTT_URL, "").trim();
-                String brokerUrl = rawInput;
-                String username = null;
-                String password = null;
-
-                if (rawInput.contains("@") && rawInput.startsWith("tcp://")) {
-                    try {
-                        String withoutScheme = rawInput.substring(6);
-                        int atIndex = withoutScheme.lastIndexOf("@");
-                        if (atIndex != -1) {
-                            String userPass = withoutScheme.substring(0, atIndex);
-                            String hostPort = withoutScheme.substring(atIndex + 1);
-                            brokerUrl = "tcp://" + hostPort;
-                            int colonIndex = userPass.indexOf(":");
-                            if (colonIndex != -1) {
-                                username = userPass.substring(0, colonIndex);
-                                password = userPass.substring(colonIndex + 1);
-                            } else {
-                                username = userPass;
-                            }
-                        }
-                    } catch (Exception e) {
-                        brokerUrl = rawInput;
-                    }
-                }
-
-                _mqttConnOpts = new MqttConnectOptions();
-                _mqttConnOpts.setCleanSession(true);
-                _mqttConnOpts.setConnectionTimeout(10); 
-                _mqttConnOpts.setKeepAliveInterval(60); 
-                
-                if (username != null && !username.isEmpty()) {
-                    _mqttConnOpts.setUserName(username);
-                    if (password != null) {
-                        _mqttConnOpts.setPassword(password.toCharArray());
-                    }
-                }
-
-                String clientId = "HondaE_Android_" + System.currentTimeMillis();
-                _mqttClient = new MqttClient(brokerUrl, clientId, new MemoryPersistence());
+            if (_mqttPublisher == null) {
+                _mqttPublisher = new MqttPublisher(_preferences.getString(PREFS_KEY_MQTT_URL, ""), "HondaE_Android_");
             }
 
-            if (!_mqttClient.isConnected()) {
-                _mqttClient.connect(_mqttConnOpts);
-                setText(_apiStatusText, "🔵"); 
-            }
+            // Returns right away, the first acknowledged publish turns the indicator blue
+            _mqttPublisher.connect();
 
         } catch (Exception e) {
             setText(_apiStatusText, "🔴");
         }
     }
 
-    private void publishMqttMessage() { 
-        try {
-            if (_mqttClient == null || !_mqttClient.isConnected()) {
-                connectToMqtt();
-            }
+    // Doesn't block, the result comes back through the publisher callbacks
+    private void publishMqttMessage(TelemetrySample sample) {
+        if (_mqttPublisher == null) {
+            connectToMqtt();
+        }
+        MqttPublisher mqttPublisher = _mqttPublisher;
+        if (mqttPublisher == null) {
+            setText(_apiStatusText, "🔴");
+            return;
+        }
 
-            if (_mqttClient != null && _mqttClient.isConnected()) {
-                String topic = "hondae/status";
-                String payload = "{" +
-                        "\"soc\":" + _soc +
-                        ",\"soh\":" + _soh +
-                        ",\"power\":" + _power +
-                        ",\"amp\":" + _amp +
-                        ",\"volt\":" + _volt +
-                        ",\"batt_temp\":" + _batTemp +
-                        ",\"ambient_temp\":" + _ambientTemp +
-                        ",\"is_charging\":" + _isCharging +
-                        ",\"charging_mode\":\"" + _chargingConnection.getName() + "\"" +
-                        ",\"speed\":" + _speed +
-                        ",\"odo\":" + _odo +
-                        ",\"lat\":" + _lat +
-                        ",\"lon\":" + _lon +
-                        ",\"elevation\":" + _elevation +
-                        ",\"timestamp\":" + _epoch +
-                        "}";
-
-                MqttMessage message = new MqttMessage(payload.getBytes());
-                message.setQos(0);
-                _mqttClient.publish(topic, message);
-
-                _lastEpochSuccessfulApiSend = _epoch;
-                setText(_apiStatusText, "🔵"); 
-            } else {
-                setText(_apiStatusText, "🔴");
+        final long epoch = sample.getEpoch();
+        mqttPublisher.publish("hondae/status", sample.getMqttPayload(), MqttPublisher.QOS_TELEMETRY, new MqttPublisher.Callback() {
+            @Override
+            public void onPublished(long latencyNanos) {
+                _metrics.recordMqttPublish(latencyNanos);
+                StartupTrace.get().mark(StartupTrace.Span.FIRST_MQTT_PUBLISH);
+                _lastEpochSuccessfulApiSend = epoch;
+                setText(_apiStatusText, "🔵");
             }
 
-        } catch (Exception e) {
-            if (_epoch - _lastEpochSuccessfulApiSend > 9) {
-                setText(_apiStatusText, "🔴");
+            @Override
+            public void onFailed(Throwable cause) {
+                _metrics.recordMqttFailure();
+                if (epoch - _lastEpochSuccessfulApiSend > 9) {
+                    setText(_apiStatusText, "🔴");
+                }
             }
+        });
+
+        if (_preferences.getBoolean(PREFS_KEY_METRICS_MQTT, false)) {
+            mqttPublisher.publish(TelemetryMetrics.MQTT_TOPIC, _metrics.toJson(epoch), MqttPublisher.QOS_METRICS, new MqttPublisher.Callback() {
+                @Override
+                public void onPublished(long latencyNanos) { }
+
+                @Override
+                public void onFailed(Throwable cause) { }
+            });
         }
     }
 
     private void createNotificationChannel() {
+        if (_notificationChannelCreated) {
+            return;
+        }
+        _notificationChannelCreated = true;
         CharSequence name = getString(R.string.channel_name);
         String description = getString(R.string.channel_description);
         int importance = NotificationManager.IMPORTANCE_DEFAULT;
@@ -508,205 +653,212 @@ private void onConnectionStatus(CommunicateViewModel.ConnectionStatus connection
         notificationManager.createNotificationChannel(channel);
     }
 
-    private void connectCAN() { 
-        try {
-            setText(_apiStatusText, "⚪");
-            for (String command : _connectionCommands) {
-                // IMPORTANT: Check loop state to exit early if disconnected
-                if (!_loopRunning) return;
-
-                synchronized (_viewModel.getNewMessageParsed()) {
-                    _viewModel.sendMessage(command + "\n\r");
-                    _viewModel.getNewMessageParsed().wait(WAIT_FOR_NEW_MESSAGE_TIMEOUT);
-                    if (_viewModel.isNewMessage()) {
-                        final String message = _viewModel.getMessage();
-                        if (_viewModel.isNewMessage() && _viewModel.getMessageID().equals(VIN_ID)) {
-                            parseVIN(message);
-                            setText(_vinText, _vin);
-                            _carConnected = true;
-                            _viewModel.setNewMessageProcessed();
-                        } else if (_viewModel.isNewMessage()) {
-                            setText(_messageText, message);
-                            _viewModel.setNewMessageProcessed();
-                        }
-                        if (message.matches("\\d+\\.\\dV")) {
-                            _auxBat = Double.parseDouble(message.substring(0, message.length() - 1));
-                            setText(_auxBatText, message);
-                        }
-                    }
-                }
-                if (command.length() <= 6) {
-                    Thread.sleep(WAIT_TIME_BETWEEN_COMMAND_SENDS_MS);
-                }
+    // Called on the CAN thread
+    private final VehicleSession.Listener _sessionListener = new VehicleSession.Listener() {
+        @Override
+        public void onConnected(String vin, boolean fastResume) {
+            _vin = vin;
+            _fastResume = fastResume;
+            setText(_vinText, _vin);
+            if (_fastResume) {
+                setText(_messageText, "Adapter still initialized, resuming...");
             }
+            _preferences.edit().putString(PREFS_KEY_VIN_PREFIX + _deviceMac, _vin).apply();
+            StartupTrace.get().mark(StartupTrace.Span.INIT_DONE);
+            openNewFileForWriting();
+            _pipeline = createTelemetryPipeline();
+        }
 
-            if (_carConnected) {
-                Thread.sleep(WAIT_FOR_NEW_MESSAGE_TIMEOUT);
-                openNewFileForWriting();
-                loop();
-            } else {
-                setText(_messageText, "CAN not responding...");
-                _viewModel.disconnect();
+        @Override
+        public void onSample(long sysTimeMs) {
+            // UI, notification, log and MQTT pick it up on their own threads
+            _pipeline.emit(new TelemetrySample(sysTimeMs, _state));
+
+            if (_timeToFirstSampleMs < 0) {
+                _timeToFirstSampleMs = sysTimeMs - _connectedSysTimeMs;
+                StartupTrace.get().mark(StartupTrace.Span.FIRST_SAMPLE);
+                setText(_messageText, "First sample " + _timeToFirstSampleMs + "ms after connect"
+                        + (_fastResume ? " (fast resume)" : " (full init)") + "\n" + StartupTrace.get().report());
             }
-        } catch (InterruptedException e) {
-            // Thread interrupted, likely due to disconnect
-            _loopRunning = false;
         }
-    }
 
-    private void loop() { 
-        _loopRunning = true;
-        while (_loopRunning) {
-            try {
-                _sysTimeMs = System.currentTimeMillis();
-                loopMessagesToVariables();
-
-                _epoch = _sysTimeMs / 1000;
-                setText(_ambientTempText, _ambientTemp + ".0°C");
-                setText(_sohText, String.format(Locale.ENGLISH, "%1$05.2f%%", _soh));
-                setText(_ampText, String.format(Locale.ENGLISH, "%1$06.2fA", _amp));
-                setText(_voltText, String.format(Locale.ENGLISH, "%1$.1f/%2$.2fV", _volt, _volt / 96));
-                setText(_kwText, String.format(Locale.ENGLISH, "%1$05.1fkW", _power));
-                
-                setText(_socMinText, String.format(Locale.ENGLISH, "%1$05.2f%%", _socMin));
-                setText(_socMaxText, String.format(Locale.ENGLISH, "%1$05.2f%%", _socMax));
-                setText(_socDeltaText, String.format(Locale.ENGLISH, "%1$4.2f%%", _socDelta));
-                setText(_socDashText, String.format(Locale.ENGLISH, "%1$05.2f%%", _soc));
-                setText(_chargingText, _chargingConnection.getName());
-                setChecked(_isChargingCheckBox, _isCharging);
-                setText(_batTempText, _batTemp + "°C");
-                setText(_odoText, _odo + "km");
-
-                setText(_speedText, _speed + "km/h");
-                setText(_gpsStatusText, _gpsStatus);
-
-                if (_newMessage > 4) {
-                    setText(_messageText, String.valueOf(_epoch));
-                    
-                    if (_lastEpochNotification + 10 < _epoch) {
-                        _notificationBuilder.setContentText("SoC " + String.valueOf(_soc) + "%");
-                        if (ActivityCompat.checkSelfPermission(this, android.Manifest.permission.POST_NOTIFICATIONS) == PackageManager.PERMISSION_GRANTED) {
-                            _notificationManagerCompat.notify(NOTIFICATION_ID, _notificationBuilder.build());
-                            _lastEpochNotification = _epoch;
-                        }
-                    }
-                    
-                    writeLineToLogFile();
-                    
-                    if (_mqttRunning && _lastEpoch + 1 < _epoch) {
-                        _lastEpoch = _epoch;
-                        new Thread(this::publishMqttMessage).start();
-                    }
-                } else {
-                    setText(_messageText, "Incomplete data (" + _newMessage + "), retrying...");
-                }
-                _newMessage = 0;
+        @Override
+        public void onStatus(String message) {
+            setText(_messageText, message);
+        }
 
-                Thread.sleep(CAN_BUS_SCAN_INTERVALL);
+        @Override
+        public void onMessage(String message) {
+            setText(_messageText, message);
+        }
 
-            } catch (InterruptedException e) {
-                _loopRunning = false;
-            } catch (Exception e) {
-                String errorMsg = e.getMessage() != null ? e.getMessage() : "Unknown Error";
-                setText(_messageText, "Error: " + errorMsg + ". Retrying in " + (CAN_BUS_SCAN_INTERVALL/1000) + "s...");
-                try {
-                    Thread.sleep(CAN_BUS_SCAN_INTERVALL);
-                } catch (InterruptedException ie) {
-                    _loopRunning = false;
-                }
+        @Override
+        public void onAuxBattery(String message) {
+            setText(_auxBatText, message);
+        }
+
+        @Override
+        public void onRangeUpdated() {
+            if (_state.isRangeValid()) {
+                setText(_rangeText, String.format(Locale.ENGLISH, "%1$03dkm / %2$03dkm / %3$03dkm",
+                        _state.getSocRange(), _state.getSocMinRange(), _state.getSocMaxRange()));
+                setText(_batTempDeltaText, String.format(Locale.ENGLISH, "%1$.2fK/km", _state.getBatTempChange()));
+            } else {
+                setText(_rangeText, "---km / ---km / ---km");
             }
         }
-        _carConnected = false;
+
+        @Override
+        public void onConnectionLost(String reason) {
+            // The link is gone, the reconnect supervisor takes over
+            setText(_messageText, "Error: " + reason + ", reconnecting...");
+            _viewModel.onLinkLost();
+        }
+
+        @Override
+        public void onChargeCurve(ChargeCurve chargeCurve) {
+            writeChargeCurve(chargeCurve);
+        }
+
+        @Override
+        public void onFlowControl(FlowControlProfile profile) {
+            _preferences.edit().putString(PREFS_KEY_FLOW_CONTROL_PREFIX + _deviceMac, profile.getCommand()).apply();
+        }
+    };
+
+    private TelemetryPipeline createTelemetryPipeline() {
+        TelemetryPipeline pipeline = new TelemetryPipeline();
+        pipeline.subscribeLatest("ui", AndroidSchedulers.mainThread(), this::showSample);
+        pipeline.subscribeLatest("notification", Schedulers.single(), this::notifySample);
+        // Durations and rates need every sample in order, not just the latest
+        pipeline.subscribeBuffered("alerts", Schedulers.single(), _alertEngine::evaluate, () -> { });
+        TripLog tripLog = new TripLog(_logFile, _state.getLogFileHeader());
+        pipeline.subscribeBuffered("log", _logScheduler, tripLog::write, tripLog::close);
+        pipeline.subscribeBounded("mqtt", Schedulers.io(), this::publishSample);
+        pipeline.subscribeBuffered("http", Schedulers.io(), this::uploadSample, this::finishUploads);
+        pipeline.subscribeLatest("lan", Schedulers.io(), this::serveSample);
+        return pipeline;
     }
 
-    private void loopMessagesToVariables() throws InterruptedException {
-        for (String command : _loopCommands) {
-            if (!_loopRunning) break; // Exit loop immediately if stopped
+    // On the main thread, straight to the views
+    private void showSample(TelemetrySample sample) {
+        double volt = sample.get(Signal.VOLT);
+        _ambientTempText.setText((int) sample.get(Signal.AMBIENT_TEMP) + ".0°C");
+        _sohText.setText(String.format(Locale.ENGLISH, "%1$05.2f%%", sample.get(Signal.SOH)));
+        _ampText.setText(String.format(Locale.ENGLISH, "%1$06.2fA", sample.get(Signal.AMP)));
+        _voltText.setText(String.format(Locale.ENGLISH, "%1$.1f/%2$.2fV", volt, volt / 96));
+        _kwText.setText(String.format(Locale.ENGLISH, "%1$05.1fkW", sample.get(Signal.POWER)));
+
+        _socMinText.setText(String.format(Locale.ENGLISH, "%1$05.2f%%", sample.get(Signal.SOC_MIN)));
+        _socMaxText.setText(String.format(Locale.ENGLISH, "%1$05.2f%%", sample.get(Signal.SOC_MAX)));
+        _socDeltaText.setText(String.format(Locale.ENGLISH, "%1$4.2f%%", sample.getSocDelta()));
+        _socDashText.setText(String.format(Locale.ENGLISH, "%1$05.2f%%", sample.get(Signal.SOC)));
+        _chargingText.setText(sample.getConnection());
+        _isChargingCheckBox.setChecked(sample.isCharging());
+        _batTempText.setText(sample.get(Signal.BAT_TEMP) + "°C");
+        _odoText.setText((int) sample.get(Signal.ODO) + "km");
+
+        _speedText.setText(sample.get(Signal.SPEED) + "km/h");
+        _gpsStatusText.setText(_gpsStatus);
+        // The first sample leaves its startup report in place
+        if (_timeToFirstSampleMs >= 0 && sample.getTimeMs() > _connectedSysTimeMs + _timeToFirstSampleMs) {
+            _messageText.setText(String.valueOf(sample.getEpoch()));
+        }
+    }
 
-            synchronized (_viewModel.getNewMessageParsed()) {
-                _viewModel.sendMessage(command + "\n\r");
-                _viewModel.getNewMessageParsed().wait(WAIT_FOR_NEW_MESSAGE_TIMEOUT);
-                
-                if (_viewModel.isNewMessage()) {
-                    final String message = _viewModel.getMessage();
-                    final String messageID = _viewModel.getMessageID();
-
-                    if (messageID.equals(AMBIENT_ID)) {
-                        if (message.length() >= 44) {
-                            _ambientTemp = Integer.valueOf(message.substring(42, 44), 16).byteValue();
-                            _newMessage++;
-                        }
-                    } else if (messageID.equals(SOH_ID)) {
-                        if (message.length() >= 285) {
-                            _soh = Integer.parseInt(message.substring(198, 202), 16) / 100.0;
-                            _amp = Math.round((Integer.valueOf(message.substring(280, 284), 16).shortValue() / 34.0) * 100.0) / 100.0;
-                            _volt = Integer.parseInt(message.substring(76, 80), 16) / 10.0;
-                            _power = Math.round(_amp * _volt / 1000.0 * 10.0) / 10.0;
-                            _newMessage++;
-                        }
-                    } else if (messageID.equals(SOC_ID)) {
-                        if (message.length() >= 280) {
-                            _socMin = Integer.parseInt(message.substring(142, 146), 16) / 100.0;
-                            _socMax = Integer.parseInt(message.substring(138, 142), 16) / 100.0;
-                            _socDelta = Math.round((_socMax - _socMin) * 100.0) / 100.0;
-                            _soc = Integer.parseInt(message.substring(156, 160), 16) / 100.0;
-                            
-                            if (message.length() > 161) {
-                                _isCharging = message.charAt(161) == '1';
-                            }
-                            
-                            String connectionType = message.substring(277, 278);
-                            switch (connectionType) {
-                                case "2": _chargingConnection = ChargingConnection.AC; break;
-                                case "3": _chargingConnection = ChargingConnection.DC; break;
-                                default: _chargingConnection = ChargingConnection.NC;
-                            }
-                            _newMessage++;
-                        }
-                    } else if (messageID.equals(BATTEMP_ID)) {
-                        if (message.length() >= 415) {
-                            _batTemp = Integer.valueOf(message.substring(410, 414), 16).shortValue() / 10.0;
-                            _newMessage++;
-                        }
-                    } else if (messageID.equals(ODO_ID)) {
-                        if (message.length() >= 26) {
-                            _odo = Integer.parseInt(message.substring(18, 26), 16);
-                            if (_lastOdo < _odo) {
-                                _lastOdo = _odo;
-                                _socHistory[_socHistoryPosition] = _soc;
-                                _socMinHistory[_socHistoryPosition] = _socMin;
-                                _socMaxHistory[_socHistoryPosition] = _socMax;
-                                _batTempHistory[_socHistoryPosition] = _batTemp;
-                                _socHistoryPosition = (_socHistoryPosition + 1) % (RANGE_ESTIMATE_WINDOW_5KM + 1);
-                                
-                                double socDelta = _socHistory[(_socHistoryPosition + 1) % (RANGE_ESTIMATE_WINDOW_5KM + 1)] - _soc;
-                                double socMinDelta = _socMinHistory[(_socHistoryPosition + 1) % (RANGE_ESTIMATE_WINDOW_5KM + 1)] - _socMin;
-                                double socMaxDelta = _socMaxHistory[(_socHistoryPosition + 1) % (RANGE_ESTIMATE_WINDOW_5KM + 1)] - _socMax;
-                                double batTempDelta = _batTemp - _batTempHistory[(_socHistoryPosition + 1) % (RANGE_ESTIMATE_WINDOW_5KM + 1)];
-                                long socRange = Math.round((_soc / socDelta) * RANGE_ESTIMATE_WINDOW_5KM);
-                                long socMinRange = Math.round((_socMin / socMinDelta) * RANGE_ESTIMATE_WINDOW_5KM);
-                                long socMaxRange = Math.round((_socMax / socMaxDelta) * RANGE_ESTIMATE_WINDOW_5KM);
-                                double batTempChange = batTempDelta / RANGE_ESTIMATE_WINDOW_5KM;
-                                if (socRange >= 0 || socMinRange >= 0 || socMaxRange >= 0) {
-                                    setText(_rangeText, String.format(Locale.ENGLISH, "%1$03dkm / %2$03dkm / %3$03dkm", socRange, socMinRange, socMaxRange));
-                                    setText(_batTempDeltaText, String.format(Locale.ENGLISH, "%1$.2fK/km", batTempChange));
-                                } else {
-                                    setText(_rangeText, "---km / ---km / ---km");
-                                }
-                            }
-                            _newMessage++;
-                        }
-                    } else if (message.matches("\\d+\\.\\dV")) {
-                        _auxBat = Double.parseDouble(message.substring(0, message.length() - 1));
-                        setText(_auxBatText, message);
-                    }
-                    _viewModel.setNewMessageProcessed();
-                }
+    private void notifySample(TelemetrySample sample) {
+        if (_lastEpochNotification + 10 < sample.getEpoch()) {
+            _notificationBuilder.setContentText("SoC " + sample.get(Signal.SOC) + "%");
+            if (ActivityCompat.checkSelfPermission(this, android.Manifest.permission.POST_NOTIFICATIONS) == PackageManager.PERMISSION_GRANTED) {
+                createNotificationChannel();
+                _notificationManagerCompat.notify(NOTIFICATION_ID, _notificationBuilder.build());
+                _lastEpochNotification = sample.getEpoch();
             }
-            if (command.length() <= 7) {
-                Thread.sleep(WAIT_TIME_BETWEEN_COMMAND_SENDS_MS);
+        }
+    }
+
+    // From the alerts sink, only when a rule raises or clears
+    private void onAlert(AlertEngine.Event event) {
+        setText(_messageText, "Alert: " + event);
+        if (ActivityCompat.checkSelfPermission(this, android.Manifest.permission.POST_NOTIFICATIONS) == PackageManager.PERMISSION_GRANTED) {
+            createNotificationChannel();
+            if (event.isRaised()) {
+                _notificationManagerCompat.notify(event.getName(), ALERT_NOTIFICATION_ID, new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL_ID)
+                        .setSmallIcon(R.mipmap.e_logo)
+                        .setContentTitle("e Insight: " + event.getName())
+                        .setContentText(String.format(Locale.ENGLISH, "%.2f, %s", event.getValue(), event.getRule()))
+                        .setAutoCancel(true)
+                        .setPriority(NotificationCompat.PRIORITY_HIGH)
+                        .build());
+            } else {
+                _notificationManagerCompat.cancel(event.getName(), ALERT_NOTIFICATION_ID);
             }
         }
+        MqttPublisher mqttPublisher = _mqttPublisher;
+        if (_mqttRunning && mqttPublisher != null) {
+            mqttPublisher.publish(AlertEngine.MQTT_TOPIC, event.toJson(), MqttPublisher.QOS_TELEMETRY, new MqttPublisher.Callback() {
+                @Override
+                public void onPublished(long latencyNanos) { }
+
+                @Override
+                public void onFailed(Throwable cause) { }
+            });
+        }
+    }
+
+    private void publishSample(TelemetrySample sample) {
+        if (_mqttRunning && _lastEpoch + 1 < sample.getEpoch()) {
+            _lastEpoch = sample.getEpoch();
+            publishMqttMessage(sample);
+        }
+    }
+
+    // Batches and the rate limit live in the uploader, this just feeds it
+    private void uploadSample(TelemetrySample sample) {
+        HttpUploader uploader = _httpUploader;
+        if (uploader != null) {
+            uploader.add(sample.getMqttPayload());
+            uploader.uploadIfDue();
+            _httpReport = uploader.report();
+        }
+    }
+
+    private void finishUploads() {
+        HttpUploader uploader = _httpUploader;
+        if (uploader != null) {
+            uploader.uploadAll();
+            _httpReport = uploader.report();
+        }
+    }
+
+    // Viewers only care about the newest sample, the server coalesces for slow ones itself
+    private void serveSample(TelemetrySample sample) {
+        LiveServer server = _liveServer;
+        if (server != null) {
+            server.publish(sample.getMqttPayload());
+        }
+    }
+
+    private String metricsSummary() {
+        LiveServer server = _liveServer;
+        VehicleSession session = _session;
+        return _metrics.summary() + _pipeline.report() + _httpReport + (server != null ? server.report() : "")
+                + (session != null ? session.getParkedMonitor().report() : "")
+                + _alertEngine.report() + _archiveReport;
+    }
+
+    // Persists the binned curve next to the trip logs once the charging session is over
+    private void writeChargeCurve(ChargeCurve chargeCurve) {
+        File[] dirs = getExternalMediaDirs();
+        if (dirs == null || dirs.length == 0) {
+            return;
+        }
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss");
+        try {
+            chargeCurve.write(new File(dirs[0], _vin + "-" + sdf.format(new Date(chargeCurve.getStartMs())) + ChargeCurve.FILE_SUFFIX));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     private void checkExternalMedia() {
@@ -743,20 +895,54 @@ private void onConnectionStatus(CommunicateViewModel.ConnectionStatus connection
         }
     }
 
-    private void parseVIN(String message) {
-        _vin = hexToASCII(message.substring(10, 44));
+    private void handleHttpSwitch(boolean isChecked) {
+        String urlText = _httpUrlText.getText().toString().trim();
+        _preferences.edit()
+                .putBoolean(PREFS_KEY_HTTP_SWITCH, isChecked)
+                .putString(PREFS_KEY_HTTP_URL, urlText)
+                .apply();
+        _httpUploader = null;
+        _httpReport = "";
+        if (isChecked && !urlText.isEmpty()) {
+            try {
+                _httpUploader = new HttpUploader(urlText);
+            } catch (IOException e) {
+                setText(_messageText, "Invalid HTTP URL: " + e.getMessage());
+            }
+        }
+    }
+
+    private void handleLanServer(boolean isChecked) {
+        _preferences.edit().putBoolean(PREFS_KEY_LAN_SERVER, isChecked).apply();
+        // Binding is network I/O; in order with the stop so a quick toggle can't leave a server behind
+        _networkExecutor.execute(() -> {
+            stopLiveServer();
+            if (!isChecked) {
+                return;
+            }
+            try {
+                LiveServer server = new LiveServer(LiveServer.DEFAULT_PORT);
+                server.start();
+                _liveServer = server;
+                String address = LiveServer.siteLocalAddress();
+                setText(_messageText, "Live data on http://" + (address != null ? address : "<phone ip>") + ":" + server.getPort() + server.getPath());
+            } catch (IOException e) {
+                setText(_messageText, "LAN server failed: " + e.getMessage());
+            }
+        });
     }
 
-    private static String hexToASCII(String hexStr) {
-        StringBuilder output = new StringBuilder();
-        for (int i = 0; i < hexStr.length(); i += 2) {
-            String str = hexStr.substring(i, i + 2);
-            output.append((char) Integer.parseInt(str, 16));
+    private void stopLiveServer() {
+        LiveServer server = _liveServer;
+        _liveServer = null;
+        if (server != null) {
+            server.close();
         }
-        return output.toString();
     }
 
+    // Picks the log file for the next pipeline, the log thread opens it with the first sample
     private void openNewFileForWriting() {
+        _logFile = null;
         try {
             // Safety check for directory
             File[] dirs = this.getExternalMediaDirs();
@@ -764,45 +950,103 @@ private void onConnectionStatus(CommunicateViewModel.ConnectionStatus connection
 
             SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss");
             Date now = new Date();
-            File logFile = new File(dirs[0], _vin + "-" + sdf.format(now) + ".csv");
-            logFile.createNewFile();
-            _logFileWriter = new PrintWriter(logFile);
-            _logFileWriter.println(LOG_FILE_HEADER);
+            _logFile = new File(dirs[0], _vin + "-" + sdf.format(now) + ".csv");
+            // Set on the CAN thread that decodes, so the header and every row agree on the cell columns
+            _state.setCellDecoding(_preferences.getBoolean(PREFS_KEY_CELL_DATA, false));
+
+            if (_preferences.getBoolean(PREFS_KEY_RECORD_TRAFFIC, false)) {
+                _trafficRecorder = new TrafficRecorder(new File(dirs[0], _vin + "-" + sdf.format(now) + ".trace"), _vin, _deviceName);
+                _viewModel.setTrafficRecorder(_trafficRecorder);
+            }
         } catch (Exception e) {
              e.printStackTrace();
         }
     }
 
-    private void writeLineToLogFile() {
-        String dataLine = _sysTimeMs + "," + _odo + "," + _soc + ","
-                + _socMin + "," + _socMax + "," + _soh + "," + _batTemp + ","
-                + _ambientTemp + "," + _power + "," + _amp + "," + _volt + ","
-                + _auxBat + "," + _chargingConnection.getName() + "," + _isCharging
-                + "," + _speed + "," + _lat + "," + _lon;
+    // The CSV log of one pipeline. Opened, written and closed on the log thread only, the close
+    // comes with the pipeline's completion, after every queued sample is written.
+    private final class TripLog {
+        private final File _file;
+        private final String _header;
+        private PrintWriter _writer;
 
-        String statusMessage = "";
+        TripLog(File file, String header) {
+            _file = file;
+            _header = header;
+        }
 
-        if (_logFileWriter == null) {
-            statusMessage = "LOG FILE MISSING ❌";
-        } else {
-            _logFileWriter.println(dataLine);
-            if (_logFileWriter.checkError()) {
-                statusMessage = "WRITE ERROR ❌";
+        void write(TelemetrySample sample) {
+            long logStartNanos = System.nanoTime();
+            String statusMessage = "";
+            if (_writer == null && _file != null) {
+                try {
+                    _writer = new PrintWriter(_file);
+                    _writer.println(_header);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (_writer == null) {
+                statusMessage = "LOG FILE MISSING ❌";
+            } else {
+                _writer.println(sample.getCsvLine());
+                if (_writer.checkError()) {
+                    statusMessage = "WRITE ERROR ❌";
+                }
+            }
+            if (!statusMessage.isEmpty()) {
+                setText(_messageText, statusMessage);
             }
+            _telemetryStore.add(sample);
+            _metrics.recordLogWrite(System.nanoTime() - logStartNanos);
         }
 
-        if (!statusMessage.isEmpty()) {
-            setText(_messageText, statusMessage);
+        void close() {
+            _telemetryStore.flush();
+            if (_writer != null) {
+                _writer.close();
+                _writer = null;
+            }
+            if (_file != null && _file.equals(_logFile)) {
+                _logFile = null;
+            }
+            // Finished, the archiver may have it once it has been idle long enough
+            _handler.removeCallbacks(_archiveLogs);
+            _handler.postDelayed(_archiveLogs, ARCHIVE_DELAY_MS);
         }
     }
 
-    private void closeLogFile() {
-        if (_logFileWriter != null) {
-            _logFileWriter.flush();
-            _logFileWriter.close();
+    private void closeTrafficRecorder() {
+        if (_trafficRecorder != null) {
+            _viewModel.setTrafficRecorder(null);
+            try {
+                _trafficRecorder.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            _trafficRecorder = null;
         }
     }
 
+    // Gzips finished trip logs and applies the quota, skipping the one being written
+    private void archiveLogs() {
+        if (_logArchiver == null) {
+            File[] dirs = getExternalMediaDirs();
+            if (dirs == null || dirs.length == 0) {
+                return;
+            }
+            _logArchiver = new LogArchiver(dirs[0], LogArchiver.DEFAULT_QUOTA_BYTES, LogArchiver.DEFAULT_MAX_AGE_MS);
+        }
+        LogArchiver archiver = _logArchiver;
+        if (_archiveExecutor.isShutdown()) {
+            return;
+        }
+        _archiveExecutor.execute(() -> {
+            archiver.run(_logFile);
+            _archiveReport = archiver.report();
+        });
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
@@ -821,34 +1065,12 @@ private void onConnectionStatus(CommunicateViewModel.ConnectionStatus connection
 
     @Override
     public void onLocationChanged(Location location) {
-        _speed = Math.round(location.getSpeed() * 36) / 10.0;
-        _elevation = Math.round(location.getAltitude() * 10.0) / 10.0;
+        _state.setLocation(Math.round(location.getSpeed() * 36) / 10.0,
+                Math.round(location.getAltitude() * 10.0) / 10.0,
+                String.valueOf(location.getLatitude()),
+                String.valueOf(location.getLongitude()));
         
         int accuracy = (int) location.getAccuracy();
         _gpsStatus = "Fix (±" + accuracy + "m)";
-        
-        _lat = String.valueOf(location.getLatitude());
-        _lon = String.valueOf(location.getLongitude());
-    }
-
-    enum ChargingConnection {
-        NC("NC", 0),
-        AC("AC", 0),
-        DC("DC", 1);
-        private final String _name;
-        private final int _dcfc;
-
-        ChargingConnection(String name, int dcfc) {
-            _name = name;
-            _dcfc = dcfc;
-        }
-
-        public String getName() {
-            return _name;
-        }
-
-        public int getDcfc() {
-            return _dcfc;
-        }
     }
 }
@@ -19,6 +19,10 @@ import io.reactivex.android.schedulers.AndroidSchedulers;
 import io.reactivex.disposables.CompositeDisposable;
 import io.reactivex.schedulers.Schedulers;
 
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
 public class CommunicateViewModel extends AndroidViewModel {
 
     private final CompositeDisposable _compositeDisposable = new CompositeDisposable();
@@ -33,13 +37,16 @@ public class CommunicateViewModel extends AndroidViewModel {
     private String _mac;
     private boolean _connectionAttemptedOrMade = false;
     private boolean _viewModelSetup = false;
-    private boolean _newMessage = false;
-
-    private final Object _newMessageParsed = new Object();
-    private String _message = "";
-    private String _messageID = "";
     private boolean _retry = true;
 
+    // Lines from the RFCOMM reader thread, consumed by the PollingEngine through _transport
+    private final LinkedBlockingQueue<String> _receivedLines = new LinkedBlockingQueue<>();
+    private final ElmTransport _transport = new BluetoothElmTransport();
+
+    private final TelemetryMetrics _metrics = new TelemetryMetrics();
+    @Nullable
+    private volatile TrafficRecorder _trafficRecorder;
+
     public CommunicateViewModel(@NotNull Application application) {
         super(application);
     }
@@ -103,7 +110,7 @@ public class CommunicateViewModel extends AndroidViewModel {
         this._deviceInterface = deviceInterface;
         if (this._deviceInterface != null) {
             _connectionStatusData.postValue(ConnectionStatus.CONNECTED);
-            this._deviceInterface.setListeners(this::onMessageReceived, this::onMessageSent, t -> toast("Send Error: " + t.getMessage()));
+            this._deviceInterface.setListeners(this::onMessageReceived, this::onMessageSent, this::onLinkError);
             toast(R.string.connected);
         } else {
             toast(R.string.connection_failed);
@@ -113,42 +120,48 @@ public class CommunicateViewModel extends AndroidViewModel {
 
     private void onMessageSent(String message) { }
 
-    private void onMessageReceived(String message) {
-        if (!TextUtils.isEmpty(message)) {
-            synchronized (_newMessageParsed) {
-                if (message.startsWith(">")) {
-                    _message = trySubstring(message, 11);
-                    _messageID = trySubstring(message, 11, 19);
-                } else {
-                    _message += trySubstring(message, 10);
-                }
-                if (message.contains("0000555555") || message.contains("OK") || message.contains("ELM327") || message.matches(">\\d+\\.\\dV")) {
-                    _newMessage = true;
-                    _newMessageParsed.notify();
-                }
+    // The RFCOMM socket died under us, hand over to the reconnect supervisor
+    private void onLinkError(Throwable t) {
+        toast("Send Error: " + t.getMessage());
+        dropLink();
+    }
+
+    // The socket is still open but the adapter went quiet, treated like a dead socket. Any thread.
+    public void onLinkLost() {
+        AndroidSchedulers.mainThread().scheduleDirect(() -> {
+            // The socket may have died first, that already went to RETRY
+            if (_deviceInterface != null) {
+                dropLink();
             }
-        }
+        });
     }
 
-    private String trySubstring(String message, int beginIndex) {
-        try {
-            return message.substring(beginIndex);
-        } catch (IndexOutOfBoundsException e) {
-            return message.substring(1);
+    private void dropLink() {
+        if (_deviceInterface != null) {
+            _bluetoothManager.closeDevice(_deviceInterface);
+            _deviceInterface = null;
         }
+        _connectionAttemptedOrMade = false;
+        _connectionStatusData.postValue(ConnectionStatus.RETRY);
     }
 
-    private String trySubstring(String message, int beginIndex, int endIndex) {
-        try {
-            return message.substring(beginIndex, endIndex);
-        } catch (IndexOutOfBoundsException e) {
-            return message;
+    private void onMessageReceived(String message) {
+        if (!TextUtils.isEmpty(message)) {
+            TrafficRecorder trafficRecorder = _trafficRecorder;
+            if (trafficRecorder != null) {
+                trafficRecorder.recordReceived(message);
+            }
+            _receivedLines.offer(message);
         }
     }
 
     public void sendMessage(String message) {
         if (_deviceInterface != null && !TextUtils.isEmpty(message)) {
             _deviceInterface.sendMessage(message);
+            TrafficRecorder trafficRecorder = _trafficRecorder;
+            if (trafficRecorder != null) {
+                trafficRecorder.recordSent(message);
+            }
         }
     }
 
@@ -172,14 +185,40 @@ public class CommunicateViewModel extends AndroidViewModel {
 
     public LiveData<ConnectionStatus> getConnectionStatus() { return _connectionStatusData; }
     public LiveData<String> getDeviceName() { return _deviceNameData; }
-    public String getMessage() { return _message; }
-    public String getMessageID() { return _messageID; }
-    public boolean isNewMessage() { return _newMessage; }
-    public Object getNewMessageParsed() { return _newMessageParsed; }
-    public void setNewMessageProcessed() { _newMessage = false; }
+    public ElmTransport getTransport() { return _transport; }
+    public TelemetryMetrics getMetrics() { return _metrics; }
+    public void setTrafficRecorder(@Nullable TrafficRecorder trafficRecorder) { _trafficRecorder = trafficRecorder; }
     public boolean isRetry() { return _retry; }
     public void setRetry(boolean _retry) { this._retry = _retry; }
 
+    // The RFCOMM link itself is opened and closed by connect()/disconnect()
+    private class BluetoothElmTransport implements ElmTransport {
+
+        @Override
+        public void open() { }
+
+        @Override
+        public void send(String command) throws IOException {
+            if (_deviceInterface == null) {
+                throw new IOException("Not connected");
+            }
+            sendMessage(command + "\n\r");
+        }
+
+        @Override
+        public String readLine(long timeoutMs) throws InterruptedException {
+            return _receivedLines.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void discardInput() {
+            _receivedLines.clear();
+        }
+
+        @Override
+        public void close() { }
+    }
+
     enum ConnectionStatus {
         DISCONNECTED,
         CONNECTING,
@@ -0,0 +1,206 @@
+package de.danielh.hondae_insight;
+
+import android.database.sqlite.SQLiteException;
+import android.os.Bundle;
+import android.view.MenuItem;
+import android.view.View;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
+import android.widget.RadioGroup;
+import android.widget.Spinner;
+import android.widget.TextView;
+
+import androidx.appcompat.app.AppCompatActivity;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+// Charts SoC, power and battery temperature, either of the last day / month / year from the
+// TelemetryStore or of one recorded trip log. The store picks the tier that fits the range, a trip
+// log is downsampled in a single pass over the file to about one point per horizontal pixel.
+public class HistoryActivity extends AppCompatActivity {
+
+    private static final String[] COLUMNS = {"SoC (dash)", "kW", "Battemp"};
+    private static final Signal[] SIGNALS = {Signal.SOC, Signal.POWER, Signal.BAT_TEMP};
+    private static final long[] STORE_RANGES_MS = {TelemetryStore.DAY_MS, 30 * TelemetryStore.DAY_MS, 365 * TelemetryStore.DAY_MS};
+    private static final int[] STORE_RANGE_NAMES = {R.string.history_last_day, R.string.history_last_month, R.string.history_last_year};
+    private static final String[] UNITS = {"%", "kW", "°C"};
+    private static final int DEFAULT_POINTS = 1000;
+
+    private HistoryChartView _chart;
+    private TextView _infoText;
+    private RadioGroup _signalGroup;
+    private final List<File> _logFiles = new ArrayList<>();
+    private volatile TimeSeries[] _series;
+    private File _selectedFile;
+    private TelemetryStore _store;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_history);
+        if (getSupportActionBar() != null) {
+            getSupportActionBar().setDisplayHomeAsUpEnabled(true);
+        }
+
+        _chart = findViewById(R.id.history_chart);
+        _infoText = findViewById(R.id.history_info);
+        _signalGroup = findViewById(R.id.history_signal);
+        _signalGroup.setOnCheckedChangeListener((group, checkedId) -> showSelectedSignal());
+        _store = new TelemetryStore(getApplicationContext());
+
+        File[] dirs = getExternalMediaDirs();
+        File[] files = dirs == null || dirs.length == 0 ? null : dirs[0].listFiles((dir, name) -> LogArchiver.isTripLog(name));
+        if (files != null) {
+            Arrays.sort(files, (a, b) -> Long.compare(b.lastModified(), a.lastModified()));
+            _logFiles.addAll(Arrays.asList(files));
+        }
+        List<String> names = new ArrayList<>();
+        for (int name : STORE_RANGE_NAMES) {
+            names.add(getString(name));
+        }
+        for (File file : _logFiles) {
+            names.add(file.getName());
+        }
+        Spinner fileSpinner = findViewById(R.id.history_file);
+        ArrayAdapter<String> adapter = new ArrayAdapter<>(this, android.R.layout.simple_spinner_item, names);
+        adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        fileSpinner.setAdapter(adapter);
+        fileSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                if (position < STORE_RANGES_MS.length) {
+                    loadHistory(STORE_RANGES_MS[position]);
+                } else {
+                    load(_logFiles.get(position - STORE_RANGES_MS.length));
+                }
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {
+            }
+        });
+        findViewById(R.id.history_export).setOnClickListener(v -> export(_selectedFile));
+    }
+
+    // GPX and GeoJSON next to the log, for mapping tools
+    private void export(File file) {
+        if (file == null) {
+            return;
+        }
+        _infoText.setText(getString(R.string.history_exporting, file.getName()));
+        new Thread(() -> {
+            try {
+                long startNanos = System.nanoTime();
+                StringBuilder info = new StringBuilder();
+                for (TripExporter.Format format : TripExporter.Format.values()) {
+                    TripExporter exporter = new TripExporter(format, TripExporter.DEFAULT_TOLERANCE_M);
+                    File target = exporter.exportNextTo(file);
+                    info.append(String.format(Locale.ENGLISH, "%s (%d kB)%n", target.getName(), target.length() / 1024));
+                    if (format == TripExporter.Format.GPX) {
+                        info.append(exporter.report()).append('\n');
+                    }
+                }
+                info.append((System.nanoTime() - startNanos) / 1000000).append("ms");
+                runOnUiThread(() -> _infoText.setText(info));
+            } catch (IOException e) {
+                runOnUiThread(() -> _infoText.setText("Error: " + e.getMessage()));
+            }
+        }).start();
+    }
+
+    // Long-term history up to now, the chart draws the min / max of the aggregated tiers as its band
+    private void loadHistory(long rangeMs) {
+        _selectedFile = null;
+        _infoText.setText(getString(R.string.history_loading, getString(R.string.history)));
+        TelemetryStore store = _store;
+        new Thread(() -> {
+            long startNanos = System.nanoTime();
+            long endMs = System.currentTimeMillis();
+            TimeSeries[] series = new TimeSeries[SIGNALS.length];
+            try {
+                for (int i = 0; i < SIGNALS.length; i++) {
+                    series[i] = store.query(SIGNALS[i], endMs - rangeMs, endMs);
+                }
+            } catch (SQLiteException | IllegalStateException e) {
+                // Closed by onDestroy() while the query ran, or the database is unreadable
+                runOnUiThread(() -> _infoText.setText("Error: " + e.getMessage()));
+                return;
+            }
+            long elapsedMs = (System.nanoTime() - startNanos) / 1000000;
+            _series = series;
+            runOnUiThread(() -> {
+                _infoText.setText(series[0].size() == 0 ? getString(R.string.history_no_samples)
+                        : String.format(Locale.ENGLISH, "%s tier, %d points in %dms",
+                        TelemetryStore.Tier.forRange(endMs - rangeMs, endMs, endMs), series[0].size(), elapsedMs));
+                showSelectedSignal();
+            });
+        }).start();
+    }
+
+    private void load(File file) {
+        _selectedFile = file;
+        _infoText.setText(getString(R.string.history_loading, file.getName()));
+        int points = _chart.getWidth() > 0 ? _chart.getWidth() : DEFAULT_POINTS;
+        new Thread(() -> {
+            try {
+                long startNanos = System.nanoTime();
+                TripLogReader reader = new TripLogReader(file);
+                long[] range = reader.timeRange();
+                if (range == null) {
+                    runOnUiThread(() -> _infoText.setText(R.string.history_no_samples));
+                    return;
+                }
+                int[] columns = new int[COLUMNS.length];
+                Downsampler[] downsamplers = new Downsampler[COLUMNS.length];
+                for (int i = 0; i < COLUMNS.length; i++) {
+                    columns[i] = reader.column(COLUMNS[i]);
+                    downsamplers[i] = new Downsampler(range[0], range[1], Math.max(3, points));
+                }
+                long rows = reader.read(columns, downsamplers);
+                TimeSeries[] series = new TimeSeries[COLUMNS.length];
+                for (int i = 0; i < COLUMNS.length; i++) {
+                    series[i] = downsamplers[i].finish();
+                }
+                long elapsedMs = (System.nanoTime() - startNanos) / 1000000;
+                _series = series;
+                runOnUiThread(() -> {
+                    _infoText.setText(String.format(Locale.ENGLISH, "%d rows -> %d points in %dms",
+                            rows, series[0].size(), elapsedMs));
+                    showSelectedSignal();
+                });
+            } catch (IOException e) {
+                runOnUiThread(() -> _infoText.setText("Error: " + e.getMessage()));
+            }
+        }).start();
+    }
+
+    private void showSelectedSignal() {
+        TimeSeries[] series = _series;
+        if (series == null) {
+            return;
+        }
+        int checkedId = _signalGroup.getCheckedRadioButtonId();
+        int signal = checkedId == R.id.history_signal_power ? 1 : checkedId == R.id.history_signal_battemp ? 2 : 0;
+        _chart.setSeries(series[signal], UNITS[signal]);
+    }
+
+    @Override
+    protected void onDestroy() {
+        _store.close();
+        super.onDestroy();
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == android.R.id.home) {
+            finish();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+}
@@ -0,0 +1,103 @@
+package de.danielh.hondae_insight;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.View;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+// Line chart of one downsampled signal, the bucket min / max drawn as a faint band behind the line
+public class HistoryChartView extends View {
+
+    private static final float PADDING_DP = 8;
+    private static final float LABEL_SP = 10;
+
+    private final Paint _linePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint _bandPaint = new Paint();
+    private final Paint _labelPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final SimpleDateFormat _timeFormat = new SimpleDateFormat("dd.MM. HH:mm", Locale.getDefault());
+    private float[] _lines = new float[0];
+    private float[] _band = new float[0];
+
+    private TimeSeries _series;
+    private String _unit = "";
+
+    public HistoryChartView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        float density = getResources().getDisplayMetrics().density;
+        _linePaint.setStrokeWidth(1.5f * density);
+        _linePaint.setColor(Color.parseColor("#2196F3"));
+        _bandPaint.setStrokeWidth(1);
+        _bandPaint.setColor(Color.parseColor("#402196F3"));
+        _labelPaint.setColor(Color.parseColor("#B0B0B0"));
+        _labelPaint.setTextSize(LABEL_SP * getResources().getDisplayMetrics().scaledDensity);
+    }
+
+    public void setSeries(TimeSeries series, String unit) {
+        _series = series;
+        _unit = unit;
+        invalidate();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        TimeSeries series = _series;
+        if (series == null || series.size() < 2) {
+            return;
+        }
+        float padding = PADDING_DP * getResources().getDisplayMetrics().density;
+        float labelHeight = _labelPaint.getTextSize();
+        float left = padding, right = getWidth() - padding;
+        float top = padding + labelHeight, bottom = getHeight() - padding - labelHeight;
+
+        double minValue = Double.POSITIVE_INFINITY, maxValue = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < series.size(); i++) {
+            minValue = Math.min(minValue, series.getMin(i));
+            maxValue = Math.max(maxValue, series.getMax(i));
+        }
+        if (maxValue - minValue < 1e-9) {
+            maxValue = minValue + 1;
+        }
+        long startMs = series.getTimeMs(0);
+        double timeSpan = Math.max(1, series.getTimeMs(series.size() - 1) - startMs);
+        double valueSpan = maxValue - minValue;
+
+        int segments = series.size() - 1;
+        if (_lines.length < segments * 4) {
+            _lines = new float[segments * 4];
+            _band = new float[series.size() * 4];
+        }
+        float previousX = 0, previousY = 0;
+        for (int i = 0; i < series.size(); i++) {
+            float x = (float) (left + (series.getTimeMs(i) - startMs) / timeSpan * (right - left));
+            float y = (float) (bottom - (series.getValue(i) - minValue) / valueSpan * (bottom - top));
+            _band[4 * i] = x;
+            _band[4 * i + 1] = (float) (bottom - (series.getMin(i) - minValue) / valueSpan * (bottom - top));
+            _band[4 * i + 2] = x;
+            _band[4 * i + 3] = (float) (bottom - (series.getMax(i) - minValue) / valueSpan * (bottom - top));
+            if (i > 0) {
+                int base = 4 * (i - 1);
+                _lines[base] = previousX;
+                _lines[base + 1] = previousY;
+                _lines[base + 2] = x;
+                _lines[base + 3] = y;
+            }
+            previousX = x;
+            previousY = y;
+        }
+        canvas.drawLines(_band, 0, series.size() * 4, _bandPaint);
+        canvas.drawLines(_lines, 0, segments * 4, _linePaint);
+
+        canvas.drawText(String.format(Locale.ENGLISH, "%.1f%s", maxValue, _unit), left, top - 2, _labelPaint);
+        canvas.drawText(String.format(Locale.ENGLISH, "%.1f%s", minValue, _unit), left, bottom + labelHeight, _labelPaint);
+        String end = _timeFormat.format(new Date(series.getTimeMs(series.size() - 1)));
+        canvas.drawText(_timeFormat.format(new Date(startMs)), left + getWidth() / 3f, bottom + labelHeight, _labelPaint);
+        canvas.drawText(end, right - _labelPaint.measureText(end), bottom + labelHeight, _labelPaint);
+    }
+}
@@ -0,0 +1,282 @@
+package de.danielh.hondae_insight;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+// Long term history next to the per session CSV. Raw samples are kept for a week and rolled up
+// while they arrive into 1 minute and 1 hour min / max / mean / last rows per signal, so months
+// of SoH or charging history are a single indexed range scan. Writes are batched into one
+// transaction, WAL keeps queries from the UI from blocking the poll loop.
+public class TelemetryStore extends SQLiteOpenHelper {
+
+    private static final String DATABASE_NAME = "telemetry.db";
+    private static final int DATABASE_VERSION = 1;
+
+    public static final long MINUTE_MS = 60 * 1000L;
+    public static final long HOUR_MS = 60 * MINUTE_MS;
+    public static final long DAY_MS = 24 * HOUR_MS;
+    public static final long RAW_RETENTION_MS = 7 * DAY_MS;
+    public static final long MINUTE_RETENTION_MS = 90 * DAY_MS;
+    // 10 samples at the 30 s scan interval, the CSV still has everything newer
+    private static final int BATCH_SAMPLES = 10;
+
+    enum Tier {
+        RAW("raw", 0, RAW_RETENTION_MS),
+        MINUTE("agg_1m", MINUTE_MS, MINUTE_RETENTION_MS),
+        HOUR("agg_1h", HOUR_MS, Long.MAX_VALUE);
+
+        private final String _table;
+        private final long _bucketMs;
+        private final long _retentionMs;
+
+        Tier(String table, long bucketMs, long retentionMs) {
+            _table = table;
+            _bucketMs = bucketMs;
+            _retentionMs = retentionMs;
+        }
+
+        // Picks the finest tier that still has the whole range and returns a few thousand rows at most
+        static Tier forRange(long fromMs, long toMs, long nowMs) {
+            long rangeMs = toMs - fromMs;
+            if (rangeMs <= DAY_MS && fromMs >= nowMs - RAW_RETENTION_MS) {
+                return RAW;
+            } else if (rangeMs <= 3 * DAY_MS && fromMs >= nowMs - MINUTE_RETENTION_MS) {
+                return MINUTE;
+            }
+            return HOUR;
+        }
+    }
+
+    // Aggregate of the bucket currently being filled
+    private static final class Rollup {
+        private long _bucket = -1;
+        private double _min, _max, _sum, _last;
+        private int _count;
+
+        void reset(long bucket) {
+            _bucket = bucket;
+            _min = Double.POSITIVE_INFINITY;
+            _max = Double.NEGATIVE_INFINITY;
+            _sum = 0;
+            _last = 0;
+            _count = 0;
+        }
+
+        void add(double value) {
+            if (value < _min) _min = value;
+            if (value > _max) _max = value;
+            _sum += value;
+            _last = value;
+            _count++;
+        }
+    }
+
+    private static final Signal[] SIGNALS = Signal.values();
+    private static final Tier[] ROLLUP_TIERS = {Tier.MINUTE, Tier.HOUR};
+
+    private final Rollup[][] _rollups = new Rollup[ROLLUP_TIERS.length][SIGNALS.length];
+    private final long[] _pendingTimesMs = new long[BATCH_SAMPLES];
+    private final double[][] _pendingValues = new double[BATCH_SAMPLES][SIGNALS.length];
+    private int _pendingCount = 0;
+    private long _latestSampleMs = 0;
+    private long _lastRetentionHour = -1;
+    // Compiled with the first flush, they live as long as the database connection
+    private SQLiteStatement _insertRaw;
+    private final SQLiteStatement[] _insertAggregate = new SQLiteStatement[ROLLUP_TIERS.length];
+
+    public TelemetryStore(Context context) {
+        this(context, DATABASE_NAME);
+    }
+
+    TelemetryStore(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+        setWriteAheadLoggingEnabled(true);
+        for (int tier = 0; tier < ROLLUP_TIERS.length; tier++) {
+            for (int signal = 0; signal < SIGNALS.length; signal++) {
+                _rollups[tier][signal] = new Rollup();
+            }
+        }
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // WAL keeps a committed transaction durable enough for telemetry without an fsync per commit
+        db.execSQL("PRAGMA synchronous=NORMAL");
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE raw (signal INTEGER NOT NULL, ts INTEGER NOT NULL, value REAL NOT NULL,"
+                + " PRIMARY KEY (signal, ts)) WITHOUT ROWID");
+        for (Tier tier : ROLLUP_TIERS) {
+            db.execSQL("CREATE TABLE " + tier._table + " (signal INTEGER NOT NULL, bucket INTEGER NOT NULL,"
+                    + " min REAL NOT NULL, max REAL NOT NULL, mean REAL NOT NULL, last REAL NOT NULL, count INTEGER NOT NULL,"
+                    + " PRIMARY KEY (signal, bucket)) WITHOUT ROWID");
+        }
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    }
+
+    // Called once per complete sample from the poll thread
+    public synchronized void add(long timeMs, VehicleState state) {
+        double[] values = _pendingValues[_pendingCount];
+        for (int signal = 0; signal < SIGNALS.length; signal++) {
+            values[signal] = SIGNALS[signal].read(state);
+        }
+        _pendingTimesMs[_pendingCount++] = timeMs;
+        if (_pendingCount == BATCH_SAMPLES) {
+            flush();
+        }
+    }
+
+    // Same as above from a pipeline sample, on the log sink's thread
+    public synchronized void add(TelemetrySample sample) {
+        sample.copyValues(_pendingValues[_pendingCount]);
+        _pendingTimesMs[_pendingCount++] = sample.getTimeMs();
+        if (_pendingCount == BATCH_SAMPLES) {
+            flush();
+        }
+    }
+
+    // Writes the pending samples, the rollup rows they touch and applies retention, all in one transaction
+    public synchronized void flush() {
+        if (_pendingCount == 0) {
+            return;
+        }
+        SQLiteDatabase db = getWritableDatabase();
+        if (_insertRaw == null) {
+            _insertRaw = db.compileStatement("INSERT OR REPLACE INTO raw (signal, ts, value) VALUES (?, ?, ?)");
+            for (int tier = 0; tier < ROLLUP_TIERS.length; tier++) {
+                _insertAggregate[tier] = db.compileStatement("INSERT OR REPLACE INTO " + ROLLUP_TIERS[tier]._table
+                        + " (signal, bucket, min, max, mean, last, count) VALUES (?, ?, ?, ?, ?, ?, ?)");
+            }
+        }
+        SQLiteStatement insertRaw = _insertRaw;
+        SQLiteStatement[] insertAggregate = _insertAggregate;
+        db.beginTransaction();
+        try {
+            for (int sample = 0; sample < _pendingCount; sample++) {
+                long timeMs = _pendingTimesMs[sample];
+                _latestSampleMs = Math.max(_latestSampleMs, timeMs);
+                for (int signal = 0; signal < SIGNALS.length; signal++) {
+                    double value = _pendingValues[sample][signal];
+                    if (Double.isNaN(value)) {
+                        continue;
+                    }
+                    insertRaw.bindLong(1, SIGNALS[signal].getId());
+                    insertRaw.bindLong(2, timeMs);
+                    insertRaw.bindDouble(3, value);
+                    insertRaw.executeInsert();
+
+                    for (int tier = 0; tier < ROLLUP_TIERS.length; tier++) {
+                        Rollup rollup = _rollups[tier][signal];
+                        long bucket = timeMs - timeMs % ROLLUP_TIERS[tier]._bucketMs;
+                        if (rollup._bucket != bucket) {
+                            if (rollup._count > 0) {
+                                writeRollup(insertAggregate[tier], signal, rollup);
+                            }
+                            resume(db, ROLLUP_TIERS[tier], signal, bucket, rollup);
+                        }
+                        rollup.add(value);
+                    }
+                }
+            }
+            // Buckets still filling are written too, queries see them and a restart picks them up again
+            for (int tier = 0; tier < ROLLUP_TIERS.length; tier++) {
+                for (int signal = 0; signal < SIGNALS.length; signal++) {
+                    if (_rollups[tier][signal]._count > 0) {
+                        writeRollup(insertAggregate[tier], signal, _rollups[tier][signal]);
+                    }
+                }
+            }
+            _pendingCount = 0;
+
+            long hour = _latestSampleMs / HOUR_MS;
+            if (hour != _lastRetentionHour) {
+                _lastRetentionHour = hour;
+                db.delete(Tier.RAW._table, "ts < ?", new String[]{String.valueOf(_latestSampleMs - RAW_RETENTION_MS)});
+                db.delete(Tier.MINUTE._table, "bucket < ?", new String[]{String.valueOf(_latestSampleMs - MINUTE_RETENTION_MS)});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static void writeRollup(SQLiteStatement statement, int signal, Rollup rollup) {
+        statement.bindLong(1, SIGNALS[signal].getId());
+        statement.bindLong(2, rollup._bucket);
+        statement.bindDouble(3, rollup._min);
+        statement.bindDouble(4, rollup._max);
+        statement.bindDouble(5, rollup._sum / rollup._count);
+        statement.bindDouble(6, rollup._last);
+        statement.bindLong(7, rollup._count);
+        statement.executeInsert();
+    }
+
+    // Continues a bucket written before a restart instead of overwriting it with fewer samples
+    private static void resume(SQLiteDatabase db, Tier tier, int signal, long bucket, Rollup rollup) {
+        rollup.reset(bucket);
+        try (Cursor cursor = db.rawQuery("SELECT min, max, mean, last, count FROM " + tier._table + " WHERE signal = ? AND bucket = ?",
+                new String[]{String.valueOf(SIGNALS[signal].getId()), String.valueOf(bucket)})) {
+            if (cursor.moveToFirst()) {
+                rollup._min = cursor.getDouble(0);
+                rollup._max = cursor.getDouble(1);
+                rollup._count = cursor.getInt(4);
+                rollup._sum = cursor.getDouble(2) * rollup._count;
+                rollup._last = cursor.getDouble(3);
+            }
+        }
+    }
+
+    public TimeSeries query(Signal signal, long fromMs, long toMs) {
+        long nowMs;
+        synchronized (this) {
+            flush();
+            nowMs = Math.max(_latestSampleMs, System.currentTimeMillis());
+        }
+        return query(signal, fromMs, toMs, Tier.forRange(fromMs, toMs, nowMs));
+    }
+
+    public TimeSeries query(Signal signal, long fromMs, long toMs, Tier tier) {
+        String[] arguments = {String.valueOf(signal.getId()), String.valueOf(fromMs), String.valueOf(toMs)};
+        SQLiteDatabase db = getReadableDatabase();
+        if (tier == Tier.RAW) {
+            try (Cursor cursor = db.rawQuery("SELECT ts, value FROM raw WHERE signal = ? AND ts BETWEEN ? AND ? ORDER BY ts", arguments)) {
+                TimeSeries series = new TimeSeries(cursor.getCount());
+                while (cursor.moveToNext()) {
+                    double value = cursor.getDouble(1);
+                    series.add(cursor.getLong(0), value, value, value);
+                }
+                return series;
+            }
+        }
+        try (Cursor cursor = db.rawQuery("SELECT bucket, mean, min, max FROM " + tier._table
+                + " WHERE signal = ? AND bucket BETWEEN ? AND ? ORDER BY bucket", arguments)) {
+            TimeSeries series = new TimeSeries(cursor.getCount());
+            while (cursor.moveToNext()) {
+                series.add(cursor.getLong(0), cursor.getDouble(1), cursor.getDouble(2), cursor.getDouble(3));
+            }
+            return series;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        flush();
+        if (_insertRaw != null) {
+            _insertRaw.close();
+            _insertRaw = null;
+            for (int tier = 0; tier < ROLLUP_TIERS.length; tier++) {
+                _insertAggregate[tier].close();
+                _insertAggregate[tier] = null;
+            }
+        }
+        super.close();
+    }
+}
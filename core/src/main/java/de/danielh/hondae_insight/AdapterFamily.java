@@ -0,0 +1,39 @@
+package de.danielh.hondae_insight;
+
+import java.util.Collections;
+import java.util.List;
+
+// Command strategy per adapter chip, picked by PollingEngine.probeAdapter() at connect time.
+// Clones only get plain ELM327 commands and a pause after short ones, STN chips get the STPX
+// command set and no pauses.
+enum AdapterFamily {
+    ELM327("ELM327", HondaECommands.CONNECTION_COMMANDS, HondaECommands.LOOP_COMMANDS,
+            HondaECommands.CHARGE_CURVE_SETUP_COMMANDS, HondaECommands.CHARGE_CURVE_COMMANDS, 50),
+    STN("STN", HondaECommands.STN_CONNECTION_COMMANDS, HondaECommands.STN_LOOP_COMMANDS,
+            Collections.emptyList(), HondaECommands.STN_CHARGE_CURVE_COMMANDS, 0);
+
+    private final String _name;
+    private final List<String> _connectionCommands;
+    private final List<String> _loopCommands;
+    private final List<String> _chargeCurveSetupCommands;
+    private final List<String> _chargeCurveCommands;
+    private final long _commandPauseMs;
+
+    AdapterFamily(String name, List<String> connectionCommands, List<String> loopCommands,
+                  List<String> chargeCurveSetupCommands, List<String> chargeCurveCommands, long commandPauseMs) {
+        _name = name;
+        _connectionCommands = connectionCommands;
+        _loopCommands = loopCommands;
+        _chargeCurveSetupCommands = chargeCurveSetupCommands;
+        _chargeCurveCommands = chargeCurveCommands;
+        _commandPauseMs = commandPauseMs;
+    }
+
+    public String getName() { return _name; }
+    public List<String> getConnectionCommands() { return _connectionCommands; }
+    public List<String> getLoopCommands() { return _loopCommands; }
+    public List<String> getChargeCurveSetupCommands() { return _chargeCurveSetupCommands; }
+    public List<String> getChargeCurveCommands() { return _chargeCurveCommands; }
+    // After commands up to 7 characters, i.e. the data requests; slow clones drop the next one otherwise
+    public long getCommandPauseMs() { return _commandPauseMs; }
+}
@@ -0,0 +1,351 @@
+package de.danielh.hondae_insight;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Watches every sample for the things worth telling the driver: cells drifting apart, the pack
+// heating up, a weak 12V battery, a DC charger that stopped delivering. Rules are one line each,
+//
+//   name: input > threshold [for 60s] [clear 1.2] [when input = value]
+//
+// where input is a Signal name or rate(signal[, window]) in units per minute, "for" holds the
+// condition that long before raising, "clear" is the hysteresis threshold to drop it again and
+// "when" gates the rule on another input. compile() turns the text into flat arrays once, sorted
+// by input; evaluate() then walks them against the sample with a few numbers of state per rule
+// and rate, and allocates nothing unless an alert is raised or cleared.
+public class AlertEngine {
+
+    public static final String MQTT_TOPIC = "hondae/alerts";
+    public static final String DEFAULT_RULES =
+            "cell_imbalance: soc_delta > 1.5 for 60s clear 1.2\n"
+            + "aux_low: aux_bat < 11.8 for 30s clear 12.2\n"
+            + "batt_temp_per_km: batt_temp_rate > 0.3 for 30s clear 0.2\n"
+            + "batt_temp_rising: rate(batt_temp, 2m) > 0.5 for 2m clear 0.2\n"
+            + "batt_hot: batt_temp > 50 clear 47\n"
+            + "dc_stalled: power < 5 for 2m clear 10 when dcfc = 1\n";
+
+    public interface Listener {
+        void onAlert(Event event);
+    }
+
+    public static class Event {
+        private final String _name;
+        private final String _rule;
+        private final boolean _raised;
+        private final double _value;
+        private final long _timeMs;
+
+        Event(String name, String rule, boolean raised, double value, long timeMs) {
+            _name = name;
+            _rule = rule;
+            _raised = raised;
+            _value = value;
+            _timeMs = timeMs;
+        }
+
+        public String getName() { return _name; }
+        public String getRule() { return _rule; }
+        public boolean isRaised() { return _raised; }
+        public double getValue() { return _value; }
+        public long getTimeMs() { return _timeMs; }
+
+        public String toJson() {
+            return String.format(Locale.ENGLISH, "{\"alert\":\"%s\",\"state\":\"%s\",\"value\":%s,\"utc\":%d,\"rule\":\"%s\"}",
+                    _name, _raised ? "raised" : "cleared", Double.isNaN(_value) ? "null" : String.format(Locale.ENGLISH, "%.3f", _value),
+                    _timeMs / 1000, _rule.replace("\\", "\\\\").replace("\"", "\\\""));
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH, "%s %s (%.2f)", _name, _raised ? "raised" : "cleared", _value);
+        }
+    }
+
+    private static final Signal[] SIGNALS = Signal.values();
+    private static final long DEFAULT_RATE_WINDOW_MS = 60000;
+    // A window this many times over means the car was off in between, start measuring again
+    private static final int RATE_GAP_WINDOWS = 4;
+
+    private static final Pattern RULE = Pattern.compile(
+            "(\\w+)\\s*:\\s*(\\S+)\\s*([<>])\\s*(-?[\\d.]+)"
+            + "(?:\\s+for\\s+(\\d+[smh]))?"
+            + "(?:\\s+clear\\s+(-?[\\d.]+))?"
+            + "(?:\\s+when\\s+(\\S+)\\s*([<>=])\\s*(-?[\\d.]+))?\\s*");
+    private static final Pattern RATE = Pattern.compile("rate\\((\\w+)(?:,(\\d+[smh]))?\\)");
+
+    private static final byte GUARD_NONE = 0, GUARD_ABOVE = 1, GUARD_BELOW = 2, GUARD_EQUALS = 3;
+
+    // One parsed line, only lives until the arrays are built
+    private static class Spec {
+        String name, rule;
+        int input;
+        boolean above;
+        double threshold, clear;
+        long forMs;
+        int guardInput = -1;
+        byte guardOp = GUARD_NONE;
+        double guardValue;
+    }
+
+    // Inputs are the signals followed by the rates, rules refer to them by index
+    private final double[] _inputs;
+
+    private final int[] _rateSignal;
+    private final long[] _rateWindowMs;
+    private final long[] _rateStartMs;
+    private final double[] _rateStartValue;
+
+    private final String[] _names;
+    private final String[] _rules;
+    private final int[] _input;
+    private final boolean[] _above;
+    private final double[] _threshold;
+    private final double[] _clear;
+    private final long[] _forMs;
+    private final int[] _guardInput;
+    private final byte[] _guardOp;
+    private final double[] _guardValue;
+
+    private final boolean[] _active;
+    private final long[] _pendingSinceMs;
+
+    private Listener _listener;
+    private int _activeCount;
+    private long _samples, _events;
+
+    // Rates as {signal, window ms}
+    private AlertEngine(List<Spec> rules, List<long[]> rates) {
+        int count = rules.size();
+        _inputs = new double[SIGNALS.length + rates.size()];
+        _rateSignal = new int[rates.size()];
+        _rateWindowMs = new long[rates.size()];
+        _rateStartMs = new long[rates.size()];
+        _rateStartValue = new double[rates.size()];
+        for (int rate = 0; rate < rates.size(); rate++) {
+            _rateSignal[rate] = (int) rates.get(rate)[0];
+            _rateWindowMs[rate] = rates.get(rate)[1];
+            _rateStartValue[rate] = Double.NaN;
+            _inputs[SIGNALS.length + rate] = Double.NaN;
+        }
+        _names = new String[count];
+        _rules = new String[count];
+        _input = new int[count];
+        _above = new boolean[count];
+        _threshold = new double[count];
+        _clear = new double[count];
+        _forMs = new long[count];
+        _guardInput = new int[count];
+        _guardOp = new byte[count];
+        _guardValue = new double[count];
+        _active = new boolean[count];
+        _pendingSinceMs = new long[count];
+        for (int rule = 0; rule < count; rule++) {
+            Spec spec = rules.get(rule);
+            _names[rule] = spec.name;
+            _rules[rule] = spec.rule;
+            _input[rule] = spec.input;
+            _above[rule] = spec.above;
+            _threshold[rule] = spec.threshold;
+            _clear[rule] = spec.clear;
+            _forMs[rule] = spec.forMs;
+            _guardInput[rule] = spec.guardInput;
+            _guardOp[rule] = spec.guardOp;
+            _guardValue[rule] = spec.guardValue;
+            _pendingSinceMs[rule] = -1;
+        }
+    }
+
+    // One rule per line, # starts a comment. Throws IllegalArgumentException naming the bad line.
+    public static AlertEngine compile(String text) {
+        List<Spec> rules = new ArrayList<>();
+        List<long[]> rates = new ArrayList<>();
+        Map<String, Integer> inputs = new HashMap<>();
+        for (Signal signal : SIGNALS) {
+            inputs.put(signal.getName(), signal.ordinal());
+        }
+        String[] lines = text.split("\n");
+        for (int number = 0; number < lines.length; number++) {
+            String line = lines[number];
+            int comment = line.indexOf('#');
+            line = (comment >= 0 ? line.substring(0, comment) : line).trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            // rate(batt_temp, 2m) is one token
+            Matcher matcher = RULE.matcher(line.replaceAll("\\(\\s*(\\w+)\\s*,\\s*", "($1,").replaceAll("\\s+\\)", ")"));
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException("alert rule " + (number + 1) + ": can't parse \"" + line + "\"");
+            }
+            Spec spec = new Spec();
+            spec.name = matcher.group(1);
+            spec.rule = line;
+            spec.input = input(matcher.group(2), inputs, rates, number);
+            spec.above = matcher.group(3).equals(">");
+            spec.threshold = Double.parseDouble(matcher.group(4));
+            spec.clear = matcher.group(6) != null ? Double.parseDouble(matcher.group(6)) : spec.threshold;
+            if (spec.above ? spec.clear > spec.threshold : spec.clear < spec.threshold) {
+                throw new IllegalArgumentException("alert rule " + (number + 1) + ": clear " + spec.clear + " is on the wrong side of " + spec.threshold);
+            }
+            spec.forMs = matcher.group(5) != null ? durationMs(matcher.group(5)) : 0;
+            if (matcher.group(7) != null) {
+                spec.guardInput = input(matcher.group(7), inputs, rates, number);
+                spec.guardOp = matcher.group(8).equals(">") ? GUARD_ABOVE : matcher.group(8).equals("<") ? GUARD_BELOW : GUARD_EQUALS;
+                spec.guardValue = Double.parseDouble(matcher.group(9));
+            }
+            rules.add(spec);
+        }
+        // Rules on the same input next to each other, the value stays in a register
+        rules.sort((a, b) -> Integer.compare(a.input, b.input));
+        return new AlertEngine(rules, rates);
+    }
+
+    // Signal index, or one past the signals for a rate; equal rates share their tracker
+    private static int input(String token, Map<String, Integer> inputs, List<long[]> rates, int number) {
+        Integer index = inputs.get(token);
+        if (index != null) {
+            return index;
+        }
+        Matcher rate = RATE.matcher(token);
+        Integer signal = rate.matches() ? inputs.get(rate.group(1)) : null;
+        if (signal == null || signal >= SIGNALS.length) {
+            throw new IllegalArgumentException("alert rule " + (number + 1) + ": unknown input " + token);
+        }
+        long windowMs = rate.group(2) != null ? durationMs(rate.group(2)) : DEFAULT_RATE_WINDOW_MS;
+        String key = signal + "/" + windowMs;
+        index = inputs.get(key);
+        if (index == null) {
+            index = SIGNALS.length + rates.size();
+            rates.add(new long[]{signal, windowMs});
+            inputs.put(key, index);
+        }
+        return index;
+    }
+
+    private static long durationMs(String duration) {
+        long amount = Long.parseLong(duration.substring(0, duration.length() - 1));
+        switch (duration.charAt(duration.length() - 1)) {
+            case 'h': return amount * 3600000;
+            case 'm': return amount * 60000;
+            default: return amount * 1000;
+        }
+    }
+
+    public void setListener(Listener listener) {
+        _listener = listener;
+    }
+
+    // Call with every sample in order, returns the number of alerts raised or cleared
+    public int evaluate(TelemetrySample sample) {
+        long timeMs = sample.getTimeMs();
+        double[] inputs = _inputs;
+        sample.copyValues(inputs);
+        _samples++;
+        updateRates(inputs, timeMs);
+
+        int events = 0;
+        for (int rule = 0; rule < _names.length; rule++) {
+            double value = inputs[_input[rule]];
+            // No reading yet, or a rate still filling its first window: keep whatever state there is
+            if (value != value) {
+                continue;
+            }
+            boolean condition;
+            if (_active[rule]) {
+                // Hysteresis: stays up until it's past the clear threshold
+                condition = _above[rule] ? value > _clear[rule] : value < _clear[rule];
+            } else {
+                condition = _above[rule] ? value > _threshold[rule] : value < _threshold[rule];
+            }
+            int guard = _guardInput[rule];
+            if (condition && guard >= 0) {
+                double guardValue = inputs[guard];
+                switch (_guardOp[rule]) {
+                    case GUARD_ABOVE: condition = guardValue > _guardValue[rule]; break;
+                    case GUARD_BELOW: condition = guardValue < _guardValue[rule]; break;
+                    default: condition = guardValue == _guardValue[rule];
+                }
+            }
+            if (_active[rule]) {
+                if (!condition) {
+                    _active[rule] = false;
+                    _activeCount--;
+                    _pendingSinceMs[rule] = -1;
+                    events++;
+                    fire(rule, false, value, timeMs);
+                }
+            } else if (!condition) {
+                _pendingSinceMs[rule] = -1;
+            } else {
+                if (_pendingSinceMs[rule] < 0) {
+                    _pendingSinceMs[rule] = timeMs;
+                }
+                if (timeMs - _pendingSinceMs[rule] >= _forMs[rule]) {
+                    _active[rule] = true;
+                    _activeCount++;
+                    events++;
+                    fire(rule, true, value, timeMs);
+                }
+            }
+        }
+        return events;
+    }
+
+    // Change per minute over a tumbling window: one start point per rate, the value holds until
+    // the next window closes
+    private void updateRates(double[] inputs, long timeMs) {
+        for (int rate = 0; rate < _rateSignal.length; rate++) {
+            double value = inputs[_rateSignal[rate]];
+            int input = SIGNALS.length + rate;
+            if (value != value) {
+                inputs[input] = Double.NaN;
+                continue;
+            }
+            long elapsedMs = timeMs - _rateStartMs[rate];
+            if (_rateStartValue[rate] != _rateStartValue[rate] || elapsedMs > _rateWindowMs[rate] * RATE_GAP_WINDOWS || elapsedMs < 0) {
+                _rateStartMs[rate] = timeMs;
+                _rateStartValue[rate] = value;
+                inputs[input] = Double.NaN;
+            } else if (elapsedMs >= _rateWindowMs[rate]) {
+                inputs[input] = (value - _rateStartValue[rate]) * 60000 / elapsedMs;
+                _rateStartMs[rate] = timeMs;
+                _rateStartValue[rate] = value;
+            }
+            // else the previous window's rate is still in inputs[input], copyValues() leaves it alone
+        }
+    }
+
+    private void fire(int rule, boolean raised, double value, long timeMs) {
+        _events++;
+        Listener listener = _listener;
+        if (listener != null) {
+            listener.onAlert(new Event(_names[rule], _rules[rule], raised, value, timeMs));
+        }
+    }
+
+    public int getRules() { return _names.length; }
+    public int getRates() { return _rateSignal.length; }
+    public int getActiveCount() { return _activeCount; }
+    public long getEvents() { return _events; }
+
+    public boolean isActive(String name) {
+        int rule = Arrays.asList(_names).indexOf(name);
+        return rule >= 0 && _active[rule];
+    }
+
+    public String report() {
+        StringBuilder active = new StringBuilder();
+        for (int rule = 0; rule < _names.length; rule++) {
+            if (_active[rule]) {
+                active.append(active.length() == 0 ? " (" : ", ").append(_names[rule]);
+            }
+        }
+        return String.format(Locale.ENGLISH, "alerts %d rules, %d active%s, %d events in %d samples%n",
+                _names.length, _activeCount, active.length() > 0 ? active.append(')') : "", _events, _samples);
+    }
+}
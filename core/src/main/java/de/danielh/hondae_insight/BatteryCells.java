@@ -0,0 +1,195 @@
+package de.danielh.hondae_insight;
+
+// Per-cell voltages and temperature sensors of the 96s pack. Decoded in place into primitive
+// arrays every cycle, statistics in the same pass, and appended to the caller's builder for the
+// log and MQTT, so the poll loop allocates nothing here.
+//
+// Experimental: the offsets below are a guess that no recorded trace has confirmed yet, so
+// VehicleState only decodes and emits the cells once setCellDecoding(true) opts in.
+public class BatteryCells {
+
+    public static final int CELL_COUNT = 96;
+    public static final int TEMP_SENSOR_COUNT = 16;
+
+    // Hex offsets into the assembled reply, 4 hex digits per value. The cell block sits in front
+    // of the pack temperature in the BATTEMP reply, the sensor block behind the SoC values in the
+    // SOC reply. Provisional, check against a recorded trace when a new firmware shows up.
+    static final int CELL_VOLTAGE_OFFSET = 18;
+    static final int TEMP_SENSOR_OFFSET = 180;
+
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    // Running min / max / mean / standard deviation, Welford so one pass is enough
+    static final class Stats {
+        private int _count;
+        private int _min, _max;
+        private double _mean, _m2;
+
+        void reset() {
+            _count = 0;
+            _min = Integer.MAX_VALUE;
+            _max = Integer.MIN_VALUE;
+            _mean = 0;
+            _m2 = 0;
+        }
+
+        void add(int value) {
+            _count++;
+            if (value < _min) _min = value;
+            if (value > _max) _max = value;
+            double delta = value - _mean;
+            _mean += delta / _count;
+            _m2 += delta * (value - _mean);
+        }
+
+        int getCount() { return _count; }
+        int getMin() { return _min; }
+        int getMax() { return _max; }
+        double getMean() { return _mean; }
+        double getStdDev() { return _count > 1 ? Math.sqrt(_m2 / _count) : 0; }
+    }
+
+    private final int[] _cellMillivolts = new int[CELL_COUNT];
+    private final int[] _sensorDeciCelsius = new int[TEMP_SENSOR_COUNT];
+    private final Stats _voltageStats = new Stats();
+    private final Stats _temperatureStats = new Stats();
+    // Two bytes per value, big endian, reused for the packed log and MQTT form
+    private final byte[] _voltagePack = new byte[2 * CELL_COUNT];
+    private final byte[] _temperaturePack = new byte[2 * TEMP_SENSOR_COUNT];
+
+    public BatteryCells() {
+        _voltageStats.reset();
+        _temperatureStats.reset();
+    }
+
+    // BATTEMP reply, unsigned millivolts
+    public boolean decodeCellVoltages(String message) {
+        if (message.length() < CELL_VOLTAGE_OFFSET + CELL_COUNT * 4) {
+            return false;
+        }
+        _voltageStats.reset();
+        for (int i = 0; i < CELL_COUNT; i++) {
+            int millivolts = HexCodec.tryParseInt(message, CELL_VOLTAGE_OFFSET + i * 4, 4);
+            if (millivolts < 0) {
+                _voltageStats.reset();
+                return false;
+            }
+            _cellMillivolts[i] = millivolts;
+            _voltageStats.add(millivolts);
+        }
+        return true;
+    }
+
+    // Forget the last values, e.g. when decoding is switched off
+    public void clear() {
+        _voltageStats.reset();
+        _temperatureStats.reset();
+    }
+
+    // SOC reply, signed tenths of a degree
+    public boolean decodeTemperatures(String message) {
+        if (message.length() < TEMP_SENSOR_OFFSET + TEMP_SENSOR_COUNT * 4) {
+            return false;
+        }
+        _temperatureStats.reset();
+        for (int i = 0; i < TEMP_SENSOR_COUNT; i++) {
+            int word = HexCodec.tryParseInt(message, TEMP_SENSOR_OFFSET + i * 4, 4);
+            if (word < 0) {
+                _temperatureStats.reset();
+                return false;
+            }
+            _sensorDeciCelsius[i] = (short) word;
+            _temperatureStats.add(_sensorDeciCelsius[i]);
+        }
+        return true;
+    }
+
+    // Base64 of the big endian 16 bit values, 256 characters for all 96 cells
+    private static void appendPacked(StringBuilder out, int[] values, byte[] buffer) {
+        for (int i = 0; i < values.length; i++) {
+            buffer[2 * i] = (byte) (values[i] >> 8);
+            buffer[2 * i + 1] = (byte) values[i];
+        }
+        for (int i = 0; i < buffer.length; i += 3) {
+            int bits = (buffer[i] & 0xff) << 16;
+            if (i + 1 < buffer.length) bits |= (buffer[i + 1] & 0xff) << 8;
+            if (i + 2 < buffer.length) bits |= buffer[i + 2] & 0xff;
+            out.append(BASE64[bits >> 18]).append(BASE64[(bits >> 12) & 0x3f]);
+            out.append(i + 1 < buffer.length ? BASE64[(bits >> 6) & 0x3f] : '=');
+            out.append(i + 2 < buffer.length ? BASE64[bits & 0x3f] : '=');
+        }
+    }
+
+    // What %.Nf would print, without the Formatter
+    static void appendFixed(StringBuilder out, double value, int decimals) {
+        long scale = 1;
+        for (int i = 0; i < decimals; i++) {
+            scale *= 10;
+        }
+        long scaled = Math.round(Math.abs(value) * scale);
+        if (value < 0 && scaled != 0) {
+            out.append('-');
+        }
+        out.append(scaled / scale).append('.');
+        for (long digit = scale / 10, fraction = scaled % scale; digit > 0; digit /= 10) {
+            out.append((char) ('0' + fraction / digit % 10));
+        }
+    }
+
+    public boolean hasVoltages() { return _voltageStats.getCount() == CELL_COUNT; }
+    public boolean hasTemperatures() { return _temperatureStats.getCount() == TEMP_SENSOR_COUNT; }
+
+    // Matches VehicleState.CELL_LOG_COLUMNS
+    public void appendCsvColumns(StringBuilder out) {
+        out.append(',').append(hasVoltages() ? _voltageStats.getMin() : 0);
+        out.append(',').append(hasVoltages() ? _voltageStats.getMax() : 0);
+        out.append(',');
+        appendFixed(out, _voltageStats.getMean(), 1);
+        out.append(',');
+        appendFixed(out, _voltageStats.getStdDev(), 2);
+        out.append(',');
+        appendFixed(out, hasTemperatures() ? getTemperatureMin() : 0, 1);
+        out.append(',');
+        appendFixed(out, hasTemperatures() ? getTemperatureMax() : 0, 1);
+        out.append(',');
+        if (hasVoltages()) {
+            appendPacked(out, _cellMillivolts, _voltagePack);
+        }
+        out.append(',');
+        if (hasTemperatures()) {
+            appendPacked(out, _sensorDeciCelsius, _temperaturePack);
+        }
+    }
+
+    public void appendJsonFields(StringBuilder out) {
+        if (hasVoltages()) {
+            out.append(",\"cell_min_mv\":").append(_voltageStats.getMin());
+            out.append(",\"cell_max_mv\":").append(_voltageStats.getMax());
+            out.append(",\"cell_mean_mv\":");
+            appendFixed(out, _voltageStats.getMean(), 1);
+            out.append(",\"cell_std_mv\":");
+            appendFixed(out, _voltageStats.getStdDev(), 2);
+            out.append(",\"cells\":\"");
+            appendPacked(out, _cellMillivolts, _voltagePack);
+            out.append('"');
+        }
+        if (hasTemperatures()) {
+            out.append(",\"cell_temp_min\":");
+            appendFixed(out, getTemperatureMin(), 1);
+            out.append(",\"cell_temp_max\":");
+            appendFixed(out, getTemperatureMax(), 1);
+            out.append(",\"cell_temps\":\"");
+            appendPacked(out, _sensorDeciCelsius, _temperaturePack);
+            out.append('"');
+        }
+    }
+
+    public int getCellMillivolts(int cell) { return _cellMillivolts[cell]; }
+    public int getSensorDeciCelsius(int sensor) { return _sensorDeciCelsius[sensor]; }
+    public int getCellMinMillivolts() { return _voltageStats.getMin(); }
+    public int getCellMaxMillivolts() { return _voltageStats.getMax(); }
+    public double getCellMeanMillivolts() { return _voltageStats.getMean(); }
+    public double getCellStdDevMillivolts() { return _voltageStats.getStdDev(); }
+    public double getTemperatureMin() { return _temperatureStats.getMin() / 10.0; }
+    public double getTemperatureMax() { return _temperatureStats.getMax() / 10.0; }
+}
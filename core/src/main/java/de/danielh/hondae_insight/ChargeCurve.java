@@ -0,0 +1,107 @@
+package de.danielh.hondae_insight;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+
+// DC charge curve of one charging session, binned by 0.5 % SoC (dash). Every bin keeps count,
+// mean, min and max of power, current, voltage and battery temperature in primitive arrays.
+public class ChargeCurve {
+
+    public static final double BIN_WIDTH_SOC = 0.5;
+    public static final int BINS = (int) (100 / BIN_WIDTH_SOC) + 1;
+    public static final String FILE_SUFFIX = "-charge.csv";
+
+    private static final int POWER = 0, AMP = 1, VOLT = 2, BAT_TEMP = 3, VALUES = 4;
+    private static final String[] VALUE_NAMES = {"kW", "A", "V", "BatTemp"};
+
+    private final int[] _counts = new int[BINS];
+    private final double[][] _sums = new double[VALUES][BINS];
+    private final double[][] _min = new double[VALUES][BINS];
+    private final double[][] _max = new double[VALUES][BINS];
+
+    private final String _vin;
+    private final long _startMs;
+    private final String _lat, _lon;
+    private long _endMs;
+    private double _startSoc = Double.NaN, _endSoc;
+    private long _samples;
+
+    public ChargeCurve(String vin, long startMs, String lat, String lon) {
+        _vin = vin;
+        _startMs = startMs;
+        _lat = lat;
+        _lon = lon;
+    }
+
+    public void add(long timeMs, VehicleState state) {
+        double soc = state.getSoc();
+        int bin = (int) Math.round(soc / BIN_WIDTH_SOC);
+        if (bin < 0 || bin >= BINS) {
+            return;
+        }
+        if (Double.isNaN(_startSoc)) {
+            _startSoc = soc;
+        }
+        _endSoc = soc;
+        _endMs = timeMs;
+        _samples++;
+
+        add(POWER, bin, state.getPower());
+        add(AMP, bin, state.getAmp());
+        add(VOLT, bin, state.getVolt());
+        add(BAT_TEMP, bin, state.getBatTemp());
+        _counts[bin]++;
+    }
+
+    private void add(int value, int bin, double sample) {
+        if (_counts[bin] == 0) {
+            _min[value][bin] = sample;
+            _max[value][bin] = sample;
+        } else {
+            _min[value][bin] = Math.min(_min[value][bin], sample);
+            _max[value][bin] = Math.max(_max[value][bin], sample);
+        }
+        _sums[value][bin] += sample;
+    }
+
+    // One row per filled bin after a few comment lines describing the session, so curves from
+    // different chargers can be lined up by SoC
+    public void write(File file) throws IOException {
+        try (PrintWriter writer = new PrintWriter(file, "UTF-8")) {
+            writer.println("# vin " + _vin);
+            writer.println(String.format(Locale.ENGLISH, "# start %d end %d duration %ds", _startMs, _endMs, (_endMs - _startMs) / 1000));
+            writer.println(String.format(Locale.ENGLISH, "# soc %.2f -> %.2f, %d samples", _startSoc, _endSoc, _samples));
+            writer.println("# location " + _lat + "," + _lon);
+            StringBuilder header = new StringBuilder("SoC,count");
+            for (String name : VALUE_NAMES) {
+                header.append(',').append(name).append(",").append(name).append(" min,").append(name).append(" max");
+            }
+            writer.println(header);
+            for (int bin = 0; bin < BINS; bin++) {
+                if (_counts[bin] == 0) {
+                    continue;
+                }
+                StringBuilder row = new StringBuilder();
+                row.append(String.format(Locale.ENGLISH, "%.1f,%d", bin * BIN_WIDTH_SOC, _counts[bin]));
+                for (int value = 0; value < VALUES; value++) {
+                    row.append(String.format(Locale.ENGLISH, ",%.2f,%.2f,%.2f",
+                            _sums[value][bin] / _counts[bin], _min[value][bin], _max[value][bin]));
+                }
+                writer.println(row);
+            }
+        }
+    }
+
+    public long getSamples() { return _samples; }
+    public long getStartMs() { return _startMs; }
+    public double getStartSoc() { return _startSoc; }
+    public double getEndSoc() { return _endSoc; }
+
+    // Mean charging power of the bin holding the given SoC, NaN if nothing was recorded there
+    public double getPowerAt(double soc) {
+        int bin = (int) Math.round(soc / BIN_WIDTH_SOC);
+        return bin >= 0 && bin < BINS && _counts[bin] > 0 ? _sums[POWER][bin] / _counts[bin] : Double.NaN;
+    }
+}
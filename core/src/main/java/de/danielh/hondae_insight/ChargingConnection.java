@@ -0,0 +1,22 @@
+package de.danielh.hondae_insight;
+
+enum ChargingConnection {
+    NC("NC", 0),
+    AC("AC", 0),
+    DC("DC", 1);
+    private final String _name;
+    private final int _dcfc;
+
+    ChargingConnection(String name, int dcfc) {
+        _name = name;
+        _dcfc = dcfc;
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    public int getDcfc() {
+        return _dcfc;
+    }
+}
@@ -0,0 +1,13 @@
+package de.danielh.hondae_insight;
+
+// Time source for anything that waits or measures, so it can be replaced by a virtual clock
+public interface Clock {
+
+    Clock SYSTEM = System::currentTimeMillis;
+
+    long currentTimeMillis();
+
+    default void sleep(long ms) throws InterruptedException {
+        Thread.sleep(ms);
+    }
+}
@@ -0,0 +1,140 @@
+package de.danielh.hondae_insight;
+
+import java.util.Arrays;
+
+// MinMaxLTTB: a single pass keeps first / min / max / last and the running mean of each time
+// bucket, then Largest-Triangle-Three-Buckets picks one point per bucket from those candidates.
+// Memory is a few arrays of the target size, whatever the length of the input; peaks and dips
+// survive because the extremes of every bucket are always among the candidates.
+public class Downsampler {
+
+    private static final int CANDIDATES = 4; // first, min, max, last
+
+    private final long _startMs;
+    private final long _endMs;
+    private final int _points;
+    private final int _buckets;
+
+    private final long[] _candidateTimes;
+    private final double[] _candidateValues;
+    private final double[] _timeSums, _valueSums;
+    private final int[] _counts;
+
+    private long _firstTimeMs = -1, _lastTimeMs;
+    private double _firstValue, _lastValue;
+    private long _samples;
+
+    // Points includes the first and the last sample, which are always kept
+    public Downsampler(long startMs, long endMs, int points) {
+        if (points < 3 || endMs < startMs) {
+            throw new IllegalArgumentException("points " + points + ", range " + startMs + ".." + endMs);
+        }
+        _startMs = startMs;
+        _endMs = endMs;
+        _points = points;
+        _buckets = points - 2;
+        _candidateTimes = new long[_buckets * CANDIDATES];
+        _candidateValues = new double[_buckets * CANDIDATES];
+        _timeSums = new double[_buckets];
+        _valueSums = new double[_buckets];
+        _counts = new int[_buckets];
+    }
+
+    // Samples in time order; NaN and out of range samples are skipped
+    public void add(long timeMs, double value) {
+        if (Double.isNaN(value) || timeMs < _startMs || timeMs > _endMs) {
+            return;
+        }
+        _samples++;
+        if (_firstTimeMs < 0) {
+            _firstTimeMs = timeMs;
+            _firstValue = value;
+        }
+        _lastTimeMs = timeMs;
+        _lastValue = value;
+
+        int bucket = (int) Math.min(_buckets - 1, (timeMs - _startMs) * _buckets / (_endMs - _startMs + 1));
+        int base = bucket * CANDIDATES;
+        if (_counts[bucket] == 0) {
+            for (int i = 0; i < CANDIDATES; i++) {
+                _candidateTimes[base + i] = timeMs;
+                _candidateValues[base + i] = value;
+            }
+        } else {
+            if (value < _candidateValues[base + 1]) {
+                _candidateTimes[base + 1] = timeMs;
+                _candidateValues[base + 1] = value;
+            }
+            if (value > _candidateValues[base + 2]) {
+                _candidateTimes[base + 2] = timeMs;
+                _candidateValues[base + 2] = value;
+            }
+            _candidateTimes[base + 3] = timeMs;
+            _candidateValues[base + 3] = value;
+        }
+        _timeSums[bucket] += timeMs - _startMs;
+        _valueSums[bucket] += value;
+        _counts[bucket]++;
+    }
+
+    public TimeSeries finish() {
+        TimeSeries series = new TimeSeries(_points);
+        if (_samples == 0) {
+            return series;
+        }
+        series.add(_firstTimeMs, _firstValue, _firstValue, _firstValue);
+        if (_samples == 1) {
+            return series;
+        }
+
+        long previousTime = _firstTimeMs;
+        double previousValue = _firstValue;
+        for (int bucket = 0; bucket < _buckets; bucket++) {
+            if (_counts[bucket] == 0) {
+                continue;
+            }
+            // Third corner: mean of the next bucket with data, or the last sample
+            double nextTime = _lastTimeMs - _startMs;
+            double nextValue = _lastValue;
+            for (int next = bucket + 1; next < _buckets; next++) {
+                if (_counts[next] > 0) {
+                    nextTime = _timeSums[next] / _counts[next];
+                    nextValue = _valueSums[next] / _counts[next];
+                    break;
+                }
+            }
+
+            int base = bucket * CANDIDATES;
+            int best = base;
+            double bestArea = -1;
+            for (int i = base; i < base + CANDIDATES; i++) {
+                double area = Math.abs((previousTime - _startMs - nextTime) * (_candidateValues[i] - previousValue)
+                        - (previousTime - _candidateTimes[i]) * (nextValue - previousValue));
+                if (area > bestArea) {
+                    bestArea = area;
+                    best = i;
+                }
+            }
+            // The first and the last sample are added on their own
+            if (_candidateTimes[best] == _firstTimeMs || _candidateTimes[best] == _lastTimeMs) {
+                continue;
+            }
+            int bucketMin = base + 1, bucketMax = base + 2;
+            series.add(_candidateTimes[best], _candidateValues[best], _candidateValues[bucketMin], _candidateValues[bucketMax]);
+            previousTime = _candidateTimes[best];
+            previousValue = _candidateValues[best];
+        }
+        series.add(_lastTimeMs, _lastValue, _lastValue, _lastValue);
+        return series;
+    }
+
+    public void reset() {
+        Arrays.fill(_counts, 0);
+        Arrays.fill(_timeSums, 0);
+        Arrays.fill(_valueSums, 0);
+        _firstTimeMs = -1;
+        _samples = 0;
+    }
+
+    public long getSamples() { return _samples; }
+}
@@ -0,0 +1,89 @@
+package de.danielh.hondae_insight;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Joins the lines of one ELM327 reply. With ATH1 ATS0 the first line starts with the
+// prompt of the previous request, so ">" marks the start of a new reply.
+public class ElmResponseAssembler {
+
+    // ELM327 error replies, they end a request just like a regular answer
+    private static final String[] ELM_ERRORS = {"CAN ERROR", "BUS ERROR", "BUFFER FULL", "NO DATA", "STOPPED", "DATA ERROR"};
+
+    // Precompiled and reused, String.matches() compiles the pattern again for every line
+    private final Matcher _auxBatteryReply = Pattern.compile(">\\d+\\.\\dV").matcher("");
+    private final Matcher _protocolReply = Pattern.compile(">A?[0-9A-C]").matcher("");
+    // ATI, STI and STDI answers
+    private final Matcher _identificationReply = Pattern.compile(">?(ELM327 .*|STN\\d+ .*|OBDLink.*|vLinker.*)").matcher("");
+
+    // Continuation lines are appended here, the String is only built when asked for
+    private final StringBuilder _body = new StringBuilder(512);
+    private String _message = "";
+    private String _messageID = "";
+    private boolean _canError = false;
+    private boolean _rejected = false;
+
+    // Returns true when the line completes a reply
+    public boolean accept(String line) {
+        if (line == null || line.isEmpty()) {
+            return false;
+        }
+        if (line.startsWith(">")) {
+            _body.setLength(0);
+            appendFrom(line, 11);
+            _messageID = trySubstring(line, 11, 19);
+        } else {
+            appendFrom(line, 10);
+        }
+        _message = null;
+        _canError = false;
+        _rejected = false;
+        if (line.contains("0000555555") || line.contains("OK")
+                || _auxBatteryReply.reset(line).matches() || _protocolReply.reset(line).matches()) {
+            return true;
+        } else if (_identificationReply.reset(line).matches()) {
+            // Free text, the whole line is the answer
+            _body.setLength(0);
+            _body.append(line, line.startsWith(">") ? 1 : 0, line.length());
+            return true;
+        } else if (line.equals("?") || line.equals(">?")) {
+            // The adapter doesn't know the command or refused its parameters
+            _rejected = true;
+            return true;
+        } else if (isElmError(line)) {
+            _canError = true;
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean isElmError(String line) {
+        for (String error : ELM_ERRORS) {
+            if (line.contains(error)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Lines shorter than the header only lose their first character, like substring(1)
+    private void appendFrom(String line, int beginIndex) {
+        _body.append(line, beginIndex <= line.length() ? beginIndex : 1, line.length());
+    }
+
+    // Checked up front, short replies like ">OK" are on every cycle and exceptions aren't cheap
+    private static String trySubstring(String message, int beginIndex, int endIndex) {
+        return endIndex <= message.length() ? message.substring(beginIndex, endIndex) : message;
+    }
+
+    public String getMessage() {
+        if (_message == null) {
+            _message = _body.toString();
+        }
+        return _message;
+    }
+
+    public String getMessageID() { return _messageID; }
+    public boolean isCanError() { return _canError; }
+    public boolean isRejected() { return _rejected; }
+}
@@ -0,0 +1,19 @@
+package de.danielh.hondae_insight;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+// Line based link to an ELM327 compatible adapter
+public interface ElmTransport extends Closeable {
+
+    void open() throws IOException;
+
+    // Sends one command, the transport appends the line terminator
+    void send(String command) throws IOException;
+
+    // Next received line without terminator, null if nothing arrived within the timeout
+    String readLine(long timeoutMs) throws IOException, InterruptedException;
+
+    // Drops lines still queued from an earlier reply
+    void discardInput() throws IOException;
+}
@@ -0,0 +1,140 @@
+package de.danielh.hondae_insight;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+// Finds the flow control that gets the long SOH, SOC and BATTEMP replies through an adapter
+// fastest without losing any. Every candidate profile is set with ATFCSD and then has to carry
+// the three replies a few times over; only the data requests count towards bytes per second,
+// the header switches in between don't. A profile is stable if no reply timed out, came back as
+// an ELM error (BUFFER FULL on clones) or was cut short. Needs an adapter that went through the
+// init sequence, and leaves it on the profile it picked, or on the one it had if none was stable.
+public class FlowControlCalibrator {
+
+    public static final int DEFAULT_ROUNDS = 2;
+
+    private static final List<String> BMS_HEADER = Arrays.asList("ATSHDA15F1", "ATFCSH18DA15F1", "ATCRA18DAF115");
+    private static final List<String> BMS_REQUESTS = Arrays.asList("222021", "222029"); // SOH VOLT AMP, SOC
+    private static final List<String> CELLS_HEADER = Arrays.asList("ATSHDA01F1", "ATFCSH18DA01F1", "ATCRA18DAF101");
+    private static final List<String> CELLS_REQUESTS = Arrays.asList("22202A"); // BATTTEMP
+
+    public static class Result {
+        final FlowControlProfile profile;
+        int replies, failures;
+        long payloadBytes, elapsedMs;
+
+        Result(FlowControlProfile profile) {
+            this.profile = profile;
+        }
+
+        public double getBytesPerSecond() { return elapsedMs > 0 ? payloadBytes * 1000.0 / elapsedMs : 0; }
+        public double getErrorRate() { return replies + failures > 0 ? (double) failures / (replies + failures) : 1; }
+        public boolean isStable() { return replies > 0 && failures == 0; }
+        public FlowControlProfile getProfile() { return profile; }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH, "%s  %6.0f B/s  errors %4.1f%%%s", profile, getBytesPerSecond(),
+                    getErrorRate() * 100, isStable() ? "" : "  unstable");
+        }
+    }
+
+    private final ElmTransport _transport;
+    private final Clock _clock;
+    private final ElmResponseAssembler _assembler = new ElmResponseAssembler();
+    private final VehicleState _scratch = new VehicleState();
+    private final List<Result> _results = new ArrayList<>();
+
+    public FlowControlCalibrator(ElmTransport transport, Clock clock) {
+        _transport = transport;
+        _clock = clock;
+    }
+
+    // Tries every candidate and returns the fastest stable one, null if none of them was
+    public FlowControlProfile calibrate(List<FlowControlProfile> candidates, int rounds, FlowControlProfile current) throws IOException, InterruptedException {
+        _results.clear();
+        for (FlowControlProfile profile : candidates) {
+            if (!request(profile.getCommand()) || _assembler.isRejected() || _assembler.isCanError()) {
+                // Adapter refused the setting, nothing to measure
+                continue;
+            }
+            Result result = new Result(profile);
+            for (int round = 0; round < rounds; round++) {
+                measure(BMS_HEADER, BMS_REQUESTS, result);
+                measure(CELLS_HEADER, CELLS_REQUESTS, result);
+            }
+            _results.add(result);
+        }
+        FlowControlProfile best = getBest();
+        request((best != null ? best : current).getCommand());
+        return best;
+    }
+
+    private void measure(List<String> header, List<String> requests, Result result) throws IOException, InterruptedException {
+        for (String command : header) {
+            request(command);
+        }
+        for (String command : requests) {
+            long startMs = _clock.currentTimeMillis();
+            boolean complete = request(command);
+            result.elapsedMs += _clock.currentTimeMillis() - startMs;
+            if (complete && !_assembler.isCanError() && _scratch.decode(_assembler.getMessageID(), _assembler.getMessage())) {
+                result.replies++;
+                result.payloadBytes += _assembler.getMessage().length() / 2;
+            } else {
+                result.failures++;
+            }
+        }
+    }
+
+    // Same loop as PollingEngine.request(), calibration has no business in its metrics
+    private boolean request(String command) throws IOException, InterruptedException {
+        _transport.discardInput();
+        _transport.send(command);
+        long deadlineMs = _clock.currentTimeMillis() + PollingEngine.RESPONSE_TIMEOUT_MS;
+        while (true) {
+            long remainingMs = deadlineMs - _clock.currentTimeMillis();
+            if (remainingMs <= 0) {
+                return false;
+            }
+            String line = _transport.readLine(remainingMs);
+            if (line != null && _assembler.accept(line)) {
+                return true;
+            }
+        }
+    }
+
+    public FlowControlProfile getBest() {
+        Result best = null;
+        for (Result result : _results) {
+            if (result.isStable() && (best == null || result.getBytesPerSecond() > best.getBytesPerSecond())) {
+                best = result;
+            }
+        }
+        return best != null ? best.profile : null;
+    }
+
+    public List<Result> getResults() { return _results; }
+
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        Result baseline = null;
+        FlowControlProfile best = getBest();
+        for (Result result : _results) {
+            if (result.profile.equals(FlowControlProfile.DEFAULT)) {
+                baseline = result;
+            }
+            report.append(result).append(result.profile.equals(best) ? "  <- picked" : "").append('\n');
+        }
+        for (Result result : _results) {
+            if (result.profile.equals(best) && baseline != null && baseline.getBytesPerSecond() > 0) {
+                report.append(String.format(Locale.ENGLISH, "%.2fx the default, which %s%n", result.getBytesPerSecond() / baseline.getBytesPerSecond(),
+                        baseline.isStable() ? "was stable" : String.format(Locale.ENGLISH, "lost %.1f%% of the replies", baseline.getErrorRate() * 100)));
+            }
+        }
+        return report.toString();
+    }
+}
@@ -0,0 +1,80 @@
+package de.danielh.hondae_insight;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+// ISO-TP flow control the adapter sends for the long replies, as ATFCSD 30 <block size> <STmin>.
+// Block size 0 lets the ECU send every consecutive frame in one go, anything else makes it wait
+// for another flow control frame after that many. STmin is the ECU's pause between frames, 0x00
+// to 0x7F in milliseconds, 0xF1 to 0xF9 in 100 microsecond steps.
+public final class FlowControlProfile {
+
+    public static final String COMMAND_PREFIX = "ATFCSD";
+    private static final String CLEAR_TO_SEND = "30";
+
+    public static final FlowControlProfile DEFAULT = new FlowControlProfile(0, 0x00);
+
+    // Worth trying on any adapter, from "everything at once" to small blocks with a pause
+    public static final List<FlowControlProfile> CANDIDATES;
+
+    static {
+        List<FlowControlProfile> candidates = new ArrayList<>();
+        for (int blockSize : new int[]{0, 32, 16, 8, 4}) {
+            for (int separationTime : new int[]{0x00, 0xF5, 0x01}) {
+                candidates.add(new FlowControlProfile(blockSize, separationTime));
+            }
+        }
+        CANDIDATES = Collections.unmodifiableList(candidates);
+    }
+
+    private final int _blockSize;
+    private final int _separationTime;
+
+    public FlowControlProfile(int blockSize, int separationTime) {
+        _blockSize = blockSize;
+        _separationTime = separationTime;
+    }
+
+    // ATFCSD300800 -> block size 8, STmin 0. Null for anything else, e.g. an old preference.
+    public static FlowControlProfile parse(String command) {
+        if (command == null || command.length() != 12 || !command.startsWith(COMMAND_PREFIX + CLEAR_TO_SEND)) {
+            return null;
+        }
+        try {
+            return new FlowControlProfile(Integer.parseInt(command.substring(8, 10), 16), Integer.parseInt(command.substring(10, 12), 16));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public String getCommand() {
+        return String.format(Locale.ENGLISH, "%s%s%02X%02X", COMMAND_PREFIX, CLEAR_TO_SEND, _blockSize, _separationTime);
+    }
+
+    public double getSeparationTimeMs() {
+        if (_separationTime >= 0xF1 && _separationTime <= 0xF9) {
+            return (_separationTime - 0xF0) / 10.0;
+        }
+        // Reserved values mean the maximum to an ECU
+        return _separationTime <= 0x7F ? _separationTime : 0x7F;
+    }
+
+    public int getBlockSize() { return _blockSize; }
+    public int getSeparationTime() { return _separationTime; }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof FlowControlProfile && ((FlowControlProfile) other)._blockSize == _blockSize
+                && ((FlowControlProfile) other)._separationTime == _separationTime;
+    }
+
+    @Override
+    public int hashCode() { return _blockSize * 256 + _separationTime; }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ENGLISH, "BS %2d STmin %.1fms", _blockSize, getSeparationTimeMs());
+    }
+}
@@ -0,0 +1,127 @@
+package de.danielh.hondae_insight;
+
+// Hex digits straight out of the assembled reply, without substring() or Integer.parseInt().
+// One table lookup per digit; anything that isn't 0-9, A-F or a-f is rejected.
+public final class HexCodec {
+
+    private static final byte INVALID = -1;
+    private static final byte[] NIBBLES = new byte[256];
+
+    static {
+        for (int i = 0; i < NIBBLES.length; i++) {
+            NIBBLES[i] = INVALID;
+        }
+        for (int i = 0; i < 10; i++) {
+            NIBBLES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            NIBBLES['A' + i] = (byte) (10 + i);
+            NIBBLES['a' + i] = (byte) (10 + i);
+        }
+    }
+
+    private HexCodec() {
+    }
+
+    // Value of one hex digit, -1 if it isn't one
+    public static int nibble(char c) {
+        return c < 256 ? NIBBLES[c] : INVALID;
+    }
+
+    // Up to 8 digits as a big endian int; 8 digits come back as the raw 32 bit pattern
+    public static int parseInt(CharSequence hex, int offset, int digits) {
+        checkRange(hex.length(), offset, digits, 8);
+        int value = 0;
+        for (int i = offset; i < offset + digits; i++) {
+            int nibble = nibble(hex.charAt(i));
+            if (nibble < 0) {
+                throw malformed(hex.charAt(i), i);
+            }
+            value = (value << 4) | nibble;
+        }
+        return value;
+    }
+
+    public static int parseInt(byte[] hex, int offset, int digits) {
+        checkRange(hex.length, offset, digits, 8);
+        int value = 0;
+        for (int i = offset; i < offset + digits; i++) {
+            int nibble = NIBBLES[hex[i] & 0xFF];
+            if (nibble < 0) {
+                throw malformed((char) (hex[i] & 0xFF), i);
+            }
+            value = (value << 4) | nibble;
+        }
+        return value;
+    }
+
+    // Like parseInt(), but -1 instead of an exception for malformed input, at most 7 digits
+    public static int tryParseInt(CharSequence hex, int offset, int digits) {
+        if (digits > 7 || offset < 0 || offset + digits > hex.length()) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = offset; i < offset + digits; i++) {
+            int nibble = nibble(hex.charAt(i));
+            if (nibble < 0) {
+                return -1;
+            }
+            value = (value << 4) | nibble;
+        }
+        return value;
+    }
+
+    // Decodes byteCount bytes starting at offset into out; returns out
+    public static byte[] decode(CharSequence hex, int offset, int byteCount, byte[] out, int outOffset) {
+        checkRange(hex.length(), offset, byteCount * 2, Integer.MAX_VALUE);
+        for (int i = 0; i < byteCount; i++) {
+            int position = offset + 2 * i;
+            int high = nibble(hex.charAt(position));
+            int low = nibble(hex.charAt(position + 1));
+            if (high < 0 || low < 0) {
+                throw malformed(high < 0 ? hex.charAt(position) : hex.charAt(position + 1), high < 0 ? position : position + 1);
+            }
+            out[outOffset + i] = (byte) ((high << 4) | low);
+        }
+        return out;
+    }
+
+    public static byte[] decode(byte[] hex, int offset, int byteCount, byte[] out, int outOffset) {
+        checkRange(hex.length, offset, byteCount * 2, Integer.MAX_VALUE);
+        for (int i = 0; i < byteCount; i++) {
+            out[outOffset + i] = (byte) parseInt(hex, offset + 2 * i, 2);
+        }
+        return out;
+    }
+
+    public static byte[] decode(CharSequence hex, int offset, int byteCount) {
+        return decode(hex, offset, byteCount, new byte[byteCount], 0);
+    }
+
+    public static byte[] decode(CharSequence hex) {
+        if ((hex.length() & 1) != 0) {
+            throw new NumberFormatException("Odd number of hex digits: " + hex.length());
+        }
+        return decode(hex, 0, hex.length() / 2);
+    }
+
+    // Hex encoded ISO-8859-1 text, e.g. the VIN
+    public static String decodeAscii(CharSequence hex, int offset, int byteCount) {
+        checkRange(hex.length(), offset, byteCount * 2, Integer.MAX_VALUE);
+        char[] chars = new char[byteCount];
+        for (int i = 0; i < byteCount; i++) {
+            chars[i] = (char) parseInt(hex, offset + 2 * i, 2);
+        }
+        return new String(chars);
+    }
+
+    private static void checkRange(int length, int offset, int digits, int maxDigits) {
+        if (digits < 1 || digits > maxDigits || offset < 0 || offset + digits > length) {
+            throw new IndexOutOfBoundsException("offset " + offset + ", digits " + digits + ", length " + length);
+        }
+    }
+
+    private static NumberFormatException malformed(char c, int position) {
+        return new NumberFormatException("Not a hex digit: '" + c + "' at " + position);
+    }
+}
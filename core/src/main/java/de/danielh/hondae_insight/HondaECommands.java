@@ -0,0 +1,91 @@
+package de.danielh.hondae_insight;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// ELM327 command sequences for the Honda e
+public final class HondaECommands {
+
+    public static final List<String> CONNECTION_COMMANDS = Collections.unmodifiableList(Arrays.asList(
+            "ATWS", "ATE0", "ATSP7", "ATAT1", "ATH1", "ATL0", "ATS0", "ATRV",
+            "ATAL", "ATCAF1", "ATSHDA01F1", "ATFCSH18DA01F1", "ATFCSD300000",
+            "ATFCSM1", "ATCFC1", "ATCP18", "ATSHDA07F1", "ATFCSH18DA07F1",
+            "ATCRA18DAF107", "22F190" //VIN
+    ));
+
+    public static final List<String> LOOP_COMMANDS = Collections.unmodifiableList(Arrays.asList(
+            "ATSHDA60F1", "ATFCSH18DA60F1", "ATCRA18DAF160",
+            "227028", //AMBIENT
+            "2270229", //ODO
+            "ATSHDA15F1", "ATFCSH18DA15F1", "ATCRA18DAF115",
+            "222021", //SOH VOLT AMP
+            "222029", //SOC
+            "ATSHDA01F1", "ATFCSH18DA01F1", "ATCRA18DAF101",
+            "22202A", // BATTTEMP
+            "ATRV" // AUX BAT
+    ));
+
+    // DC charge curve capture: the BMS (DA15) only, its header set once per capture window
+    public static final String CHARGE_CURVE_ECU = "DA15";
+
+    public static final List<String> CHARGE_CURVE_SETUP_COMMANDS = Collections.unmodifiableList(Arrays.asList(
+            "ATSHDA15F1", "ATFCSH18DA15F1", "ATCRA18DAF115"
+    ));
+
+    public static final List<String> CHARGE_CURVE_COMMANDS = Collections.unmodifiableList(Arrays.asList(
+            "222021", //SOH VOLT AMP
+            "222029" //SOC
+    ));
+
+    // STN chips (OBDLink): pass filter and flow control pairs for all ECUs are set up once, then
+    // STPX sends every request with its own header. No ATSH/ATFCSH/ATCRA round trips per ECU switch.
+    public static final String STPX_PREFIX = "STPX H:";
+
+    public static final List<String> STN_CONNECTION_COMMANDS = Collections.unmodifiableList(Arrays.asList(
+            "ATWS", "ATE0", "ATSP7", "ATAT1", "ATH1", "ATL0", "ATS0", "ATRV",
+            "ATCAF1", "STFAC", "STFAP 18DAF100,1FFFFF00",
+            "STCFCPA 18DA01F1,18DAF101", "STCFCPA 18DA07F1,18DAF107",
+            "STCFCPA 18DA15F1,18DAF115", "STCFCPA 18DA60F1,18DAF160",
+            stpx("18DA07F1", "22F190") //VIN
+    ));
+
+    public static final List<String> STN_LOOP_COMMANDS = Collections.unmodifiableList(Arrays.asList(
+            stpx("18DA60F1", "227028"), //AMBIENT
+            // No response count: the 9 of 2270229 is an ELM327 suffix, STPX takes whole bytes only
+            stpx("18DA60F1", "227022"), //ODO
+            stpx("18DA15F1", "222021"), //SOH VOLT AMP
+            stpx("18DA15F1", "222029"), //SOC
+            stpx("18DA01F1", "22202A"), // BATTTEMP
+            "ATRV" // AUX BAT
+    ));
+
+    public static final List<String> STN_CHARGE_CURVE_COMMANDS = Collections.unmodifiableList(Arrays.asList(
+            stpx("18DA15F1", "222021"), //SOH VOLT AMP
+            stpx("18DA15F1", "222029") //SOC
+    ));
+
+    // One request with its 29 bit header, waiting for a single reply
+    private static String stpx(String header, String data) {
+        return STPX_PREFIX + header + ",D:" + data + ",R:1";
+    }
+
+    // STPX H:18DA15F1,D:222021,R:1 -> DA15, null for anything else
+    public static String stpxEcu(String command) {
+        return command.startsWith(STPX_PREFIX) ? command.substring(9, 13) : null;
+    }
+
+    // STPX H:18DA15F1,D:222021,R:1 -> 222021, 2270229 -> 227022 without the ELM327 response
+    // count, the command itself for anything else
+    public static String requestData(String command) {
+        if (!command.startsWith(STPX_PREFIX)) {
+            return command.length() % 2 != 0 && !command.startsWith("AT") ? command.substring(0, command.length() - 1) : command;
+        }
+        int start = command.indexOf(",D:") + 3;
+        int end = command.indexOf(',', start);
+        return command.substring(start, end < 0 ? command.length() : end);
+    }
+
+    private HondaECommands() {
+    }
+}
@@ -0,0 +1,225 @@
+package de.danielh.hondae_insight;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+// Uploads samples to a REST endpoint as gzip compressed JSON arrays. Samples are batched and a
+// request goes out at most every minRequestIntervalMs, so on a phone the radio wakes up a few
+// times an hour instead of every cycle. HttpURLConnection pools the keep-alive connection as long
+// as every response is read to the end and closed. Not thread safe, runs on one pipeline sink.
+public class HttpUploader {
+
+    public static final int DEFAULT_BATCH_SAMPLES = 20;
+    public static final long DEFAULT_MAX_BATCH_AGE_MS = 5 * 60000;
+    public static final long DEFAULT_MIN_REQUEST_INTERVAL_MS = 60000;
+    // Kept while the endpoint is unreachable, the oldest go first after that
+    public static final int MAX_PENDING_SAMPLES = 2880;
+
+    private static final long BASE_RETRY_MS = 5000;
+    private static final long MAX_RETRY_MS = 10 * 60000;
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    private static final int READ_TIMEOUT_MS = 20000;
+
+    private final URL _url;
+    private final Clock _clock;
+    private final int _batchSamples;
+    private final long _maxBatchAgeMs;
+    private final long _minRequestIntervalMs;
+
+    private final ArrayDeque<String> _pending = new ArrayDeque<>();
+    private final ArrayDeque<Long> _pendingTimesMs = new ArrayDeque<>();
+    private final ByteArrayOutputStream _body = new ByteArrayOutputStream(16 * 1024);
+    private final byte[] _drain = new byte[512];
+
+    // The endpoint can't take these batches, sending them again would block the queue forever.
+    // Anything else, e.g. 401/403/404 for a wrong token or URL, keeps the batch and backs off.
+    private static final int[] PAYLOAD_ERRORS = {400, 413, 422};
+
+    private long _lastRequestMs = Long.MIN_VALUE / 2;
+    private int _lastStatus;
+    private long _retryAtMs;
+    private int _attempt;
+
+    private long _firstSampleMs = -1, _lastSampleMs;
+    private long _requests, _failures, _rejected, _dropped, _samplesSent, _rawBytes, _sentBytes;
+
+    public HttpUploader(String url, Clock clock, int batchSamples, long maxBatchAgeMs, long minRequestIntervalMs) throws IOException {
+        _url = new URL(url);
+        _clock = clock;
+        _batchSamples = batchSamples;
+        _maxBatchAgeMs = maxBatchAgeMs;
+        _minRequestIntervalMs = minRequestIntervalMs;
+    }
+
+    public HttpUploader(String url) throws IOException {
+        this(url, Clock.SYSTEM, DEFAULT_BATCH_SAMPLES, DEFAULT_MAX_BATCH_AGE_MS, DEFAULT_MIN_REQUEST_INTERVAL_MS);
+    }
+
+    // One JSON object per sample, the same payload that goes out over MQTT
+    public void add(String json) {
+        long nowMs = _clock.currentTimeMillis();
+        if (_firstSampleMs < 0) {
+            _firstSampleMs = nowMs;
+        }
+        _lastSampleMs = nowMs;
+        if (_pending.size() == MAX_PENDING_SAMPLES) {
+            _pending.poll();
+            _pendingTimesMs.poll();
+            _dropped++;
+        }
+        _pending.add(json);
+        _pendingTimesMs.add(nowMs);
+    }
+
+    // Sends a batch once it is full or old enough, within the rate limit and retry backoff
+    public boolean uploadIfDue() {
+        if (_pending.isEmpty()) {
+            return false;
+        }
+        long nowMs = _clock.currentTimeMillis();
+        boolean due = _pending.size() >= _batchSamples || nowMs - _pendingTimesMs.peek() >= _maxBatchAgeMs;
+        if (!due || nowMs < _retryAtMs || nowMs - _lastRequestMs < _minRequestIntervalMs) {
+            return false;
+        }
+        return upload();
+    }
+
+    // Everything pending regardless of the limits, e.g. when the drive ends. Stops at the first failure.
+    public void uploadAll() {
+        while (!_pending.isEmpty() && upload()) {
+            // next batch
+        }
+    }
+
+    private boolean upload() {
+        int count = Math.min(_batchSamples, _pending.size());
+        _lastRequestMs = _clock.currentTimeMillis();
+        _requests++;
+        HttpURLConnection connection = null;
+        try {
+            int rawBytes = compressBatch(count);
+            connection = (HttpURLConnection) _url.openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            connection.setFixedLengthStreamingMode(_body.size());
+            try (OutputStream out = connection.getOutputStream()) {
+                _body.writeTo(out);
+            }
+            int status = connection.getResponseCode();
+            _lastStatus = status;
+            drain(status >= 400 ? connection.getErrorStream() : connection.getInputStream());
+
+            if (status / 100 == 2) {
+                removePending(count);
+                _samplesSent += count;
+                _rawBytes += rawBytes;
+                _sentBytes += _body.size();
+                _attempt = 0;
+                _retryAtMs = 0;
+                return true;
+            }
+            if (isPayloadError(status)) {
+                removePending(count);
+                _rejected += count;
+                return true;
+            }
+            backOff(connection.getHeaderField("Retry-After"));
+        } catch (IOException e) {
+            backOff(null);
+        }
+        return false;
+    }
+
+    private static boolean isPayloadError(int status) {
+        for (int error : PAYLOAD_ERRORS) {
+            if (status == error) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // "[a,b,...]" gzip compressed into _body, returns the uncompressed length
+    private int compressBatch(int count) throws IOException {
+        StringBuilder json = new StringBuilder(count * 700);
+        json.append('[');
+        int i = 0;
+        for (String sample : _pending) {
+            if (i == count) {
+                break;
+            }
+            if (i++ > 0) {
+                json.append(',');
+            }
+            json.append(sample);
+        }
+        json.append(']');
+        byte[] raw = json.toString().getBytes(StandardCharsets.UTF_8);
+        _body.reset();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(_body)) {
+            gzip.write(raw);
+        }
+        return raw.length;
+    }
+
+    private void drain(InputStream in) throws IOException {
+        if (in == null) {
+            return;
+        }
+        try (InputStream response = in) {
+            while (response.read(_drain) >= 0) {
+                // Read to the end so the connection goes back to the keep-alive pool
+            }
+        }
+    }
+
+    private void removePending(int count) {
+        for (int i = 0; i < count; i++) {
+            _pending.poll();
+            _pendingTimesMs.poll();
+        }
+    }
+
+    // Exponential, or what the server asked for with Retry-After (in seconds)
+    private void backOff(String retryAfter) {
+        _failures++;
+        long delayMs = Math.min(MAX_RETRY_MS, BASE_RETRY_MS << Math.min(_attempt++, 16));
+        if (retryAfter != null) {
+            try {
+                delayMs = Math.min(MAX_RETRY_MS, Math.max(delayMs, Long.parseLong(retryAfter.trim()) * 1000));
+            } catch (NumberFormatException e) {
+                // HTTP date form, the exponential delay will do
+            }
+        }
+        _retryAtMs = _clock.currentTimeMillis() + delayMs;
+    }
+
+    // Requests and bytes per hour of samples, compressed against what the JSON would have been
+    public String report() {
+        double hours = Math.max(1, _lastSampleMs - _firstSampleMs) / 3600000.0;
+        return String.format(Locale.ENGLISH, "http req/h %.1f  kB/h %.1f (raw %.1f)  failed %d  pending %d  dropped %d  last %d%n",
+                _requests / hours, _sentBytes / hours / 1024, _rawBytes / hours / 1024, _failures, _pending.size(), _dropped + _rejected, _lastStatus);
+    }
+
+    public String getUrl() { return _url.toString(); }
+    public int getPending() { return _pending.size(); }
+    public long getRequests() { return _requests; }
+    public long getFailures() { return _failures; }
+    public long getRejected() { return _rejected; }
+    public int getLastStatus() { return _lastStatus; }
+    public long getSamplesSent() { return _samplesSent; }
+    public long getRawBytes() { return _rawBytes; }
+    public long getSentBytes() { return _sentBytes; }
+}
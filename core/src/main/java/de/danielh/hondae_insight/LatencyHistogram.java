@@ -0,0 +1,62 @@
+package de.danielh.hondae_insight;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Fixed buckets, recording is a few atomic increments and never allocates
+public class LatencyHistogram {
+
+    // Upper bucket bounds in ms, the last bucket takes everything above
+    static final long[] BUCKET_BOUNDS_MS = {2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500};
+
+    private final String _name;
+    private final AtomicLongArray _counts = new AtomicLongArray(BUCKET_BOUNDS_MS.length + 1);
+    private final AtomicLong _count = new AtomicLong();
+    private final AtomicLong _totalNanos = new AtomicLong();
+    private final AtomicLong _maxNanos = new AtomicLong();
+
+    public LatencyHistogram(String name) {
+        _name = name;
+    }
+
+    public void recordNanos(long nanos) {
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS_MS.length && nanos > BUCKET_BOUNDS_MS[bucket] * 1000000L) {
+            bucket++;
+        }
+        _counts.incrementAndGet(bucket);
+        _count.incrementAndGet();
+        _totalNanos.addAndGet(nanos);
+        long max = _maxNanos.get();
+        while (nanos > max && !_maxNanos.compareAndSet(max, nanos)) {
+            max = _maxNanos.get();
+        }
+    }
+
+    // Upper bound of the bucket holding the given quantile, -1 above the last bound
+    public long percentileMs(double quantile) {
+        long count = _count.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_BOUNDS_MS.length; i++) {
+            seen += _counts.get(i);
+            if (seen >= rank) {
+                return BUCKET_BOUNDS_MS[i];
+            }
+        }
+        return -1;
+    }
+
+    public double meanMs() {
+        long count = _count.get();
+        return count == 0 ? 0 : _totalNanos.get() / (double) count / 1000000.0;
+    }
+
+    public String getName() { return _name; }
+    public long getCount() { return _count.get(); }
+    public long getBucketCount(int bucket) { return _counts.get(bucket); }
+    public double getMaxMs() { return _maxNanos.get() / 1000000.0; }
+}
@@ -0,0 +1,392 @@
+package de.danielh.hondae_insight;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Live samples for tablets and laptops on the same network, as Server-Sent Events on /events plus
+// a bare page on / that shows them. One selector thread does all the socket work. Every sample
+// is turned into an SSE frame once and all clients share that buffer; a client still busy with
+// an older frame skips to the newest one when it's done, so a slow client costs at most one
+// frame and never an unbounded queue. Clients stuck on one frame too long are dropped.
+// Anyone on a hotspot or cafe Wi-Fi can reach the port, so both only answer under a random token
+// made per server (http://phone:8787/<token>/), there's no CORS header that would let other pages
+// read the stream, and connections that don't finish their request in time are closed.
+public class LiveServer implements Runnable {
+
+    public static final int DEFAULT_PORT = 8787;
+    public static final int MAX_CLIENTS = 64;
+    private static final long STALLED_CLIENT_MS = 30000;
+    private static final long KEEPALIVE_MS = 15000;
+    private static final long REQUEST_TIMEOUT_MS = 5000;
+    private static final int MAX_REQUEST_BYTES = 4096;
+    private static final int TOKEN_BYTES = 16;
+
+    private static final byte[] EVENTS_HEADER = ("HTTP/1.1 200 OK\r\nContent-Type: text/event-stream\r\nCache-Control: no-cache\r\n"
+            + "Connection: keep-alive\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NOT_FOUND = "HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\nConnection: close\r\n\r\n"
+            .getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] KEEPALIVE = ": keepalive\n\n".getBytes(StandardCharsets.US_ASCII);
+    private static final String PAGE = "<!DOCTYPE html><html><head><meta name=\"viewport\" content=\"width=device-width\">"
+            + "<title>e Insight live</title></head><body style=\"font-family:monospace;background:#1e1e1e;color:#eee\">"
+            + "<pre id=\"s\">waiting for data\u2026</pre><script>new EventSource('events').onmessage=function(e){"
+            + "document.getElementById('s').textContent=JSON.stringify(JSON.parse(e.data),null,1)}</script></body></html>";
+
+    private static class Frame {
+        final long sequence;
+        final ByteBuffer bytes;
+
+        Frame(long sequence, ByteBuffer bytes) {
+            this.sequence = sequence;
+            this.bytes = bytes;
+        }
+    }
+
+    private static class Client {
+        final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_BYTES);
+        final long acceptedMs;
+        boolean streaming;
+        ByteBuffer pending;
+        long sentSequence;
+        long pendingSinceMs;
+
+        Client(long acceptedMs) {
+            this.acceptedMs = acceptedMs;
+        }
+    }
+
+    private final Selector _selector;
+    private final ServerSocketChannel _serverChannel;
+    private final String _path;
+    private final long _requestTimeoutMs;
+    private final long _stalledClientMs;
+    private final AtomicReference<Frame> _latest = new AtomicReference<>();
+    private final AtomicLong _sequence = new AtomicLong();
+    private volatile boolean _running = true;
+    private volatile int _clients;
+    private long _lastKeepaliveMs;
+    private long _lastRequestCheckMs;
+
+    private final LatencyHistogram _fanOut = new LatencyHistogram("lan fan-out");
+    private final AtomicLong _framesSent = new AtomicLong();
+    private final AtomicLong _framesCoalesced = new AtomicLong();
+    private final AtomicLong _clientsDropped = new AtomicLong();
+    private final AtomicLong _bytesSent = new AtomicLong();
+
+    public LiveServer(int port) throws IOException {
+        this(port, REQUEST_TIMEOUT_MS, STALLED_CLIENT_MS);
+    }
+
+    // Shorter limits for the tests
+    LiveServer(int port, long requestTimeoutMs, long stalledClientMs) throws IOException {
+        _requestTimeoutMs = requestTimeoutMs;
+        _stalledClientMs = stalledClientMs;
+        byte[] token = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(token);
+        StringBuilder path = new StringBuilder("/");
+        for (byte b : token) {
+            path.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        _path = path.append('/').toString();
+        _selector = Selector.open();
+        _serverChannel = ServerSocketChannel.open();
+        _serverChannel.socket().setReuseAddress(true);
+        _serverChannel.socket().bind(new InetSocketAddress(port));
+        _serverChannel.configureBlocking(false);
+        _serverChannel.register(_selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public void start() {
+        Thread thread = new Thread(this, "lan-live-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Any thread: encodes the frame once and wakes the selector to hand it out
+    public void publish(String json) {
+        byte[] frame = ("data: " + json + "\n\n").getBytes(StandardCharsets.UTF_8);
+        _latest.set(new Frame(_sequence.incrementAndGet(), ByteBuffer.wrap(frame).asReadOnlyBuffer()));
+        _selector.wakeup();
+    }
+
+    public void close() {
+        _running = false;
+        _selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        long handledSequence = 0;
+        try {
+            while (_running) {
+                _selector.select(_requestTimeoutMs);
+                long nowMs = System.currentTimeMillis();
+                Iterator<SelectionKey> keys = _selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept(nowMs);
+                        } else {
+                            if (key.isReadable()) {
+                                read(key, nowMs);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                write(key, nowMs);
+                            }
+                        }
+                    } catch (IOException e) {
+                        drop(key);
+                    }
+                }
+
+                Frame latest = _latest.get();
+                if (latest != null && latest.sequence != handledSequence) {
+                    handledSequence = latest.sequence;
+                    long fanOutStartNanos = System.nanoTime();
+                    fanOut(nowMs, false);
+                    _fanOut.recordNanos(System.nanoTime() - fanOutStartNanos);
+                } else if (nowMs - _lastKeepaliveMs >= KEEPALIVE_MS) {
+                    // Finds dead clients and keeps proxies from closing quiet streams
+                    _lastKeepaliveMs = nowMs;
+                    fanOut(nowMs, true);
+                }
+                if (nowMs - _lastRequestCheckMs >= _requestTimeoutMs) {
+                    _lastRequestCheckMs = nowMs;
+                    dropIncompleteRequests(nowMs);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (SelectionKey key : _selector.keys()) {
+                closeQuietly(key);
+            }
+            try {
+                _selector.close();
+            } catch (IOException e) {
+                // Shutting down anyway
+            }
+        }
+    }
+
+    private void accept(long nowMs) throws IOException {
+        SocketChannel channel;
+        while ((channel = _serverChannel.accept()) != null) {
+            if (_clients >= MAX_CLIENTS) {
+                channel.close();
+                continue;
+            }
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.register(_selector, SelectionKey.OP_READ, new Client(nowMs));
+            _clients++;
+        }
+    }
+
+    // Only the request line matters: <token>/events streams, <token>/ gets the page, anything else a 404
+    private void read(SelectionKey key, long nowMs) throws IOException {
+        Client client = (Client) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        if (client.streaming) {
+            // Nothing expected after the request, just notice when the client goes away
+            client.request.clear();
+            if (channel.read(client.request) < 0) {
+                drop(key);
+            }
+            return;
+        }
+        if (channel.read(client.request) < 0 || !client.request.hasRemaining()) {
+            drop(key);
+            return;
+        }
+        String request = new String(client.request.array(), 0, client.request.position(), StandardCharsets.US_ASCII);
+        if (!request.contains("\r\n\r\n")) {
+            return;
+        }
+        String target = requestTarget(request);
+        if (target.equals(_path + "events")) {
+            client.streaming = true;
+            client.pending = ByteBuffer.wrap(EVENTS_HEADER);
+            client.pendingSinceMs = nowMs;
+            Frame latest = _latest.get();
+            client.sentSequence = latest != null ? latest.sequence - 1 : 0;
+        } else if (target.equals(_path)) {
+            byte[] body = PAGE.getBytes(StandardCharsets.UTF_8);
+            String header = "HTTP/1.1 200 OK\r\nContent-Type: text/html; charset=utf-8\r\nContent-Length: " + body.length
+                    + "\r\nConnection: close\r\n\r\n";
+            ByteBuffer response = ByteBuffer.allocate(header.length() + body.length);
+            response.put(header.getBytes(StandardCharsets.US_ASCII)).put(body).flip();
+            client.pending = response;
+            client.pendingSinceMs = nowMs;
+        } else {
+            client.pending = ByteBuffer.wrap(NOT_FOUND);
+            client.pendingSinceMs = nowMs;
+        }
+        write(key, nowMs);
+    }
+
+    // The path of a GET with the token compared in constant time, "" for anything else
+    private String requestTarget(String request) {
+        int end = request.indexOf(' ', 4);
+        if (!request.startsWith("GET ") || end < 0) {
+            return "";
+        }
+        String target = request.substring(4, end);
+        int tokenEnd = Math.min(target.length(), _path.length());
+        boolean tokenMatches = MessageDigest.isEqual(target.substring(0, tokenEnd).getBytes(StandardCharsets.US_ASCII),
+                _path.getBytes(StandardCharsets.US_ASCII));
+        return tokenMatches ? target : "";
+    }
+
+    // Connections that never send a whole request would otherwise hold a slot forever
+    private void dropIncompleteRequests(long nowMs) {
+        for (SelectionKey key : _selector.keys()) {
+            if (!key.isValid() || !(key.attachment() instanceof Client)) {
+                continue;
+            }
+            Client client = (Client) key.attachment();
+            if (!client.streaming && nowMs - client.acceptedMs > _requestTimeoutMs) {
+                closeQuietly(key);
+            }
+        }
+    }
+
+    private void write(SelectionKey key, long nowMs) throws IOException {
+        Client client = (Client) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        while (true) {
+            if (client.pending != null) {
+                _bytesSent.addAndGet(channel.write(client.pending));
+                if (client.pending.hasRemaining()) {
+                    if (nowMs - client.pendingSinceMs > _stalledClientMs) {
+                        drop(key);
+                        return;
+                    }
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                client.pending = null;
+            }
+            if (!client.streaming) {
+                // The page went out, Connection: close
+                drop(key);
+                return;
+            }
+            Frame latest = _latest.get();
+            if (latest == null || latest.sequence == client.sentSequence) {
+                key.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+            if (latest.sequence > client.sentSequence + 1 && client.sentSequence > 0) {
+                _framesCoalesced.addAndGet(latest.sequence - client.sentSequence - 1);
+            }
+            client.sentSequence = latest.sequence;
+            client.pending = latest.bytes.duplicate();
+            client.pendingSinceMs = nowMs;
+            _framesSent.incrementAndGet();
+        }
+    }
+
+    private void fanOut(long nowMs, boolean keepalive) {
+        Frame latest = _latest.get();
+        long latestSequence = latest != null ? latest.sequence : 0;
+        for (SelectionKey key : _selector.keys()) {
+            if (!key.isValid() || !(key.attachment() instanceof Client)) {
+                continue;
+            }
+            Client client = (Client) key.attachment();
+            if (!client.streaming) {
+                continue;
+            }
+            try {
+                if (client.pending != null) {
+                    // Still on an older frame, write() picks the newest one up afterwards
+                    if (nowMs - client.pendingSinceMs > _stalledClientMs) {
+                        drop(key);
+                    }
+                    continue;
+                }
+                if (keepalive && client.sentSequence == latestSequence) {
+                    client.pending = ByteBuffer.wrap(KEEPALIVE);
+                    client.pendingSinceMs = nowMs;
+                }
+                write(key, nowMs);
+            } catch (IOException e) {
+                drop(key);
+            }
+        }
+    }
+
+    private void drop(SelectionKey key) {
+        if (key.attachment() instanceof Client && ((Client) key.attachment()).streaming) {
+            _clientsDropped.incrementAndGet();
+        }
+        closeQuietly(key);
+    }
+
+    private void closeQuietly(SelectionKey key) {
+        if (key.attachment() instanceof Client && key.isValid()) {
+            _clients--;
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // Gone already
+        }
+    }
+
+    public String report() {
+        return String.format(Locale.ENGLISH, "lan clients %d  frames %d  coalesced %d  dropped %d  fan-out p99 %dms%n",
+                _clients, _framesSent.get(), _framesCoalesced.get(), _clientsDropped.get(), _fanOut.percentileMs(0.99));
+    }
+
+    // The address other devices on the Wi-Fi or the phone's hotspot can reach, null without one
+    public static String siteLocalAddress() {
+        try {
+            for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                if (!networkInterface.isUp() || networkInterface.isLoopback()) {
+                    continue;
+                }
+                for (InetAddress address : Collections.list(networkInterface.getInetAddresses())) {
+                    if (address instanceof Inet4Address && address.isSiteLocalAddress()) {
+                        return address.getHostAddress();
+                    }
+                }
+            }
+        } catch (SocketException e) {
+            // No interfaces to look at
+        }
+        return null;
+    }
+
+    public int getPort() { return _serverChannel.socket().getLocalPort(); }
+    public String getPath() { return _path; }
+    public int getClients() { return _clients; }
+    public LatencyHistogram getFanOut() { return _fanOut; }
+    public long getFramesSent() { return _framesSent.get(); }
+    public long getFramesCoalesced() { return _framesCoalesced.get(); }
+    public long getClientsDropped() { return _clientsDropped.get(); }
+    public long getBytesSent() { return _bytesSent.get(); }
+}
@@ -0,0 +1,275 @@
+package de.danielh.hondae_insight;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+
+// Keeps the trip logs in the media directory from filling the phone. Finished logs are gzipped
+// next to themselves (name.csv -> name.csv.gz) and the original removed once the archive is
+// complete; a crash halfway leaves a .tmp that the next run throws away. The header comment
+// carries the first and last sysTimeMs, so TripLogReader.timeRange() doesn't have to inflate
+// the whole file to find the end. Afterwards logs older than the retention period go, then the
+// oldest ones until all trip logs together fit the quota. The log being written is never
+// touched, nor anything written to within the last minute.
+public class LogArchiver {
+
+    public static final String COMPRESSED_SUFFIX = ".gz";
+    public static final long DEFAULT_QUOTA_BYTES = 512L * 1024 * 1024;
+    public static final long DEFAULT_MAX_AGE_MS = 365L * 24 * 3600 * 1000;
+    public static final long MIN_IDLE_MS = 60000;
+    // Within 10% of level 6 on trip logs for a third of the CPU time, see LogArchiverBenchmark
+    public static final int DEFAULT_LEVEL = 3;
+
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String TIME_RANGE_COMMENT = "sysTimeMs ";
+    private static final int FEXTRA = 0x04, FNAME = 0x08, FCOMMENT = 0x10;
+    private static final int BUFFER_BYTES = 1 << 16;
+
+    private final File _dir;
+    private final long _quotaBytes;
+    private final long _maxAgeMs;
+    private int _level = DEFAULT_LEVEL;
+
+    private int _compressed, _deleted;
+    private long _bytesIn, _bytesOut, _elapsedNanos, _diskBytes;
+
+    public LogArchiver(File dir, long quotaBytes, long maxAgeMs) {
+        _dir = dir;
+        _quotaBytes = quotaBytes;
+        _maxAgeMs = maxAgeMs;
+    }
+
+    public void setLevel(int level) {
+        _level = level;
+    }
+
+    public static boolean isTripLog(String name) {
+        return (name.endsWith(".csv") && !name.endsWith(ChargeCurve.FILE_SUFFIX)) || name.endsWith(".csv" + COMPRESSED_SUFFIX);
+    }
+
+    public static boolean isCompressed(File file) {
+        return file.getName().endsWith(COMPRESSED_SUFFIX);
+    }
+
+    // Plain or compressed, the caller doesn't need to know
+    public static InputStream open(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return isCompressed(file) ? new GZIPInputStream(in, BUFFER_BYTES) : in;
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    // Compresses what's finished, then applies retention and quota. Call from a background thread.
+    public synchronized void run(File active) {
+        long startNanos = System.nanoTime();
+        File[] files = _dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long nowMs = System.currentTimeMillis();
+        List<File> logs = new ArrayList<>();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(TMP_SUFFIX) && isTripLog(name.substring(0, name.length() - TMP_SUFFIX.length()))) {
+                // Left behind by a run that didn't finish
+                delete(file);
+            } else if (isTripLog(name)) {
+                logs.add(file);
+            }
+        }
+        for (int i = 0; i < logs.size(); i++) {
+            File log = logs.get(i);
+            if (isCompressed(log) || log.equals(active) || nowMs - log.lastModified() < MIN_IDLE_MS) {
+                continue;
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+            try {
+                File archive = compress(log);
+                if (archive != null) {
+                    logs.set(i, archive);
+                } else {
+                    // Header only, the session never got a sample
+                    delete(log);
+                    logs.set(i, null);
+                }
+            } catch (InterruptedIOException e) {
+                break;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        enforceRetention(logs, active, nowMs);
+        _elapsedNanos += System.nanoTime() - startNanos;
+    }
+
+    // Returns the .gz, or null if the log has no samples and isn't worth keeping
+    File compress(File log) throws IOException {
+        long[] range = new TripLogReader(log).timeRange();
+        if (range == null) {
+            return null;
+        }
+        File archive = new File(log.getPath() + COMPRESSED_SUFFIX);
+        File tmp = new File(archive.getPath() + TMP_SUFFIX);
+        try {
+            writeGzip(log, tmp, TIME_RANGE_COMMENT + range[0] + "-" + range[1], _level);
+        } catch (IOException e) {
+            delete(tmp);
+            throw e;
+        }
+        if (!tmp.renameTo(archive)) {
+            delete(tmp);
+            throw new IOException("Can't rename " + tmp.getName());
+        }
+        archive.setLastModified(log.lastModified());
+        _compressed++;
+        _bytesIn += log.length();
+        _bytesOut += archive.length();
+        delete(log);
+        return archive;
+    }
+
+    // RFC 1952 by hand, GZIPOutputStream can't write a header comment
+    private static void writeGzip(File source, File target, String comment, int level) throws IOException {
+        Deflater deflater = new Deflater(level, true);
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[BUFFER_BYTES];
+        long size = 0;
+        try (InputStream in = new FileInputStream(source);
+             FileOutputStream file = new FileOutputStream(target)) {
+            OutputStream out = new BufferedOutputStream(file, BUFFER_BYTES);
+            // No mtime, deflate, unknown OS
+            out.write(new byte[]{0x1f, (byte) 0x8b, Deflater.DEFLATED, FCOMMENT, 0, 0, 0, 0, 0, (byte) 0xff});
+            out.write(comment.getBytes(StandardCharsets.ISO_8859_1));
+            out.write(0);
+            DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater, BUFFER_BYTES);
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Compressing " + source.getName());
+                }
+                crc.update(buffer, 0, read);
+                deflated.write(buffer, 0, read);
+                size += read;
+            }
+            deflated.finish();
+            writeIntLittleEndian(out, (int) crc.getValue());
+            writeIntLittleEndian(out, (int) size);
+            out.flush();
+            // The original is deleted right after, the archive has to be on the disk by then
+            file.getFD().sync();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void writeIntLittleEndian(OutputStream out, int value) throws IOException {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+    // First and last sysTimeMs from the header comment, null if the file doesn't have one
+    public static long[] storedTimeRange(File file) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 512)) {
+            byte[] header = new byte[10];
+            if (in.read(header) != header.length || header[0] != 0x1f || header[1] != (byte) 0x8b) {
+                return null;
+            }
+            int flags = header[3];
+            if ((flags & FEXTRA) != 0) {
+                long length = in.read() | in.read() << 8;
+                if (in.skip(length) != length) {
+                    return null;
+                }
+            }
+            if ((flags & FNAME) != 0) {
+                readZeroTerminated(in);
+            }
+            if ((flags & FCOMMENT) == 0) {
+                return null;
+            }
+            String comment = readZeroTerminated(in);
+            if (!comment.startsWith(TIME_RANGE_COMMENT)) {
+                return null;
+            }
+            String[] range = comment.substring(TIME_RANGE_COMMENT.length()).split("-");
+            try {
+                return new long[]{Long.parseLong(range[0]), Long.parseLong(range[1])};
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                return null;
+            }
+        }
+    }
+
+    private static String readZeroTerminated(InputStream in) throws IOException {
+        StringBuilder text = new StringBuilder();
+        int c;
+        while ((c = in.read()) > 0) {
+            text.append((char) c);
+        }
+        return text.toString();
+    }
+
+    private void enforceRetention(List<File> logs, File active, long nowMs) {
+        List<File> deletable = new ArrayList<>();
+        long totalBytes = 0;
+        for (File log : logs) {
+            if (log == null) {
+                continue;
+            }
+            totalBytes += log.length();
+            if (!log.equals(active) && nowMs - log.lastModified() >= MIN_IDLE_MS) {
+                deletable.add(log);
+            }
+        }
+        File[] oldestFirst = deletable.toArray(new File[0]);
+        Arrays.sort(oldestFirst, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File log : oldestFirst) {
+            if (totalBytes <= _quotaBytes && nowMs - log.lastModified() <= _maxAgeMs) {
+                break;
+            }
+            long length = log.length();
+            if (delete(log)) {
+                totalBytes -= length;
+                _deleted++;
+            }
+        }
+        _diskBytes = totalBytes;
+    }
+
+    private static boolean delete(File file) {
+        return file.delete() || !file.exists();
+    }
+
+    public int getCompressed() { return _compressed; }
+    public int getDeleted() { return _deleted; }
+    public long getBytesIn() { return _bytesIn; }
+    public long getBytesOut() { return _bytesOut; }
+
+    public synchronized String report() {
+        return String.format(Locale.ENGLISH, "archive %d logs %.1f -> %.1f MB (%.1fx) in %.1fs, %d deleted, %.1f MB of logs%n",
+                _compressed, _bytesIn / 1e6, _bytesOut / 1e6, _bytesOut > 0 ? (double) _bytesIn / _bytesOut : 0,
+                _elapsedNanos / 1e9, _deleted, _diskBytes / 1e6);
+    }
+}
@@ -0,0 +1,78 @@
+package de.danielh.hondae_insight;
+
+import java.util.Locale;
+
+// Detects a parked car from full cycles without any data reply and a 12 V battery that isn't
+// being charged by the DC-DC converter. While parked only ATRV is polled, at a backed off
+// interval; the voltage jumping up means the car was switched on and full polling resumes.
+public class ParkedMonitor {
+
+    // Resting lead acid sits at 12.0-12.8 V, the DC-DC converter holds it at 14 V and more
+    public static final double WAKE_VOLTAGE_V = 13.2;
+    public static final int PARK_AFTER_EMPTY_CYCLES = 2;
+    public static final long BASE_POLL_INTERVAL_MS = 2000;
+    public static final long MAX_POLL_INTERVAL_MS = 16000;
+
+    private final Clock _clock;
+
+    private int _emptyCycles = 0;
+    private boolean _parked = false;
+    private long _pollIntervalMs = BASE_POLL_INTERVAL_MS;
+    private long _nextPollMs;
+    private long _parkedSinceMs;
+
+    private long _parkedTotalMs, _parkedPolls, _parkedBytes, _wakeups;
+
+    public ParkedMonitor(Clock clock) {
+        _clock = clock;
+    }
+
+    // After every full cycle, returns true when the car was just found parked
+    public synchronized boolean onCycle(int decoded, double auxBatV) {
+        if (decoded > 0 || auxBatV <= 0 || auxBatV >= WAKE_VOLTAGE_V) {
+            _emptyCycles = 0;
+            return false;
+        }
+        if (++_emptyCycles < PARK_AFTER_EMPTY_CYCLES || _parked) {
+            return false;
+        }
+        _parked = true;
+        _parkedSinceMs = _clock.currentTimeMillis();
+        _pollIntervalMs = BASE_POLL_INTERVAL_MS;
+        _nextPollMs = _parkedSinceMs + _pollIntervalMs;
+        return true;
+    }
+
+    // After every ATRV poll while parked, NaN if it went unanswered. Returns true on wakeup.
+    public synchronized boolean onAuxBattery(double auxBatV, long bytes) {
+        long nowMs = _clock.currentTimeMillis();
+        _parkedPolls++;
+        _parkedBytes += bytes;
+        if (!Double.isNaN(auxBatV) && auxBatV >= WAKE_VOLTAGE_V) {
+            _parked = false;
+            _emptyCycles = 0;
+            _wakeups++;
+            _parkedTotalMs += nowMs - _parkedSinceMs;
+            return true;
+        }
+        _pollIntervalMs = Math.min(MAX_POLL_INTERVAL_MS, _pollIntervalMs * 2);
+        _nextPollMs = nowMs + _pollIntervalMs;
+        return false;
+    }
+
+    public synchronized long getDelayUntilNextPollMs() {
+        return Math.max(0, _nextPollMs - _clock.currentTimeMillis());
+    }
+
+    public synchronized boolean isParked() { return _parked; }
+    public synchronized long getWakeups() { return _wakeups; }
+
+    // Wakeups plus ATRV polls and bytes on the link per parked hour, for the metrics panel
+    public synchronized String report() {
+        long parkedMs = _parkedTotalMs + (_parked ? _clock.currentTimeMillis() - _parkedSinceMs : 0);
+        double hours = parkedMs / 3600000.0;
+        return String.format(Locale.ENGLISH, "parked %.2fh%s  wakeups %d  polls/h %.0f  bytes/h %.0f%n",
+                hours, _parked ? " (now)" : "", _wakeups,
+                hours > 0 ? _parkedPolls / hours : 0, hours > 0 ? _parkedBytes / hours : 0);
+    }
+}
@@ -0,0 +1,354 @@
+package de.danielh.hondae_insight;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Request/reply loop against one adapter: init sequence, fast resume probe and the poll cycle.
+// Pipelined, the poll thread only talks to the adapter and sends the next command as soon as a
+// reply is complete; decoding into VehicleState and the listener callbacks that go with it run
+// in order on a decode thread, and every pass waits for that to catch up before it returns.
+public class PollingEngine {
+
+    public static final int RESPONSE_TIMEOUT_MS = 1000;
+    public static final int WAIT_TIME_BETWEEN_COMMAND_SENDS_MS = 50;
+    // A cycle is abandoned after this many timeouts in a row, the adapter is most likely gone
+    public static final int MAX_CONSECUTIVE_TIMEOUTS = 4;
+
+    // Fast resume: ATSP7 is kept in the adapter's NVM and survives a power cycle, so "7" alone
+    // proves nothing. The echo is volatile: ATZ, ATWS or losing power turn it back on together
+    // with the headers off, so an ATDPN that comes back without echo means our init still holds.
+    private static final String ADAPTER_PROBE_COMMAND = "ATDPN";
+    private static final String ADAPTER_PROBE_INITIALIZED = "7";
+    private static final String AUX_BATTERY_COMMAND = "ATRV";
+    // ATI answers on every adapter, STI and STDI only on STN chips
+    private static final String ELM_IDENTIFY_COMMAND = "ATI";
+    private static final String STN_IDENTIFY_COMMAND = "STI";
+    private static final String STN_DEVICE_COMMAND = "STDI";
+    private static final String STN_CHIP_PREFIX = "STN";
+    // The decode thread goes away between cycles that are this far apart, e.g. while parked
+    private static final long DECODER_IDLE_SECONDS = 10;
+
+    interface Listener {
+        default void onResponse() { }
+        default void onTimeout() { }
+        default void onElmError(String message) { }
+        default void onMessage(String message) { }
+        default void onAuxBattery(String message) { }
+        default void onRangeUpdated() { }
+    }
+
+    private final ElmTransport _transport;
+    private final VehicleState _state;
+    private final TelemetryMetrics _metrics;
+    private final Listener _listener;
+    private final Clock _clock;
+    private final ElmResponseAssembler _assembler = new ElmResponseAssembler();
+
+    private FlowControlProfile _flowControl = FlowControlProfile.DEFAULT;
+    private AdapterFamily _family = AdapterFamily.ELM327;
+    private String _adapterDescription = "";
+    private volatile boolean _running = true;
+    private long _lastLatencyNanos;
+    private boolean _stalled = false;
+    private boolean _fastResume = false;
+
+    private ExecutorService _decoder;
+    // Written by whichever thread decodes, read after the pass has waited for it
+    private int _decoded;
+    private volatile RuntimeException _decodeFailure;
+
+    public PollingEngine(ElmTransport transport, VehicleState state, TelemetryMetrics metrics, Listener listener) {
+        this(transport, state, metrics, listener, Clock.SYSTEM);
+    }
+
+    // Timeouts and the pauses between commands run on the clock, the latencies stay in real time
+    public PollingEngine(ElmTransport transport, VehicleState state, TelemetryMetrics metrics, Listener listener, Clock clock) {
+        _transport = transport;
+        _state = state;
+        _metrics = metrics;
+        _listener = listener;
+        _clock = clock;
+    }
+
+    // Replaces the ATFCSD of the init sequence, e.g. with what FlowControlCalibrator found for this adapter
+    public void setFlowControl(FlowControlProfile flowControl) {
+        _flowControl = flowControl != null ? flowControl : FlowControlProfile.DEFAULT;
+    }
+
+    // Decodes replies on their own thread while the next request is already on the link
+    public void setPipelined(boolean pipelined) {
+        if (pipelined && _decoder == null) {
+            // One thread at most keeps the replies in order, none while idle
+            _decoder = new ThreadPoolExecutor(0, 1, DECODER_IDLE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "poll-decode");
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else if (!pipelined && _decoder != null) {
+            _decoder.shutdown();
+            _decoder = null;
+        }
+    }
+
+    public void stop() {
+        _running = false;
+        if (_decoder != null) {
+            _decoder.shutdown();
+        }
+    }
+
+    // Whether the last connect() skipped the init sequence
+    public boolean isFastResume() { return _fastResume; }
+
+    public boolean isRunning() {
+        return _running && !Thread.currentThread().isInterrupted();
+    }
+
+    // Returns true once the reply is complete, false on timeout
+    private boolean request(String command) throws IOException, InterruptedException {
+        _transport.discardInput();
+        long sendNanos = System.nanoTime();
+        _transport.send(command);
+        _metrics.recordBytesOut(command.length() + 2);
+        long deadlineMs = _clock.currentTimeMillis() + RESPONSE_TIMEOUT_MS;
+        while (true) {
+            long remainingMs = deadlineMs - _clock.currentTimeMillis();
+            if (remainingMs <= 0) {
+                return false;
+            }
+            String line = _transport.readLine(remainingMs);
+            if (line == null) {
+                continue;
+            }
+            _metrics.recordBytesIn(line.length());
+            if (_assembler.accept(line)) {
+                _lastLatencyNanos = System.nanoTime() - sendNanos;
+                return true;
+            }
+        }
+    }
+
+    public boolean isAdapterInitialized() throws IOException, InterruptedException {
+        _transport.discardInput();
+        _transport.send(ADAPTER_PROBE_COMMAND);
+        _metrics.recordBytesOut(ADAPTER_PROBE_COMMAND.length() + 2);
+        long deadlineMs = _clock.currentTimeMillis() + RESPONSE_TIMEOUT_MS;
+        long remainingMs;
+        while ((remainingMs = deadlineMs - _clock.currentTimeMillis()) > 0) {
+            String line = _transport.readLine(remainingMs);
+            if (line == null) {
+                continue;
+            }
+            _metrics.recordBytesIn(line.length());
+            if (line.endsWith(ADAPTER_PROBE_COMMAND)) {
+                // Our ATE0 is gone, the adapter was reset since
+                return false;
+            }
+            if (_assembler.accept(line)) {
+                return ADAPTER_PROBE_INITIALIZED.equals(_assembler.getMessage().trim());
+            }
+        }
+        return false;
+    }
+
+    // Picks the command set for the chip behind the link, plain ELM327 unless it says it's an STN
+    public AdapterFamily probeAdapter() throws IOException, InterruptedException {
+        _family = AdapterFamily.ELM327;
+        _adapterDescription = request(ELM_IDENTIFY_COMMAND) ? _assembler.getMessage().trim() : "";
+        if (request(STN_IDENTIFY_COMMAND) && _assembler.getMessage().startsWith(STN_CHIP_PREFIX)) {
+            String chip = _assembler.getMessage().trim();
+            _family = AdapterFamily.STN;
+            _adapterDescription = request(STN_DEVICE_COMMAND) && !_assembler.isRejected()
+                    ? _assembler.getMessage().trim() + " (" + chip + ")" : chip;
+        }
+        _metrics.setAdapter(_family.getName() + " " + _adapterDescription);
+        return _family;
+    }
+
+    // Aux battery voltage only, for a parked car. NaN if the adapter didn't answer.
+    public double pollAuxBattery() throws IOException, InterruptedException {
+        if (request(AUX_BATTERY_COMMAND) && _state.decodeAuxBattery(_assembler.getMessage())) {
+            _listener.onAuxBattery(_assembler.getMessage());
+            return _state.getAuxBat();
+        }
+        return Double.NaN;
+    }
+
+    // A short Bluetooth drop doesn't power cycle the adapter, so its settings and the car behind it
+    // are unchanged: with the VIN of the last connect and the init still holding only the adapter
+    // is identified again. Returns the VIN, null if the car or the adapter didn't answer.
+    public String connect(String cachedVin) throws IOException, InterruptedException {
+        _fastResume = cachedVin != null && isAdapterInitialized();
+        if (_fastResume) {
+            probeAdapter();
+            return cachedVin;
+        }
+        return initialize();
+    }
+
+    // Runs the full init sequence, returns the VIN or null if the car or the adapter didn't answer
+    public String initialize() throws IOException, InterruptedException {
+        String vin = null;
+        int consecutiveTimeouts = 0;
+        probeAdapter();
+        for (String command : _family.getConnectionCommands()) {
+            if (!isRunning() || consecutiveTimeouts >= MAX_CONSECUTIVE_TIMEOUTS) {
+                return null;
+            }
+            if (command.startsWith(FlowControlProfile.COMMAND_PREFIX)) {
+                command = _flowControl.getCommand();
+            }
+            if (!request(command)) {
+                consecutiveTimeouts++;
+            } else {
+                consecutiveTimeouts = 0;
+                final String message = _assembler.getMessage();
+                if (_assembler.getMessageID().equals(VehicleState.VIN_ID)) {
+                    vin = VehicleState.parseVIN(message);
+                } else {
+                    _listener.onMessage(message);
+                }
+                if (_state.decodeAuxBattery(message)) {
+                    _listener.onAuxBattery(message);
+                }
+            }
+            if (_family.getCommandPauseMs() > 0 && command.length() <= 6) {
+                _clock.sleep(_family.getCommandPauseMs());
+            }
+        }
+        return vin;
+    }
+
+    // One pass over the loop commands, returns the number of data replies decoded
+    public int pollCycle() throws IOException, InterruptedException {
+        long cycleStartNanos = System.nanoTime();
+        int decoded = poll(_family.getLoopCommands(), "", _family.getCommandPauseMs());
+        _metrics.recordCycle(System.nanoTime() - cycleStartNanos);
+        return decoded;
+    }
+
+    // Points the adapter at the BMS ECU, needed again after every pollCycle()
+    public void prepareChargeCurve() throws IOException, InterruptedException {
+        poll(_family.getChargeCurveSetupCommands(), "", _family.getCommandPauseMs());
+    }
+
+    // SOH and SOC back to back without pauses, returns the number of data replies decoded
+    public int pollChargeCurve() throws IOException, InterruptedException {
+        return poll(_family.getChargeCurveCommands(), HondaECommands.CHARGE_CURVE_ECU, 0);
+    }
+
+    private int poll(List<String> commands, String ecu, long shortCommandWaitMs) throws IOException, InterruptedException {
+        _decoded = 0;
+        int consecutiveTimeouts = 0;
+        _stalled = false;
+        for (String command : commands) {
+            if (!isRunning()) {
+                break;
+            }
+            if (command.startsWith("ATSH")) {
+                ecu = command.substring(4, 8); // ATSHDA15F1 -> DA15
+            } else if (command.startsWith(HondaECommands.STPX_PREFIX)) {
+                ecu = HondaECommands.stpxEcu(command);
+            }
+
+            if (!request(command)) {
+                _metrics.recordTimeout();
+                _listener.onTimeout();
+                if (++consecutiveTimeouts >= MAX_CONSECUTIVE_TIMEOUTS) {
+                    _stalled = true;
+                    break;
+                }
+            } else if (_assembler.isCanError()) {
+                consecutiveTimeouts = 0;
+                if (_assembler.getMessage().contains("NO DATA")) {
+                    // A sleeping car, the adapter and the link are fine
+                    _metrics.recordNoData();
+                } else {
+                    _metrics.recordCanError();
+                    _listener.onElmError(_assembler.getMessage());
+                }
+            } else {
+                consecutiveTimeouts = 0;
+                // Same histogram for a request whether it went out plain or through STPX
+                _metrics.recordCommand(ecu, HondaECommands.requestData(command), _lastLatencyNanos);
+                _listener.onResponse();
+                decodeLater(_assembler.getMessageID(), _assembler.getMessage());
+            }
+            if (shortCommandWaitMs > 0 && command.length() <= 7) {
+                _clock.sleep(shortCommandWaitMs);
+            }
+        }
+        awaitDecoded();
+        return _decoded;
+    }
+
+    // Both are Strings the assembler won't touch again, safe to hand over
+    private void decodeLater(String messageID, String message) {
+        ExecutorService decoder = _decoder;
+        if (decoder == null) {
+            decode(messageID, message);
+            return;
+        }
+        try {
+            decoder.execute(() -> {
+                try {
+                    decode(messageID, message);
+                } catch (RuntimeException e) {
+                    _decodeFailure = e;
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Shut down by stop() mid-pass. The decode thread may still be working through the queue,
+            // decoding here as well would race it on the state; the pass is abandoned anyway.
+        }
+    }
+
+    private void decode(String messageID, String message) {
+        long startNanos = System.nanoTime();
+        if (_state.decode(messageID, message)) {
+            _decoded++;
+            if (_state.takeRangeUpdated()) {
+                _listener.onRangeUpdated();
+            }
+        } else if (VehicleState.isDataMessageID(messageID)) {
+            _metrics.recordPartialFrame();
+        } else if (_state.decodeAuxBattery(message)) {
+            _listener.onAuxBattery(message);
+        }
+        _metrics.recordDecode(System.nanoTime() - startNanos);
+    }
+
+    // The caller reads the state right after a pass, everything queued has to be in it by then
+    private void awaitDecoded() throws InterruptedException {
+        ExecutorService decoder = _decoder;
+        if (decoder != null) {
+            try {
+                decoder.submit(() -> { }).get();
+            } catch (RejectedExecutionException e) {
+                // Shut down, it still runs what was queued before
+                decoder.awaitTermination(RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        RuntimeException failure = _decodeFailure;
+        if (failure != null) {
+            _decodeFailure = null;
+            throw failure;
+        }
+    }
+
+    // True if the last cycle was cut short because the adapter stopped answering
+    public boolean isStalled() { return _stalled; }
+    public FlowControlProfile getFlowControl() { return _flowControl; }
+    public AdapterFamily getAdapterFamily() { return _family; }
+    public String getAdapterDescription() { return _adapterDescription; }
+    public VehicleState getState() { return _state; }
+    public TelemetryMetrics getMetrics() { return _metrics; }
+}
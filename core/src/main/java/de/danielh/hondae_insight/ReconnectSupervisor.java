@@ -0,0 +1,118 @@
+package de.danielh.hondae_insight;
+
+import java.util.Random;
+
+public class ReconnectSupervisor {
+
+    public static final long BASE_DELAY_MS = 1000;
+    public static final long MAX_DELAY_MS = 60000;
+    // A link that stayed up this long starts over at BASE_DELAY_MS after the next drop
+    public static final long STABLE_LINK_MS = 120000;
+
+    public static final int HEALTH_MAX = 100;
+    public static final int HEALTH_DEGRADED = 40;
+    private static final int HEALTH_RESPONSE_BONUS = 2;
+    private static final int HEALTH_TIMEOUT_PENALTY = 8;
+    private static final int HEALTH_CAN_ERROR_PENALTY = 15;
+
+    interface Scheduler {
+        void schedule(Runnable task, long delayMs);
+
+        void cancel(Runnable task);
+    }
+
+    private final Clock _clock;
+    private final Random _random;
+    private final Scheduler _scheduler;
+    private final Runnable _reconnect;
+
+    private boolean _active = false;
+    private int _attempt = 0;
+    private long _connectedSinceMs = -1;
+    private int _health = HEALTH_MAX;
+    private boolean _reinitializeRequired = false;
+
+    public ReconnectSupervisor(Clock clock, Random random, Scheduler scheduler, Runnable reconnect) {
+        _clock = clock;
+        _random = random;
+        _scheduler = scheduler;
+        _reconnect = reconnect;
+    }
+
+    public synchronized void start() {
+        _active = true;
+        _attempt = 0;
+    }
+
+    // A recreated Activity picks up the backoff where the destroyed one left it
+    public synchronized void resume(int attempt) {
+        _active = true;
+        _attempt = attempt;
+    }
+
+    public synchronized void stop() {
+        _active = false;
+        _scheduler.cancel(_reconnect);
+    }
+
+    public synchronized void onConnected() {
+        _connectedSinceMs = _clock.currentTimeMillis();
+        _health = HEALTH_MAX;
+        _reinitializeRequired = false;
+    }
+
+    // Returns the delay until the next attempt, or -1 if the supervisor is stopped
+    public synchronized long onConnectionLost() {
+        if (!_active) {
+            return -1;
+        }
+        if (_connectedSinceMs >= 0 && _clock.currentTimeMillis() - _connectedSinceMs >= STABLE_LINK_MS) {
+            _attempt = 0;
+        }
+        _connectedSinceMs = -1;
+        long delayMs = nextDelayMs(_attempt++);
+        _scheduler.cancel(_reconnect);
+        _scheduler.schedule(_reconnect, delayMs);
+        return delayMs;
+    }
+
+    // Equal jitter: half of the exponential step is fixed, the other half random
+    long nextDelayMs(int attempt) {
+        long ceiling = Math.min(MAX_DELAY_MS, BASE_DELAY_MS << Math.min(attempt, 16));
+        long half = ceiling / 2;
+        return half + (long) (_random.nextDouble() * (ceiling - half));
+    }
+
+    public synchronized void onResponse() {
+        _health = Math.min(HEALTH_MAX, _health + HEALTH_RESPONSE_BONUS);
+    }
+
+    public synchronized void onTimeout() {
+        degrade(HEALTH_TIMEOUT_PENALTY);
+    }
+
+    public synchronized void onCanError() {
+        degrade(HEALTH_CAN_ERROR_PENALTY);
+    }
+
+    private void degrade(int penalty) {
+        _health = Math.max(0, _health - penalty);
+        if (_health < HEALTH_DEGRADED) {
+            _reinitializeRequired = true;
+        }
+    }
+
+    // True once per degradation; the caller re-runs the adapter init and the score starts over
+    public synchronized boolean takeReinitializeRequired() {
+        if (!_reinitializeRequired) {
+            return false;
+        }
+        _reinitializeRequired = false;
+        _health = HEALTH_MAX;
+        return true;
+    }
+
+    public synchronized boolean isActive() { return _active; }
+    public synchronized int getAttempt() { return _attempt; }
+    public synchronized int getHealth() { return _health; }
+}
@@ -0,0 +1,58 @@
+package de.danielh.hondae_insight;
+
+// Signals kept in the TelemetryStore. The id is stored in the database, never reuse one.
+enum Signal {
+    SOC(1, "soc"),
+    SOC_MIN(2, "soc_min"),
+    SOC_MAX(3, "soc_max"),
+    SOH(4, "soh"),
+    BAT_TEMP(5, "batt_temp"),
+    AMBIENT_TEMP(6, "ambient_temp"),
+    POWER(7, "power"),
+    AMP(8, "amp"),
+    VOLT(9, "volt"),
+    AUX_BAT(10, "aux_bat"),
+    ODO(11, "odo"),
+    SPEED(12, "speed"),
+    CHARGING(13, "charging"),
+    CELL_DELTA(14, "cell_delta_mv"),
+    SOC_DELTA(15, "soc_delta"),
+    BAT_TEMP_RATE(16, "batt_temp_rate"),
+    DCFC(17, "dcfc");
+
+    private final int _id;
+    private final String _name;
+
+    Signal(int id, String name) {
+        _id = id;
+        _name = name;
+    }
+
+    public double read(VehicleState state) {
+        switch (this) {
+            case SOC: return state.getSoc();
+            case SOC_MIN: return state.getSocMin();
+            case SOC_MAX: return state.getSocMax();
+            case SOH: return state.getSoh();
+            case BAT_TEMP: return state.getBatTemp();
+            case AMBIENT_TEMP: return state.getAmbientTemp();
+            case POWER: return state.getPower();
+            case AMP: return state.getAmp();
+            case VOLT: return state.getVolt();
+            case AUX_BAT: return state.getAuxBat();
+            case ODO: return state.getOdo();
+            case SPEED: return state.getSpeed();
+            case CHARGING: return state.isCharging() ? 1 : 0;
+            case CELL_DELTA:
+                BatteryCells cells = state.getCells();
+                return cells.hasVoltages() ? cells.getCellMaxMillivolts() - cells.getCellMinMillivolts() : Double.NaN;
+            case SOC_DELTA: return state.getSocDelta();
+            case BAT_TEMP_RATE: return state.getBatTempChange();
+            case DCFC: return state.getChargingConnection().getDcfc();
+            default: return Double.NaN;
+        }
+    }
+
+    public int getId() { return _id; }
+    public String getName() { return _name; }
+}
@@ -0,0 +1,83 @@
+package de.danielh.hondae_insight;
+
+import java.util.Locale;
+
+// Cold start milestones, each recorded once per process
+public class StartupTrace {
+
+    enum Span {
+        PROCESS_START("process"),
+        ACTIVITY_READY("activity"),
+        RFCOMM_OPEN("rfcomm"),
+        INIT_DONE("init"),
+        FIRST_SAMPLE("sample"),
+        FIRST_MQTT_PUBLISH("mqtt");
+
+        private final String _name;
+
+        Span(String name) {
+            _name = name;
+        }
+
+        public String getName() {
+            return _name;
+        }
+    }
+
+    private static final StartupTrace INSTANCE = new StartupTrace(Clock.SYSTEM);
+
+    private final Clock _clock;
+    private final long[] _timestamps = new long[Span.values().length];
+
+    StartupTrace(Clock clock) {
+        _clock = clock;
+    }
+
+    public static StartupTrace get() {
+        return INSTANCE;
+    }
+
+    public void mark(Span span) {
+        markAt(span, _clock.currentTimeMillis());
+    }
+
+    public void markProcessStart(long processAgeMs) {
+        markAt(Span.PROCESS_START, _clock.currentTimeMillis() - processAgeMs);
+    }
+
+    public synchronized void markAt(Span span, long timeMs) {
+        if (_timestamps[span.ordinal()] == 0) {
+            _timestamps[span.ordinal()] = timeMs;
+        }
+    }
+
+    public synchronized boolean isMarked(Span span) {
+        return _timestamps[span.ordinal()] != 0;
+    }
+
+    // Milliseconds from process start, or -1 if either end is missing
+    public synchronized long sinceStartMs(Span span) {
+        long start = _timestamps[Span.PROCESS_START.ordinal()];
+        long end = _timestamps[span.ordinal()];
+        return start == 0 || end == 0 ? -1 : end - start;
+    }
+
+    public long getTimeToFirstTelemetryMs() {
+        return sinceStartMs(Span.FIRST_SAMPLE);
+    }
+
+    // e.g. "TTFT 5230ms (activity 410 / rfcomm 2950 / init 3010 / sample 5230)"
+    public synchronized String report() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format(Locale.ENGLISH, "TTFT %dms (", getTimeToFirstTelemetryMs()));
+        String separator = "";
+        for (Span span : Span.values()) {
+            if (span == Span.PROCESS_START || !isMarked(span)) {
+                continue;
+            }
+            builder.append(separator).append(span.getName()).append(' ').append(sinceStartMs(span));
+            separator = " / ";
+        }
+        return builder.append(')').toString();
+    }
+}
@@ -0,0 +1,133 @@
+package de.danielh.hondae_insight;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Counters and latency histograms for the poll loop and its sinks
+public class TelemetryMetrics {
+
+    public static final String MQTT_TOPIC = "hondae/metrics";
+
+    // Keyed by the command string, every command in the loop talks to exactly one ECU
+    private final ConcurrentHashMap<String, LatencyHistogram> _commandLatency = new ConcurrentHashMap<>();
+    private final LatencyHistogram _cycle = new LatencyHistogram("cycle");
+    private final LatencyHistogram _decode = new LatencyHistogram("decode");
+    private final LatencyHistogram _logWrite = new LatencyHistogram("log");
+    private final LatencyHistogram _mqttPublish = new LatencyHistogram("mqtt");
+
+    private final AtomicLong _timeouts = new AtomicLong();
+    private final AtomicLong _noData = new AtomicLong();
+    private final AtomicLong _canErrors = new AtomicLong();
+    private final AtomicLong _partialFrames = new AtomicLong();
+    private final AtomicLong _bytesIn = new AtomicLong();
+    private final AtomicLong _bytesOut = new AtomicLong();
+    private final AtomicLong _mqttFailures = new AtomicLong();
+    // Chip family and name, cycle times are only comparable between runs on the same kind of adapter
+    private volatile String _adapter = "unknown";
+
+    public void recordCommand(String ecu, String command, long nanos) {
+        LatencyHistogram histogram = _commandLatency.get(command);
+        if (histogram == null) {
+            histogram = new LatencyHistogram(ecu + " " + command);
+            LatencyHistogram existing = _commandLatency.putIfAbsent(command, histogram);
+            if (existing != null) {
+                histogram = existing;
+            }
+        }
+        histogram.recordNanos(nanos);
+    }
+
+    public void recordCycle(long nanos) { _cycle.recordNanos(nanos); }
+    public void recordDecode(long nanos) { _decode.recordNanos(nanos); }
+    public void recordLogWrite(long nanos) { _logWrite.recordNanos(nanos); }
+    public void recordMqttPublish(long nanos) { _mqttPublish.recordNanos(nanos); }
+    public void recordTimeout() { _timeouts.incrementAndGet(); }
+    public void recordNoData() { _noData.incrementAndGet(); }
+    public void recordCanError() { _canErrors.incrementAndGet(); }
+    public void recordPartialFrame() { _partialFrames.incrementAndGet(); }
+    public void recordBytesIn(int bytes) { _bytesIn.addAndGet(bytes); }
+    public void recordBytesOut(int bytes) { _bytesOut.addAndGet(bytes); }
+    public void recordMqttFailure() { _mqttFailures.incrementAndGet(); }
+    public void setAdapter(String adapter) { _adapter = adapter; }
+
+    private List<LatencyHistogram> sortedCommandHistograms() {
+        List<LatencyHistogram> histograms = new ArrayList<>(_commandLatency.values());
+        Collections.sort(histograms, (a, b) -> a.getName().compareTo(b.getName()));
+        return histograms;
+    }
+
+    // Multi line text for the debug panel
+    public String summary() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("adapter ").append(_adapter).append(System.lineSeparator());
+        builder.append(String.format(Locale.ENGLISH, "timeouts %d  no data %d  can errors %d  partial %d%n",
+                _timeouts.get(), _noData.get(), _canErrors.get(), _partialFrames.get()));
+        builder.append(String.format(Locale.ENGLISH, "bytes in %d  out %d  mqtt failed %d%n", _bytesIn.get(), _bytesOut.get(), _mqttFailures.get()));
+        for (LatencyHistogram histogram : new LatencyHistogram[]{_cycle, _decode, _logWrite, _mqttPublish}) {
+            appendSummary(builder, histogram);
+        }
+        for (LatencyHistogram histogram : sortedCommandHistograms()) {
+            appendSummary(builder, histogram);
+        }
+        return builder.toString();
+    }
+
+    private static void appendSummary(StringBuilder builder, LatencyHistogram histogram) {
+        builder.append(String.format(Locale.ENGLISH, "%-18s n=%-6d avg %7.1fms  p50 %4dms  p99 %4dms  max %7.1fms%n",
+                histogram.getName(), histogram.getCount(), histogram.meanMs(),
+                histogram.percentileMs(0.5), histogram.percentileMs(0.99), histogram.getMaxMs()));
+    }
+
+    public String toJson(long epoch) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("{\"timestamp\":").append(epoch)
+                .append(",\"adapter\":\"").append(_adapter.replace("\"", "'")).append('"')
+                .append(",\"timeouts\":").append(_timeouts.get())
+                .append(",\"no_data\":").append(_noData.get())
+                .append(",\"can_errors\":").append(_canErrors.get())
+                .append(",\"partial_frames\":").append(_partialFrames.get())
+                .append(",\"bytes_in\":").append(_bytesIn.get())
+                .append(",\"bytes_out\":").append(_bytesOut.get())
+                .append(",\"mqtt_failures\":").append(_mqttFailures.get())
+                .append(",\"bucket_bounds_ms\":[");
+        for (int i = 0; i < LatencyHistogram.BUCKET_BOUNDS_MS.length; i++) {
+            builder.append(i == 0 ? "" : ",").append(LatencyHistogram.BUCKET_BOUNDS_MS[i]);
+        }
+        builder.append("],\"latency\":{");
+        String separator = "";
+        for (LatencyHistogram histogram : new LatencyHistogram[]{_cycle, _decode, _logWrite, _mqttPublish}) {
+            builder.append(separator);
+            appendJson(builder, histogram);
+            separator = ",";
+        }
+        for (LatencyHistogram histogram : sortedCommandHistograms()) {
+            builder.append(separator);
+            appendJson(builder, histogram);
+        }
+        return builder.append("}}").toString();
+    }
+
+    public LatencyHistogram getCycle() { return _cycle; }
+    public String getAdapter() { return _adapter; }
+    public long getTimeouts() { return _timeouts.get(); }
+    public long getCanErrors() { return _canErrors.get(); }
+    public long getPartialFrames() { return _partialFrames.get(); }
+    public long getBytesIn() { return _bytesIn.get(); }
+    public long getBytesOut() { return _bytesOut.get(); }
+    public LatencyHistogram getMqttPublish() { return _mqttPublish; }
+    public long getMqttFailures() { return _mqttFailures.get(); }
+
+    private static void appendJson(StringBuilder builder, LatencyHistogram histogram) {
+        builder.append('"').append(histogram.getName()).append("\":{\"buckets\":[");
+        for (int i = 0; i <= LatencyHistogram.BUCKET_BOUNDS_MS.length; i++) {
+            builder.append(i == 0 ? "" : ",").append(histogram.getBucketCount(i));
+        }
+        builder.append("],\"mean_ms\":").append(String.format(Locale.ENGLISH, "%.2f", histogram.meanMs()))
+                .append(",\"max_ms\":").append(String.format(Locale.ENGLISH, "%.2f", histogram.getMaxMs()))
+                .append('}');
+    }
+}
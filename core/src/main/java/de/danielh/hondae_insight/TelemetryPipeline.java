@@ -0,0 +1,120 @@
+package de.danielh.hondae_insight;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.reactivex.BackpressureOverflowStrategy;
+import io.reactivex.Flowable;
+import io.reactivex.Scheduler;
+import io.reactivex.disposables.CompositeDisposable;
+import io.reactivex.functions.Action;
+import io.reactivex.functions.Consumer;
+import io.reactivex.processors.FlowableProcessor;
+import io.reactivex.processors.PublishProcessor;
+
+// Complete samples from the poll thread fan out to the sinks, each observed on its own scheduler
+// with its own backpressure strategy. emit() only hands the sample over, so a slow SD card or
+// broker can never delay the next CAN request.
+public class TelemetryPipeline {
+
+    // A day of samples at the regular interval, the log only loses data after that long a stall
+    public static final int LOG_BUFFER_SAMPLES = 2880;
+    public static final int MQTT_BUFFER_SAMPLES = 16;
+
+    public static class SinkStats {
+        private final String _name;
+        private final LatencyHistogram _lag;
+        private final AtomicLong _delivered = new AtomicLong();
+        private final AtomicLong _dropped = new AtomicLong();
+        private final AtomicLong _failed = new AtomicLong();
+
+        SinkStats(String name) {
+            _name = name;
+            _lag = new LatencyHistogram(name + " lag");
+        }
+
+        public String getName() { return _name; }
+        public LatencyHistogram getLag() { return _lag; }
+        public long getDelivered() { return _delivered.get(); }
+        public long getDropped() { return _dropped.get(); }
+        public long getFailed() { return _failed.get(); }
+    }
+
+    private final FlowableProcessor<TelemetrySample> _samples = PublishProcessor.<TelemetrySample>create().toSerialized();
+    private final CompositeDisposable _disposables = new CompositeDisposable();
+    private final List<SinkStats> _stats = new ArrayList<>();
+    private final AtomicLong _emitted = new AtomicLong();
+
+    public void emit(TelemetrySample sample) {
+        _emitted.incrementAndGet();
+        _samples.onNext(sample);
+    }
+
+    // Ends every sink after it has worked through its backlog
+    public void complete() {
+        _samples.onComplete();
+    }
+
+    public void dispose() {
+        _disposables.dispose();
+    }
+
+    // Only the newest sample matters, older ones are skipped while the sink is busy (UI, notification)
+    public SinkStats subscribeLatest(String name, Scheduler scheduler, Consumer<TelemetrySample> sink) {
+        SinkStats stats = new SinkStats(name);
+        subscribe(_samples.onBackpressureLatest().observeOn(scheduler, false, 1), stats, sink, () -> { });
+        return stats;
+    }
+
+    // Keeps everything up to LOG_BUFFER_SAMPLES, for sinks that write to storage (CSV log, history store)
+    public SinkStats subscribeBuffered(String name, Scheduler scheduler, Consumer<TelemetrySample> sink, Action onComplete) {
+        SinkStats stats = new SinkStats(name);
+        subscribe(_samples.onBackpressureBuffer(LOG_BUFFER_SAMPLES, () -> stats._dropped.incrementAndGet(),
+                BackpressureOverflowStrategy.DROP_OLDEST).observeOn(scheduler, false, 1), stats, sink, onComplete);
+        return stats;
+    }
+
+    // A few samples of slack, then the oldest are dropped: stale positions are not worth sending (MQTT)
+    public SinkStats subscribeBounded(String name, Scheduler scheduler, Consumer<TelemetrySample> sink) {
+        SinkStats stats = new SinkStats(name);
+        subscribe(_samples.onBackpressureBuffer(MQTT_BUFFER_SAMPLES, () -> stats._dropped.incrementAndGet(),
+                BackpressureOverflowStrategy.DROP_OLDEST).observeOn(scheduler, false, 1), stats, sink, () -> { });
+        return stats;
+    }
+
+    private void subscribe(Flowable<TelemetrySample> flowable, SinkStats stats, Consumer<TelemetrySample> sink, Action onComplete) {
+        synchronized (_stats) {
+            _stats.add(stats);
+        }
+        _disposables.add(flowable.subscribe(sample -> {
+            stats._lag.recordNanos(System.nanoTime() - sample.getEmitNanos());
+            stats._delivered.incrementAndGet();
+            try {
+                sink.accept(sample);
+            } catch (Exception e) {
+                // One bad sample must not end the subscription for the rest of the drive
+                stats._failed.incrementAndGet();
+                e.printStackTrace();
+            }
+        }, Throwable::printStackTrace, onComplete));
+    }
+
+    // Lag from emit() until the sink picked the sample up, plus what each strategy skipped
+    public String report() {
+        StringBuilder builder = new StringBuilder();
+        long emitted = _emitted.get();
+        synchronized (_stats) {
+            for (SinkStats stats : _stats) {
+                LatencyHistogram lag = stats._lag;
+                builder.append(String.format(Locale.ENGLISH, "%-18s n=%-6d skip %-4d fail %-3d p50 %4dms  p99 %4dms  max %7.1fms%n",
+                        lag.getName(), stats.getDelivered(), Math.max(stats.getDropped(), emitted - stats.getDelivered()),
+                        stats.getFailed(), lag.percentileMs(0.5), lag.percentileMs(0.99), lag.getMaxMs()));
+            }
+        }
+        return builder.toString();
+    }
+
+    public long getEmitted() { return _emitted.get(); }
+}
@@ -0,0 +1,53 @@
+package de.danielh.hondae_insight;
+
+// Immutable copy of one complete cycle. The sinks run on their own threads while the poll
+// thread already decodes into VehicleState again, so they never get to see the live state.
+public class TelemetrySample {
+
+    private static final Signal[] SIGNALS = Signal.values();
+
+    private final long _timeMs;
+    private final long _emitNanos;
+    private final double[] _values = new double[SIGNALS.length];
+    private final double _socDelta;
+    private final String _connection;
+    private final String _csvLine;
+    private final String _mqttPayload;
+
+    public TelemetrySample(long timeMs, VehicleState state) {
+        _timeMs = timeMs;
+        for (int signal = 0; signal < SIGNALS.length; signal++) {
+            _values[signal] = SIGNALS[signal].read(state);
+        }
+        _socDelta = state.getSocDelta();
+        _connection = state.getChargingConnection().getName();
+        _csvLine = state.toCsvLine(timeMs);
+        _mqttPayload = state.toMqttPayload(timeMs / 1000);
+        _emitNanos = System.nanoTime();
+    }
+
+    // Hand-made samples for the tests, only the signals
+    TelemetrySample(long timeMs, double[] values) {
+        _timeMs = timeMs;
+        System.arraycopy(values, 0, _values, 0, _values.length);
+        _socDelta = values[Signal.SOC_DELTA.ordinal()];
+        _connection = "";
+        _csvLine = "";
+        _mqttPayload = "";
+        _emitNanos = System.nanoTime();
+    }
+
+    public double get(Signal signal) { return _values[signal.ordinal()]; }
+    public long getTimeMs() { return _timeMs; }
+    public long getEpoch() { return _timeMs / 1000; }
+    public long getEmitNanos() { return _emitNanos; }
+    public double getSocDelta() { return _socDelta; }
+    public boolean isCharging() { return _values[Signal.CHARGING.ordinal()] != 0; }
+    public String getConnection() { return _connection; }
+    public String getCsvLine() { return _csvLine; }
+    public String getMqttPayload() { return _mqttPayload; }
+
+    void copyValues(double[] target) {
+        System.arraycopy(_values, 0, target, 0, _values.length);
+    }
+}
@@ -0,0 +1,41 @@
+package de.danielh.hondae_insight;
+
+import java.util.Arrays;
+
+// Result of a TelemetryStore range query, parallel primitive arrays sorted by time.
+// Raw samples have min == max == value, aggregates carry their bucket's mean as value.
+public class TimeSeries {
+
+    private long[] _timesMs;
+    private double[] _values, _min, _max;
+    private int _size;
+
+    public TimeSeries(int capacity) {
+        int initial = Math.max(16, capacity);
+        _timesMs = new long[initial];
+        _values = new double[initial];
+        _min = new double[initial];
+        _max = new double[initial];
+    }
+
+    public void add(long timeMs, double value, double min, double max) {
+        if (_size == _timesMs.length) {
+            int capacity = _size * 2;
+            _timesMs = Arrays.copyOf(_timesMs, capacity);
+            _values = Arrays.copyOf(_values, capacity);
+            _min = Arrays.copyOf(_min, capacity);
+            _max = Arrays.copyOf(_max, capacity);
+        }
+        _timesMs[_size] = timeMs;
+        _values[_size] = value;
+        _min[_size] = min;
+        _max[_size] = max;
+        _size++;
+    }
+
+    public int size() { return _size; }
+    public long getTimeMs(int index) { return _timesMs[index]; }
+    public double getValue(int index) { return _values[index]; }
+    public double getMin(int index) { return _min[index]; }
+    public double getMax(int index) { return _max[index]; }
+}
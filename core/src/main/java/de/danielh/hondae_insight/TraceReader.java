@@ -0,0 +1,90 @@
+package de.danielh.hondae_insight;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+// Reads the files written by TrafficRecorder, one record per next()
+public class TraceReader implements Closeable {
+
+    private final DataInputStream _in;
+    private final String _vin;
+    private final String _adapterName;
+    private final long _startWallClockMs;
+    private final long _baseNanos;
+
+    private byte _direction;
+    private long _nanos;
+    private String _line;
+    private byte[] _buffer = new byte[1024];
+
+    public TraceReader(InputStream in) throws IOException {
+        _in = new DataInputStream(new BufferedInputStream(in, 65536));
+        if (_in.readInt() != TrafficRecorder.MAGIC) {
+            throw new IOException("Not a traffic trace");
+        }
+        byte version = _in.readByte();
+        if (version != TrafficRecorder.VERSION) {
+            throw new IOException("Unsupported trace version " + version);
+        }
+        _vin = _in.readUTF();
+        _adapterName = _in.readUTF();
+        _startWallClockMs = _in.readLong();
+        _baseNanos = _in.readLong();
+        _nanos = _baseNanos;
+    }
+
+    // Returns false at the end of the trace
+    public boolean next() throws IOException {
+        int direction = _in.read();
+        if (direction < 0) {
+            return false;
+        }
+        _direction = (byte) direction;
+        long zigzag = readVarLong();
+        _nanos += (zigzag >>> 1) ^ -(zigzag & 1);
+        int length = (int) readVarLong();
+        if (_buffer.length < length) {
+            _buffer = new byte[Math.max(length, _buffer.length * 2)];
+        }
+        _in.readFully(_buffer, 0, length);
+        _line = new String(_buffer, 0, length, StandardCharsets.ISO_8859_1);
+        return true;
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = _in.read();
+            if (b < 0) {
+                throw new EOFException("Truncated trace record");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    // Wall clock time of the current record
+    public long currentTimeMillis() {
+        return _startWallClockMs + (_nanos - _baseNanos) / 1000000L;
+    }
+
+    public boolean isSent() { return _direction == TrafficRecorder.DIRECTION_SENT; }
+    public long getNanos() { return _nanos; }
+    public String getLine() { return _line; }
+    public String getVin() { return _vin; }
+    public String getAdapterName() { return _adapterName; }
+    public long getStartWallClockMs() { return _startWallClockMs; }
+
+    @Override
+    public void close() throws IOException {
+        _in.close();
+    }
+}
@@ -0,0 +1,130 @@
+package de.danielh.hondae_insight;
+
+// Online polyline simplification with constant memory (sleeve fitting, Zhao & Saalfeld). From the
+// last kept point every later fix narrows a cone of directions a straight line may take while
+// passing within the tolerance of all fixes since; the first fix outside the cone makes the one
+// before it the next kept point. Each fix is looked at once, nothing is buffered, so a track of
+// any length goes through in a single pass. Distances are meters on a local equirectangular
+// projection, plenty for the few hundred meters between two kept points.
+public class TrackSimplifier {
+
+    private static final double EARTH_RADIUS_M = 6371000;
+
+    public interface Listener {
+        void onPoint(long timeMs, double lat, double lon, double soc, double kw);
+    }
+
+    private final double _toleranceM;
+    // A fix beyond the end of the line is off sideways and lengthwise, 0.8 and 0.6 of the tolerance
+    // add up to exactly the tolerance
+    private final double _sidewaysM, _backwardsM;
+    private final Listener _listener;
+
+    private boolean _hasAnchor, _hasPending;
+    private double _anchorLat, _anchorLon, _metersPerDegreeLon;
+    private boolean _coneOpen;
+    private double _coneLow, _coneHigh, _maxDistance;
+
+    // The last fix seen, kept once the next one breaks the cone or the track ends
+    private long _pendingTimeMs;
+    private double _pendingLat, _pendingLon, _pendingSoc, _pendingKw;
+
+    private long _in, _out;
+
+    // Tolerance 0 keeps every fix
+    public TrackSimplifier(double toleranceM, Listener listener) {
+        _toleranceM = toleranceM;
+        _sidewaysM = toleranceM * 0.8;
+        _backwardsM = toleranceM * 0.6;
+        _listener = listener;
+    }
+
+    public void add(long timeMs, double lat, double lon, double soc, double kw) {
+        _in++;
+        if (!_hasAnchor || _toleranceM <= 0) {
+            emit(timeMs, lat, lon, soc, kw);
+            anchor(lat, lon);
+            return;
+        }
+        if (!fitsCone(lat, lon)) {
+            // The pending fix is the furthest the line from the anchor could reach
+            emit(_pendingTimeMs, _pendingLat, _pendingLon, _pendingSoc, _pendingKw);
+            anchor(_pendingLat, _pendingLon);
+            fitsCone(lat, lon);
+        }
+        _hasPending = true;
+        _pendingTimeMs = timeMs;
+        _pendingLat = lat;
+        _pendingLon = lon;
+        _pendingSoc = soc;
+        _pendingKw = kw;
+    }
+
+    // Keeps the last fix, the track ends where it really ended
+    public void finish() {
+        if (_hasPending) {
+            emit(_pendingTimeMs, _pendingLat, _pendingLon, _pendingSoc, _pendingKw);
+            _hasPending = false;
+        }
+    }
+
+    private void anchor(double lat, double lon) {
+        _hasAnchor = true;
+        _hasPending = false;
+        _anchorLat = lat;
+        _anchorLon = lon;
+        _metersPerDegreeLon = Math.toRadians(EARTH_RADIUS_M) * Math.cos(Math.toRadians(lat));
+        _coneOpen = false;
+        _maxDistance = 0;
+    }
+
+    // Narrows the cone to the fix, false if the fix lies outside of it
+    private boolean fitsCone(double lat, double lon) {
+        double dx = (lon - _anchorLon) * _metersPerDegreeLon;
+        double dy = (lat - _anchorLat) * Math.toRadians(EARTH_RADIUS_M);
+        double distance = Math.sqrt(dx * dx + dy * dy);
+        if (distance < _maxDistance - _backwardsM) {
+            // Heading back the way it came, the cone only looks at directions and wouldn't notice
+            return false;
+        }
+        _maxDistance = Math.max(_maxDistance, distance);
+        double direction = Math.atan2(dy, dx);
+        if (!_coneOpen) {
+            if (distance > _sidewaysM) {
+                double halfWidth = Math.asin(_sidewaysM / distance);
+                _coneOpen = true;
+                _coneLow = direction - halfWidth;
+                _coneHigh = direction + halfWidth;
+            }
+            return true;
+        }
+        // Into the same turn as the cone, it never gets wider than half a circle
+        double center = (_coneLow + _coneHigh) / 2;
+        while (direction < center - Math.PI) {
+            direction += 2 * Math.PI;
+        }
+        while (direction >= center + Math.PI) {
+            direction -= 2 * Math.PI;
+        }
+        if (direction < _coneLow || direction > _coneHigh) {
+            // Also when close to the anchor: any line passes near it, but a line ending there
+            // would leave the fixes further out behind
+            return false;
+        }
+        if (distance <= _sidewaysM) {
+            return true;
+        }
+        double halfWidth = Math.asin(_sidewaysM / distance);
+        _coneLow = Math.max(_coneLow, direction - halfWidth);
+        _coneHigh = Math.min(_coneHigh, direction + halfWidth);
+        return true;
+    }
+
+    private void emit(long timeMs, double lat, double lon, double soc, double kw) {
+        _out++;
+        _listener.onPoint(timeMs, lat, lon, soc, kw);
+    }
+
+    public long getPointsIn() { return _in; }
+    public long getPointsOut() { return _out; }
+}
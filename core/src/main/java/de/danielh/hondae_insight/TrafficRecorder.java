@@ -0,0 +1,156 @@
+package de.danielh.hondae_insight;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Raw adapter traffic trace. Callers only claim a ring slot, a background thread does all file I/O.
+//
+// File layout (big endian):
+//   int magic "HETR", byte version, UTF vin, UTF adapter name, long wall clock ms, long base nanoTime
+//   records: byte direction, zigzag varint nanos since previous record, varint length, ASCII line
+public class TrafficRecorder implements Closeable {
+
+    static final int MAGIC = 0x48455452;
+    static final byte VERSION = 1;
+    static final byte DIRECTION_SENT = 0;
+    static final byte DIRECTION_RECEIVED = 1;
+
+    private static final int CAPACITY = 4096; // must be a power of two
+    private static final int MASK = CAPACITY - 1;
+    private static final long IDLE_PARK_NANOS = 20000000L;
+
+    private final AtomicLong _claimed = new AtomicLong();
+    private final AtomicLong _consumed = new AtomicLong();
+    // Holds sequence + 1 once the slot for that sequence is filled
+    private final AtomicLongArray _published = new AtomicLongArray(CAPACITY);
+    private final long[] _nanos = new long[CAPACITY];
+    private final byte[] _directions = new byte[CAPACITY];
+    private final String[] _lines = new String[CAPACITY];
+    private final AtomicLong _dropped = new AtomicLong();
+    private final AtomicLong _records = new AtomicLong();
+
+    private final DataOutputStream _out;
+    private final Thread _writer;
+    private volatile boolean _running = true;
+    private long _lastNanos;
+    private IOException _writeError;
+
+    public TrafficRecorder(File file, String vin, String adapterName) throws IOException {
+        _out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 16384));
+        _lastNanos = System.nanoTime();
+        _out.writeInt(MAGIC);
+        _out.writeByte(VERSION);
+        _out.writeUTF(vin != null ? vin : "");
+        _out.writeUTF(adapterName != null ? adapterName : "");
+        _out.writeLong(System.currentTimeMillis());
+        _out.writeLong(_lastNanos);
+        _writer = new Thread(this::drain, "TrafficRecorder");
+        _writer.setDaemon(true);
+        _writer.setPriority(Thread.MIN_PRIORITY);
+        _writer.start();
+    }
+
+    public void recordSent(String line) {
+        record(DIRECTION_SENT, line);
+    }
+
+    public void recordReceived(String line) {
+        record(DIRECTION_RECEIVED, line);
+    }
+
+    private void record(byte direction, String line) {
+        if (!_running) {
+            return;
+        }
+        long sequence;
+        do {
+            sequence = _claimed.get();
+            if (sequence - _consumed.get() >= CAPACITY) {
+                _dropped.incrementAndGet(); // never block the poll thread on a slow card
+                return;
+            }
+        } while (!_claimed.compareAndSet(sequence, sequence + 1));
+        int slot = (int) (sequence & MASK);
+        _nanos[slot] = System.nanoTime();
+        _directions[slot] = direction;
+        _lines[slot] = line;
+        _published.lazySet(slot, sequence + 1);
+    }
+
+    private void drain() {
+        while (true) {
+            long next = _consumed.get();
+            int slot = (int) (next & MASK);
+            if (_published.get(slot) != next + 1) {
+                if (!_running && next == _claimed.get()) {
+                    break;
+                }
+                flushQuietly();
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            write(_directions[slot], _nanos[slot], _lines[slot]);
+            _lines[slot] = null;
+            _consumed.lazySet(next + 1);
+        }
+    }
+
+    private void write(byte direction, long nanos, String line) {
+        if (_writeError != null) {
+            return;
+        }
+        try {
+            _out.writeByte(direction);
+            long delta = nanos - _lastNanos;
+            _lastNanos = nanos;
+            writeVarLong((delta << 1) ^ (delta >> 63));
+            byte[] bytes = line.getBytes(StandardCharsets.ISO_8859_1);
+            writeVarLong(bytes.length);
+            _out.write(bytes);
+            _records.incrementAndGet();
+        } catch (IOException e) {
+            _writeError = e;
+        }
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            _out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        _out.writeByte((int) value);
+    }
+
+    private void flushQuietly() {
+        try {
+            _out.flush();
+        } catch (IOException e) {
+            _writeError = e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        _running = false;
+        try {
+            _writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        _out.close();
+        if (_writeError != null) {
+            throw _writeError;
+        }
+    }
+
+    public long getRecords() { return _records.get(); }
+    public long getDropped() { return _dropped.get(); }
+}
@@ -0,0 +1,176 @@
+package de.danielh.hondae_insight;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Locale;
+
+// Turns a trip log into a GPX or GeoJSON track for mapping tools. Rows stream from the
+// TripLogReader through a TrackSimplifier straight into the output, so memory stays the same
+// for a ten minute drive and for a log of several hundred MB. Every point carries SoC and kW:
+// GPX as extensions of the track point, GeoJSON as properties of the segment ending at the point,
+// which lets a map color the track by power.
+public class TripExporter {
+
+    public static final double DEFAULT_TOLERANCE_M = 5;
+
+    private static final String GPX_NAMESPACE = "urn:hondae-insight:telemetry";
+    private static final long[] POWERS_OF_TEN = {1, 10, 100, 1000, 10000, 100000, 1000000};
+    // About 10 cm, more than a phone GPS can tell apart
+    private static final int COORDINATE_DECIMALS = 6;
+
+    public enum Format {
+        GPX(".gpx"),
+        GEOJSON(".geojson");
+
+        private final String _extension;
+
+        Format(String extension) {
+            _extension = extension;
+        }
+
+        public String getExtension() { return _extension; }
+    }
+
+    private final Format _format;
+    private final double _toleranceM;
+    private final StringBuilder _line = new StringBuilder(256);
+
+    private Writer _out;
+    private boolean _hasPrevious;
+    private double _previousLat, _previousLon;
+    private long _rows, _fixes, _points;
+
+    public TripExporter(Format format, double toleranceM) {
+        _format = format;
+        _toleranceM = toleranceM;
+    }
+
+    // Next to the log with the format's extension, returns that file
+    public File exportNextTo(File log) throws IOException {
+        String name = log.getName();
+        name = name.endsWith(LogArchiver.COMPRESSED_SUFFIX) ? name.substring(0, name.length() - LogArchiver.COMPRESSED_SUFFIX.length()) : name;
+        File target = new File(log.getParentFile(), (name.endsWith(".csv") ? name.substring(0, name.length() - 4) : name) + _format.getExtension());
+        try (OutputStream out = new FileOutputStream(target)) {
+            export(log, out);
+        }
+        return target;
+    }
+
+    public void export(File log, OutputStream out) throws IOException {
+        TripLogReader reader = new TripLogReader(log);
+        int[] columns = {reader.column("Lat"), reader.column("Lon"), reader.column("SoC (dash)"), reader.column("kW")};
+        _out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+        _hasPrevious = false;
+        _fixes = 0;
+        _points = 0;
+        writeHeader(log.getName());
+        TrackSimplifier simplifier = new TrackSimplifier(_toleranceM, this::writePoint);
+        try {
+            _rows = reader.read(columns, (timeMs, values) -> {
+                // 0.0 / 0.0 until the first fix, the log has no other way to say "no location"
+                if (Double.isNaN(values[0]) || Double.isNaN(values[1]) || (values[0] == 0 && values[1] == 0)) {
+                    return;
+                }
+                _fixes++;
+                simplifier.add(timeMs, values[0], values[1], values[2], values[3]);
+            });
+            simplifier.finish();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        writeFooter();
+        _out.flush();
+    }
+
+    private void writeHeader(String name) throws IOException {
+        if (_format == Format.GPX) {
+            _out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<gpx version=\"1.1\" creator=\"HondaE Insight\" "
+                    + "xmlns=\"http://www.topografix.com/GPX/1/1\" xmlns:hi=\"" + GPX_NAMESPACE + "\">\n<trk><name>"
+                    + name.replace("&", "&amp;").replace("<", "&lt;") + "</name><trkseg>\n");
+        } else {
+            _out.write("{\"type\":\"FeatureCollection\",\"name\":\"" + name.replace("\\", "\\\\").replace("\"", "\\\"")
+                    + "\",\"features\":[\n");
+        }
+    }
+
+    private void writeFooter() throws IOException {
+        _out.write(_format == Format.GPX ? "</trkseg></trk>\n</gpx>\n" : "\n]}\n");
+    }
+
+    // Called from the simplifier inside the row callback, which can't throw
+    private void writePoint(long timeMs, double lat, double lon, double soc, double kw) {
+        StringBuilder line = _line;
+        line.setLength(0);
+        if (_format == Format.GPX) {
+            line.append("<trkpt lat=\"");
+            appendFixed(line, lat, COORDINATE_DECIMALS);
+            line.append("\" lon=\"");
+            appendFixed(line, lon, COORDINATE_DECIMALS);
+            line.append("\"><time>").append(Instant.ofEpochMilli(timeMs)).append("</time><extensions>");
+            if (!Double.isNaN(soc)) {
+                appendFixed(line.append("<hi:soc>"), soc, 2).append("</hi:soc>");
+            }
+            if (!Double.isNaN(kw)) {
+                appendFixed(line.append("<hi:kw>"), kw, 1).append("</hi:kw>");
+            }
+            line.append("</extensions></trkpt>\n");
+        } else if (_hasPrevious) {
+            line.append(_points > 1 ? ",\n" : "").append("{\"type\":\"Feature\",\"properties\":{\"time\":\"").append(Instant.ofEpochMilli(timeMs))
+                    .append("\",\"soc\":");
+            appendNumber(line, soc, 2).append(",\"kw\":");
+            appendNumber(line, kw, 1).append("},\"geometry\":{\"type\":\"LineString\",\"coordinates\":[[");
+            appendFixed(line, _previousLon, COORDINATE_DECIMALS).append(',');
+            appendFixed(line, _previousLat, COORDINATE_DECIMALS).append("],[");
+            appendFixed(line, lon, COORDINATE_DECIMALS).append(',');
+            appendFixed(line, lat, COORDINATE_DECIMALS).append("]]}}");
+        }
+        _hasPrevious = true;
+        _previousLat = lat;
+        _previousLon = lon;
+        _points++;
+        try {
+            _out.write(line.toString());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static StringBuilder appendNumber(StringBuilder builder, double value, int decimals) {
+        return Double.isNaN(value) ? builder.append("null") : appendFixed(builder, value, decimals);
+    }
+
+    // Fixed point without String.format, which would dominate the export time
+    private static StringBuilder appendFixed(StringBuilder builder, double value, int decimals) {
+        long scale = POWERS_OF_TEN[decimals];
+        long scaled = Math.round(Math.abs(value) * scale);
+        if (value < 0 && scaled != 0) {
+            builder.append('-');
+        }
+        builder.append(scaled / scale);
+        if (decimals > 0) {
+            builder.append('.');
+            long fraction = scaled % scale;
+            for (long digit = scale / 10; digit > 0; digit /= 10) {
+                builder.append((char) ('0' + fraction / digit % 10));
+            }
+        }
+        return builder;
+    }
+
+    public String report() {
+        return String.format(Locale.ENGLISH, "%s: %d rows, %d fixes -> %d points (%.1fm tolerance)",
+                _format.name(), _rows, _fixes, _points, _toleranceM);
+    }
+
+    public long getRows() { return _rows; }
+    public long getFixes() { return _fixes; }
+    public long getPoints() { return _points; }
+}
@@ -0,0 +1,160 @@
+package de.danielh.hondae_insight;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+// Streams the per session CSV logs written by CommunicateActivity into Downsamplers, one pass
+// for all requested columns. Older logs without the newer columns still read fine, and so do
+// logs the LogArchiver has gzipped.
+public class TripLogReader {
+
+    private static final int TAIL_BYTES = 4096;
+
+    public interface RowListener {
+        // Values in the order of the requested columns, NaN where missing; the array is reused
+        void onRow(long timeMs, double[] values);
+    }
+
+    private final File _file;
+    private final List<String> _columns;
+
+    public TripLogReader(File file) throws IOException {
+        _file = file;
+        try (BufferedReader reader = open()) {
+            String header = reader.readLine();
+            if (header == null || !header.startsWith("sysTimeMs,")) {
+                throw new IOException("Not a trip log: " + file.getName());
+            }
+            _columns = Arrays.asList(header.split(","));
+        }
+    }
+
+    private BufferedReader open() throws IOException {
+        return new BufferedReader(new InputStreamReader(LogArchiver.open(_file), StandardCharsets.ISO_8859_1), 1 << 16);
+    }
+
+    public int column(String name) {
+        return _columns.indexOf(name);
+    }
+
+    // First and last sysTimeMs without reading the whole file, null if there are no samples
+    public long[] timeRange() throws IOException {
+        long firstMs;
+        try (BufferedReader reader = open()) {
+            reader.readLine();
+            String first = reader.readLine();
+            if (first == null || first.isEmpty()) {
+                return null;
+            }
+            firstMs = parseTime(first);
+            if (LogArchiver.isCompressed(_file)) {
+                long[] stored = LogArchiver.storedTimeRange(_file);
+                return stored != null ? stored : new long[]{firstMs, lastTime(reader, firstMs)};
+            }
+        }
+        try (RandomAccessFile file = new RandomAccessFile(_file, "r")) {
+            long start = Math.max(0, file.length() - TAIL_BYTES);
+            byte[] tail = new byte[(int) (file.length() - start)];
+            file.seek(start);
+            file.readFully(tail);
+            String[] lines = new String(tail, StandardCharsets.ISO_8859_1).split("\n");
+            for (int i = lines.length - 1; i >= 0; i--) {
+                String line = lines[i].trim();
+                if (!line.isEmpty() && Character.isDigit(line.charAt(0))) {
+                    try {
+                        return new long[]{firstMs, parseTime(line)};
+                    } catch (NumberFormatException e) {
+                        // Cut short by the app being killed mid-line, the one before is whole
+                    }
+                }
+            }
+        }
+        return new long[]{firstMs, firstMs};
+    }
+
+    // No seeking into a gzip stream, read on to the end
+    private static long lastTime(BufferedReader reader, long firstMs) throws IOException {
+        long lastMs = firstMs;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!line.isEmpty() && Character.isDigit(line.charAt(0))) {
+                try {
+                    lastMs = parseTime(line);
+                } catch (NumberFormatException e) {
+                    // Cut short by the app being killed mid-line
+                }
+            }
+        }
+        return lastMs;
+    }
+
+    private static long parseTime(String line) {
+        int comma = line.indexOf(',');
+        return Long.parseLong(comma < 0 ? line : line.substring(0, comma));
+    }
+
+    // Feeds column[i] of every row into downsamplers[i]; unparsable rows are skipped
+    public long read(int[] columns, Downsampler[] downsamplers) throws IOException {
+        return read(columns, (timeMs, values) -> {
+            for (int i = 0; i < values.length; i++) {
+                downsamplers[i].add(timeMs, values[i]);
+            }
+        });
+    }
+
+    // One pass over the file, constant memory whatever its size
+    public long read(int[] columns, RowListener listener) throws IOException {
+        double[] values = new double[columns.length];
+        long rows = 0;
+        try (BufferedReader reader = open()) {
+            reader.readLine();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int timeEnd = line.indexOf(',');
+                if (timeEnd <= 0) {
+                    continue;
+                }
+                long timeMs;
+                try {
+                    timeMs = Long.parseLong(line.substring(0, timeEnd));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                for (int i = 0; i < columns.length; i++) {
+                    values[i] = field(line, columns[i]);
+                }
+                listener.onRow(timeMs, values);
+                rows++;
+            }
+        }
+        return rows;
+    }
+
+    // Column as a double, NaN if missing or not a number
+    private static double field(String line, int column) {
+        if (column < 0) {
+            return Double.NaN;
+        }
+        int start = 0;
+        for (int i = 0; i < column; i++) {
+            start = line.indexOf(',', start) + 1;
+            if (start == 0) {
+                return Double.NaN;
+            }
+        }
+        int end = line.indexOf(',', start);
+        try {
+            return Double.parseDouble(end < 0 ? line.substring(start) : line.substring(start, end));
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    public File getFile() { return _file; }
+}
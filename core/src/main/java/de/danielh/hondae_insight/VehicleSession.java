@@ -0,0 +1,356 @@
+package de.danielh.hondae_insight;
+
+import java.io.IOException;
+import java.util.Locale;
+
+// One adapter and car, the same in the app and in gateway mode: connect or fast resume, the
+// polling cycle, ATRV only while parked, the DC charge curve between cycles, flow control tuning
+// and the re-init of a degraded link. run() does one step on whatever thread the caller runs it
+// on and only ever waits on the clock for the adapter's replies; the app schedules the next step
+// after getDelayUntilNextRunMs(), the gateway runs every session on its interval. Losing the link
+// ends up in Listener.onConnectionLost(), reconnecting is the caller's ReconnectSupervisor's job.
+public class VehicleSession implements Runnable {
+
+    // The saved flow control is swept again after this many cycles in a row lose long replies,
+    // but not more often than every half hour
+    public static final int FLOW_CONTROL_ERROR_CYCLES = 3;
+    public static final long FLOW_CONTROL_RECALIBRATE_MS = 30 * 60 * 1000L;
+
+    // Called on the thread running the session
+    public interface Listener {
+        default void onConnected(String vin, boolean fastResume) { }
+        // A full cycle polled at sysTimeMs, the state holds it until the next one
+        default void onSample(long sysTimeMs) { }
+        // What the session is doing, for the status line or the log
+        default void onStatus(String message) { }
+        // Replies to the init sequence
+        default void onMessage(String message) { }
+        default void onAuxBattery(String message) { }
+        default void onRangeUpdated() { }
+        // The transport is closed again, nothing more happens until requestConnect()
+        default void onConnectionLost(String reason) { }
+        default void onChargeCurve(ChargeCurve chargeCurve) { }
+        // Found by the calibration, to be passed to setFlowControl() next time
+        default void onFlowControl(FlowControlProfile profile) { }
+    }
+
+    private final ElmTransport _transport;
+    private final VehicleState _state;
+    private final TelemetryMetrics _metrics;
+    private final PollingEngine _engine;
+    private final ReconnectSupervisor _reconnectSupervisor;
+    private final ParkedMonitor _parkedMonitor;
+    private final Clock _clock;
+    private final long _intervalMs;
+    private final Listener _listener;
+
+    private volatile String _vin;
+    private volatile boolean _connected = false;
+    private volatile boolean _connectDue = true;
+
+    // On the thread running the session
+    private long _nextCycleMs;
+    private ChargeCurve _chargeCurve;
+    private boolean _chargeCurvePrepared = false;
+    private FlowControlProfile _flowControl;
+    private boolean _calibrationDue = false;
+    private long _lastCalibrationMs;
+    private int _flowControlErrorCycles = 0;
+    private long _longReplyErrors = 0;
+
+    // Written by the thread running the session, read by reports
+    private volatile long _cycles, _samples, _reconnects;
+
+    public VehicleSession(ElmTransport transport, VehicleState state, TelemetryMetrics metrics, ReconnectSupervisor reconnectSupervisor,
+                          Clock clock, long intervalMs, Listener listener) {
+        _transport = transport;
+        _state = state;
+        _metrics = metrics;
+        _reconnectSupervisor = reconnectSupervisor;
+        _clock = clock;
+        _intervalMs = intervalMs;
+        _listener = listener;
+        _parkedMonitor = new ParkedMonitor(clock);
+        _lastCalibrationMs = clock.currentTimeMillis() - FLOW_CONTROL_RECALIBRATE_MS;
+        _engine = new PollingEngine(transport, state, metrics, new PollingEngine.Listener() {
+            @Override
+            public void onResponse() {
+                _reconnectSupervisor.onResponse();
+            }
+
+            @Override
+            public void onTimeout() {
+                _reconnectSupervisor.onTimeout();
+            }
+
+            @Override
+            public void onElmError(String message) {
+                _reconnectSupervisor.onCanError();
+            }
+
+            @Override
+            public void onMessage(String message) {
+                _listener.onMessage(message);
+            }
+
+            @Override
+            public void onAuxBattery(String message) {
+                _listener.onAuxBattery(message);
+            }
+
+            @Override
+            public void onRangeUpdated() {
+                _listener.onRangeUpdated();
+            }
+        }, clock);
+    }
+
+    // The VIN of the last connect, lets the first connect try a fast resume
+    public void setCachedVin(String vin) {
+        _vin = vin;
+    }
+
+    // The profile saved for this adapter, null has it calibrated once samples flow
+    public void setFlowControl(FlowControlProfile flowControl) {
+        _flowControl = flowControl;
+    }
+
+    public void setPipelined(boolean pipelined) {
+        _engine.setPipelined(pipelined);
+    }
+
+    // From the ReconnectSupervisor, the next run() opens the transport again
+    public void requestConnect() {
+        _connectDue = true;
+    }
+
+    // Guarded by the session so a late reconnect can never overlap a running step
+    @Override
+    public synchronized void run() {
+        if (!_engine.isRunning()) {
+            return;
+        }
+        long runStartMs = _clock.currentTimeMillis();
+        try {
+            if (_connectDue) {
+                _connectDue = false;
+                connect();
+            }
+            if (!_connected) {
+                return;
+            }
+            if (_parkedMonitor.isParked()) {
+                pollParked();
+            } else if (runStartMs >= _nextCycleMs) {
+                _nextCycleMs = runStartMs + _intervalMs;
+                pollCycle();
+            } else if (_chargeCurve != null) {
+                captureChargeCurve();
+            }
+        } catch (IOException e) {
+            connectionLost(e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            // Never let it escape, an executor would silently drop the session
+            connectionLost(e.toString());
+        }
+    }
+
+    // Right away while DC charging, the charge curve fills the pause between two cycles
+    public long getDelayUntilNextRunMs() {
+        if (!_connected) {
+            return _connectDue ? 0 : _intervalMs;
+        }
+        if (_parkedMonitor.isParked()) {
+            return _parkedMonitor.getDelayUntilNextPollMs();
+        }
+        if (_chargeCurve != null) {
+            return 0;
+        }
+        return Math.max(0, _nextCycleMs - _clock.currentTimeMillis());
+    }
+
+    private void connect() throws IOException, InterruptedException {
+        _transport.open();
+        _engine.setFlowControl(_flowControl);
+        String vin = _engine.connect(_vin);
+        if (!_engine.isRunning()) {
+            // Stopped during the init sequence
+            return;
+        }
+        if (vin == null) {
+            throw new IOException("CAN not responding");
+        }
+        _vin = vin;
+        _connected = true;
+        // Swept between cycles once samples flow, the connect doesn't wait for it
+        _calibrationDue = _flowControl == null;
+        _reconnectSupervisor.onConnected();
+        _listener.onConnected(vin, _engine.isFastResume());
+    }
+
+    private void pollCycle() throws IOException, InterruptedException {
+        long sysTimeMs = _clock.currentTimeMillis();
+        int decoded = _engine.pollCycle();
+        _chargeCurvePrepared = false;
+        _cycles++;
+        if (_engine.isStalled()) {
+            throw new IOException("adapter stopped answering");
+        }
+        if (decoded >= VehicleState.DATA_MESSAGES_PER_CYCLE) {
+            _samples++;
+            _listener.onSample(sysTimeMs);
+        } else if (_parkedMonitor.onCycle(decoded, _state.getAuxBat())) {
+            _listener.onStatus(String.format(Locale.ENGLISH, "Car parked (%.1fV), watching the 12V battery...", _state.getAuxBat()));
+        } else {
+            _listener.onStatus("Incomplete data (" + decoded + "), retrying...");
+        }
+
+        if (_reconnectSupervisor.takeReinitializeRequired()) {
+            _listener.onStatus("Link degraded, re-initializing adapter...");
+            _engine.setFlowControl(_flowControl);
+            _engine.initialize();
+        }
+
+        if (_parkedMonitor.isParked()) {
+            finishChargeCurve();
+        } else if (isDcCharging()) {
+            if (_chargeCurve == null) {
+                _chargeCurve = new ChargeCurve(_vin, sysTimeMs, _state.getLat(), _state.getLon());
+            }
+            _chargeCurve.add(sysTimeMs, _state);
+            _listener.onStatus(String.format(Locale.ENGLISH, "DC curve: %d samples, SoC %.1f%% -> %.1f%%",
+                    _chargeCurve.getSamples(), _chargeCurve.getStartSoc(), _chargeCurve.getEndSoc()));
+        } else {
+            finishChargeCurve();
+            watchFlowControl();
+            if (_calibrationDue && _samples > 0) {
+                calibrateFlowControl();
+            }
+        }
+    }
+
+    // Only ATRV while parked, the DC-DC converter lifting the 12V battery means the car was switched on
+    private void pollParked() throws IOException, InterruptedException {
+        if (_parkedMonitor.getDelayUntilNextPollMs() > 0) {
+            return;
+        }
+        long bytesBefore = _metrics.getBytesIn() + _metrics.getBytesOut();
+        double auxBat = _engine.pollAuxBattery();
+        if (Double.isNaN(auxBat)) {
+            // The adapter hangs off the 12V battery, it answers ATRV even with the car asleep
+            throw new IOException("adapter stopped answering while parked");
+        }
+        if (_parkedMonitor.onAuxBattery(auxBat, _metrics.getBytesIn() + _metrics.getBytesOut() - bytesBefore)) {
+            _listener.onStatus(String.format(Locale.ENGLISH, "Car woke up (%.1fV), resuming...", auxBat));
+        }
+    }
+
+    private boolean isDcCharging() {
+        return _state.getChargingConnection() == ChargingConnection.DC && _state.isCharging();
+    }
+
+    // One SOH / SOC round between two full cycles while DC charging
+    private void captureChargeCurve() throws IOException, InterruptedException {
+        if (!_chargeCurvePrepared) {
+            _engine.prepareChargeCurve();
+            _chargeCurvePrepared = true;
+        }
+        if (_engine.pollChargeCurve() < HondaECommands.CHARGE_CURVE_COMMANDS.size()) {
+            if (_engine.isStalled()) {
+                throw new IOException("adapter stopped answering");
+            }
+            return;
+        }
+        if (!isDcCharging()) {
+            finishChargeCurve();
+            return;
+        }
+        _chargeCurve.add(_clock.currentTimeMillis(), _state);
+    }
+
+    // Hands the curve over once the charging session is over
+    private void finishChargeCurve() {
+        ChargeCurve chargeCurve = _chargeCurve;
+        _chargeCurve = null;
+        if (chargeCurve != null && chargeCurve.getSamples() > 0) {
+            _listener.onChargeCurve(chargeCurve);
+        }
+    }
+
+    // Counts the cycles that lost long replies to BUFFER FULL or cut short frames, a saved
+    // profile that keeps doing that no longer suits the adapter (or the adapter was swapped)
+    private void watchFlowControl() {
+        long errors = _metrics.getCanErrors() + _metrics.getPartialFrames();
+        _flowControlErrorCycles = errors > _longReplyErrors ? _flowControlErrorCycles + 1 : 0;
+        _longReplyErrors = errors;
+        if (_flowControlErrorCycles >= FLOW_CONTROL_ERROR_CYCLES
+                && _clock.currentTimeMillis() - _lastCalibrationMs >= FLOW_CONTROL_RECALIBRATE_MS) {
+            _calibrationDue = true;
+        }
+    }
+
+    // The long replies behave very differently on a vLinker and an OBDLink. Runs between two
+    // cycles; only a stable result is kept, otherwise the next connect tries again.
+    private void calibrateFlowControl() throws IOException, InterruptedException {
+        _calibrationDue = false;
+        _lastCalibrationMs = _clock.currentTimeMillis();
+        _flowControlErrorCycles = 0;
+        // STN chips handle flow control themselves with their STCFCPA pairs
+        if (_engine.getAdapterFamily() != AdapterFamily.ELM327) {
+            return;
+        }
+        _listener.onStatus("Tuning flow control for this adapter...");
+        FlowControlCalibrator calibrator = new FlowControlCalibrator(_transport, _clock);
+        FlowControlProfile best = calibrator.calibrate(FlowControlProfile.CANDIDATES, FlowControlCalibrator.DEFAULT_ROUNDS,
+                _engine.getFlowControl());
+        if (best != null) {
+            _flowControl = best;
+            _engine.setFlowControl(best);
+            _listener.onFlowControl(best);
+        }
+        // Its own replies aren't the saved profile's errors
+        _longReplyErrors = _metrics.getCanErrors() + _metrics.getPartialFrames();
+        _listener.onStatus("Flow control " + (best != null ? best : "unchanged, nothing was stable") + "\n" + calibrator.report());
+    }
+
+    private void connectionLost(String reason) {
+        _connected = false;
+        _reconnects++;
+        // The first cycle after the reconnect doesn't wait for the interval
+        _nextCycleMs = 0;
+        finishChargeCurve();
+        try {
+            _transport.close();
+        } catch (IOException e) {
+            // Reopened on the next attempt anyway
+        }
+        _listener.onConnectionLost(reason);
+    }
+
+    // Any thread: a request in flight ends within its timeout and no further step polls
+    public void stop() {
+        _engine.stop();
+    }
+
+    // After stop(), waits for a step still running; hands over a charge curve in progress
+    public synchronized void close() {
+        finishChargeCurve();
+        try {
+            _transport.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public String getVin() { return _vin; }
+    public boolean isConnected() { return _connected; }
+    public String getAdapterName() { return _engine.getAdapterFamily().getName() + " " + _engine.getAdapterDescription(); }
+    public long getCycles() { return _cycles; }
+    public long getSamples() { return _samples; }
+    public long getReconnects() { return _reconnects; }
+    public VehicleState getState() { return _state; }
+    public TelemetryMetrics getMetrics() { return _metrics; }
+    public ParkedMonitor getParkedMonitor() { return _parkedMonitor; }
+}
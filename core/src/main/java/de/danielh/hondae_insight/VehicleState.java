@@ -0,0 +1,237 @@
+package de.danielh.hondae_insight;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Decoded car data plus the 5 km range estimate, fed one assembled reply at a time
+public class VehicleState {
+
+    // CAN Command IDs
+    public static final String VIN_ID = "1862F190";
+    public static final String AMBIENT_ID = "39627028";
+    public static final String SOH_ID = "F6622021";
+    public static final String SOC_ID = "F6622029";
+    public static final String BATTEMP_ID = "F662202A";
+    public static final String ODO_ID = "39627022";
+
+    // One CSV row / MQTT message needs all of them in the same cycle
+    public static final int DATA_MESSAGES_PER_CYCLE = 5;
+
+    public static final int RANGE_ESTIMATE_WINDOW_5KM = 5;
+
+    public static final String LOG_FILE_HEADER = "sysTimeMs,ODO,SoC (dash),SoC (min),SoC (max),SoH,Battemp,Ambienttemp,kW,Amp,Volt,AuxBat,Connection,Charging,Speed,Lat,Lon";
+    // Only with setCellDecoding(true), see BatteryCells
+    public static final String CELL_LOG_COLUMNS = ",CellMin (mV),CellMax (mV),CellMean (mV),CellStd (mV),CellTempMin,CellTempMax,Cells,CellTemps";
+
+    private double _soc, _socMin, _socMax, _socDelta, _soh, _speed, _power, _batTemp, _amp, _volt, _auxBat;
+    private byte _ambientTemp;
+    private final double[] _socHistory = new double[RANGE_ESTIMATE_WINDOW_5KM + 1];
+    private final double[] _socMinHistory = new double[RANGE_ESTIMATE_WINDOW_5KM + 1];
+    private final double[] _socMaxHistory = new double[RANGE_ESTIMATE_WINDOW_5KM + 1];
+    private final double[] _batTempHistory = new double[RANGE_ESTIMATE_WINDOW_5KM + 1];
+    private int _socHistoryPosition = 0;
+    private int _lastOdo = Integer.MIN_VALUE, _odo;
+
+    private long _socRange, _socMinRange, _socMaxRange;
+    private double _batTempChange;
+    private boolean _rangeUpdated = false;
+
+    private String _lat = "0.0", _lon = "0.0";
+    private double _elevation;
+
+    private ChargingConnection _chargingConnection = ChargingConnection.NC;
+    private boolean _isCharging;
+
+    private final BatteryCells _cells = new BatteryCells();
+    private boolean _cellDecoding;
+    // Reused for the CSV line and the MQTT payload, both are built on the poll thread
+    private final StringBuilder _text = new StringBuilder(1024);
+    private final Matcher _auxBatteryReply = Pattern.compile("\\d+\\.\\dV").matcher("");
+
+    public static boolean isDataMessageID(String messageID) {
+        return messageID.equals(AMBIENT_ID) || messageID.equals(SOH_ID) || messageID.equals(SOC_ID)
+                || messageID.equals(BATTEMP_ID) || messageID.equals(ODO_ID);
+    }
+
+    // Returns true if the reply was one of the data DIDs and long enough to decode
+    public boolean decode(String messageID, String message) {
+        if (messageID.equals(AMBIENT_ID)) {
+            if (message.length() >= 44) {
+                _ambientTemp = (byte) HexCodec.parseInt(message, 42, 2);
+                return true;
+            }
+        } else if (messageID.equals(SOH_ID)) {
+            if (message.length() >= 285) {
+                _soh = HexCodec.parseInt(message, 198, 4) / 100.0;
+                _amp = Math.round(((short) HexCodec.parseInt(message, 280, 4) / 34.0) * 100.0) / 100.0;
+                _volt = HexCodec.parseInt(message, 76, 4) / 10.0;
+                _power = Math.round(_amp * _volt / 1000.0 * 10.0) / 10.0;
+                return true;
+            }
+        } else if (messageID.equals(SOC_ID)) {
+            if (message.length() >= 280) {
+                _socMin = HexCodec.parseInt(message, 142, 4) / 100.0;
+                _socMax = HexCodec.parseInt(message, 138, 4) / 100.0;
+                _socDelta = Math.round((_socMax - _socMin) * 100.0) / 100.0;
+                _soc = HexCodec.parseInt(message, 156, 4) / 100.0;
+
+                if (message.length() > 161) {
+                    _isCharging = message.charAt(161) == '1';
+                }
+
+                switch (message.charAt(277)) {
+                    case '2': _chargingConnection = ChargingConnection.AC; break;
+                    case '3': _chargingConnection = ChargingConnection.DC; break;
+                    default: _chargingConnection = ChargingConnection.NC;
+                }
+                if (_cellDecoding) {
+                    _cells.decodeTemperatures(message);
+                }
+                return true;
+            }
+        } else if (messageID.equals(BATTEMP_ID)) {
+            if (message.length() >= 415) {
+                _batTemp = (short) HexCodec.parseInt(message, 410, 4) / 10.0;
+                if (_cellDecoding) {
+                    _cells.decodeCellVoltages(message);
+                }
+                return true;
+            }
+        } else if (messageID.equals(ODO_ID)) {
+            if (message.length() >= 26) {
+                _odo = HexCodec.parseInt(message, 18, 8);
+                if (_lastOdo < _odo) {
+                    _lastOdo = _odo;
+                    updateRangeEstimate();
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void updateRangeEstimate() {
+        _socHistory[_socHistoryPosition] = _soc;
+        _socMinHistory[_socHistoryPosition] = _socMin;
+        _socMaxHistory[_socHistoryPosition] = _socMax;
+        _batTempHistory[_socHistoryPosition] = _batTemp;
+        _socHistoryPosition = (_socHistoryPosition + 1) % (RANGE_ESTIMATE_WINDOW_5KM + 1);
+
+        double socDelta = _socHistory[(_socHistoryPosition + 1) % (RANGE_ESTIMATE_WINDOW_5KM + 1)] - _soc;
+        double socMinDelta = _socMinHistory[(_socHistoryPosition + 1) % (RANGE_ESTIMATE_WINDOW_5KM + 1)] - _socMin;
+        double socMaxDelta = _socMaxHistory[(_socHistoryPosition + 1) % (RANGE_ESTIMATE_WINDOW_5KM + 1)] - _socMax;
+        double batTempDelta = _batTemp - _batTempHistory[(_socHistoryPosition + 1) % (RANGE_ESTIMATE_WINDOW_5KM + 1)];
+        _socRange = Math.round((_soc / socDelta) * RANGE_ESTIMATE_WINDOW_5KM);
+        _socMinRange = Math.round((_socMin / socMinDelta) * RANGE_ESTIMATE_WINDOW_5KM);
+        _socMaxRange = Math.round((_socMax / socMaxDelta) * RANGE_ESTIMATE_WINDOW_5KM);
+        _batTempChange = batTempDelta / RANGE_ESTIMATE_WINDOW_5KM;
+        _rangeUpdated = true;
+    }
+
+    // ATRV reply, e.g. "12.4V"
+    public boolean decodeAuxBattery(String message) {
+        if (_auxBatteryReply.reset(message).matches()) {
+            _auxBat = Double.parseDouble(message.substring(0, message.length() - 1));
+            return true;
+        }
+        return false;
+    }
+
+    public static String parseVIN(String message) {
+        return HexCodec.decodeAscii(message, 10, 17);
+    }
+
+    public void setLocation(double speed, double elevation, String lat, String lon) {
+        _speed = speed;
+        _elevation = elevation;
+        _lat = lat;
+        _lon = lon;
+    }
+
+    // True once after each new odometer kilometer
+    public boolean takeRangeUpdated() {
+        boolean updated = _rangeUpdated;
+        _rangeUpdated = false;
+        return updated;
+    }
+
+    public boolean isRangeValid() {
+        return _socRange >= 0 || _socMinRange >= 0 || _socMaxRange >= 0;
+    }
+
+    // Per-cell data is unverified, it stays out of the log, MQTT and the store until opted in.
+    // The log header depends on it, so only change it together with opening a new log.
+    public void setCellDecoding(boolean cellDecoding) {
+        _cellDecoding = cellDecoding;
+        if (!cellDecoding) {
+            _cells.clear();
+        }
+    }
+
+    public String getLogFileHeader() {
+        return _cellDecoding ? LOG_FILE_HEADER + CELL_LOG_COLUMNS : LOG_FILE_HEADER;
+    }
+
+    public String toCsvLine(long sysTimeMs) {
+        StringBuilder line = _text;
+        line.setLength(0);
+        line.append(sysTimeMs).append(',').append(_odo).append(',').append(_soc).append(',')
+                .append(_socMin).append(',').append(_socMax).append(',').append(_soh).append(',').append(_batTemp).append(',')
+                .append(_ambientTemp).append(',').append(_power).append(',').append(_amp).append(',').append(_volt).append(',')
+                .append(_auxBat).append(',').append(_chargingConnection.getName()).append(',').append(_isCharging)
+                .append(',').append(_speed).append(',').append(_lat).append(',').append(_lon);
+        if (_cellDecoding) {
+            _cells.appendCsvColumns(line);
+        }
+        return line.toString();
+    }
+
+    public String toMqttPayload(long epoch) {
+        StringBuilder payload = _text;
+        payload.setLength(0);
+        payload.append("{\"soc\":").append(_soc)
+                .append(",\"soh\":").append(_soh)
+                .append(",\"power\":").append(_power)
+                .append(",\"amp\":").append(_amp)
+                .append(",\"volt\":").append(_volt)
+                .append(",\"batt_temp\":").append(_batTemp)
+                .append(",\"ambient_temp\":").append(_ambientTemp)
+                .append(",\"is_charging\":").append(_isCharging)
+                .append(",\"charging_mode\":\"").append(_chargingConnection.getName()).append('"')
+                .append(",\"speed\":").append(_speed)
+                .append(",\"odo\":").append(_odo)
+                .append(",\"lat\":").append(_lat)
+                .append(",\"lon\":").append(_lon)
+                .append(",\"elevation\":").append(_elevation)
+                .append(",\"timestamp\":").append(epoch);
+        if (_cellDecoding) {
+            _cells.appendJsonFields(payload);
+        }
+        return payload.append('}').toString();
+    }
+
+    public double getSoc() { return _soc; }
+    public double getSocMin() { return _socMin; }
+    public double getSocMax() { return _socMax; }
+    public double getSocDelta() { return _socDelta; }
+    public double getSoh() { return _soh; }
+    public double getSpeed() { return _speed; }
+    public double getPower() { return _power; }
+    public double getBatTemp() { return _batTemp; }
+    public double getAmp() { return _amp; }
+    public double getVolt() { return _volt; }
+    public double getAuxBat() { return _auxBat; }
+    public byte getAmbientTemp() { return _ambientTemp; }
+    public int getOdo() { return _odo; }
+    public long getSocRange() { return _socRange; }
+    public long getSocMinRange() { return _socMinRange; }
+    public long getSocMaxRange() { return _socMaxRange; }
+    public double getBatTempChange() { return _batTempChange; }
+    public ChargingConnection getChargingConnection() { return _chargingConnection; }
+    public String getLat() { return _lat; }
+    public String getLon() { return _lon; }
+    public double getElevation() { return _elevation; }
+    public BatteryCells getCells() { return _cells; }
+    public boolean isCellDecoding() { return _cellDecoding; }
+    public boolean isCharging() { return _isCharging; }
+}
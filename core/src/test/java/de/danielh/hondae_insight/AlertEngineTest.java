@@ -0,0 +1,227 @@
+package de.danielh.hondae_insight;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Rules fed hand-made samples one at a time: every rule type raised and cleared, with the
+// hysteresis, the duration, the rate window and the guard each getting in the way once
+public class AlertEngineTest {
+
+    private static final long START_MS = 1700000000000L;
+
+    private final List<AlertEngine.Event> _events = new ArrayList<>();
+    private final double[] _values = new double[Signal.values().length];
+
+    @Before
+    public void setUp() {
+        Arrays.fill(_values, Double.NaN);
+    }
+
+    private AlertEngine compile(String rules) {
+        AlertEngine engine = AlertEngine.compile(rules);
+        engine.setListener(_events::add);
+        return engine;
+    }
+
+    // The signal keeps its value in the following samples until set again
+    private int evaluate(AlertEngine engine, long seconds, Signal signal, double value) {
+        _values[signal.ordinal()] = value;
+        return engine.evaluate(new TelemetrySample(START_MS + seconds * 1000, _values));
+    }
+
+    private void assertEvent(int index, String name, boolean raised, long seconds) {
+        assertTrue(_events.toString(), _events.size() > index);
+        AlertEngine.Event event = _events.get(index);
+        assertEquals(name, event.getName());
+        assertEquals(event.toString(), raised, event.isRaised());
+        assertEquals(START_MS + seconds * 1000, event.getTimeMs());
+    }
+
+    private static void assertRejected(String rules, String messagePart) {
+        try {
+            AlertEngine.compile(rules);
+            fail("compiled " + rules);
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(messagePart));
+        }
+    }
+
+    @Test
+    public void compilesTheDefaultRules() {
+        AlertEngine engine = AlertEngine.compile(AlertEngine.DEFAULT_RULES);
+        assertEquals(6, engine.getRules());
+        assertEquals(1, engine.getRates());
+        assertEquals(0, engine.getActiveCount());
+    }
+
+    @Test
+    public void parsesCommentsSpacingAndSharedRates() {
+        AlertEngine engine = AlertEngine.compile("# temperature\n"
+                + "\n"
+                + "warm:rate(batt_temp)>0.5   # per minute\n"
+                + "  warmer : rate( batt_temp , 1m ) > 1 for 2m clear 0.5\n"
+                + "slow_warm: rate(batt_temp, 10m) > 0.1\n"
+                + "cold: ambient_temp < -5.5 clear -4 when speed > 0\n");
+        assertEquals(4, engine.getRules());
+        // The default window is one minute, the first two rules share a tracker
+        assertEquals(2, engine.getRates());
+    }
+
+    @Test
+    public void rejectsBadRulesByLine() {
+        assertRejected("aux_low: aux_bat < 11.8\nbroken aux_bat < 11.8", "alert rule 2: can't parse");
+        assertRejected("a: aux_bat <= 11.8", "can't parse");
+        assertRejected("a: aux_bat < 11.8 for 30", "can't parse");
+        assertRejected("a: aux_bat < 11.8 during 30s", "can't parse");
+        assertRejected("a: fuel < 10", "alert rule 1: unknown input fuel");
+        assertRejected("a: rate(fuel) > 1", "unknown input rate(fuel)");
+        assertRejected("a: power < 5 when plug = 1", "unknown input plug");
+        // Clearing has to be further from the alert than raising
+        assertRejected("a: batt_temp > 50 clear 52", "clear 52.0 is on the wrong side of 50.0");
+        assertRejected("\n\na: aux_bat < 11.8 clear 11", "alert rule 3: clear 11.0");
+    }
+
+    @Test
+    public void thresholdRaisesAndHysteresisClears() {
+        AlertEngine engine = compile("batt_hot: batt_temp > 50 clear 47");
+        assertEquals(0, evaluate(engine, 0, Signal.BAT_TEMP, 49));
+        assertEquals(0, evaluate(engine, 1, Signal.BAT_TEMP, 50));
+        assertEquals(1, evaluate(engine, 2, Signal.BAT_TEMP, 50.5));
+        assertEvent(0, "batt_hot", true, 2);
+        assertTrue(engine.isActive("batt_hot"));
+        assertEquals(1, engine.getActiveCount());
+
+        // Below the threshold but not the clear level: stays up, no flapping
+        assertEquals(0, evaluate(engine, 3, Signal.BAT_TEMP, 49));
+        assertEquals(0, evaluate(engine, 4, Signal.BAT_TEMP, 50.5));
+        assertEquals(0, evaluate(engine, 5, Signal.BAT_TEMP, 47.5));
+        assertEquals(1, evaluate(engine, 6, Signal.BAT_TEMP, 46.9));
+        assertEvent(1, "batt_hot", false, 6);
+        assertEquals(46.9, _events.get(1).getValue(), 0);
+        assertFalse(engine.isActive("batt_hot"));
+
+        // Back between the two: the raise threshold applies again
+        assertEquals(0, evaluate(engine, 7, Signal.BAT_TEMP, 49));
+        assertEquals(1, evaluate(engine, 8, Signal.BAT_TEMP, 51));
+        assertEquals(3, _events.size());
+        assertEquals(3, engine.getEvents());
+    }
+
+    @Test
+    public void belowRuleWaitsForItsDuration() {
+        AlertEngine engine = compile("aux_low: aux_bat < 11.8 for 30s clear 12.2");
+        evaluate(engine, 0, Signal.AUX_BAT, 11.5);
+        evaluate(engine, 29, Signal.AUX_BAT, 11.6);
+        assertTrue(_events.isEmpty());
+        // A single good reading starts the wait over
+        evaluate(engine, 30, Signal.AUX_BAT, 11.9);
+        evaluate(engine, 31, Signal.AUX_BAT, 11.5);
+        evaluate(engine, 60, Signal.AUX_BAT, 11.5);
+        assertTrue(_events.isEmpty());
+        assertEquals(1, evaluate(engine, 61, Signal.AUX_BAT, 11.4));
+        assertEvent(0, "aux_low", true, 61);
+
+        // Clearing doesn't wait
+        evaluate(engine, 62, Signal.AUX_BAT, 12.0);
+        assertEquals(1, _events.size());
+        assertEquals(1, evaluate(engine, 63, Signal.AUX_BAT, 12.3));
+        assertEvent(1, "aux_low", false, 63);
+    }
+
+    @Test
+    public void missingReadingsKeepTheState() {
+        AlertEngine engine = compile("aux_low: aux_bat < 11.8 for 30s clear 12.2");
+        evaluate(engine, 0, Signal.AUX_BAT, 11.5);
+        evaluate(engine, 10, Signal.AUX_BAT, Double.NaN);
+        assertEquals(1, evaluate(engine, 30, Signal.AUX_BAT, 11.5));
+        assertEquals(0, evaluate(engine, 40, Signal.AUX_BAT, Double.NaN));
+        assertTrue(engine.isActive("aux_low"));
+    }
+
+    @Test
+    public void rateRaisesWhenWarmingAndClearsWhenSteady() {
+        AlertEngine engine = compile("batt_temp_rising: rate(batt_temp, 2m) > 0.5 clear 0.2");
+        // 1 degree per minute, but the first window has to fill before there is a rate
+        for (int seconds = 0; seconds < 120; seconds += 10) {
+            assertEquals(0, evaluate(engine, seconds, Signal.BAT_TEMP, 30 + seconds / 60.0));
+        }
+        assertEquals(1, evaluate(engine, 120, Signal.BAT_TEMP, 32));
+        assertEvent(0, "batt_temp_rising", true, 120);
+        assertEquals(1.0, _events.get(0).getValue(), 1e-9);
+
+        // Steady from here: the rate holds until the next window closes
+        for (int seconds = 130; seconds < 240; seconds += 10) {
+            assertEquals(0, evaluate(engine, seconds, Signal.BAT_TEMP, 32.3));
+        }
+        assertTrue(engine.isActive("batt_temp_rising"));
+        // 0.15 per minute over this window, past the clear level
+        assertEquals(1, evaluate(engine, 240, Signal.BAT_TEMP, 32.3));
+        assertEvent(1, "batt_temp_rising", false, 240);
+        assertEquals(0.15, _events.get(1).getValue(), 1e-9);
+    }
+
+    @Test
+    public void rateStartsOverAfterAGap() {
+        AlertEngine engine = compile("batt_temp_rising: rate(batt_temp, 1m) > 0.5");
+        evaluate(engine, 0, Signal.BAT_TEMP, 30);
+        // Car off for an hour, the pack warmed in the sun: no rate over the gap
+        assertEquals(0, evaluate(engine, 3600, Signal.BAT_TEMP, 40));
+        assertEquals(0, evaluate(engine, 3630, Signal.BAT_TEMP, 40));
+        assertEquals(0, evaluate(engine, 3660, Signal.BAT_TEMP, 40.2));
+        assertEquals(1, evaluate(engine, 3720, Signal.BAT_TEMP, 41.2));
+        assertEvent(0, "batt_temp_rising", true, 3720);
+    }
+
+    @Test
+    public void guardGatesTheRule() {
+        AlertEngine engine = compile("dc_stalled: power < 5 for 2m clear 10 when dcfc = 1");
+        // Parked: no power either, but nothing is charging
+        evaluate(engine, 0, Signal.DCFC, 0);
+        for (int seconds = 0; seconds <= 300; seconds += 30) {
+            assertEquals(0, evaluate(engine, seconds, Signal.POWER, 0));
+        }
+        // On the DC charger, delivering
+        evaluate(engine, 330, Signal.DCFC, 1);
+        evaluate(engine, 330, Signal.POWER, 45);
+        // The charger drops to a trickle
+        evaluate(engine, 360, Signal.POWER, 3);
+        evaluate(engine, 420, Signal.POWER, 4);
+        assertTrue(_events.isEmpty());
+        assertEquals(1, evaluate(engine, 480, Signal.POWER, 4));
+        assertEvent(0, "dc_stalled", true, 480);
+        // Unplugged: the guard no longer holds, which clears it
+        evaluate(engine, 500, Signal.POWER, 0);
+        assertEquals(1, evaluate(engine, 510, Signal.DCFC, 0));
+        assertEvent(1, "dc_stalled", false, 510);
+    }
+
+    @Test
+    public void rulesOnTheSameInputFireIndependently() {
+        AlertEngine engine = compile("warm: batt_temp > 40 clear 38\nhot: batt_temp > 50 clear 47\n");
+        assertEquals(1, evaluate(engine, 0, Signal.BAT_TEMP, 45));
+        assertEquals(1, evaluate(engine, 1, Signal.BAT_TEMP, 51));
+        assertEquals(2, engine.getActiveCount());
+        assertEquals(1, evaluate(engine, 2, Signal.BAT_TEMP, 42));
+        assertEquals(1, evaluate(engine, 3, Signal.BAT_TEMP, 37));
+        assertEquals(0, engine.getActiveCount());
+        assertEquals(Arrays.asList("warm", "hot", "hot", "warm"), Arrays.asList(_events.get(0).getName(),
+                _events.get(1).getName(), _events.get(2).getName(), _events.get(3).getName()));
+    }
+
+    @Test
+    public void eventJsonCarriesTheRule() {
+        AlertEngine engine = compile("batt_hot: batt_temp > 50 clear 47  # \"hot\"");
+        evaluate(engine, 0, Signal.BAT_TEMP, 52.25);
+        assertEquals("{\"alert\":\"batt_hot\",\"state\":\"raised\",\"value\":52.250,\"utc\":" + START_MS / 1000
+                + ",\"rule\":\"batt_hot: batt_temp > 50 clear 47\"}", _events.get(0).toJson());
+    }
+}
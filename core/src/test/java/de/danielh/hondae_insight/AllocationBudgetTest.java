@@ -0,0 +1,143 @@
+package de.danielh.hondae_insight;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+// Allocation regression check for one steady-state poll cycle, split into the stages that run
+// for hours on the phone: reassembling the adapter lines, decoding into VehicleState and
+// formatting the log line / MQTT payload. Replies are captured once from the simulated adapter
+// so only our own code is measured. Needs HotSpot's per-thread counters, the tests are skipped
+// on a JVM without them.
+public class AllocationBudgetTest {
+
+    // Bytes per cycle. On JDK 17 the stages take 240, 104, 136 and 264: the formatting stages are
+    // the one String they return. The budgets leave room for JDK 8's two-byte chars and nothing
+    // more, lower them when a stage gets leaner.
+    private static final long REASSEMBLY_BUDGET = 512;
+    private static final long DECODE_BUDGET = 256;
+    private static final long CSV_BUDGET = 320;
+    private static final long MQTT_BUDGET = 640;
+    // The experimental cell columns make them 472 and 712
+    private static final long CELLS_CSV_BUDGET = 960;
+    private static final long CELLS_MQTT_BUDGET = 1440;
+
+    private static final int WARMUP_CYCLES = 20000;
+    private static final int CYCLES = 20000;
+
+    private static List<List<String>> _replies;
+
+    private static volatile long _sink;
+
+    private interface Stage {
+        void run();
+    }
+
+    private AllocationCounter _counter;
+    private final ElmResponseAssembler _assembler = new ElmResponseAssembler();
+    private final VehicleState _state = new VehicleState();
+    private final List<String> _messageIDs = new ArrayList<>();
+    private final List<String> _messages = new ArrayList<>();
+    private long _timeMs = 1700000000000L;
+
+    // All reply lines of LOOP_COMMANDS as the adapter sends them
+    @BeforeClass
+    public static void captureReplies() throws Exception {
+        SimulatedElmTransport transport = new SimulatedElmTransport("JHMZC7840LX000001", 1, 0);
+        for (String command : new String[]{"ATE0", "ATH1", "ATSP7"}) {
+            transport.send(command);
+            while (transport.readLine(0) != null) {
+                // Just the settings, the replies don't matter
+            }
+        }
+        _replies = new ArrayList<>();
+        for (String command : HondaECommands.LOOP_COMMANDS) {
+            transport.send(command);
+            List<String> lines = new ArrayList<>();
+            String line;
+            while ((line = transport.readLine(0)) != null) {
+                lines.add(line);
+            }
+            _replies.add(lines);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        _counter = AllocationCounter.create();
+        Assume.assumeNotNull(_counter);
+        for (List<String> lines : _replies) {
+            for (String line : lines) {
+                if (_assembler.accept(line)) {
+                    _messageIDs.add(_assembler.getMessageID());
+                    _messages.add(_assembler.getMessage());
+                }
+            }
+        }
+        assertTrue(_messages.size() >= VehicleState.DATA_MESSAGES_PER_CYCLE);
+    }
+
+    private void decode() {
+        for (int i = 0; i < _messages.size(); i++) {
+            if (!_state.decode(_messageIDs.get(i), _messages.get(i))) {
+                _state.decodeAuxBattery(_messages.get(i));
+            }
+            _state.takeRangeUpdated();
+        }
+    }
+
+    private void assertWithinBudget(String name, Stage stage, long budget) {
+        for (int i = 0; i < WARMUP_CYCLES; i++) {
+            stage.run();
+        }
+        long before = _counter.allocatedBytes();
+        for (int i = 0; i < CYCLES; i++) {
+            stage.run();
+        }
+        long perCycle = (_counter.allocatedBytes() - before) / CYCLES;
+        assertTrue(name + " " + perCycle + " B/cycle, budget " + budget, perCycle <= budget);
+    }
+
+    @Test
+    public void reassembly() {
+        assertWithinBudget("reassembly", () -> {
+            for (List<String> lines : _replies) {
+                for (String line : lines) {
+                    _assembler.accept(line);
+                }
+            }
+        }, REASSEMBLY_BUDGET);
+    }
+
+    @Test
+    public void decoding() {
+        assertWithinBudget("decode", this::decode, DECODE_BUDGET);
+    }
+
+    @Test
+    public void csvLine() {
+        decode();
+        assertWithinBudget("csv line", () -> _sink += _state.toCsvLine(_timeMs++).length(), CSV_BUDGET);
+    }
+
+    @Test
+    public void mqttPayload() {
+        decode();
+        assertWithinBudget("mqtt payload", () -> _sink += _state.toMqttPayload(_timeMs++ / 1000).length(), MQTT_BUDGET);
+    }
+
+    @Test
+    public void cellColumns() {
+        _state.setCellDecoding(true);
+        decode();
+        assertTrue(_state.getLogFileHeader().length() > VehicleState.LOG_FILE_HEADER.length());
+        assertWithinBudget("csv line with cells", () -> _sink += _state.toCsvLine(_timeMs++).length(), CELLS_CSV_BUDGET);
+        assertWithinBudget("mqtt payload with cells", () -> _sink += _state.toMqttPayload(_timeMs++ / 1000).length(), CELLS_MQTT_BUDGET);
+    }
+}
@@ -0,0 +1,77 @@
+package de.danielh.hondae_insight;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+// Calibration against the simulated clone adapter, whose small buffer overflows when the ECU
+// sends everything at once
+public class FlowControlCalibratorTest {
+
+    private static final long START_MS = 1700000000000L;
+    private static final String VIN = "JHMZC7FC000000001";
+    private static final int ADAPTER_BUFFER_FRAMES = 16;
+    // Block size 0x100 doesn't fit the two digits of ATFCSD, the adapter answers "?"
+    private static final FlowControlProfile INVALID = new FlowControlProfile(0x100, 0x00);
+    // The ECU pauses 1ms between frames, slow enough for any buffer
+    private static final FlowControlProfile PACED = new FlowControlProfile(0, 0x01);
+
+    private VirtualClock _clock;
+    private SimulatedElmTransport _transport;
+    private FlowControlCalibrator _calibrator;
+
+    @Before
+    public void setUp() throws Exception {
+        _clock = new VirtualClock(START_MS);
+        _transport = new SimulatedElmTransport(VIN, 1, 20, _clock);
+        _transport.setAdapterBuffer(ADAPTER_BUFFER_FRAMES);
+        _transport.open();
+        PollingEngine engine = new PollingEngine(_transport, new VehicleState(), new TelemetryMetrics(), new PollingEngine.Listener() { }, _clock);
+        engine.setFlowControl(PACED);
+        assertEquals(VIN, engine.initialize());
+        engine.stop();
+        _calibrator = new FlowControlCalibrator(_transport, _clock);
+    }
+
+    @Test
+    public void refusedProfileIsSkipped() throws Exception {
+        // The adapter stays on the stable 1ms pacing, measuring the refused profile would
+        // pass it off as stable
+        assertNull(_calibrator.calibrate(Collections.singletonList(INVALID), 1, PACED));
+        assertTrue(_calibrator.getResults().isEmpty());
+        assertNull(_calibrator.getBest());
+    }
+
+    @Test
+    public void picksAStableProfileTheAdapterAccepted() throws Exception {
+        FlowControlProfile best = _calibrator.calibrate(Arrays.asList(INVALID, FlowControlProfile.DEFAULT, PACED), 2, PACED);
+        assertNotNull(_calibrator.report(), best);
+        assertEquals(2, _calibrator.getResults().size());
+        for (FlowControlCalibrator.Result result : _calibrator.getResults()) {
+            assertFalse(result.getProfile().equals(INVALID));
+            if (result.getProfile().equals(FlowControlProfile.DEFAULT)) {
+                assertFalse(_calibrator.report(), result.isStable());
+            }
+        }
+        assertEquals(_calibrator.report(), PACED, best);
+    }
+
+    @Test
+    public void questionMarkIsARejectionNotAnIdentification() {
+        ElmResponseAssembler assembler = new ElmResponseAssembler();
+        assertTrue(assembler.accept(">?"));
+        assertTrue(assembler.isRejected());
+        assertFalse(assembler.isCanError());
+        assertTrue(assembler.accept(">ELM327 v1.5"));
+        assertFalse(assembler.isRejected());
+        assertEquals("ELM327 v1.5", assembler.getMessage());
+    }
+}
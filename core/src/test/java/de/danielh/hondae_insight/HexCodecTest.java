@@ -0,0 +1,88 @@
+package de.danielh.hondae_insight;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Decoding and the validation that replaces Integer.parseInt()'s: a garbled reply has to fail
+// loudly, never decode into a plausible number
+public class HexCodecTest {
+
+    private static final String REPLY = "1862F190004A484D5A4337";
+
+    private interface Decode {
+        void run();
+    }
+
+    private static void assertThrows(Class<? extends RuntimeException> expected, String messagePart, Decode decode) {
+        try {
+            decode.run();
+            fail("no " + expected.getSimpleName());
+        } catch (RuntimeException e) {
+            assertEquals(expected, e.getClass());
+            assertTrue(e.getMessage(), e.getMessage().contains(messagePart));
+        }
+    }
+
+    @Test
+    public void parsesFieldsInPlace() {
+        assertEquals(0x62F1, HexCodec.parseInt(REPLY, 2, 4));
+        assertEquals(0x62F1, HexCodec.parseInt(REPLY.getBytes(StandardCharsets.US_ASCII), 2, 4));
+        assertEquals(0xab, HexCodec.parseInt("xxab", 2, 2));
+        assertEquals(0x4A484D5A, HexCodec.parseInt(REPLY, 10, 8));
+        // Eight digits are the raw 32 bit pattern, where Integer.parseInt() would throw
+        assertEquals(-1, HexCodec.parseInt("FFFFFFFF", 0, 8));
+        assertEquals(0x62F, HexCodec.tryParseInt(REPLY, 2, 3));
+    }
+
+    @Test
+    public void decodesBytesAndText() {
+        assertArrayEquals(new byte[]{0x18, 0x62, (byte) 0xF1}, HexCodec.decode("1862F1"));
+        assertArrayEquals(new byte[]{0x62, (byte) 0xF1}, HexCodec.decode(REPLY.getBytes(StandardCharsets.US_ASCII), 2, 2, new byte[2], 0));
+        assertEquals("JHMZC7", HexCodec.decodeAscii(REPLY, 10, 6));
+    }
+
+    @Test
+    public void rejectsMalformedDigits() {
+        assertThrows(NumberFormatException.class, "'G' at 3", () -> HexCodec.parseInt("12FG", 0, 4));
+        assertThrows(NumberFormatException.class, "' ' at 1", () -> HexCodec.parseInt("1 23".getBytes(StandardCharsets.US_ASCII), 0, 4));
+        // The sign and prefix Integer.parseInt() would take
+        assertThrows(NumberFormatException.class, "'-'", () -> HexCodec.parseInt("-1", 0, 2));
+        assertThrows(NumberFormatException.class, "'x'", () -> HexCodec.parseInt("0x1F", 0, 4));
+        // Fullwidth digits are digits to Character.digit(), not to an ELM327
+        assertThrows(NumberFormatException.class, "at 0", () -> HexCodec.parseInt("\uFF11\uFF12", 0, 2));
+        assertThrows(NumberFormatException.class, "at 0", () -> HexCodec.parseInt(new byte[]{(byte) 0xB1, '2'}, 0, 2));
+        assertThrows(NumberFormatException.class, "'Z' at 2", () -> HexCodec.decode("18Z2", 0, 2));
+        assertThrows(NumberFormatException.class, "'?' at 4", () -> HexCodec.decodeAscii("4A48?D", 0, 3));
+        assertThrows(NumberFormatException.class, "Odd number", () -> HexCodec.decode("1862F"));
+        assertEquals(-1, HexCodec.nibble('g'));
+        assertEquals(-1, HexCodec.nibble('\u0130'));
+    }
+
+    @Test
+    public void rejectsRangesOutsideTheInput() {
+        // A reply cut short by BUFFER FULL or a lost frame
+        assertThrows(IndexOutOfBoundsException.class, "offset 20, digits 4, length 22", () -> HexCodec.parseInt(REPLY, 20, 4));
+        assertThrows(IndexOutOfBoundsException.class, "offset -1", () -> HexCodec.parseInt(REPLY, -1, 2));
+        assertThrows(IndexOutOfBoundsException.class, "digits 0", () -> HexCodec.parseInt(REPLY, 0, 0));
+        // More than an int holds
+        assertThrows(IndexOutOfBoundsException.class, "digits 9", () -> HexCodec.parseInt(REPLY, 0, 9));
+        assertThrows(IndexOutOfBoundsException.class, "length 4", () -> HexCodec.parseInt(new byte[4], 2, 4));
+        assertThrows(IndexOutOfBoundsException.class, "digits 24", () -> HexCodec.decode(REPLY, 0, 12));
+        assertThrows(IndexOutOfBoundsException.class, "length 6", () -> HexCodec.decodeAscii("4A484D", 2, 3));
+    }
+
+    @Test
+    public void tryParseIntReturnsMinusOneInstead() {
+        assertEquals(-1, HexCodec.tryParseInt("12FG", 0, 4));
+        assertEquals(-1, HexCodec.tryParseInt(REPLY, 20, 4));
+        assertEquals(-1, HexCodec.tryParseInt(REPLY, -1, 2));
+        // -1 is a valid eight digit value, so those go through parseInt()
+        assertEquals(-1, HexCodec.tryParseInt(REPLY, 0, 8));
+    }
+}
@@ -0,0 +1,145 @@
+package de.danielh.hondae_insight;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// Batching, the rate limit and the error handling against HttpStubServer on loopback. The
+// uploader's limits run on a VirtualClock, the requests themselves are real.
+public class HttpUploaderTest {
+
+    private static final long START_MS = 1700000000000L;
+    private static final int BATCH_SAMPLES = 5;
+    private static final long MAX_BATCH_AGE_MS = 5 * 60000;
+    private static final long MIN_REQUEST_INTERVAL_MS = 60000;
+
+    private VirtualClock _clock;
+    private HttpStubServer _server;
+    private HttpUploader _uploader;
+    private long _epoch = START_MS / 1000;
+
+    @Before
+    public void setUp() throws Exception {
+        _clock = new VirtualClock(START_MS);
+        _server = new HttpStubServer(0, 0);
+        _server.start();
+        _uploader = new HttpUploader("http://127.0.0.1:" + _server.getPort() + "/telemetry", _clock,
+                BATCH_SAMPLES, MAX_BATCH_AGE_MS, MIN_REQUEST_INTERVAL_MS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _server.close();
+    }
+
+    private void add(int samples) {
+        for (int i = 0; i < samples; i++) {
+            _uploader.add("{\"timestamp\":" + _epoch++ + ",\"soc\":80.12,\"soh\":98.50,\"power\":-12.3}");
+        }
+    }
+
+    private void advance(long ms) {
+        _clock.advanceTo(_clock.currentTimeMillis() + ms);
+    }
+
+    @Test
+    public void sendsFullBatchesGzipped() {
+        add(BATCH_SAMPLES - 1);
+        assertFalse(_uploader.uploadIfDue());
+        add(1);
+        assertTrue(_uploader.uploadIfDue());
+        assertEquals(0, _uploader.getPending());
+        assertEquals(1, _server.getRequests());
+        assertEquals(1, _server.getGzipRequests());
+        assertEquals(BATCH_SAMPLES, _server.getSamples());
+        assertEquals(BATCH_SAMPLES, _uploader.getSamplesSent());
+        assertTrue(_uploader.getSentBytes() + " of " + _uploader.getRawBytes(), _uploader.getSentBytes() < _uploader.getRawBytes());
+        assertEquals(_server.getBodyBytes(), _uploader.getSentBytes());
+    }
+
+    @Test
+    public void keepsToTheRequestInterval() {
+        add(BATCH_SAMPLES);
+        assertTrue(_uploader.uploadIfDue());
+        add(BATCH_SAMPLES);
+        advance(MIN_REQUEST_INTERVAL_MS - 1000);
+        assertFalse(_uploader.uploadIfDue());
+        assertEquals(1, _server.getRequests());
+        advance(1000);
+        assertTrue(_uploader.uploadIfDue());
+        assertEquals(2 * BATCH_SAMPLES, _server.getSamples());
+    }
+
+    @Test
+    public void sendsAnOldBatchBeforeItIsFull() {
+        add(1);
+        advance(MAX_BATCH_AGE_MS - 1000);
+        assertFalse(_uploader.uploadIfDue());
+        advance(1000);
+        assertTrue(_uploader.uploadIfDue());
+        assertEquals(1, _server.getSamples());
+    }
+
+    @Test
+    public void waitsForRetryAfter() {
+        _server.setFixedResponse("503 Service Unavailable", "Retry-After: 120\r\n");
+        add(BATCH_SAMPLES);
+        assertFalse(_uploader.uploadIfDue());
+        assertEquals(BATCH_SAMPLES, _uploader.getPending());
+        assertEquals(1, _uploader.getFailures());
+
+        // Past the request interval and the first exponential step, but not what the server asked for
+        _server.setFixedResponse(null, null);
+        advance(MIN_REQUEST_INTERVAL_MS);
+        assertFalse(_uploader.uploadIfDue());
+        assertEquals(1, _server.getRequests());
+        advance(120000 - MIN_REQUEST_INTERVAL_MS);
+        assertTrue(_uploader.uploadIfDue());
+        assertEquals(BATCH_SAMPLES, _server.getSamples());
+    }
+
+    @Test
+    public void keepsTheQueueOnAConfigurationError() {
+        for (String status : new String[]{"401 Unauthorized", "403 Forbidden", "404 Not Found"}) {
+            _server.setFixedResponse(status, "");
+            add(3 * BATCH_SAMPLES);
+            int pending = _uploader.getPending();
+            long requests = _server.getRequests();
+            // A wrong token or URL stops the end-of-drive flush after one request
+            _uploader.uploadAll();
+            assertEquals(status, requests + 1, _server.getRequests());
+            assertEquals(status, pending, _uploader.getPending());
+            assertEquals(status, Integer.parseInt(status.substring(0, 3)), _uploader.getLastStatus());
+            // Nor is the rest of the queue sent to it right away
+            assertFalse(_uploader.uploadIfDue());
+            assertEquals(status, requests + 1, _server.getRequests());
+            assertEquals(0, _uploader.getRejected());
+            advance(MIN_REQUEST_INTERVAL_MS);
+        }
+
+        // Fixed in the settings: everything that piled up goes out
+        _server.setFixedResponse(null, null);
+        int pending = _uploader.getPending();
+        _uploader.uploadAll();
+        assertEquals(0, _uploader.getPending());
+        assertEquals(pending, _server.getSamples());
+    }
+
+    @Test
+    public void dropsBatchesTheEndpointCantTake() {
+        for (String status : new String[]{"400 Bad Request", "413 Payload Too Large", "422 Unprocessable Entity"}) {
+            _server.setFixedResponse(status, "");
+            add(2 * BATCH_SAMPLES);
+            long rejected = _uploader.getRejected();
+            // Dropped batch by batch, the rest of the queue isn't held up
+            _uploader.uploadAll();
+            assertEquals(status, 0, _uploader.getPending());
+            assertEquals(status, rejected + 2 * BATCH_SAMPLES, _uploader.getRejected());
+        }
+        assertEquals(0, _server.getSamples());
+    }
+}
@@ -0,0 +1,203 @@
+package de.danielh.hondae_insight;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// The server on an ephemeral port with real sockets, its request and stall limits shortened
+// so the test doesn't wait half a minute for them
+public class LiveServerTest {
+
+    private static final long REQUEST_TIMEOUT_MS = 300;
+    private static final long STALLED_CLIENT_MS = 500;
+    private static final int READ_TIMEOUT_MS = 5000;
+    // Big enough that a client which doesn't read fills its socket buffers within a few frames
+    private static final int LARGE_FRAME_BYTES = 256 * 1024;
+
+    private LiveServer _server;
+
+    @Before
+    public void setUp() throws Exception {
+        _server = new LiveServer(0, REQUEST_TIMEOUT_MS, STALLED_CLIENT_MS);
+        _server.start();
+    }
+
+    @After
+    public void tearDown() {
+        _server.close();
+    }
+
+    private Socket connect(int receiveBufferBytes) throws IOException {
+        Socket socket = new Socket();
+        if (receiveBufferBytes > 0) {
+            socket.setReceiveBufferSize(receiveBufferBytes);
+        }
+        socket.setSoTimeout(READ_TIMEOUT_MS);
+        socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), _server.getPort()));
+        return socket;
+    }
+
+    private Socket get(String path, int receiveBufferBytes) throws IOException {
+        Socket socket = connect(receiveBufferBytes);
+        OutputStream out = socket.getOutputStream();
+        out.write(("GET " + path + " HTTP/1.1\r\nHost: phone\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        return socket;
+    }
+
+    // Everything until the server closes the connection
+    private static String readAll(Socket socket) throws IOException {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        InputStream in = socket.getInputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            response.write(buffer, 0, read);
+        }
+        return response.toString("UTF-8");
+    }
+
+    // Reads until the text shows up, or fails with what came instead
+    private static String readUntil(InputStream in, String text) throws IOException {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        while (!response.toString("UTF-8").contains(text)) {
+            int read = in.read(buffer);
+            assertTrue("closed before " + text + ": " + response, read >= 0);
+            response.write(buffer, 0, read);
+        }
+        return response.toString("UTF-8");
+    }
+
+    private static String largePayload(int sequence) {
+        char[] filler = new char[LARGE_FRAME_BYTES];
+        Arrays.fill(filler, 'x');
+        return "{\"seq\":" + sequence + ",\"pad\":\"" + new String(filler) + "\"}";
+    }
+
+    private static void waitFor(String what, Condition condition) throws InterruptedException {
+        long deadlineMs = System.currentTimeMillis() + READ_TIMEOUT_MS;
+        while (!condition.holds()) {
+            assertTrue(what, System.currentTimeMillis() < deadlineMs);
+            Thread.sleep(10);
+        }
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    @Test
+    public void answersOnlyUnderTheToken() throws Exception {
+        String path = _server.getPath();
+        assertTrue(path, path.matches("/[0-9a-f]{32}/"));
+        // The token with its last digit changed
+        String otherToken = path.substring(0, 32) + (path.charAt(32) == '0' ? '1' : '0') + "/";
+        for (String wrong : new String[]{"/", "/events", path.substring(0, 20), otherToken, otherToken + "events", path + "other"}) {
+            try (Socket socket = get(wrong, 0)) {
+                assertTrue(wrong, readAll(socket).startsWith("HTTP/1.1 404"));
+            }
+        }
+        try (Socket socket = get(path, 0)) {
+            String page = readAll(socket);
+            assertTrue(page, page.startsWith("HTTP/1.1 200"));
+            assertTrue(page, page.contains("EventSource('events')"));
+            assertTrue(page, page.contains("waiting for data…"));
+            // No page elsewhere may read the stream
+            assertFalse(page, page.contains("Access-Control-Allow-Origin"));
+        }
+    }
+
+    @Test
+    public void streamsEverySampleToAReadingClient() throws Exception {
+        try (Socket socket = get(_server.getPath() + "events", 0)) {
+            InputStream in = socket.getInputStream();
+            String header = readUntil(in, "\r\n\r\n");
+            assertTrue(header, header.startsWith("HTTP/1.1 200") && header.contains("text/event-stream"));
+            assertFalse(header, header.contains("Access-Control-Allow-Origin"));
+            for (int i = 1; i <= 3; i++) {
+                _server.publish("{\"soc\":" + (80 - i) + "}");
+                readUntil(in, "data: {\"soc\":" + (80 - i) + "}\n\n");
+            }
+            assertEquals(3, _server.getFramesSent());
+            assertEquals(0, _server.getFramesCoalesced());
+        }
+    }
+
+    @Test
+    public void closesIncompleteRequests() throws Exception {
+        try (Socket socket = connect(0)) {
+            // Never finishes the headers
+            socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: ph".getBytes(StandardCharsets.US_ASCII));
+            long startMs = System.currentTimeMillis();
+            assertEquals(-1, socket.getInputStream().read());
+            long closedAfterMs = System.currentTimeMillis() - startMs;
+            assertTrue(closedAfterMs + "ms", closedAfterMs < 3 * REQUEST_TIMEOUT_MS + 500);
+        }
+        waitFor("slot freed", () -> _server.getClients() == 0);
+    }
+
+    @Test
+    public void slowClientSkipsToTheNewestFrame() throws Exception {
+        try (Socket socket = get(_server.getPath() + "events", 16 * 1024)) {
+            InputStream in = socket.getInputStream();
+            readUntil(in, "\r\n\r\n");
+            // Published faster than the client reads, within the stall limit
+            int frames = 20;
+            for (int i = 1; i <= frames; i++) {
+                _server.publish(largePayload(i));
+            }
+            // Reads slowly from here; once caught up it ends with the newest frame, not a queue
+            readUntil(in, "{\"seq\":" + frames + ",");
+            assertTrue("coalesced " + _server.getFramesCoalesced(), _server.getFramesCoalesced() > 0);
+            assertTrue("sent " + _server.getFramesSent(), _server.getFramesSent() < frames);
+            assertEquals(0, _server.getClientsDropped());
+        }
+    }
+
+    @Test
+    public void dropsAStalledClient() throws Exception {
+        try (Socket stalled = get(_server.getPath() + "events", 16 * 1024);
+             Socket reading = get(_server.getPath() + "events", 0)) {
+            readUntil(stalled.getInputStream(), "\r\n\r\n");
+            InputStream in = reading.getInputStream();
+            readUntil(in, "\r\n\r\n");
+            // Socket buffers hide a client that stopped reading for a while, keep publishing until
+            // they are full and the client has sat on one frame past the limit
+            long deadlineMs = System.currentTimeMillis() + READ_TIMEOUT_MS;
+            for (int sequence = 1; _server.getClientsDropped() == 0; sequence++) {
+                assertTrue("stalled client never dropped", System.currentTimeMillis() < deadlineMs);
+                _server.publish(largePayload(sequence));
+                readUntil(in, "{\"seq\":" + sequence + ",");
+                Thread.sleep(STALLED_CLIENT_MS / 5);
+            }
+            assertEquals(1, _server.getClientsDropped());
+            assertEquals(1, _server.getClients());
+
+            // What was buffered before the drop, then the end of the stream
+            try {
+                readAll(stalled);
+            } catch (SocketException e) {
+                // Reset, just as good
+            } catch (SocketTimeoutException e) {
+                throw new AssertionError("stalled client still connected");
+            }
+        }
+    }
+}
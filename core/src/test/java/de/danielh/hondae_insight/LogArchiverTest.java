@@ -0,0 +1,200 @@
+package de.danielh.hondae_insight;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+// A media directory in a temp folder, the age of each log set through its modification time
+public class LogArchiverTest {
+
+    private static final long START_MS = 1700000000000L;
+    private static final long HOUR_MS = 3600000;
+    private static final long DAY_MS = 24 * HOUR_MS;
+
+    @Rule
+    public TemporaryFolder _folder = new TemporaryFolder();
+
+    private File _dir;
+    private long _nowMs;
+
+    @Before
+    public void setUp() throws IOException {
+        _dir = _folder.newFolder("media");
+        _nowMs = System.currentTimeMillis();
+    }
+
+    // rows samples one second apart from startMs, last modified ageMs ago
+    private File writeLog(String name, long startMs, int rows, long ageMs) throws IOException {
+        StringBuilder log = new StringBuilder(VehicleState.LOG_FILE_HEADER).append('\n');
+        for (int i = 0; i < rows; i++) {
+            log.append(startMs + i * 1000L).append(",1234,81.25,80.9,81.6,98.50,21,14,-12.5,-30.1,375.2,12.4,1,0,36,52.52,13.40\n");
+        }
+        return write(name, log.toString(), ageMs);
+    }
+
+    private File write(String name, String content, long ageMs) throws IOException {
+        File file = new File(_dir, name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.ISO_8859_1));
+        assertTrue(file.setLastModified(_nowMs - ageMs));
+        return file;
+    }
+
+    private static byte[] readAll(File file) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try (InputStream in = LogArchiver.open(file)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                content.write(buffer, 0, read);
+            }
+        }
+        return content.toByteArray();
+    }
+
+    private File archiveOf(File log) {
+        return new File(log.getPath() + LogArchiver.COMPRESSED_SUFFIX);
+    }
+
+    @Test
+    public void compressesFinishedLogsWithTheirTimeRange() throws IOException {
+        File log = writeLog("2023-11-14_22-13-20.csv", START_MS, 600, HOUR_MS);
+        byte[] original = Files.readAllBytes(log.toPath());
+        long lastModified = log.lastModified();
+
+        new LogArchiver(_dir, LogArchiver.DEFAULT_QUOTA_BYTES, LogArchiver.DEFAULT_MAX_AGE_MS).run(null);
+        File archive = archiveOf(log);
+        assertFalse(log.exists());
+        assertTrue(archive.exists());
+        assertTrue(archive.length() < original.length);
+        assertArrayEquals(original, readAll(archive));
+        // Keeps the age of the log for the retention
+        assertEquals(lastModified, archive.lastModified());
+        assertArrayEquals(new long[]{START_MS, START_MS + 599000}, LogArchiver.storedTimeRange(archive));
+        assertArrayEquals(new long[]{START_MS, START_MS + 599000}, new TripLogReader(archive).timeRange());
+    }
+
+    @Test
+    public void leavesTheActiveAndRecentLogsAlone() throws IOException {
+        File active = writeLog("active.csv", START_MS, 100, HOUR_MS);
+        File recent = writeLog("recent.csv", START_MS, 100, LogArchiver.MIN_IDLE_MS / 2);
+        File finished = writeLog("finished.csv", START_MS, 100, LogArchiver.MIN_IDLE_MS * 2);
+        // Even with the quota long exceeded
+        LogArchiver archiver = new LogArchiver(_dir, 0, LogArchiver.DEFAULT_MAX_AGE_MS);
+        archiver.run(active);
+        assertTrue(active.exists());
+        assertFalse(archiveOf(active).exists());
+        assertTrue(recent.exists());
+        assertFalse(archiveOf(recent).exists());
+        // Compressed first, then over the quota like everything else that's idle
+        assertFalse(finished.exists());
+        assertFalse(archiveOf(finished).exists());
+        assertEquals(1, archiver.getCompressed());
+        assertEquals(1, archiver.getDeleted());
+    }
+
+    @Test
+    public void removesLeftoversAndEmptyLogs() throws IOException {
+        File halfCompressed = write("crashed.csv.gz.tmp", "\u001f\u008b", HOUR_MS);
+        File halfWritten = write("crashed.csv.tmp", "sysTimeMs,", HOUR_MS);
+        File unrelated = write("notes.txt.tmp", "keep", HOUR_MS);
+        File headerOnly = write("empty.csv", VehicleState.LOG_FILE_HEADER + "\n", HOUR_MS);
+        File chargeCurve = write("2023-11-14" + ChargeCurve.FILE_SUFFIX, "soc,kw\n", HOUR_MS);
+
+        LogArchiver archiver = new LogArchiver(_dir, LogArchiver.DEFAULT_QUOTA_BYTES, LogArchiver.DEFAULT_MAX_AGE_MS);
+        archiver.run(null);
+        assertFalse(halfCompressed.exists());
+        assertFalse(halfWritten.exists());
+        assertTrue(unrelated.exists());
+        // The session never got a sample, nothing to keep
+        assertFalse(headerOnly.exists());
+        assertFalse(archiveOf(headerOnly).exists());
+        assertEquals(0, archiver.getCompressed());
+        // Not a trip log
+        assertTrue(chargeCurve.exists());
+    }
+
+    @Test
+    public void quotaDeletesTheOldestFirst() throws IOException {
+        File[] logs = new File[5];
+        for (int i = 0; i < logs.length; i++) {
+            // Newest first in name order, the age is what counts
+            logs[i] = writeLog("trip-" + i + ".csv", START_MS + i * DAY_MS, 2000, (logs.length - i) * DAY_MS);
+        }
+        new LogArchiver(_dir, LogArchiver.DEFAULT_QUOTA_BYTES, LogArchiver.DEFAULT_MAX_AGE_MS).run(null);
+        long archiveBytes = 0;
+        for (File log : logs) {
+            assertTrue(archiveOf(log).exists());
+            archiveBytes = Math.max(archiveBytes, archiveOf(log).length());
+        }
+
+        // Room for three, the oldest two go
+        LogArchiver archiver = new LogArchiver(_dir, 3 * archiveBytes, LogArchiver.DEFAULT_MAX_AGE_MS);
+        archiver.run(null);
+        assertEquals(2, archiver.getDeleted());
+        assertFalse(archiveOf(logs[0]).exists());
+        assertFalse(archiveOf(logs[1]).exists());
+        for (int i = 2; i < logs.length; i++) {
+            assertTrue(archiveOf(logs[i]).exists());
+        }
+        assertTrue(archiver.report(), archiver.report().contains("2 deleted"));
+    }
+
+    @Test
+    public void retentionDeletesOldLogsWithinTheQuota() throws IOException {
+        File old = writeLog("old.csv", START_MS, 10, 40 * DAY_MS);
+        File older = write("older.csv.gz", "", 60 * DAY_MS);
+        File kept = writeLog("kept.csv", START_MS, 10, 20 * DAY_MS);
+        LogArchiver archiver = new LogArchiver(_dir, LogArchiver.DEFAULT_QUOTA_BYTES, 30 * DAY_MS);
+        archiver.run(null);
+        assertFalse(archiveOf(old).exists());
+        assertFalse(older.exists());
+        assertTrue(archiveOf(kept).exists());
+        assertEquals(2, archiver.getDeleted());
+    }
+
+    @Test
+    public void storedTimeRangeNeedsTheComment() throws IOException {
+        // Gzipped by something else: no comment, the range has to come from the content
+        File foreign = new File(_dir, "foreign.csv.gz");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(foreign.toPath()))) {
+            out.write((VehicleState.LOG_FILE_HEADER + "\n" + START_MS + ",1\n" + (START_MS + 5000) + ",1\n").getBytes(StandardCharsets.ISO_8859_1));
+        }
+        assertNull(LogArchiver.storedTimeRange(foreign));
+        assertArrayEquals(new long[]{START_MS, START_MS + 5000}, new TripLogReader(foreign).timeRange());
+
+        File plain = writeLog("plain.csv", START_MS, 3, HOUR_MS);
+        assertNull(LogArchiver.storedTimeRange(plain));
+        assertNull(LogArchiver.storedTimeRange(write("short.csv.gz", "\u001f", HOUR_MS)));
+    }
+
+    @Test
+    public void timeRangeSkipsATruncatedLastLine() throws IOException {
+        // Killed while the block was being written, what's left of the last line is garbage
+        File log = writeLog("killed.csv", START_MS, 100, HOUR_MS);
+        Files.write(log.toPath(), "17000001\u0000\u0000\u0000\u0000,12".getBytes(StandardCharsets.ISO_8859_1),
+                StandardOpenOption.APPEND);
+        assertTrue(log.setLastModified(_nowMs - HOUR_MS));
+        assertArrayEquals(new long[]{START_MS, START_MS + 99000}, new TripLogReader(log).timeRange());
+
+        // The archive keeps the same range, and the truncated line
+        new LogArchiver(_dir, LogArchiver.DEFAULT_QUOTA_BYTES, LogArchiver.DEFAULT_MAX_AGE_MS).run(null);
+        assertArrayEquals(new long[]{START_MS, START_MS + 99000}, LogArchiver.storedTimeRange(archiveOf(log)));
+    }
+}
@@ -0,0 +1,179 @@
+package de.danielh.hondae_insight;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// Backoff and link health on a VirtualClock, so minutes of retries and a day of reconnects run
+// in milliseconds
+public class ReconnectSupervisorTest {
+
+    private static final long START_MS = 1700000000000L;
+
+    private VirtualClock _clock;
+    private int _reconnects;
+    private ReconnectSupervisor _supervisor;
+
+    @Before
+    public void setUp() {
+        _clock = new VirtualClock(START_MS);
+        _reconnects = 0;
+        _supervisor = new ReconnectSupervisor(_clock, new Random(1), _clock, () -> _reconnects++);
+        _supervisor.start();
+    }
+
+    @Test
+    public void backoffStaysBetweenHalfAndFullStep() {
+        for (int attempt = 0; attempt < 40; attempt++) {
+            long ceiling = Math.min(ReconnectSupervisor.MAX_DELAY_MS, ReconnectSupervisor.BASE_DELAY_MS << Math.min(attempt, 16));
+            for (int i = 0; i < 50; i++) {
+                long delayMs = _supervisor.nextDelayMs(attempt);
+                assertTrue("attempt " + attempt + ": " + delayMs + "ms", delayMs >= ceiling / 2 && delayMs <= ceiling);
+            }
+        }
+    }
+
+    @Test
+    public void backoffDoublesUpToTheMaximum() {
+        long previousMs = 0;
+        for (int attempt = 0; attempt < 10; attempt++) {
+            long delayMs = _supervisor.onConnectionLost();
+            assertEquals(1, _clock.getPendingTasks());
+            _clock.advanceTo(_clock.currentTimeMillis() + delayMs);
+            assertEquals(attempt + 1, _reconnects);
+            // Equal jitter can't fall below half the step, which is at least the last full step
+            assertTrue(delayMs >= previousMs / 2);
+            previousMs = delayMs;
+        }
+        assertTrue(previousMs >= ReconnectSupervisor.MAX_DELAY_MS / 2 && previousMs <= ReconnectSupervisor.MAX_DELAY_MS);
+    }
+
+    @Test
+    public void jitterSpreadsTheRetries() {
+        // Cars that dropped together mustn't hammer the adapter or broker in lockstep
+        Set<Long> delays = new HashSet<>();
+        long minMs = Long.MAX_VALUE, maxMs = 0;
+        for (int i = 0; i < 200; i++) {
+            long delayMs = _supervisor.nextDelayMs(5);
+            delays.add(delayMs);
+            minMs = Math.min(minMs, delayMs);
+            maxMs = Math.max(maxMs, delayMs);
+        }
+        assertTrue(delays.size() > 150);
+        assertTrue("min " + minMs, minMs < 16000 + 1600);
+        assertTrue("max " + maxMs, maxMs > 32000 - 1600);
+
+        ReconnectSupervisor other = new ReconnectSupervisor(_clock, new Random(2), _clock, () -> { });
+        assertFalse(other.nextDelayMs(5) == _supervisor.nextDelayMs(5) && other.nextDelayMs(5) == _supervisor.nextDelayMs(5));
+    }
+
+    @Test
+    public void neverGivesUp() {
+        // A car parked for a day keeps being retried at the maximum step
+        long untilMs = START_MS + 24 * 3600 * 1000L;
+        while (_clock.currentTimeMillis() < untilMs) {
+            long delayMs = _supervisor.onConnectionLost();
+            assertTrue(delayMs > 0 && delayMs <= ReconnectSupervisor.MAX_DELAY_MS);
+            _clock.advanceTo(_clock.currentTimeMillis() + delayMs);
+        }
+        assertTrue(_supervisor.isActive());
+        assertEquals(_supervisor.getAttempt(), _reconnects);
+        assertTrue(_reconnects > 24 * 3600 / 60);
+    }
+
+    @Test
+    public void stableLinkStartsOverAtTheBaseDelay() {
+        for (int i = 0; i < 8; i++) {
+            _clock.advanceTo(_clock.currentTimeMillis() + _supervisor.onConnectionLost());
+        }
+        _supervisor.onConnected();
+        _clock.advanceTo(_clock.currentTimeMillis() + ReconnectSupervisor.STABLE_LINK_MS);
+        assertTrue(_supervisor.onConnectionLost() <= ReconnectSupervisor.BASE_DELAY_MS);
+    }
+
+    @Test
+    public void stoppedSupervisorSchedulesNothing() {
+        _supervisor.onConnectionLost();
+        _supervisor.stop();
+        assertEquals(0, _clock.getPendingTasks());
+        assertEquals(-1, _supervisor.onConnectionLost());
+        _clock.advanceTo(_clock.currentTimeMillis() + ReconnectSupervisor.MAX_DELAY_MS);
+        assertEquals(0, _reconnects);
+    }
+
+    @Test
+    public void recreatedSupervisorKeepsRetrying() {
+        for (int i = 0; i < 3; i++) {
+            _clock.advanceTo(_clock.currentTimeMillis() + _supervisor.onConnectionLost());
+        }
+        // Rotated mid-retry: the old Activity saves its state and stops its supervisor
+        boolean reconnecting = _supervisor.isActive();
+        int attempt = _supervisor.getAttempt();
+        _supervisor.stop();
+
+        ReconnectSupervisor recreated = new ReconnectSupervisor(_clock, new Random(3), _clock, () -> _reconnects++);
+        // Never started, it would give up on the first RETRY
+        assertEquals(-1, recreated.onConnectionLost());
+        assertTrue(reconnecting);
+        recreated.resume(attempt);
+        long delayMs = recreated.onConnectionLost();
+        assertTrue(delayMs + "ms", delayMs >= (ReconnectSupervisor.BASE_DELAY_MS << 3) / 2);
+        assertEquals(1, _clock.getPendingTasks());
+        _clock.advanceTo(_clock.currentTimeMillis() + delayMs);
+        assertEquals(4, _reconnects);
+        assertEquals(4, recreated.getAttempt());
+    }
+
+    @Test
+    public void degradedLinkAsksForReinitialization() throws Exception {
+        SimulatedElmTransport transport = new SimulatedElmTransport("JHMZC7RECO0000001", 1, 20, _clock);
+        PollingEngine engine = new PollingEngine(transport, new VehicleState(), new TelemetryMetrics(), new PollingEngine.Listener() {
+            @Override
+            public void onResponse() {
+                _supervisor.onResponse();
+            }
+
+            @Override
+            public void onTimeout() {
+                _supervisor.onTimeout();
+            }
+
+            @Override
+            public void onElmError(String message) {
+                _supervisor.onCanError();
+            }
+        }, _clock);
+        assertEquals("JHMZC7RECO0000001", engine.initialize());
+        _supervisor.onConnected();
+        for (int i = 0; i < 10; i++) {
+            assertEquals(VehicleState.DATA_MESSAGES_PER_CYCLE, engine.pollCycle());
+            assertFalse(_supervisor.takeReinitializeRequired());
+        }
+        assertEquals(ReconnectSupervisor.HEALTH_MAX, _supervisor.getHealth());
+
+        // Half the requests lost: the score sinks below HEALTH_DEGRADED within a cycle or two
+        transport.setDropRate(0.5);
+        int cycles = 0;
+        while (!_supervisor.takeReinitializeRequired()) {
+            assertTrue("never degraded, health " + _supervisor.getHealth(), ++cycles <= 3);
+            engine.pollCycle();
+        }
+        assertFalse(_supervisor.takeReinitializeRequired());
+        assertEquals(ReconnectSupervisor.HEALTH_MAX, _supervisor.getHealth());
+
+        transport.setDropRate(0);
+        assertEquals("JHMZC7RECO0000001", engine.initialize());
+        assertEquals(VehicleState.DATA_MESSAGES_PER_CYCLE, engine.pollCycle());
+        assertFalse(_supervisor.takeReinitializeRequired());
+        // The link itself never went down, no reconnect was scheduled
+        assertEquals(0, _clock.getPendingTasks());
+        engine.stop();
+    }
+}
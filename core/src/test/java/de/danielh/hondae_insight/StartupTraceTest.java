@@ -0,0 +1,101 @@
+package de.danielh.hondae_insight;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// Time to first telemetry against the simulated car, on a VirtualClock so the adapter's latency
+// counts exactly and the test doesn't wait for it. At 20ms per reply the init sequence and one
+// cycle take 1.7s and a fast resume 0.7s; past the budgets more requests or pauses crept in.
+public class StartupTraceTest {
+
+    private static final long START_MS = 1700000000000L;
+    private static final long LATENCY_MS = 20;
+    private static final String VIN = "JHMZC7TTFT0000001";
+    private static final long COLD_START_BUDGET_MS = 2000;
+    private static final long FAST_RESUME_BUDGET_MS = 900;
+
+    private VirtualClock _clock;
+    private SimulatedElmTransport _transport;
+    private StartupTrace _trace;
+
+    @Before
+    public void setUp() {
+        _clock = new VirtualClock(START_MS);
+        _transport = new SimulatedElmTransport(VIN, 1, LATENCY_MS, _clock);
+        _trace = new StartupTrace(_clock);
+        _trace.markProcessStart(0);
+        _trace.mark(StartupTrace.Span.ACTIVITY_READY);
+        _transport.open();
+        _trace.mark(StartupTrace.Span.RFCOMM_OPEN);
+    }
+
+    private PollingEngine newEngine() {
+        return new PollingEngine(_transport, new VehicleState(), new TelemetryMetrics(), new PollingEngine.Listener() { }, _clock);
+    }
+
+    // Up to the first sample, the app and the gateway poll right after connect() returns
+    private boolean connect(PollingEngine engine, String cachedVin) throws Exception {
+        assertEquals(VIN, engine.connect(cachedVin));
+        _trace.mark(StartupTrace.Span.INIT_DONE);
+        assertEquals(VehicleState.DATA_MESSAGES_PER_CYCLE, engine.pollCycle());
+        _trace.mark(StartupTrace.Span.FIRST_SAMPLE);
+        return engine.isFastResume();
+    }
+
+    @Test
+    public void coldStartWithinBudget() throws Exception {
+        PollingEngine engine = newEngine();
+        assertFalse(connect(engine, null));
+        long ttftMs = _trace.getTimeToFirstTelemetryMs();
+        assertTrue(_trace.report(), ttftMs > 0 && ttftMs <= COLD_START_BUDGET_MS);
+        assertTrue(_trace.sinceStartMs(StartupTrace.Span.INIT_DONE) < ttftMs);
+        engine.stop();
+    }
+
+    @Test
+    public void fastResumeSkipsTheInitSequence() throws Exception {
+        PollingEngine first = newEngine();
+        assertFalse(connect(first, null));
+        first.stop();
+        long coldMs = _trace.getTimeToFirstTelemetryMs();
+
+        // Bluetooth dropped, the adapter stayed powered: same settings, new process
+        _trace = new StartupTrace(_clock);
+        _trace.markProcessStart(0);
+        PollingEngine engine = newEngine();
+        assertTrue(connect(engine, VIN));
+        long resumeMs = _trace.getTimeToFirstTelemetryMs();
+        assertTrue(_trace.report(), resumeMs <= FAST_RESUME_BUDGET_MS);
+        assertTrue(resumeMs + " vs " + coldMs, resumeMs < coldMs);
+        engine.stop();
+    }
+
+    @Test
+    public void powerCycledAdapterGetsTheFullInit() throws Exception {
+        PollingEngine first = newEngine();
+        assertFalse(connect(first, null));
+        first.stop();
+
+        // The adapter restarted with ATSP7 still in its NVM, the probe mustn't take that for ready
+        _transport.powerCycle();
+        _trace = new StartupTrace(_clock);
+        _trace.markProcessStart(0);
+        PollingEngine engine = newEngine();
+        assertFalse(connect(engine, VIN));
+        assertTrue(_trace.report(), _trace.getTimeToFirstTelemetryMs() <= COLD_START_BUDGET_MS);
+        engine.stop();
+    }
+
+    @Test
+    public void reportListsTheMarkedSpans() {
+        _trace.markAt(StartupTrace.Span.FIRST_SAMPLE, START_MS + 1500);
+        assertEquals("TTFT 1500ms (activity 0 / rfcomm 0 / sample 1500)", _trace.report());
+        // Later marks of the same span don't move it
+        _trace.markAt(StartupTrace.Span.FIRST_SAMPLE, START_MS + 3000);
+        assertEquals(1500, _trace.getTimeToFirstTelemetryMs());
+    }
+}
@@ -0,0 +1,110 @@
+package de.danielh.hondae_insight;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Recording a poll cycle's metrics has to stay invisible next to the cycle itself: no garbage on
+// a phone that polls for hours, and a few microseconds against the hundreds of milliseconds the
+// adapter takes. The recording is replayed the way PollingEngine does it for LOOP_COMMANDS.
+public class TelemetryMetricsTest {
+
+    // A desktop JVM records a cycle in about 1us; a phone core is some 10x slower and still far
+    // below a millisecond
+    private static final long RECORDING_BUDGET_NANOS = 20000;
+    private static final int CYCLES = 20000;
+    private static final int ROUNDS = 10;
+
+    private TelemetryMetrics _metrics;
+    private final List<String> _ecus = new ArrayList<>();
+    private final List<String> _requests = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        _metrics = new TelemetryMetrics();
+        String ecu = "";
+        for (String command : HondaECommands.LOOP_COMMANDS) {
+            if (command.startsWith("ATSH")) {
+                ecu = command.substring(4, 8);
+            }
+            _ecus.add(ecu);
+            _requests.add(HondaECommands.requestData(command));
+        }
+    }
+
+    private void recordCycle(long nanos) {
+        for (int i = 0; i < _requests.size(); i++) {
+            String request = _requests.get(i);
+            _metrics.recordBytesOut(request.length() + 2);
+            _metrics.recordBytesIn(20);
+            _metrics.recordBytesIn(20);
+            _metrics.recordCommand(_ecus.get(i), request, nanos + i * 1000000L);
+            _metrics.recordDecode(nanos / 100);
+        }
+        _metrics.recordCycle(nanos * _requests.size());
+    }
+
+    @Test
+    public void recordingAllocatesNothing() {
+        AllocationCounter counter = AllocationCounter.create();
+        Assume.assumeNotNull(counter);
+        // The first cycle creates the per-command histograms, after that it's atomics only
+        for (int i = 0; i < CYCLES; i++) {
+            recordCycle(i);
+        }
+        long before = counter.allocatedBytes();
+        for (int i = 0; i < CYCLES; i++) {
+            recordCycle(i);
+        }
+        long perCycle = (counter.allocatedBytes() - before) / CYCLES;
+        assertEquals("bytes per cycle", 0, perCycle);
+    }
+
+    @Test
+    public void recordingWithinBudget() {
+        long bestNanos = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long startNanos = System.nanoTime();
+            for (int i = 0; i < CYCLES; i++) {
+                recordCycle(i);
+            }
+            bestNanos = Math.min(bestNanos, (System.nanoTime() - startNanos) / CYCLES);
+        }
+        assertTrue(bestNanos + "ns per cycle", bestNanos <= RECORDING_BUDGET_NANOS);
+    }
+
+    @Test
+    public void countsEveryRecording() {
+        recordCycle(30000000L);
+        assertEquals(30, _metrics.getCycle().meanMs() / _requests.size(), 0.001);
+        assertEquals(1, _metrics.getCycle().getCount());
+        assertEquals(_requests.size() * 40, _metrics.getBytesIn());
+        _metrics.recordTimeout();
+        _metrics.recordCanError();
+        _metrics.recordPartialFrame();
+        assertEquals(1, _metrics.getTimeouts());
+        assertEquals(1, _metrics.getCanErrors());
+        assertEquals(1, _metrics.getPartialFrames());
+        assertTrue(_metrics.toJson(1700000000L).contains("\"timeouts\":1"));
+    }
+
+    @Test
+    public void histogramBucketsByUpperBound() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        for (int i = 0; i < 98; i++) {
+            histogram.recordNanos(3000000L);
+        }
+        histogram.recordNanos(40000000L);
+        histogram.recordNanos(5000000000L);
+        assertEquals(5, histogram.percentileMs(0.5));
+        assertEquals(5, histogram.percentileMs(0.98));
+        assertEquals(50, histogram.percentileMs(0.99));
+        assertEquals(-1, histogram.percentileMs(1.0));
+    }
+}
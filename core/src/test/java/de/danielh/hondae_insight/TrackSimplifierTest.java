@@ -0,0 +1,159 @@
+package de.danielh.hondae_insight;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Whatever the simplifier drops has to stay within the tolerance of the line between the two
+// kept points around it, on generated drives with GPS noise, turns and U-turns
+public class TrackSimplifierTest {
+
+    private static final long START_MS = 1700000000000L;
+    private static final double METERS_PER_DEGREE_LAT = 111195;
+    // Rounding in the projection, far below anything a map shows
+    private static final double SLACK_M = 0.01;
+
+    private static final class Fix {
+        final long timeMs;
+        final double lat, lon, soc, kw;
+
+        Fix(long timeMs, double lat, double lon, double soc, double kw) {
+            this.timeMs = timeMs;
+            this.lat = lat;
+            this.lon = lon;
+            this.soc = soc;
+            this.kw = kw;
+        }
+    }
+
+    // One fix per second; the heading drifts, turns by 90 degrees now and then and sometimes all the way
+    private static List<Fix> drive(long seed, int fixes, double noiseM) {
+        Random random = new Random(seed);
+        List<Fix> track = new ArrayList<>();
+        double lat = 52.52, lon = 13.40, heading = 0, speedKmh = 50;
+        for (int i = 0; i < fixes; i++) {
+            if (i % 300 == 0) {
+                speedKmh = new double[]{0, 30, 50, 100, 130}[random.nextInt(5)];
+            }
+            heading += random.nextGaussian() * 0.05;
+            if (random.nextInt(60) == 0) {
+                heading += random.nextBoolean() ? Math.PI / 2 : Math.PI;
+            }
+            double meters = speedKmh / 3.6;
+            lat += meters * Math.cos(heading) / METERS_PER_DEGREE_LAT;
+            lon += meters * Math.sin(heading) / (METERS_PER_DEGREE_LAT * Math.cos(Math.toRadians(lat)));
+            track.add(new Fix(START_MS + i * 1000L, lat + random.nextGaussian() * noiseM / METERS_PER_DEGREE_LAT,
+                    lon + random.nextGaussian() * noiseM / METERS_PER_DEGREE_LAT, 80 - i * 0.001, 10 + random.nextGaussian()));
+        }
+        return track;
+    }
+
+    private static List<Fix> simplify(List<Fix> track, double toleranceM) {
+        List<Fix> kept = new ArrayList<>();
+        TrackSimplifier simplifier = new TrackSimplifier(toleranceM, (timeMs, lat, lon, soc, kw) -> kept.add(new Fix(timeMs, lat, lon, soc, kw)));
+        for (Fix fix : track) {
+            simplifier.add(fix.timeMs, fix.lat, fix.lon, fix.soc, fix.kw);
+        }
+        simplifier.finish();
+        assertEquals(track.size(), simplifier.getPointsIn());
+        assertEquals(kept.size(), simplifier.getPointsOut());
+        return kept;
+    }
+
+    // Meters from the fix to the segment from a to b, projected around a
+    private static double distanceToSegment(Fix fix, Fix a, Fix b) {
+        double metersPerDegreeLon = METERS_PER_DEGREE_LAT * Math.cos(Math.toRadians(a.lat));
+        double bx = (b.lon - a.lon) * metersPerDegreeLon, by = (b.lat - a.lat) * METERS_PER_DEGREE_LAT;
+        double px = (fix.lon - a.lon) * metersPerDegreeLon, py = (fix.lat - a.lat) * METERS_PER_DEGREE_LAT;
+        double lengthSquared = bx * bx + by * by;
+        double t = lengthSquared == 0 ? 0 : Math.max(0, Math.min(1, (px * bx + py * by) / lengthSquared));
+        return Math.hypot(px - t * bx, py - t * by);
+    }
+
+    // Kept points are original fixes in their order, the dropped ones in between lie within the tolerance
+    private static void assertWithinTolerance(List<Fix> track, List<Fix> kept, double toleranceM) {
+        assertEquals(track.get(0).timeMs, kept.get(0).timeMs);
+        assertEquals(track.get(track.size() - 1).timeMs, kept.get(kept.size() - 1).timeMs);
+        int next = 0;
+        for (int i = 1; i < kept.size(); i++) {
+            Fix a = kept.get(i - 1), b = kept.get(i);
+            assertTrue(a.timeMs < b.timeMs);
+            while (track.get(next).timeMs < a.timeMs) {
+                next++;
+            }
+            assertEquals(a.lat, track.get(next).lat, 0);
+            for (; next < track.size() && track.get(next).timeMs <= b.timeMs; next++) {
+                Fix fix = track.get(next);
+                double distance = distanceToSegment(fix, a, b);
+                assertTrue(String.format("fix at %ds is %.2fm off", (fix.timeMs - START_MS) / 1000, distance),
+                        distance <= toleranceM + SLACK_M);
+            }
+            next--;
+        }
+    }
+
+    @Test
+    public void droppedFixesStayWithinTheTolerance() {
+        for (double toleranceM : new double[]{1, 2, 5, 20}) {
+            for (long seed = 1; seed <= 5; seed++) {
+                List<Fix> track = drive(seed, 3000, 2);
+                List<Fix> kept = simplify(track, toleranceM);
+                assertWithinTolerance(track, kept, toleranceM);
+                assertTrue(toleranceM + "m: " + kept.size(), kept.size() < track.size());
+            }
+        }
+    }
+
+    @Test
+    public void largerToleranceKeepsFewerPoints() {
+        List<Fix> track = drive(7, 3000, 2);
+        int previous = track.size() + 1;
+        for (double toleranceM : new double[]{0.5, 2, 5, 20, 100}) {
+            int kept = simplify(track, toleranceM).size();
+            assertTrue(toleranceM + "m: " + kept + " after " + previous, kept < previous);
+            previous = kept;
+        }
+    }
+
+    @Test
+    public void straightLineKeepsItsEnds() {
+        List<Fix> track = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            track.add(new Fix(START_MS + i * 1000L, 52.52 + i * 0.0001, 13.40 + i * 0.0001, 80, 10));
+        }
+        List<Fix> kept = simplify(track, 5);
+        assertEquals(2, kept.size());
+        assertWithinTolerance(track, kept, 5);
+    }
+
+    @Test
+    public void keepsTheTurningPointOfAUTurn() {
+        // 1km north and back on the same line, the cone alone would take the way back as one straight
+        List<Fix> track = new ArrayList<>();
+        for (int i = 0; i <= 200; i++) {
+            int meters = i <= 100 ? i * 10 : (200 - i) * 10;
+            track.add(new Fix(START_MS + i * 1000L, 52.52 + meters / METERS_PER_DEGREE_LAT, 13.40, 80, 10));
+        }
+        List<Fix> kept = simplify(track, 5);
+        assertWithinTolerance(track, kept, 5);
+        assertEquals(3, kept.size());
+        assertEquals(START_MS + 100000, kept.get(1).timeMs);
+    }
+
+    @Test
+    public void zeroToleranceKeepsEveryFix() {
+        List<Fix> track = drive(11, 500, 2);
+        List<Fix> kept = simplify(track, 0);
+        assertEquals(track.size(), kept.size());
+        for (int i = 0; i < track.size(); i++) {
+            assertEquals(track.get(i).timeMs, kept.get(i).timeMs);
+            assertEquals(track.get(i).soc, kept.get(i).soc, 0);
+            assertEquals(track.get(i).kw, kept.get(i).kw, 0);
+        }
+    }
+}
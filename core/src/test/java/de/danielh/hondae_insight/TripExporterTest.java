@@ -0,0 +1,398 @@
+package de.danielh.hondae_insight;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+// Both formats parsed back: GPX by the JDK's XML parser, GeoJSON by a strict little JSON parser
+// below, with the SoC and kW of every point where the log had them
+public class TripExporterTest {
+
+    private static final long START_MS = 1700000000000L;
+    private static final String GPX_NAMESPACE = "http://www.topografix.com/GPX/1/1";
+    private static final String TELEMETRY_NAMESPACE = "urn:hondae-insight:telemetry";
+    private static final double METERS_PER_DEGREE_LAT = 111195;
+
+    @Rule
+    public TemporaryFolder _folder = new TemporaryFolder();
+
+    private static final class Row {
+        final long timeMs;
+        final double lat, lon, soc, kw;
+
+        Row(long timeMs, double lat, double lon, double soc, double kw) {
+            this.timeMs = timeMs;
+            this.lat = lat;
+            this.lon = lon;
+            this.soc = soc;
+            this.kw = kw;
+        }
+    }
+
+    // A zigzag drive, 10m per second; no fix for the first rows, no SoC in one and a line cut short at the end
+    private File writeLog(String name, List<Row> fixes) throws IOException {
+        File log = _folder.newFile(name);
+        try (PrintWriter writer = new PrintWriter(log, "ISO-8859-1")) {
+            writer.println(VehicleState.LOG_FILE_HEADER);
+            for (int i = 0; i < 3; i++) {
+                writer.println(line(START_MS - (3 - i) * 1000L, 0, 0, 81.5, 0.0));
+            }
+            for (int i = 0; i < 60; i++) {
+                double lat = 52.52 + i * 10 / METERS_PER_DEGREE_LAT;
+                double lon = 13.40 + (i / 10 % 2 == 0 ? i % 10 : 10 - i % 10) * 5 / (METERS_PER_DEGREE_LAT * Math.cos(Math.toRadians(52.52)));
+                Row row = new Row(START_MS + i * 1000L, lat, lon, i == 30 ? Double.NaN : 81.25 - i * 0.01, -12.5 + i);
+                fixes.add(row);
+                writer.println(line(row.timeMs, row.lat, row.lon, row.soc, row.kw));
+            }
+            writer.print(START_MS + 60000 + ",1234,81");
+        }
+        return log;
+    }
+
+    // The columns of VehicleState.LOG_FILE_HEADER
+    private static String line(long timeMs, double lat, double lon, double soc, double kw) {
+        return String.format(Locale.ENGLISH, "%d,1234,%s,80.9,81.6,98.50,21,14,%s,-30.1,375.2,12.4,1,0,36,%s,%s", timeMs,
+                Double.isNaN(soc) ? "" : String.valueOf(soc), String.valueOf(kw), String.valueOf(lat), String.valueOf(lon));
+    }
+
+    private static String export(TripExporter exporter, File log) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exporter.export(log, out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static Document parseXml(String xml) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        DocumentBuilder builder = factory.newDocumentBuilder();
+        // Fails on anything not well-formed instead of printing it
+        builder.setErrorHandler(null);
+        return builder.parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String text(Element parent, String namespace, String name) {
+        NodeList nodes = parent.getElementsByTagNameNS(namespace, name);
+        return nodes.getLength() == 0 ? null : nodes.item(0).getTextContent();
+    }
+
+    @Test
+    public void gpxIsWellFormedWithSocAndKw() throws Exception {
+        List<Row> fixes = new ArrayList<>();
+        File log = writeLog("trip & <drive>.csv", fixes);
+        TripExporter exporter = new TripExporter(TripExporter.Format.GPX, 0);
+        Document gpx = parseXml(export(exporter, log));
+
+        Element root = gpx.getDocumentElement();
+        assertEquals(GPX_NAMESPACE, root.getNamespaceURI());
+        assertEquals("gpx", root.getLocalName());
+        assertEquals("1.1", root.getAttribute("version"));
+        assertEquals("trip & <drive>.csv", text(root, GPX_NAMESPACE, "name"));
+        assertEquals(64, exporter.getRows());
+        assertEquals(fixes.size(), exporter.getFixes());
+
+        NodeList points = root.getElementsByTagNameNS(GPX_NAMESPACE, "trkpt");
+        assertEquals(fixes.size(), points.getLength());
+        assertEquals(fixes.size(), exporter.getPoints());
+        for (int i = 0; i < points.getLength(); i++) {
+            Element point = (Element) points.item(i);
+            Row row = fixes.get(i);
+            assertEquals(row.lat, Double.parseDouble(point.getAttribute("lat")), 1e-6);
+            assertEquals(row.lon, Double.parseDouble(point.getAttribute("lon")), 1e-6);
+            assertEquals(row.timeMs, Instant.parse(text(point, GPX_NAMESPACE, "time")).toEpochMilli());
+            String soc = text(point, TELEMETRY_NAMESPACE, "soc");
+            if (Double.isNaN(row.soc)) {
+                assertNull(soc);
+            } else {
+                assertEquals(row.soc, Double.parseDouble(soc), 0.005);
+            }
+            assertEquals(row.kw, Double.parseDouble(text(point, TELEMETRY_NAMESPACE, "kw")), 0.05);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void geoJsonIsWellFormedWithSocAndKw() throws Exception {
+        List<Row> fixes = new ArrayList<>();
+        File log = writeLog("trip \"drive\".csv", fixes);
+        TripExporter exporter = new TripExporter(TripExporter.Format.GEOJSON, 0);
+        Map<String, Object> collection = (Map<String, Object>) new JsonParser(export(exporter, log)).parse();
+
+        assertEquals("FeatureCollection", collection.get("type"));
+        assertEquals("trip \"drive\".csv", collection.get("name"));
+        List<Object> features = (List<Object>) collection.get("features");
+        // One segment between every two points, carrying the values at its end
+        assertEquals(fixes.size() - 1, features.size());
+        for (int i = 0; i < features.size(); i++) {
+            Map<String, Object> feature = (Map<String, Object>) features.get(i);
+            assertEquals("Feature", feature.get("type"));
+            Map<String, Object> geometry = (Map<String, Object>) feature.get("geometry");
+            assertEquals("LineString", geometry.get("type"));
+            List<Object> coordinates = (List<Object>) geometry.get("coordinates");
+            assertEquals(2, coordinates.size());
+            assertPosition(fixes.get(i), (List<Object>) coordinates.get(0));
+            assertPosition(fixes.get(i + 1), (List<Object>) coordinates.get(1));
+
+            Row end = fixes.get(i + 1);
+            Map<String, Object> properties = (Map<String, Object>) feature.get("properties");
+            assertEquals(end.timeMs, Instant.parse((String) properties.get("time")).toEpochMilli());
+            assertTrue(properties.containsKey("soc"));
+            if (Double.isNaN(end.soc)) {
+                assertNull(properties.get("soc"));
+            } else {
+                assertEquals(end.soc, (Double) properties.get("soc"), 0.005);
+            }
+            assertEquals(end.kw, (Double) properties.get("kw"), 0.05);
+        }
+    }
+
+    // GeoJSON positions are longitude first
+    private static void assertPosition(Row row, List<Object> position) {
+        assertEquals(2, position.size());
+        assertEquals(row.lon, (Double) position.get(0), 1e-6);
+        assertEquals(row.lat, (Double) position.get(1), 1e-6);
+    }
+
+    @Test
+    public void simplifiedExportStaysWellFormed() throws Exception {
+        File log = writeLog("trip.csv", new ArrayList<>());
+        TripExporter gpxExporter = new TripExporter(TripExporter.Format.GPX, TripExporter.DEFAULT_TOLERANCE_M);
+        File gpx = gpxExporter.exportNextTo(log);
+        assertEquals("trip.gpx", gpx.getName());
+        NodeList points = parseXml(new String(Files.readAllBytes(gpx.toPath()), StandardCharsets.UTF_8)).getElementsByTagNameNS(GPX_NAMESPACE, "trkpt");
+        assertEquals(gpxExporter.getPoints(), points.getLength());
+        // Straight legs of ten fixes: the five corners and both ends
+        assertEquals(gpxExporter.report(), 7, gpxExporter.getPoints());
+
+        TripExporter geoJsonExporter = new TripExporter(TripExporter.Format.GEOJSON, TripExporter.DEFAULT_TOLERANCE_M);
+        File geoJson = geoJsonExporter.exportNextTo(log);
+        assertEquals("trip.geojson", geoJson.getName());
+        Object collection = new JsonParser(new String(Files.readAllBytes(geoJson.toPath()), StandardCharsets.UTF_8)).parse();
+        assertEquals(gpxExporter.getPoints() - 1, ((List<?>) ((Map<?, ?>) collection).get("features")).size());
+    }
+
+    @Test
+    public void emptyLogGivesAnEmptyTrack() throws Exception {
+        File log = _folder.newFile("empty.csv");
+        Files.write(log.toPath(), (VehicleState.LOG_FILE_HEADER + "\n").getBytes(StandardCharsets.ISO_8859_1));
+        Document gpx = parseXml(export(new TripExporter(TripExporter.Format.GPX, 5), log));
+        assertEquals(0, gpx.getElementsByTagNameNS(GPX_NAMESPACE, "trkpt").getLength());
+        Object collection = new JsonParser(export(new TripExporter(TripExporter.Format.GEOJSON, 5), log)).parse();
+        assertTrue(((List<?>) ((Map<?, ?>) collection).get("features")).isEmpty());
+    }
+
+    // RFC 8259 and nothing more lenient: numbers as Double, objects keep their order
+    private static final class JsonParser {
+        private final String _text;
+        private int _position;
+
+        JsonParser(String text) {
+            _text = text;
+        }
+
+        Object parse() {
+            Object value = value();
+            skipWhitespace();
+            if (_position != _text.length()) {
+                throw error("trailing content");
+            }
+            return value;
+        }
+
+        private Object value() {
+            skipWhitespace();
+            if (_position >= _text.length()) {
+                throw error("unexpected end");
+            }
+            char c = _text.charAt(_position);
+            switch (c) {
+                case '{': return object();
+                case '[': return array();
+                case '"': return string();
+                case 't': return literal("true", Boolean.TRUE);
+                case 'f': return literal("false", Boolean.FALSE);
+                case 'n': return literal("null", null);
+                default: return number();
+            }
+        }
+
+        private Map<String, Object> object() {
+            Map<String, Object> object = new LinkedHashMap<>();
+            _position++;
+            skipWhitespace();
+            if (peek() == '}') {
+                _position++;
+                return object;
+            }
+            while (true) {
+                skipWhitespace();
+                if (peek() != '"') {
+                    throw error("expected a key");
+                }
+                String key = string();
+                if (object.containsKey(key)) {
+                    throw error("duplicate key " + key);
+                }
+                skipWhitespace();
+                expect(':');
+                object.put(key, value());
+                skipWhitespace();
+                if (peek() == ',') {
+                    _position++;
+                } else {
+                    expect('}');
+                    return object;
+                }
+            }
+        }
+
+        private List<Object> array() {
+            List<Object> array = new ArrayList<>();
+            _position++;
+            skipWhitespace();
+            if (peek() == ']') {
+                _position++;
+                return array;
+            }
+            while (true) {
+                array.add(value());
+                skipWhitespace();
+                if (peek() == ',') {
+                    _position++;
+                } else {
+                    expect(']');
+                    return array;
+                }
+            }
+        }
+
+        private String string() {
+            StringBuilder string = new StringBuilder();
+            _position++;
+            while (true) {
+                char c = next();
+                if (c == '"') {
+                    return string.toString();
+                }
+                if (c < 0x20) {
+                    throw error("control character in string");
+                }
+                if (c != '\\') {
+                    string.append(c);
+                    continue;
+                }
+                char escape = next();
+                switch (escape) {
+                    case '"': case '\\': case '/': string.append(escape); break;
+                    case 'b': string.append('\b'); break;
+                    case 'f': string.append('\f'); break;
+                    case 'n': string.append('\n'); break;
+                    case 'r': string.append('\r'); break;
+                    case 't': string.append('\t'); break;
+                    case 'u':
+                        if (_position + 4 > _text.length()) {
+                            throw error("short \\u escape");
+                        }
+                        string.append((char) HexCodec.parseInt(_text, _position, 4));
+                        _position += 4;
+                        break;
+                    default: throw error("bad escape \\" + escape);
+                }
+            }
+        }
+
+        private Double number() {
+            int start = _position;
+            if (peek() == '-') {
+                _position++;
+            }
+            if (peek() == '0') {
+                _position++;
+            } else if (!digits()) {
+                throw error("expected a value");
+            }
+            if (peek() == '.') {
+                _position++;
+                if (!digits()) {
+                    throw error("expected fraction digits");
+                }
+            }
+            if (peek() == 'e' || peek() == 'E') {
+                _position++;
+                if (peek() == '+' || peek() == '-') {
+                    _position++;
+                }
+                if (!digits()) {
+                    throw error("expected exponent digits");
+                }
+            }
+            return Double.valueOf(_text.substring(start, _position));
+        }
+
+        private boolean digits() {
+            int start = _position;
+            while (peek() >= '0' && peek() <= '9') {
+                _position++;
+            }
+            return _position > start;
+        }
+
+        private Object literal(String literal, Object value) {
+            if (!_text.startsWith(literal, _position)) {
+                throw error("expected " + literal);
+            }
+            _position += literal.length();
+            return value;
+        }
+
+        private void skipWhitespace() {
+            while (_position < _text.length() && " \t\n\r".indexOf(_text.charAt(_position)) >= 0) {
+                _position++;
+            }
+        }
+
+        private char peek() {
+            return _position < _text.length() ? _text.charAt(_position) : 0;
+        }
+
+        private char next() {
+            if (_position >= _text.length()) {
+                throw error("unexpected end");
+            }
+            return _text.charAt(_position++);
+        }
+
+        private void expect(char expected) {
+            if (peek() != expected) {
+                throw error("expected '" + expected + "'");
+            }
+            _position++;
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at " + _position);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package de.danielh.hondae_insight;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+// A session against a simulated adapter on a VirtualClock, stepped the way the app schedules it:
+// every step after the delay the session asked for. SoakFlatnessTest runs it the gateway's way.
+public class VehicleSessionTest {
+
+    private static final long START_MS = 1700000000000L;
+    private static final long INTERVAL_MS = 30000;
+    private static final String VIN = "JHMZC7TEST0000001";
+
+    private VirtualClock _clock;
+    private SimulatedElmTransport _transport;
+    private VehicleSession _session;
+    private final List<Long> _samples = new ArrayList<>();
+    private final List<String> _lost = new ArrayList<>();
+    private final List<ChargeCurve> _chargeCurves = new ArrayList<>();
+    private final List<FlowControlProfile> _flowControls = new ArrayList<>();
+    private int _connects, _fastResumes;
+
+    @Before
+    public void setUp() {
+        _clock = new VirtualClock(START_MS);
+        _transport = new SimulatedElmTransport(VIN, 1, 20, _clock);
+        ReconnectSupervisor supervisor = new ReconnectSupervisor(_clock, new Random(1), _clock, () -> { });
+        supervisor.start();
+        _session = new VehicleSession(_transport, new VehicleState(), new TelemetryMetrics(), supervisor, _clock, INTERVAL_MS,
+                new VehicleSession.Listener() {
+                    @Override
+                    public void onConnected(String vin, boolean fastResume) {
+                        assertEquals(VIN, vin);
+                        _connects++;
+                        _fastResumes += fastResume ? 1 : 0;
+                    }
+
+                    @Override
+                    public void onSample(long sysTimeMs) {
+                        _samples.add(sysTimeMs);
+                    }
+
+                    @Override
+                    public void onConnectionLost(String reason) {
+                        _lost.add(reason);
+                    }
+
+                    @Override
+                    public void onChargeCurve(ChargeCurve chargeCurve) {
+                        _chargeCurves.add(chargeCurve);
+                    }
+
+                    @Override
+                    public void onFlowControl(FlowControlProfile profile) {
+                        _flowControls.add(profile);
+                    }
+                });
+        // No calibration unless a test asks for it
+        _session.setFlowControl(FlowControlProfile.DEFAULT);
+    }
+
+    private void step() {
+        _clock.advanceTo(_clock.currentTimeMillis() + _session.getDelayUntilNextRunMs());
+        _session.run();
+    }
+
+    // Steps until the simulated time has passed
+    private int stepFor(long ms) {
+        long endMs = _clock.currentTimeMillis() + ms;
+        int steps = 0;
+        while (_clock.currentTimeMillis() < endMs) {
+            step();
+            steps++;
+        }
+        return steps;
+    }
+
+    @Test
+    public void pollsOneCycleEveryInterval() {
+        int steps = stepFor(10 * INTERVAL_MS);
+        assertEquals(1, _connects);
+        assertEquals(0, _fastResumes);
+        assertTrue(_session.isConnected());
+        // Nothing in between while driving, one step per cycle
+        assertEquals(steps, _samples.size());
+        assertTrue(_samples.size() >= 10);
+        // Counted from the start of the step, the first one also waited for the init
+        for (int i = 2; i < _samples.size(); i++) {
+            assertEquals(INTERVAL_MS, _samples.get(i) - _samples.get(i - 1));
+        }
+        assertTrue(_lost.isEmpty());
+    }
+
+    @Test
+    public void dcChargingFillsThePauseWithTheChargeCurve() {
+        _transport.setDcCharging(true);
+        step();
+        assertEquals(1, _samples.size());
+        // Back to back until the next cycle is due
+        assertEquals(0, _session.getDelayUntilNextRunMs());
+        int steps = stepFor(3 * INTERVAL_MS);
+        assertTrue("" + steps, steps > 100);
+        assertEquals(4, _samples.size());
+        assertTrue(_chargeCurves.isEmpty());
+
+        _transport.setDcCharging(false);
+        step();
+        step();
+        assertEquals(1, _chargeCurves.size());
+        ChargeCurve chargeCurve = _chargeCurves.get(0);
+        assertTrue(chargeCurve.getSamples() > steps / 2);
+        assertTrue(chargeCurve.getEndSoc() > chargeCurve.getStartSoc());
+        assertEquals(START_MS, chargeCurve.getStartMs(), 2000);
+        // Driving again: waits for the next cycle
+        assertTrue(_session.getDelayUntilNextRunMs() > 0);
+    }
+
+    @Test
+    public void closeHandsOverTheCurveInProgress() {
+        _transport.setDcCharging(true);
+        stepFor(INTERVAL_MS);
+        _session.stop();
+        _session.run();
+        assertTrue(_chargeCurves.isEmpty());
+        _session.close();
+        assertEquals(1, _chargeCurves.size());
+    }
+
+    @Test
+    public void silentAdapterWhileParkedLosesTheLink() {
+        step();
+        _transport.setParked(true);
+        stepFor(3 * INTERVAL_MS);
+        assertTrue(_session.getParkedMonitor().isParked());
+        // ATRV only now, on the monitor's backoff
+        long delayMs = _session.getDelayUntilNextRunMs();
+        assertTrue(delayMs + "ms", delayMs > 0 && delayMs <= ParkedMonitor.MAX_POLL_INTERVAL_MS);
+        assertTrue(_lost.isEmpty());
+
+        _transport.setStuck(true);
+        stepFor(ParkedMonitor.MAX_POLL_INTERVAL_MS);
+        assertEquals(1, _lost.size());
+        assertEquals("adapter stopped answering while parked", _lost.get(0));
+        assertFalse(_session.isConnected());
+        // Nothing to do until the supervisor reconnects
+        assertEquals(INTERVAL_MS, _session.getDelayUntilNextRunMs());
+    }
+
+    @Test
+    public void stalledCycleLosesTheLinkAndReconnectResumes() {
+        stepFor(2 * INTERVAL_MS);
+        int samples = _samples.size();
+        _transport.setStuck(true);
+        stepFor(INTERVAL_MS);
+        assertEquals(1, _lost.size());
+        assertEquals("adapter stopped answering", _lost.get(0));
+        assertEquals(samples, _samples.size());
+        assertEquals(1, _session.getReconnects());
+
+        // The adapter kept its init through the drop
+        _transport.setStuck(false);
+        _session.requestConnect();
+        step();
+        assertTrue(_session.isConnected());
+        assertEquals(2, _connects);
+        assertEquals(1, _fastResumes);
+        assertEquals(samples + 1, _samples.size());
+    }
+
+    @Test
+    public void calibratesFlowControlOnceWithoutASavedProfile() {
+        _session.setFlowControl(null);
+        stepFor(5 * INTERVAL_MS);
+        assertEquals(1, _flowControls.size());
+        assertNotNull(_flowControls.get(0));
+        // Kept for the next connect, no second sweep
+        _transport.setStuck(true);
+        stepFor(INTERVAL_MS);
+        _transport.setStuck(false);
+        _session.requestConnect();
+        stepFor(5 * INTERVAL_MS);
+        assertEquals(2, _connects);
+        assertEquals(1, _flowControls.size());
+    }
+}
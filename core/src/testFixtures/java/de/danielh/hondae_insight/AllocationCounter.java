@@ -0,0 +1,32 @@
+package de.danielh.hondae_insight;
+
+import java.lang.management.ManagementFactory;
+
+// Bytes allocated by the calling thread, from HotSpot's per-thread counters. Android and some
+// JVMs don't have them, create() returns null there.
+public class AllocationCounter {
+
+    private final com.sun.management.ThreadMXBean _threadMXBean;
+    private final long _threadId = Thread.currentThread().getId();
+
+    private AllocationCounter(com.sun.management.ThreadMXBean threadMXBean) {
+        _threadMXBean = threadMXBean;
+    }
+
+    public static AllocationCounter create() {
+        try {
+            java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+            if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)) {
+                return null;
+            }
+            AllocationCounter counter = new AllocationCounter((com.sun.management.ThreadMXBean) threadMXBean);
+            return counter.allocatedBytes() >= 0 ? counter : null;
+        } catch (LinkageError | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    public long allocatedBytes() {
+        return _threadMXBean.getThreadAllocatedBytes(_threadId);
+    }
+}
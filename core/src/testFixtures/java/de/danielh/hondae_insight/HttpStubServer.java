@@ -0,0 +1,180 @@
+package de.danielh.hondae_insight;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+// Just enough HTTP/1.1 to stand in for a telemetry endpoint: keep-alive, Content-Length bodies,
+// gzip request bodies. Counts connections, requests, bytes and uploaded samples, and answers a
+// configurable share of requests with 503 + Retry-After, or all of them with a fixed response.
+public class HttpStubServer implements Runnable {
+
+    private final ServerSocket _serverSocket;
+    private final double _failRate;
+    private final Random _random = new Random(1);
+    private final Set<Socket> _clients = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong _connections = new AtomicLong();
+    private final AtomicLong _requests = new AtomicLong();
+    private final AtomicLong _failed = new AtomicLong();
+    private final AtomicLong _bodyBytes = new AtomicLong();
+    private final AtomicLong _samples = new AtomicLong();
+    private final AtomicLong _gzipRequests = new AtomicLong();
+    // "401 Unauthorized" and its extra header lines, null for the regular answers
+    private volatile String _fixedStatus;
+    private volatile String _fixedHeaders = "";
+
+    public HttpStubServer(int port, double failRate) throws IOException {
+        _serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        _failRate = failRate;
+    }
+
+    public void start() {
+        Thread thread = new Thread(this, "http-stub-accept");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while (!_serverSocket.isClosed()) {
+            try {
+                Socket socket = _serverSocket.accept();
+                _connections.incrementAndGet();
+                Thread thread = new Thread(() -> serve(socket), "http-stub-client");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                // Closed by close()
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        _clients.add(socket);
+        try (Socket client = socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+            OutputStream out = client.getOutputStream();
+            String requestLine;
+            while ((requestLine = readLine(in)) != null) {
+                if (requestLine.isEmpty()) {
+                    continue;
+                }
+                int contentLength = 0;
+                boolean gzip = false;
+                String header;
+                while ((header = readLine(in)) != null && !header.isEmpty()) {
+                    String lower = header.toLowerCase(Locale.ENGLISH);
+                    if (lower.startsWith("content-length:")) {
+                        contentLength = Integer.parseInt(header.substring(15).trim());
+                    } else if (lower.startsWith("content-encoding:") && lower.contains("gzip")) {
+                        gzip = true;
+                    }
+                }
+                byte[] body = new byte[contentLength];
+                in.readFully(body);
+                _requests.incrementAndGet();
+                _bodyBytes.addAndGet(contentLength);
+                if (gzip) {
+                    _gzipRequests.incrementAndGet();
+                }
+
+                String fixedStatus = _fixedStatus;
+                if (fixedStatus != null) {
+                    _failed.incrementAndGet();
+                    respond(out, fixedStatus, _fixedHeaders);
+                    continue;
+                }
+                if (_random.nextDouble() < _failRate) {
+                    _failed.incrementAndGet();
+                    respond(out, "503 Service Unavailable", "Retry-After: 30\r\n");
+                    continue;
+                }
+                _samples.addAndGet(countSamples(gzip ? gunzip(body) : body));
+                respond(out, "200 OK", "");
+            }
+        } catch (SocketException e) {
+            // Client went away
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            _clients.remove(socket);
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n') {
+                int length = line.length();
+                return length > 0 && line.charAt(length - 1) == '\r' ? line.substring(0, length - 1) : line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.length() > 0 ? line.toString() : null;
+    }
+
+    private static byte[] gunzip(byte[] body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length * 8);
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    // Every sample object carries exactly one timestamp
+    private static long countSamples(byte[] json) {
+        String text = new String(json, StandardCharsets.UTF_8);
+        long count = 0;
+        for (int i = text.indexOf("\"timestamp\""); i >= 0; i = text.indexOf("\"timestamp\"", i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    private static void respond(OutputStream out, String status, String headers) throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\n" + headers + "Content-Length: 0\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        _serverSocket.close();
+        for (Socket client : _clients) {
+            client.close();
+        }
+    }
+
+    // Every following request gets this answer until it's reset with null
+    public void setFixedResponse(String status, String headers) {
+        _fixedHeaders = headers != null ? headers : "";
+        _fixedStatus = status;
+    }
+
+    public int getPort() { return _serverSocket.getLocalPort(); }
+    public long getConnections() { return _connections.get(); }
+    public long getRequests() { return _requests.get(); }
+    public long getFailed() { return _failed.get(); }
+    public long getBodyBytes() { return _bodyBytes.get(); }
+    public long getSamples() { return _samples.get(); }
+    public long getGzipRequests() { return _gzipRequests.get(); }
+}
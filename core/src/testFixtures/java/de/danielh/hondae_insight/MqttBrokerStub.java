@@ -0,0 +1,151 @@
+package de.danielh.hondae_insight;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Just enough of an MQTT 3.1.1 broker to benchmark publishing: accepts CONNECT, PUBLISH and
+// PINGREQ and discards the payloads. Every reply is held back by the configured delay to stand
+// in for the mobile network round trip.
+public class MqttBrokerStub implements Runnable {
+
+    private static final int CONNECT = 1;
+    private static final int PUBLISH = 3;
+    private static final int PINGREQ = 12;
+    private static final int DISCONNECT = 14;
+
+    private final ServerSocket _serverSocket;
+    private final long _delayMs;
+    private final ScheduledExecutorService _replies = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "broker-replies");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong _published = new AtomicLong();
+    private final Set<Socket> _clients = ConcurrentHashMap.newKeySet();
+
+    public MqttBrokerStub(int port, long delayMs) throws IOException {
+        _serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        _delayMs = delayMs;
+    }
+
+    public void start() {
+        Thread thread = new Thread(this, "broker-accept");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while (!_serverSocket.isClosed()) {
+            try {
+                Socket socket = _serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Thread thread = new Thread(() -> serve(socket), "broker-client");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                // Closed by close()
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        _clients.add(socket);
+        try (Socket client = socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+            OutputStream out = client.getOutputStream();
+            while (true) {
+                int header = in.read();
+                if (header < 0) {
+                    return;
+                }
+                byte[] body = new byte[readRemainingLength(in)];
+                in.readFully(body);
+                switch (header >> 4) {
+                    case CONNECT:
+                        reply(out, new byte[]{0x20, 0x02, 0x00, 0x00});
+                        break;
+                    case PUBLISH:
+                        _published.incrementAndGet();
+                        int qos = (header >> 1) & 0x03;
+                        if (qos > 0) {
+                            int topicLength = ((body[0] & 0xFF) << 8) | (body[1] & 0xFF);
+                            byte[] ack = {(byte) (qos == 1 ? 0x40 : 0x50), 0x02, body[2 + topicLength], body[3 + topicLength]};
+                            reply(out, ack);
+                        }
+                        break;
+                    case PINGREQ:
+                        reply(out, new byte[]{(byte) 0xD0, 0x00});
+                        break;
+                    case DISCONNECT:
+                        return;
+                    default:
+                        // SUBSCRIBE and friends are not needed by a publisher
+                }
+            }
+        } catch (SocketException e) {
+            // Client went away
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            _clients.remove(socket);
+        }
+    }
+
+    private static int readRemainingLength(DataInputStream in) throws IOException {
+        int length = 0;
+        int shift = 0;
+        int digit;
+        do {
+            digit = in.readUnsignedByte();
+            length |= (digit & 0x7F) << shift;
+            shift += 7;
+        } while ((digit & 0x80) != 0);
+        return length;
+    }
+
+    private void reply(OutputStream out, byte[] packet) {
+        if (_replies.isShutdown()) {
+            return;
+        }
+        try {
+            _replies.schedule(() -> {
+                try {
+                    synchronized (out) {
+                        out.write(packet);
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    // Client went away
+                }
+            }, _delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // close() raced with a client still sending
+        }
+    }
+
+    // Drops the connected clients too, so the soak harness gets a real broker outage
+    public void close() throws IOException {
+        _serverSocket.close();
+        _replies.shutdownNow();
+        for (Socket client : _clients) {
+            client.close();
+        }
+    }
+
+    public int getPort() { return _serverSocket.getLocalPort(); }
+    public long getPublished() { return _published.get(); }
+}
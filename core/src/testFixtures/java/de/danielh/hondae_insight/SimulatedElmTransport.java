@@ -0,0 +1,344 @@
+package de.danielh.hondae_insight;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+// Stands in for an adapter plugged into a driving Honda e. Replies are framed like the real
+// ISO-TP multi frame answers with ATH1 ATS0, so they go through the same assembler and decoder.
+public class SimulatedElmTransport implements ElmTransport {
+
+    private static final String ECU_HEADER = "18DAF1";
+    private static final String PADDING = "0000555555";
+    private static final int FRAME_DATA_CHARS = 14;
+    // Link model of a clone adapter: 500 kbit CAN brings a frame in every quarter millisecond,
+    // its UART/Bluetooth side needs longer to pass one on, and each flow control costs a round trip
+    private static final double CAN_FRAME_MS = 0.25;
+    private static final double LINK_FRAME_MS = 0.6;
+    private static final double FLOW_CONTROL_ROUND_TRIP_MS = 1.0;
+
+    private final String _vin;
+    private final Random _random;
+    private final long _latencyMs;
+    private final ArrayDeque<String> _replyLines = new ArrayDeque<>();
+    private final Clock _clock;
+    private long _replyReadyMs;
+
+    private volatile boolean _stuck = false;
+    private volatile double _dropRate = 0;
+    private volatile boolean _dcCharging = false;
+    private volatile boolean _parked = false;
+    private volatile boolean _stn = false;
+    private volatile int _adapterBufferFrames = 0;
+    private FlowControlProfile _flowControl = FlowControlProfile.DEFAULT;
+    // ATSP7 is kept in NVM, echo and headers are back to their defaults after every reset
+    private boolean _protocolSet = false;
+    private boolean _echo = true;
+    private boolean _headers = false;
+    private String _ecu = "01";
+
+    // Simulated car, one ODO request is a quarter kilometer of driving
+    private double _distanceKm = 12000;
+    private double _soc = 80;
+    private double _batTemp = 25;
+
+    public SimulatedElmTransport(String vin, long seed, long latencyMs) {
+        this(vin, seed, latencyMs, Clock.SYSTEM);
+    }
+
+    // Reply latency and read timeouts on the given clock, a virtual one never actually waits
+    public SimulatedElmTransport(String vin, long seed, long latencyMs, Clock clock) {
+        _clock = clock;
+        _vin = vin;
+        _random = new Random(seed);
+        _latencyMs = latencyMs;
+    }
+
+    @Override
+    public void open() { }
+
+    @Override
+    public synchronized void send(String command) {
+        _replyLines.clear();
+        if (_stuck || (_dropRate > 0 && _random.nextDouble() < _dropRate)) {
+            return;
+        }
+        _replyReadyMs = _clock.currentTimeMillis() + _latencyMs;
+        // ATE0 itself still comes back echoed
+        boolean echo = _echo;
+        if (command.startsWith("AT")) {
+            replyToAtCommand(command);
+        } else if (command.startsWith("ST")) {
+            replyToStCommand(command);
+        } else {
+            replyToRequest(command);
+        }
+        if (echo && !_replyLines.isEmpty()) {
+            // The command follows the prompt, the reply moves to a line of its own
+            String first = _replyLines.removeFirst();
+            _replyLines.addFirst(first.startsWith(">") ? first.substring(1) : first);
+            _replyLines.addFirst(">" + command);
+        }
+    }
+
+    // Unplugged and plugged back in, or the car's 12 V dropped: the volatile settings are gone
+    public synchronized void powerCycle() {
+        _echo = true;
+        _headers = false;
+    }
+
+    private void replyToAtCommand(String command) {
+        if (command.equals("ATWS") || command.equals("ATZ")) {
+            _echo = true;
+            _headers = false;
+            _replyLines.add(">ELM327 v1.5");
+        } else if (command.equals("ATRV")) {
+            // Resting battery while parked, the DC-DC converter charging it otherwise
+            double volts = _parked ? 12.2 : 14.0;
+            _replyLines.add(String.format(Locale.ENGLISH, ">%.1fV", volts + _random.nextInt(5) / 10.0));
+        } else if (command.equals("ATI")) {
+            _replyLines.add(_stn ? ">ELM327 v1.4b" : ">ELM327 v1.5");
+        } else if (command.equals("ATDPN")) {
+            _replyLines.add(_protocolSet ? ">7" : ">A0");
+        } else {
+            if (command.equals("ATSP7")) {
+                _protocolSet = true;
+            } else if (command.equals("ATE0") || command.equals("ATE1")) {
+                _echo = command.endsWith("1");
+            } else if (command.equals("ATH0") || command.equals("ATH1")) {
+                _headers = command.endsWith("1");
+            } else if (command.startsWith("ATSH")) {
+                _ecu = command.substring(6, 8); // ATSHDA15F1 -> 15
+            } else if (command.startsWith(FlowControlProfile.COMMAND_PREFIX)) {
+                FlowControlProfile profile = FlowControlProfile.parse(command);
+                if (profile == null) {
+                    _replyLines.add(">?");
+                    return;
+                }
+                _flowControl = profile;
+            }
+            _replyLines.add(">OK");
+        }
+    }
+
+    // OBDLink extensions, a clone answers every one of them with "?"
+    private void replyToStCommand(String command) {
+        if (!_stn) {
+            _replyLines.add(">?");
+        } else if (command.startsWith("STPX ")) {
+            replyToStpx(command);
+        } else if (command.equals("STI")) {
+            _replyLines.add(">STN1155 v4.3.0");
+        } else if (command.equals("STDI")) {
+            _replyLines.add(">OBDLink MX r1.2");
+        } else {
+            _replyLines.add(">OK");
+        }
+    }
+
+    // Parameters in any order, like the chip reads them: STPX H:18DA15F1,D:222021,R:1
+    private void replyToStpx(String command) {
+        String header = null, data = null;
+        for (String parameter : command.substring(5).split(",")) {
+            parameter = parameter.trim();
+            if (parameter.startsWith("H:")) {
+                header = parameter.substring(2).trim();
+            } else if (parameter.startsWith("D:")) {
+                data = parameter.substring(2).trim();
+            } else if (!parameter.startsWith("R:") && !parameter.startsWith("T:")) {
+                header = null;
+                break;
+            }
+        }
+        if (header == null || header.length() != 8 || !isHex(header)
+                || data == null || data.isEmpty() || data.length() % 2 != 0 || !isHex(data)) {
+            _replyLines.add(">?");
+            return;
+        }
+        _ecu = header.substring(4, 6); // 18DA15F1 -> 15
+        replyToRequest(data);
+    }
+
+    private static boolean isHex(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (Character.digit(text.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void replyToRequest(String command) {
+        // An odd digit at the end is the ELM327 response count, 2270229 -> 227022
+        if (command.length() % 2 != 0) {
+            command = command.substring(0, command.length() - 1);
+        }
+        if (_parked) {
+            // Sleeping CAN bus, the adapter gives up after its own timeout
+            _replyLines.add(">NO DATA");
+            return;
+        }
+        char[] body;
+        switch (command) {
+            case "22F190":
+                body = frame(VehicleState.VIN_ID, 60);
+                put(body, 10, toHex(_vin));
+                break;
+            case "227028":
+                body = frame(VehicleState.AMBIENT_ID, 60);
+                put(body, 42, String.format("%02X", 18 + _random.nextInt(3)));
+                break;
+            case "227022":
+                if (!_dcCharging) {
+                    _distanceKm += 0.25;
+                    _soc = Math.max(0, _soc - 0.04);
+                    _batTemp += 0.02;
+                }
+                body = frame(VehicleState.ODO_ID, 40);
+                put(body, 18, String.format("%08X", (int) _distanceKm));
+                break;
+            case "222021":
+                body = frame(VehicleState.SOH_ID, 300);
+                put(body, 76, String.format("%04X", 3500 + _random.nextInt(40) + (_dcCharging ? 250 : 0)));
+                put(body, 198, String.format("%04X", 9850));
+                // Driving draws 40-50 A, a DC charger pushes up to 125 A and tapers above 80 %
+                int current = _dcCharging ? (int) (34 * 125 * Math.min(1, (100 - _soc) / 20)) : -1360 - _random.nextInt(340);
+                put(body, 280, String.format("%04X", current & 0xFFFF));
+                break;
+            case "222029":
+                if (_dcCharging) {
+                    _soc = Math.min(100, _soc + 0.05);
+                    _batTemp += 0.01;
+                }
+                body = frame(VehicleState.SOC_ID, 300);
+                int soc = (int) Math.round(_soc * 100);
+                put(body, 138, String.format("%04X", soc + 50));
+                put(body, 142, String.format("%04X", soc - 50));
+                put(body, 156, String.format("%04X", soc));
+                put(body, 160, _dcCharging ? "01" : "00");
+                put(body, 277, _dcCharging ? "3" : "0");
+                // Where BatteryCells guesses the sensors are, this exercises the decoder but proves nothing about the car
+                for (int i = 0; i < BatteryCells.TEMP_SENSOR_COUNT; i++) {
+                    int deciCelsius = (int) Math.round(_batTemp * 10) - 15 + _random.nextInt(30);
+                    put(body, BatteryCells.TEMP_SENSOR_OFFSET + i * 4, String.format("%04X", deciCelsius & 0xFFFF));
+                }
+                break;
+            case "22202A":
+                body = frame(VehicleState.BATTEMP_ID, 420);
+                int cellMillivolts = 3300 + (int) Math.round(_soc * 9);
+                for (int i = 0; i < BatteryCells.CELL_COUNT; i++) {
+                    put(body, BatteryCells.CELL_VOLTAGE_OFFSET + i * 4, String.format("%04X", cellMillivolts - 8 + _random.nextInt(16)));
+                }
+                put(body, 410, String.format("%04X", (int) Math.round(_batTemp * 10) & 0xFFFF));
+                break;
+            default:
+                _replyLines.add(">NO DATA");
+                return;
+        }
+        String message = new String(body);
+        String header = _headers ? ECU_HEADER + _ecu : "";
+        _replyLines.add(">" + header + "10" + message.substring(0, FRAME_DATA_CHARS));
+        int sequence = 1;
+        for (int i = FRAME_DATA_CHARS; i < message.length(); i += FRAME_DATA_CHARS) {
+            String chunk = message.substring(i, Math.min(message.length(), i + FRAME_DATA_CHARS));
+            String line = header + "2" + Integer.toHexString(sequence & 0xF).toUpperCase(Locale.ENGLISH) + chunk;
+            sequence++;
+            _replyLines.add(i + FRAME_DATA_CHARS >= message.length() ? line + PADDING : line);
+        }
+        if (_adapterBufferFrames > 0) {
+            transferThroughAdapter(_replyLines.size() - 1);
+        }
+    }
+
+    // Replays the consecutive frames against the adapter's buffer under the current flow control:
+    // adds the transfer time to the reply and cuts it short with BUFFER FULL once the frames
+    // waiting for the link outgrow the buffer. Close to full, the clone drops frames now and then.
+    private void transferThroughAdapter(int consecutiveFrames) {
+        int blockSize = _flowControl.getBlockSize();
+        double intervalMs = Math.max(CAN_FRAME_MS, _flowControl.getSeparationTimeMs());
+        double arrivalMs = FLOW_CONTROL_ROUND_TRIP_MS;
+        double linkFreeMs = LINK_FRAME_MS;
+        double maxBacklog = 0;
+        for (int frame = 0; frame < consecutiveFrames; frame++) {
+            if (frame > 0) {
+                arrivalMs += blockSize > 0 && frame % blockSize == 0 ? FLOW_CONTROL_ROUND_TRIP_MS : intervalMs;
+            }
+            maxBacklog = Math.max(maxBacklog, (linkFreeMs - arrivalMs) / LINK_FRAME_MS);
+            linkFreeMs = Math.max(linkFreeMs, arrivalMs) + LINK_FRAME_MS;
+        }
+        _replyReadyMs += (long) Math.ceil(linkFreeMs);
+        boolean overflow = maxBacklog > _adapterBufferFrames
+                || (maxBacklog > _adapterBufferFrames * 0.75 && _random.nextDouble() < 0.2);
+        if (overflow) {
+            while (_replyLines.size() > _adapterBufferFrames) {
+                _replyLines.removeLast();
+            }
+            _replyLines.add("BUFFER FULL");
+        }
+    }
+
+    private static char[] frame(String id, int length) {
+        char[] body = new char[length];
+        Arrays.fill(body, '0');
+        put(body, 0, id);
+        return body;
+    }
+
+    private static void put(char[] body, int offset, String value) {
+        value.getChars(0, value.length(), body, offset);
+    }
+
+    private static String toHex(String ascii) {
+        StringBuilder hex = new StringBuilder();
+        for (int i = 0; i < ascii.length(); i++) {
+            hex.append(String.format("%02X", (int) ascii.charAt(i)));
+        }
+        return hex.toString();
+    }
+
+    @Override
+    public String readLine(long timeoutMs) throws InterruptedException {
+        long waitMs;
+        synchronized (this) {
+            if (!_replyLines.isEmpty()) {
+                long remainingMs = _replyReadyMs - _clock.currentTimeMillis();
+                if (remainingMs <= 0) {
+                    return _replyLines.poll();
+                }
+                waitMs = Math.min(timeoutMs, remainingMs);
+            } else {
+                waitMs = timeoutMs;
+            }
+        }
+        _clock.sleep(waitMs);
+        synchronized (this) {
+            return !_replyLines.isEmpty() && _replyReadyMs <= _clock.currentTimeMillis() ? _replyLines.poll() : null;
+        }
+    }
+
+    @Override
+    public synchronized void discardInput() {
+        _replyLines.clear();
+    }
+
+    @Override
+    public void close() { }
+
+    // Adapter hangs and answers nothing, like a clone with a full buffer
+    public void setStuck(boolean stuck) { _stuck = stuck; }
+    // Share of requests that get no reply at all
+    public void setDropRate(double dropRate) { _dropRate = dropRate; }
+    // Plugged into a DC charger: SoC rises with every SOC request and the car stands still
+    public void setDcCharging(boolean dcCharging) { _dcCharging = dcCharging; }
+    // Switched off: no ECU answers and the 12 V battery rests below the DC-DC level
+    public void setParked(boolean parked) { _parked = parked; }
+    // Adapter that holds this many frames between CAN and its serial side, 0 passes replies through instantly
+    public void setAdapterBuffer(int frames) { _adapterBufferFrames = frames; }
+    // An OBDLink instead of a clone: answers STI/STDI and takes the STN extended commands
+    public void setStn(boolean stn) { _stn = stn; }
+    public String getVin() { return _vin; }
+
+    @Override
+    public String toString() { return "sim:" + _vin; }
+}
@@ -0,0 +1,76 @@
+package de.danielh.hondae_insight;
+
+import java.util.PriorityQueue;
+
+// Clock for the soak harness. sleep() advances the time instead of waiting and scheduled tasks
+// run from advanceTo(), so a day of polling and reconnect backoff passes in seconds. Meant for
+// a single driving thread, every session sleeping on it moves the time for all of them.
+public class VirtualClock implements Clock, ReconnectSupervisor.Scheduler {
+
+    private static class Task implements Comparable<Task> {
+        final long dueMs;
+        final long sequence;
+        final Runnable runnable;
+
+        Task(long dueMs, long sequence, Runnable runnable) {
+            this.dueMs = dueMs;
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            return dueMs != other.dueMs ? Long.compare(dueMs, other.dueMs) : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final PriorityQueue<Task> _tasks = new PriorityQueue<>();
+    private long _nowMs;
+    private long _sequence;
+
+    public VirtualClock(long startMs) {
+        _nowMs = startMs;
+    }
+
+    @Override
+    public synchronized long currentTimeMillis() {
+        return _nowMs;
+    }
+
+    @Override
+    public void sleep(long ms) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        advanceTo(currentTimeMillis() + Math.max(0, ms));
+    }
+
+    @Override
+    public synchronized void schedule(Runnable task, long delayMs) {
+        _tasks.add(new Task(_nowMs + delayMs, _sequence++, task));
+    }
+
+    @Override
+    public synchronized void cancel(Runnable task) {
+        _tasks.removeIf(scheduled -> scheduled.runnable == task);
+    }
+
+    // Runs every task due until then in order, with the time set to each task's due time
+    public void advanceTo(long timeMs) {
+        while (true) {
+            Task task;
+            synchronized (this) {
+                task = _tasks.peek();
+                if (task == null || task.dueMs > timeMs) {
+                    _nowMs = Math.max(_nowMs, timeMs);
+                    return;
+                }
+                _tasks.poll();
+                _nowMs = Math.max(_nowMs, task.dueMs);
+            }
+            task.runnable.run();
+        }
+    }
+
+    public synchronized int getPendingTasks() { return _tasks.size(); }
+}
@@ -0,0 +1,58 @@
+package de.danielh.hondae_insight;
+
+import java.util.Locale;
+
+// Init and poll cycle time per adapter family against the simulated car, a clone answering
+// plain ELM327 and an OBDLink taking the STN command set. Runs on a VirtualClock with the same
+// reply latency for both, so the difference is only the command strategy:
+//
+//   AdapterBenchmark [--cycles 200] [--latency 20]
+public class AdapterBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int cycles = 200;
+        long latencyMs = 20;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--cycles": cycles = Integer.parseInt(args[++i]); break;
+                case "--latency": latencyMs = Long.parseLong(args[++i]); break;
+                default:
+                    System.err.println("usage: AdapterBenchmark [--cycles N] [--latency MS]");
+                    System.exit(2);
+            }
+        }
+
+        for (boolean stn : new boolean[]{false, true}) {
+            VirtualClock clock = new VirtualClock(System.currentTimeMillis());
+            SimulatedElmTransport transport = new SimulatedElmTransport("JHMZC7ADPT0000001", 1, latencyMs, clock);
+            transport.setStn(stn);
+            TelemetryMetrics metrics = new TelemetryMetrics();
+            PollingEngine engine = new PollingEngine(transport, new VehicleState(), metrics, new PollingEngine.Listener() { }, clock);
+
+            long initStartMs = clock.currentTimeMillis();
+            if (engine.initialize() == null) {
+                System.err.println("no VIN from the " + engine.getAdapterFamily().getName() + " adapter");
+                System.exit(1);
+            }
+            long initMs = clock.currentTimeMillis() - initStartMs;
+            long initBytesOut = metrics.getBytesOut();
+
+            LatencyHistogram cycleTime = new LatencyHistogram("cycle");
+            int complete = 0;
+            for (int cycle = 0; cycle < cycles; cycle++) {
+                long cycleStartMs = clock.currentTimeMillis();
+                if (engine.pollCycle() >= VehicleState.DATA_MESSAGES_PER_CYCLE) {
+                    complete++;
+                }
+                cycleTime.recordNanos((clock.currentTimeMillis() - cycleStartMs) * 1000000);
+            }
+
+            AdapterFamily family = engine.getAdapterFamily();
+            System.out.println(String.format(Locale.ENGLISH, "%-6s %s", family.getName(), engine.getAdapterDescription()));
+            System.out.println(String.format(Locale.ENGLISH, "       init %dms (%d commands), %d commands per cycle, %d/%d cycles complete",
+                    initMs, family.getConnectionCommands().size() + (stn ? 3 : 2), family.getLoopCommands().size(), complete, cycles));
+            System.out.println(String.format(Locale.ENGLISH, "       cycle avg %.1fms  p50 %dms  p99 %dms, bytes out per cycle %d",
+                    cycleTime.meanMs(), cycleTime.percentileMs(0.5), cycleTime.percentileMs(0.99), (metrics.getBytesOut() - initBytesOut) / cycles));
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package de.danielh.hondae_insight;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+// Cost of one AlertEngine.evaluate() per sample for growing rule sets. The samples are a drive
+// followed by a DC charging stop from the simulated car, one per second; the rules are random
+// thresholds, durations, rates and guards placed within the range each signal actually covers,
+// so some of them keep raising and clearing. Bytes per sample need a HotSpot JVM.
+//
+//   AlertEngineBenchmark [--rules 10,100,500,1000] [--samples 3600] [--passes 20]
+public class AlertEngineBenchmark {
+
+    private static final Signal[] SIGNALS = Signal.values();
+    private static final String[] DURATIONS = {"10s", "30s", "1m", "2m"};
+
+    public static void main(String[] args) throws Exception {
+        String ruleCounts = "10,100,500,1000";
+        int samples = 3600;
+        int passes = 20;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--rules": ruleCounts = args[++i]; break;
+                case "--samples": samples = Integer.parseInt(args[++i]); break;
+                case "--passes": passes = Integer.parseInt(args[++i]); break;
+                default:
+                    System.err.println("usage: AlertEngineBenchmark [--rules N,N,...] [--samples N] [--passes N]");
+                    System.exit(2);
+            }
+        }
+
+        List<TelemetrySample> drive = drive(samples);
+        AllocationCounter counter = AllocationCounter.create();
+        System.out.println(String.format(Locale.ENGLISH, "%d samples, default rules: %s", drive.size(),
+                evaluate(AlertEngine.compile(AlertEngine.DEFAULT_RULES), drive).report().trim()));
+
+        for (String ruleCount : ruleCounts.split(",")) {
+            String rules = randomRules(Integer.parseInt(ruleCount), drive);
+            long compileStartNanos = System.nanoTime();
+            AlertEngine compiled = AlertEngine.compile(rules);
+            long compileNanos = System.nanoTime() - compileStartNanos;
+
+            // Warm up, then a fresh engine per pass so the samples come in order every time
+            for (int pass = 0; pass < passes; pass++) {
+                evaluate(AlertEngine.compile(rules), drive);
+            }
+            long nanos = 0, bytes = 0, events = 0;
+            for (int pass = 0; pass < passes; pass++) {
+                AlertEngine engine = AlertEngine.compile(rules);
+                long bytesBefore = counter != null ? counter.allocatedBytes() : 0;
+                long startNanos = System.nanoTime();
+                evaluate(engine, drive);
+                nanos += System.nanoTime() - startNanos;
+                bytes += counter != null ? counter.allocatedBytes() - bytesBefore : 0;
+                events += engine.getEvents();
+            }
+            long evaluated = (long) passes * drive.size();
+            System.out.println(String.format(Locale.ENGLISH,
+                    "%5d rules %3d rates  compile %6.2fms  %8.0f ns/sample  %5.2f ns/rule  %s  %5.1f events/1000 samples",
+                    compiled.getRules(), compiled.getRates(), compileNanos / 1e6, (double) nanos / evaluated,
+                    (double) nanos / evaluated / compiled.getRules(),
+                    counter != null ? String.format(Locale.ENGLISH, "%6.1f B/sample", (double) bytes / evaluated) : "     n/a B/sample",
+                    events * 1000.0 / evaluated));
+        }
+    }
+
+    private static volatile long _sink;
+
+    private static AlertEngine evaluate(AlertEngine engine, List<TelemetrySample> drive) {
+        // What the app does with an event is its own cost, only keep the engine from skipping it
+        engine.setListener(event -> _sink += event.getTimeMs());
+        for (TelemetrySample sample : drive) {
+            engine.evaluate(sample);
+        }
+        return engine;
+    }
+
+    // Driving for the first two thirds, then plugged into a DC charger
+    private static List<TelemetrySample> drive(int samples) throws Exception {
+        VirtualClock clock = new VirtualClock(1700000000000L);
+        SimulatedElmTransport transport = new SimulatedElmTransport("JHMZC7ALRT0000001", 5, 20, clock);
+        VehicleState state = new VehicleState();
+        PollingEngine engine = new PollingEngine(transport, state, new TelemetryMetrics(), new PollingEngine.Listener() { }, clock);
+        if (engine.initialize() == null) {
+            throw new IllegalStateException("no VIN from the simulated car");
+        }
+        List<TelemetrySample> drive = new ArrayList<>(samples);
+        for (int i = 0; i < samples; i++) {
+            transport.setDcCharging(i > samples * 2 / 3);
+            long cycleStartMs = clock.currentTimeMillis();
+            engine.pollCycle();
+            clock.sleep(Math.max(0, 1000 - (clock.currentTimeMillis() - cycleStartMs)));
+            drive.add(new TelemetrySample(clock.currentTimeMillis(), state));
+        }
+        return drive;
+    }
+
+    private static String randomRules(int count, List<TelemetrySample> drive) {
+        Random random = new Random(count);
+        StringBuilder rules = new StringBuilder();
+        for (int rule = 0; rule < count; rule++) {
+            Signal signal = SIGNALS[random.nextInt(SIGNALS.length)];
+            String input = signal.getName();
+            double low = Double.MAX_VALUE, high = -Double.MAX_VALUE;
+            for (TelemetrySample sample : drive) {
+                double value = sample.get(signal);
+                if (!Double.isNaN(value)) {
+                    low = Math.min(low, value);
+                    high = Math.max(high, value);
+                }
+            }
+            if (low > high) {
+                low = 0;
+                high = 1;
+            }
+            int kind = random.nextInt(10);
+            if (kind == 0) {
+                // Per minute, the whole range over a few minutes is steep
+                input = "rate(" + input + ", " + DURATIONS[1 + random.nextInt(3)] + ")";
+                high = (high - low) / 5;
+                low = -high;
+            }
+            boolean above = random.nextBoolean();
+            double threshold = low + (high - low) * (0.2 + 0.6 * random.nextDouble());
+            double clear = threshold + (above ? -1 : 1) * (high - low) * 0.2;
+            rules.append(String.format(Locale.ENGLISH, "r%d: %s %s %.4f", rule, input, above ? ">" : "<", threshold));
+            if (kind < 5) {
+                rules.append(" for ").append(DURATIONS[random.nextInt(DURATIONS.length)]);
+            }
+            rules.append(String.format(Locale.ENGLISH, " clear %.4f", clear));
+            if (kind == 9) {
+                rules.append(" when charging = ").append(random.nextInt(2));
+            }
+            rules.append('\n');
+        }
+        return rules.toString();
+    }
+}
@@ -0,0 +1,90 @@
+package de.danielh.hondae_insight;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Random;
+
+// Downsampling speed on long inputs, in memory and through a generated trip log:
+//
+//   DownsamplerBenchmark [--rows N] [--points N] [--keep]
+public class DownsamplerBenchmark {
+
+    private static final long SAMPLE_INTERVAL_MS = 1000;
+
+    public static void main(String[] args) throws IOException {
+        int rows = 5000000;
+        int points = 1000;
+        boolean keep = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--rows": rows = Integer.parseInt(args[++i]); break;
+                case "--points": points = Integer.parseInt(args[++i]); break;
+                case "--keep": keep = true; break;
+                default:
+                    System.err.println("usage: DownsamplerBenchmark [--rows N] [--points N] [--keep]");
+                    System.exit(2);
+            }
+        }
+        long startMs = 1700000000000L;
+        long endMs = startMs + (rows - 1) * SAMPLE_INTERVAL_MS;
+
+        // In memory: the downsampler on its own
+        for (int round = 0; round < 3; round++) {
+            Random random = new Random(1);
+            Downsampler downsampler = new Downsampler(startMs, endMs, points);
+            double value = 50;
+            long startNanos = System.nanoTime();
+            for (int i = 0; i < rows; i++) {
+                value += random.nextGaussian() * 0.1;
+                downsampler.add(startMs + i * SAMPLE_INTERVAL_MS, value);
+            }
+            TimeSeries series = downsampler.finish();
+            double seconds = (System.nanoTime() - startNanos) / 1e9;
+            System.out.println(String.format(Locale.ENGLISH, "memory  %d -> %d points in %6.0fms, %5.1fM rows/s",
+                    rows, series.size(), seconds * 1000, rows / seconds / 1e6));
+        }
+
+        // Trip log: CSV parsing plus three signals in one pass, like the history screen
+        File log = File.createTempFile("downsampler-", ".csv");
+        try {
+            writeLog(log, rows, startMs);
+            TripLogReader reader = new TripLogReader(log);
+            long rangeStartNanos = System.nanoTime();
+            long[] range = reader.timeRange();
+            double rangeMs = (System.nanoTime() - rangeStartNanos) / 1e6;
+            int[] columns = {reader.column("SoC (dash)"), reader.column("kW"), reader.column("Battemp")};
+            Downsampler[] downsamplers = new Downsampler[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                downsamplers[i] = new Downsampler(range[0], range[1], points);
+            }
+            long startNanos = System.nanoTime();
+            long read = reader.read(columns, downsamplers);
+            for (Downsampler downsampler : downsamplers) {
+                downsampler.finish();
+            }
+            double seconds = (System.nanoTime() - startNanos) / 1e9;
+            System.out.println(String.format(Locale.ENGLISH, "csv     %d rows (%.0f MB), range in %.1fms, 3 signals in %6.0fms, %5.2fM rows/s",
+                    read, log.length() / 1e6, rangeMs, seconds * 1000, read / seconds / 1e6));
+        } finally {
+            if (keep) {
+                System.out.println("kept " + log);
+            } else if (!log.delete()) {
+                log.deleteOnExit();
+            }
+        }
+    }
+
+    private static void writeLog(File file, int rows, long startMs) throws IOException {
+        Random random = new Random(2);
+        VehicleState state = new VehicleState();
+        try (PrintWriter writer = new PrintWriter(file, "ISO-8859-1")) {
+            writer.println(VehicleState.LOG_FILE_HEADER);
+            for (int i = 0; i < rows; i++) {
+                state.setLocation(random.nextInt(130), 0, "52.52", "13.40");
+                writer.println(state.toCsvLine(startMs + i * SAMPLE_INTERVAL_MS));
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package de.danielh.hondae_insight;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Compares the old substring() + Integer.parseInt() decoding with HexCodec on the field offsets
+// the poll loop reads every cycle, and on the VIN. JMH, extra arguments go to its command line:
+//
+//   ./gradlew :gateway:benchmark -Pmain=HexCodecBenchmark -Pargs="-f 2 -prof gc"
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HexCodecBenchmark {
+
+    // offset, digits of every hex field VehicleState reads from the SOH, SOC, BATTEMP and ODO replies
+    private static final int[][] FIELDS = {{198, 4}, {280, 4}, {76, 4}, {142, 4}, {138, 4}, {156, 4}, {410, 4}, {18, 8}, {42, 2}};
+
+    private String _message;
+    private String _vinReply;
+
+    public static void main(String[] args) throws Exception {
+        String[] jmhArgs = new String[args.length + 1];
+        jmhArgs[0] = HexCodecBenchmark.class.getName();
+        System.arraycopy(args, 0, jmhArgs, 1, args.length);
+        org.openjdk.jmh.Main.main(jmhArgs);
+    }
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        StringBuilder reply = new StringBuilder();
+        for (int i = 0; i < 420; i++) {
+            reply.append("0123456789ABCDEF".charAt(random.nextInt(16)));
+        }
+        reply.setCharAt(18, '0'); // ODO, Integer.parseInt() rejects 8 digits above 7FFFFFFF
+        _message = reply.toString();
+        _vinReply = "1862F19000" + "4A484D5A43374731305A5A3030303030" + "31";
+    }
+
+    @Benchmark
+    public long fieldsSubstringParseInt() {
+        long sum = 0;
+        for (int[] field : FIELDS) {
+            sum += Integer.parseInt(_message.substring(field[0], field[0] + field[1]), 16);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long fieldsHexCodec() {
+        long sum = 0;
+        for (int[] field : FIELDS) {
+            sum += HexCodec.parseInt(_message, field[0], field[1]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public String vinSubstringParseInt() {
+        StringBuilder output = new StringBuilder();
+        String hex = _vinReply.substring(10, 44);
+        for (int i = 0; i < hex.length(); i += 2) {
+            output.append((char) Integer.parseInt(hex.substring(i, i + 2), 16));
+        }
+        return output.toString();
+    }
+
+    @Benchmark
+    public String vinHexCodec() {
+        return VehicleState.parseVIN(_vinReply);
+    }
+}
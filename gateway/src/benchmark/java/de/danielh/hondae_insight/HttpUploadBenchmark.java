@@ -0,0 +1,63 @@
+package de.danielh.hondae_insight;
+
+import java.util.Locale;
+
+// Requests and bytes per hour of driving for the HTTP uploader against HttpStubServer. The drive
+// runs on a VirtualClock through the simulated adapter, the uploads are real loopback HTTP:
+//
+//   HttpUploadBenchmark [--hours 1] [--interval MS] [--fail-rate 0.1]
+public class HttpUploadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int hours = 1;
+        long intervalMs = GatewayMain.DEFAULT_INTERVAL_MS;
+        double failRate = 0.1;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--hours": hours = Integer.parseInt(args[++i]); break;
+                case "--interval": intervalMs = Long.parseLong(args[++i]); break;
+                case "--fail-rate": failRate = Double.parseDouble(args[++i]); break;
+                default:
+                    System.err.println("usage: HttpUploadBenchmark [--hours N] [--interval MS] [--fail-rate 0..1]");
+                    System.exit(2);
+            }
+        }
+
+        HttpStubServer server = new HttpStubServer(0, failRate);
+        server.start();
+        VirtualClock clock = new VirtualClock(System.currentTimeMillis());
+        SimulatedElmTransport transport = new SimulatedElmTransport("JHMZC7HTTP0000001", 1, 20, clock);
+        VehicleState state = new VehicleState();
+        PollingEngine engine = new PollingEngine(transport, state, new TelemetryMetrics(), new PollingEngine.Listener() { }, clock);
+        HttpUploader uploader = new HttpUploader("http://127.0.0.1:" + server.getPort() + "/telemetry", clock,
+                HttpUploader.DEFAULT_BATCH_SAMPLES, HttpUploader.DEFAULT_MAX_BATCH_AGE_MS, HttpUploader.DEFAULT_MIN_REQUEST_INTERVAL_MS);
+        engine.initialize();
+
+        long samples = 0, rawBytes = 0;
+        long startMs = clock.currentTimeMillis();
+        long endMs = startMs + hours * 3600000L;
+        long realStartNanos = System.nanoTime();
+        for (long cycleMs = startMs; cycleMs < endMs; cycleMs += intervalMs) {
+            clock.advanceTo(cycleMs);
+            if (engine.pollCycle() >= VehicleState.DATA_MESSAGES_PER_CYCLE) {
+                TelemetrySample sample = new TelemetrySample(clock.currentTimeMillis(), state);
+                uploader.add(sample.getMqttPayload());
+                samples++;
+                rawBytes += sample.getMqttPayload().length();
+            }
+            uploader.uploadIfDue();
+        }
+        uploader.uploadAll();
+        double realMs = (System.nanoTime() - realStartNanos) / 1000000.0;
+        server.close();
+
+        System.out.println(String.format(Locale.ENGLISH, "%dh of driving, %d samples, %.0fms real time", hours, samples, realMs));
+        System.out.println(String.format(Locale.ENGLISH, "one POST per sample  req/h %7.1f  kB/h %7.1f", (double) samples / hours, rawBytes / 1024.0 / hours));
+        System.out.println(String.format(Locale.ENGLISH, "batched + gzip       req/h %7.1f  kB/h %7.1f  (%.1fx smaller)",
+                (double) server.getRequests() / hours, server.getBodyBytes() / 1024.0 / hours,
+                rawBytes / (double) Math.max(1, server.getBodyBytes())));
+        System.out.println(String.format(Locale.ENGLISH, "server: %d connections, %d requests, %d answered 503, %d samples received, %d pending",
+                server.getConnections(), server.getRequests(), server.getFailed(), server.getSamples(), uploader.getPending()));
+        System.out.print(uploader.report());
+    }
+}
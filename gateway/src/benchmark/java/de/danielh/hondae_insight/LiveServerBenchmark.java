@@ -0,0 +1,111 @@
+package de.danielh.hondae_insight;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Fan-out cost of LiveServer with many local SSE clients, a few of them reading slowly. Samples
+// come from the simulated car so the frames have the real payload size:
+//
+//   LiveServerBenchmark [--clients 48] [--slow 4] [--samples 2000] [--every-ms 2]
+public class LiveServerBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int clients = 48;
+        int slow = 4;
+        int samples = 2000;
+        long everyMs = 2;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--clients": clients = Integer.parseInt(args[++i]); break;
+                case "--slow": slow = Integer.parseInt(args[++i]); break;
+                case "--samples": samples = Integer.parseInt(args[++i]); break;
+                case "--every-ms": everyMs = Long.parseLong(args[++i]); break;
+                default:
+                    System.err.println("usage: LiveServerBenchmark [--clients N] [--slow N] [--samples N] [--every-ms MS]");
+                    System.exit(2);
+            }
+        }
+
+        LiveServer server = new LiveServer(0);
+        server.start();
+        AtomicLong fastFrames = new AtomicLong();
+        List<Socket> sockets = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            boolean isSlow = i < slow;
+            Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+            if (isSlow) {
+                socket.setReceiveBufferSize(4096);
+            }
+            sockets.add(socket);
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET " + server.getPath() + "events HTTP/1.1\r\nHost: bench\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            Thread reader = new Thread(() -> {
+                try {
+                    if (isSlow) {
+                        // A phone on bad Wi-Fi: a few hundred bytes now and then
+                        InputStream in = socket.getInputStream();
+                        byte[] buffer = new byte[256];
+                        while (in.read(buffer) >= 0) {
+                            Thread.sleep(20);
+                        }
+                    } else {
+                        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                        String line;
+                        while ((line = in.readLine()) != null) {
+                            if (line.startsWith("data: ")) {
+                                fastFrames.incrementAndGet();
+                            }
+                        }
+                    }
+                } catch (Exception e) {
+                    // Closed at the end of the run
+                }
+            }, "bench-client-" + i);
+            reader.setDaemon(true);
+            reader.start();
+        }
+        while (server.getClients() < clients) {
+            Thread.sleep(10);
+        }
+
+        VehicleState state = new VehicleState();
+        SimulatedElmTransport transport = new SimulatedElmTransport("JHMZC7LIVE0000001", 1, 0);
+        PollingEngine engine = new PollingEngine(transport, state, new TelemetryMetrics(), new PollingEngine.Listener() { });
+        engine.initialize();
+        engine.pollCycle();
+        String payload = new TelemetrySample(System.currentTimeMillis(), state).getMqttPayload();
+
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < samples; i++) {
+            server.publish(payload);
+            Thread.sleep(everyMs);
+        }
+        Thread.sleep(500);
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+
+        LatencyHistogram fanOut = server.getFanOut();
+        int fast = clients - slow;
+        System.out.println(String.format(Locale.ENGLISH, "%d clients (%d slow), %d samples of %d bytes in %.1fs",
+                clients, slow, samples, payload.length(), seconds));
+        System.out.println(String.format(Locale.ENGLISH, "fan-out per sample  n=%d  avg %.3fms  p50 %dms  p99 %dms  max %.1fms",
+                fanOut.getCount(), fanOut.meanMs(), fanOut.percentileMs(0.5), fanOut.percentileMs(0.99), fanOut.getMaxMs()));
+        System.out.println(String.format(Locale.ENGLISH, "fast clients received %.1f%% of the frames, %.1f MB/s sent in total",
+                100.0 * fastFrames.get() / ((double) fast * samples), server.getBytesSent() / seconds / 1e6));
+        System.out.print(server.report());
+
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        server.close();
+    }
+}
@@ -0,0 +1,135 @@
+package de.danielh.hondae_insight;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Random;
+
+// Compression ratio, CPU time and read-back speed of the LogArchiver per deflate level, on a log
+// written by the simulated car with GPS, one row per second like the app. Battery cost is CPU
+// time times what one busy core draws, 1.5 W is a mid-range phone's big core; the archiver runs
+// on a background priority thread, so on the phone it takes longer in wall time but not in CPU.
+//
+//   LogArchiverBenchmark [--rows 360000] [--levels 1,3,6,9] [--core-watts 1.5]
+public class LogArchiverBenchmark {
+
+    private static final double METERS_PER_DEGREE_LAT = 111195;
+
+    public static void main(String[] args) throws Exception {
+        int rows = 360000;
+        String levels = "1,3,6,9";
+        double coreWatts = 1.5;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--rows": rows = Integer.parseInt(args[++i]); break;
+                case "--levels": levels = args[++i]; break;
+                case "--core-watts": coreWatts = Double.parseDouble(args[++i]); break;
+                default:
+                    System.err.println("usage: LogArchiverBenchmark [--rows N] [--levels L,L,...] [--core-watts W]");
+                    System.exit(2);
+            }
+        }
+
+        File dir = Files.createTempDirectory("log-archiver-").toFile();
+        File log = new File(dir, "JHMZC7ARCH0000001-2024-01-01-00-00-00.csv");
+        File original = new File(dir, "original.bin");
+        try {
+            writeLog(log, rows);
+            Files.copy(log.toPath(), original.toPath());
+            long[] range = new TripLogReader(log).timeRange();
+            double plainReadMs = readAll(log);
+            System.out.println(String.format(Locale.ENGLISH, "%d rows, %.1f MB of trip log, reading it %.0fms", rows, log.length() / 1e6, plainReadMs));
+
+            for (String level : levels.split(",")) {
+                Files.copy(original.toPath(), log.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                log.setLastModified(System.currentTimeMillis() - LogArchiver.MIN_IDLE_MS * 2);
+                LogArchiver archiver = new LogArchiver(dir, LogArchiver.DEFAULT_QUOTA_BYTES, LogArchiver.DEFAULT_MAX_AGE_MS);
+                archiver.setLevel(Integer.parseInt(level));
+
+                long cpuBefore = threadCpuNanos();
+                long startNanos = System.nanoTime();
+                archiver.run(null);
+                double wallMs = (System.nanoTime() - startNanos) / 1e6;
+                double cpuMs = (threadCpuNanos() - cpuBefore) / 1e6;
+
+                File archive = new File(log.getPath() + LogArchiver.COMPRESSED_SUFFIX);
+                if (archiver.getCompressed() != 1 || log.exists() || !archive.exists()) {
+                    System.err.println("archiver didn't replace the log");
+                    System.exit(1);
+                }
+                long[] storedRange = new TripLogReader(archive).timeRange();
+                if (storedRange[0] != range[0] || storedRange[1] != range[1]) {
+                    System.err.println("time range differs after compression");
+                    System.exit(1);
+                }
+                double readMs = readAll(archive);
+                System.out.println(String.format(Locale.ENGLISH,
+                        "level %s  %6.1f MB  %5.1fx  cpu %6.0fms  wall %6.0fms  %5.1f MB/s  ~%.3f mWh per 100 MB  read %5.0fms (%+.0f%%)",
+                        level, archive.length() / 1e6, (double) archiver.getBytesIn() / archiver.getBytesOut(), cpuMs, wallMs,
+                        archiver.getBytesIn() / 1e6 / (wallMs / 1000), coreWatts * cpuMs / 3600.0 * (100e6 / archiver.getBytesIn()),
+                        readMs, (readMs / plainReadMs - 1) * 100));
+                if (!archive.delete()) {
+                    archive.deleteOnExit();
+                }
+            }
+        } finally {
+            for (File file : new File[]{log, original, new File(log.getPath() + LogArchiver.COMPRESSED_SUFFIX), dir}) {
+                if (file.exists() && !file.delete()) {
+                    file.deleteOnExit();
+                }
+            }
+        }
+    }
+
+    // Every column through a TripLogReader, the way HistoryActivity and TripExporter read
+    private static double readAll(File file) throws IOException {
+        TripLogReader reader = new TripLogReader(file);
+        String[] header = VehicleState.LOG_FILE_HEADER.split(",");
+        int[] columns = new int[header.length - 1];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = reader.column(header[i + 1]);
+        }
+        long startNanos = System.nanoTime();
+        reader.timeRange();
+        reader.read(columns, (timeMs, values) -> { });
+        return (System.nanoTime() - startNanos) / 1e6;
+    }
+
+    // A drive and a DC stop from the simulated car, with a GPS track wandering along
+    private static void writeLog(File file, int rows) throws Exception {
+        VirtualClock clock = new VirtualClock(1700000000000L);
+        SimulatedElmTransport transport = new SimulatedElmTransport("JHMZC7ARCH0000001", 9, 20, clock);
+        VehicleState state = new VehicleState();
+        PollingEngine engine = new PollingEngine(transport, state, new TelemetryMetrics(), new PollingEngine.Listener() { }, clock);
+        if (engine.initialize() == null) {
+            throw new IllegalStateException("no VIN from the simulated car");
+        }
+        Random random = new Random(9);
+        double lat = 52.52, lon = 13.40, heading = 0;
+        try (PrintWriter writer = new PrintWriter(file, "ISO-8859-1")) {
+            writer.println(VehicleState.LOG_FILE_HEADER);
+            for (int i = 0; i < rows; i++) {
+                // Charging stops of half an hour every three hours
+                boolean charging = i % 10800 > 9000;
+                transport.setDcCharging(charging);
+                long cycleStartMs = clock.currentTimeMillis();
+                engine.pollCycle();
+                clock.sleep(Math.max(0, 1000 - (clock.currentTimeMillis() - cycleStartMs)));
+                double speedKmh = charging ? 0 : 60 + random.nextGaussian() * 10;
+                heading += random.nextGaussian() * 0.05;
+                lat += speedKmh / 3.6 * Math.cos(heading) / METERS_PER_DEGREE_LAT;
+                lon += speedKmh / 3.6 * Math.sin(heading) / (METERS_PER_DEGREE_LAT * Math.cos(Math.toRadians(lat)));
+                state.setLocation(speedKmh, 40 + random.nextGaussian(), String.valueOf(lat), String.valueOf(lon));
+                writer.println(state.toCsvLine(clock.currentTimeMillis()));
+            }
+        }
+    }
+
+    private static long threadCpuNanos() {
+        return ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+    }
+}
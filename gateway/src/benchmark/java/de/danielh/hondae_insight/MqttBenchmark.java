@@ -0,0 +1,86 @@
+package de.danielh.hondae_insight;
+
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Publishes a burst of status payloads against MqttBrokerStub for each QoS / in-flight window
+// combination and reports throughput and acknowledgement latency.
+//
+//   MqttBenchmark [--messages N] [--delay MS] [--windows 1,10,50]
+public class MqttBenchmark {
+
+    private static final long CONNECT_TIMEOUT_MS = 5000;
+
+    public static void main(String[] args) throws Exception {
+        int messages = 2000;
+        long delayMs = 40;
+        String windows = "1,10,50";
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--messages": messages = Integer.parseInt(args[++i]); break;
+                case "--delay": delayMs = Long.parseLong(args[++i]); break;
+                case "--windows": windows = args[++i]; break;
+                default:
+                    System.err.println("usage: MqttBenchmark [--messages N] [--delay MS] [--windows 1,10,50]");
+                    System.exit(2);
+            }
+        }
+
+        MqttBrokerStub broker = new MqttBrokerStub(0, delayMs);
+        broker.start();
+        System.out.println("broker stand-in on port " + broker.getPort() + ", " + delayMs + "ms reply delay");
+
+        VehicleState state = new VehicleState();
+        String payload = state.toMqttPayload(System.currentTimeMillis() / 1000);
+        for (int qos = 0; qos <= 1; qos++) {
+            for (String window : windows.split(",")) {
+                run(broker.getPort(), qos, Integer.parseInt(window.trim()), messages, payload);
+            }
+        }
+        broker.close();
+    }
+
+    private static void run(int port, int qos, int window, int messages, String payload) throws Exception {
+        MqttPublisher publisher = new MqttPublisher("tcp://127.0.0.1:" + port, "bench_", window);
+        publisher.connect();
+        long connectDeadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MS;
+        while (!publisher.isConnected() && System.currentTimeMillis() < connectDeadline) {
+            Thread.sleep(10);
+        }
+
+        LatencyHistogram latency = new LatencyHistogram("ack");
+        AtomicLong failed = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(messages);
+        MqttPublisher.Callback callback = new MqttPublisher.Callback() {
+            @Override
+            public void onPublished(long latencyNanos) {
+                latency.recordNanos(latencyNanos);
+                done.countDown();
+            }
+
+            @Override
+            public void onFailed(Throwable cause) {
+                failed.incrementAndGet();
+                done.countDown();
+            }
+        };
+
+        // Like the poll loop, a full window is not retried; the producer just waits for room
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            while (publisher.getInFlight() >= window) {
+                Thread.yield();
+            }
+            publisher.publish("hondae/bench", payload, qos, callback);
+        }
+        done.await();
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        publisher.close();
+
+        System.out.println(String.format(Locale.ENGLISH,
+                "qos %d window %3d: %6.0f msg/s  p50 %4dms  p99 %4dms  max %7.1fms  failed %d",
+                qos, window, messages / seconds, latency.percentileMs(0.5), latency.percentileMs(0.99),
+                latency.getMaxMs(), failed.get()));
+    }
+}
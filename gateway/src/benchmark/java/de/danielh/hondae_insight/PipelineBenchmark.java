@@ -0,0 +1,121 @@
+package de.danielh.hondae_insight;
+
+import java.io.IOException;
+import java.util.Locale;
+
+// Poll cycle time with decoding on the poll thread against the pipelined PollingEngine, next to
+// the link time of the same cycles: waiting for replies plus the pauses the adapter family needs.
+// Runs in real time against the simulated car. A desktop JVM decodes in a few microseconds, a
+// phone with the UI busy takes much longer, --decode-us adds that much work to every decode:
+//
+//   PipelineBenchmark [--cycles 15] [--latency 5,20,50] [--decode-us 0,2000]
+public class PipelineBenchmark {
+
+    // Adds work to every decode, like a slow phone would take for it
+    private static class SlowVehicleState extends VehicleState {
+        private final long _extraNanos;
+
+        SlowVehicleState(long extraNanos) {
+            _extraNanos = extraNanos;
+        }
+
+        @Override
+        public boolean decode(String messageID, String message) {
+            long untilNanos = System.nanoTime() + _extraNanos;
+            boolean decoded = super.decode(messageID, message);
+            while (System.nanoTime() < untilNanos) {
+                // Busy, like a core that is really decoding
+            }
+            return decoded;
+        }
+    }
+
+    // Time spent waiting on the adapter, in readLine() and in the pauses between commands
+    private static class LinkTimer implements ElmTransport, Clock {
+        private final ElmTransport _transport;
+        private long _nanos;
+
+        LinkTimer(ElmTransport transport) {
+            _transport = transport;
+        }
+
+        @Override public void open() throws IOException { _transport.open(); }
+        @Override public void send(String command) throws IOException { _transport.send(command); }
+        @Override public void discardInput() throws IOException { _transport.discardInput(); }
+        @Override public void close() throws IOException { _transport.close(); }
+        @Override public long currentTimeMillis() { return System.currentTimeMillis(); }
+
+        @Override
+        public String readLine(long timeoutMs) throws IOException, InterruptedException {
+            long startNanos = System.nanoTime();
+            try {
+                return _transport.readLine(timeoutMs);
+            } finally {
+                _nanos += System.nanoTime() - startNanos;
+            }
+        }
+
+        @Override
+        public void sleep(long ms) throws InterruptedException {
+            long startNanos = System.nanoTime();
+            Thread.sleep(ms);
+            _nanos += System.nanoTime() - startNanos;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int cycles = 15;
+        String latencies = "5,20,50";
+        String decodeCosts = "0,2000";
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--cycles": cycles = Integer.parseInt(args[++i]); break;
+                case "--latency": latencies = args[++i]; break;
+                case "--decode-us": decodeCosts = args[++i]; break;
+                default:
+                    System.err.println("usage: PipelineBenchmark [--cycles N] [--latency MS,MS,...] [--decode-us US,US,...]");
+                    System.exit(2);
+            }
+        }
+
+        for (boolean stn : new boolean[]{false, true}) {
+            for (String latency : latencies.split(",")) {
+                for (String decodeCost : decodeCosts.split(",")) {
+                    StringBuilder line = new StringBuilder(String.format(Locale.ENGLISH, "%-6s %3sms latency, decode +%4sus:",
+                            stn ? "STN" : "ELM327", latency, decodeCost));
+                    for (boolean pipelined : new boolean[]{false, true}) {
+                        double[] result = run(stn, Long.parseLong(latency), Long.parseLong(decodeCost) * 1000, pipelined, cycles);
+                        line.append(String.format(Locale.ENGLISH, "  %s %6.1fms (link %6.1fms, %+5.1f%%)",
+                                pipelined ? "pipelined" : "inline", result[0], result[1], (result[0] / result[1] - 1) * 100));
+                    }
+                    System.out.println(line);
+                }
+            }
+        }
+    }
+
+    // Average cycle and link time in ms
+    private static double[] run(boolean stn, long latencyMs, long decodeNanos, boolean pipelined, int cycles) throws Exception {
+        SimulatedElmTransport simulated = new SimulatedElmTransport("JHMZC7PIPE0000001", 1, latencyMs);
+        simulated.setStn(stn);
+        LinkTimer link = new LinkTimer(simulated);
+        PollingEngine engine = new PollingEngine(link, new SlowVehicleState(decodeNanos), new TelemetryMetrics(), new PollingEngine.Listener() { }, link);
+        engine.setPipelined(pipelined);
+        if (engine.initialize() == null) {
+            throw new IllegalStateException("no VIN from the simulated car");
+        }
+        engine.pollCycle();
+        long cycleNanos = 0, linkNanos = 0;
+        for (int cycle = 0; cycle < cycles; cycle++) {
+            long linkBefore = link._nanos;
+            long startNanos = System.nanoTime();
+            if (engine.pollCycle() < VehicleState.DATA_MESSAGES_PER_CYCLE) {
+                throw new IllegalStateException("incomplete cycle");
+            }
+            cycleNanos += System.nanoTime() - startNanos;
+            linkNanos += link._nanos - linkBefore;
+        }
+        engine.stop();
+        return new double[]{cycleNanos / 1e6 / cycles, linkNanos / 1e6 / cycles};
+    }
+}
@@ -0,0 +1,245 @@
+package de.danielh.hondae_insight;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+// Accelerated soak run: gateway sessions against simulated adapters on a VirtualClock, publishing
+// to an in-process broker stub. Every session drives, parks and DC charges on a 6 hour pattern,
+// loses its adapter every few hours and the broker goes away every 8 hours. Threads, heap and
+// open file descriptors are sampled every simulated hour; exits with 1 if any of them still
+// grows in the last third of the run compared to the first. MQTT runs on real time, so the
+// loop is paced by --tick-ms to let the publisher keep up. SoakFlatnessTest runs a shorter soak
+// on every build.
+//
+//   SoakTest [--hours 24] [--sessions 4] [--interval MS] [--tick-ms 2]
+public class SoakTest {
+
+    private static final long HOUR_MS = 3600000;
+    private static final long MINUTE_MS = 60000;
+    private static final long SIM_LATENCY_MS = 20;
+
+    // Minutes into the 6 hour pattern each phase ends
+    private static final int DRIVE_END = 60, PARKED_END = 210, CHARGE_END = 255, SECOND_DRIVE_END = 285, PATTERN_MINUTES = 360;
+    private static final long ADAPTER_DROP_EVERY_MS = 3 * HOUR_MS;
+    private static final long BROKER_OUTAGE_EVERY_MS = 8 * HOUR_MS;
+    private static final long BROKER_OUTAGE_MS = 20 * MINUTE_MS;
+
+    private static final int THREAD_SLACK = 4;
+    private static final int FD_SLACK = 4;
+    private static final long HEAP_SLACK_BYTES = 8L * 1024 * 1024;
+
+    static class Sample {
+        final int threads;
+        final long heapBytes;
+        final int fds;
+
+        Sample(int threads, long heapBytes, int fds) {
+            this.threads = threads;
+            this.heapBytes = heapBytes;
+            this.fds = fds;
+        }
+    }
+
+    static class Result {
+        // One per steady hour, the ones with the broker down are left out
+        final List<Sample> samples;
+        final long cycles;
+        final long samplesPublished;
+        final int pendingTasks;
+
+        Result(List<Sample> samples, long cycles, long samplesPublished, int pendingTasks) {
+            this.samples = samples;
+            this.cycles = cycles;
+            this.samplesPublished = samplesPublished;
+            this.pendingTasks = pendingTasks;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int hours = 24;
+        int sessionCount = 4;
+        long intervalMs = GatewayMain.DEFAULT_INTERVAL_MS;
+        long tickMs = 2;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--hours": hours = Integer.parseInt(args[++i]); break;
+                case "--sessions": sessionCount = Integer.parseInt(args[++i]); break;
+                case "--interval": intervalMs = Long.parseLong(args[++i]); break;
+                case "--tick-ms": tickMs = Long.parseLong(args[++i]); break;
+                default:
+                    System.err.println("usage: SoakTest [--hours N] [--sessions N] [--interval MS] [--tick-ms MS]");
+                    System.exit(2);
+            }
+        }
+        Result result = run(hours, sessionCount, intervalMs, tickMs, System.out);
+        System.exit(checkFlat(result.samples, System.out) ? 0 : 1);
+    }
+
+    static Result run(int hours, int sessionCount, long intervalMs, long tickMs, PrintStream log) throws Exception {
+        long startMs = System.currentTimeMillis();
+        VirtualClock clock = new VirtualClock(startMs);
+        Random random = new Random(1);
+        File chargeDir = new File(System.getProperty("java.io.tmpdir"), "hondae-soak-" + startMs);
+        if (!chargeDir.mkdirs()) {
+            throw new IOException("Cannot create " + chargeDir);
+        }
+
+        MqttBrokerStub broker = new MqttBrokerStub(0, 0);
+        broker.start();
+        int brokerPort = broker.getPort();
+        MqttPublisher publisher = new MqttPublisher("tcp://127.0.0.1:" + brokerPort, "HondaE_Soak_", MqttPublisher.DEFAULT_MAX_IN_FLIGHT);
+        publisher.connect();
+
+        List<SimulatedElmTransport> transports = new ArrayList<>();
+        List<GatewaySession> sessions = new ArrayList<>();
+        for (int i = 0; i < sessionCount; i++) {
+            SimulatedElmTransport transport = new SimulatedElmTransport(
+                    String.format(Locale.ENGLISH, "JHMZC7SOAK%07d", i + 1), i + 1, SIM_LATENCY_MS, clock);
+            transports.add(transport);
+            GatewaySession session = new GatewaySession("soak-" + (i + 1), transport, publisher, intervalMs, clock, clock);
+            session.setChargeCurveDir(chargeDir);
+            sessions.add(session);
+        }
+        long[] adapterBackMs = new long[sessionCount];
+        long brokerBackMs = -1;
+
+        List<Sample> samples = new ArrayList<>();
+        long endMs = startMs + hours * HOUR_MS;
+        long nextSampleMs = startMs + HOUR_MS;
+        long realStartMs = System.currentTimeMillis();
+        for (long tickStartMs = startMs; tickStartMs < endMs; tickStartMs += intervalMs) {
+            clock.advanceTo(tickStartMs);
+            long elapsedMs = tickStartMs - startMs;
+
+            if (brokerBackMs < 0 && elapsedMs > 0 && elapsedMs % BROKER_OUTAGE_EVERY_MS < intervalMs) {
+                broker.close();
+                brokerBackMs = tickStartMs + BROKER_OUTAGE_MS;
+            } else if (brokerBackMs >= 0 && tickStartMs >= brokerBackMs) {
+                broker = new MqttBrokerStub(brokerPort, 0);
+                broker.start();
+                brokerBackMs = -1;
+            }
+
+            for (int i = 0; i < sessionCount; i++) {
+                SimulatedElmTransport transport = transports.get(i);
+                // Sessions are spread over the pattern so every phase is always running somewhere
+                long minute = (elapsedMs / MINUTE_MS + i * 47L) % PATTERN_MINUTES;
+                boolean charging = minute >= PARKED_END && minute < CHARGE_END;
+                transport.setParked(minute >= DRIVE_END && minute < PARKED_END || minute >= SECOND_DRIVE_END);
+                transport.setDcCharging(charging);
+
+                if (adapterBackMs[i] == 0 && random.nextDouble() < (double) intervalMs / ADAPTER_DROP_EVERY_MS) {
+                    adapterBackMs[i] = tickStartMs + (2 + random.nextInt(9)) * MINUTE_MS;
+                    transport.setStuck(true);
+                } else if (adapterBackMs[i] != 0 && tickStartMs >= adapterBackMs[i]) {
+                    adapterBackMs[i] = 0;
+                    transport.setStuck(false);
+                }
+
+                sessions.get(i).run();
+            }
+
+            if (clock.currentTimeMillis() >= nextSampleMs) {
+                Sample sample = sample();
+                // Paho tears its threads down during an outage, those hours would hide a leak
+                boolean steady = brokerBackMs < 0 && publisher.isConnected();
+                if (steady) {
+                    samples.add(sample);
+                }
+                report(log, (nextSampleMs - startMs) / HOUR_MS, sample, sessions, publisher);
+                nextSampleMs += HOUR_MS;
+            }
+            if (tickMs > 0) {
+                Thread.sleep(tickMs);
+            }
+        }
+        long realMs = System.currentTimeMillis() - realStartMs;
+
+        long cycles = 0, published = 0;
+        int chargeCurves = 0;
+        for (GatewaySession session : sessions) {
+            session.stop();
+            cycles += session.getCycles();
+            published += session.getSamples();
+            chargeCurves += session.getChargeCurves();
+        }
+        publisher.close();
+        broker.close();
+        File[] files = chargeDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        chargeDir.delete();
+
+        log.println(String.format(Locale.ENGLISH, "%dh simulated in %.1fs, %d charge curves written, %d reconnect tasks pending",
+                hours, realMs / 1000.0, chargeCurves, clock.getPendingTasks()));
+        return new Result(samples, cycles, published, clock.getPendingTasks());
+    }
+
+    private static Sample sample() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        Thread.sleep(50);
+        String[] fds = new File("/proc/self/fd").list();
+        return new Sample(Thread.activeCount(), runtime.totalMemory() - runtime.freeMemory(), fds != null ? fds.length : -1);
+    }
+
+    private static void report(PrintStream log, long hour, Sample sample, List<GatewaySession> sessions, MqttPublisher publisher) {
+        long cycles = 0, samples = 0, reconnects = 0, published = 0, failed = 0;
+        for (GatewaySession session : sessions) {
+            cycles += session.getCycles();
+            samples += session.getSamples();
+            reconnects += session.getReconnects();
+            published += session.getMetrics().getMqttPublish().getCount();
+            failed += session.getMetrics().getMqttFailures();
+        }
+        log.println(String.format(Locale.ENGLISH,
+                "h%03d  threads %3d  heap %6.1fMB  fds %4d  cycles %6d  samples %6d  reconnects %4d  mqtt ok %6d failed %6d%s",
+                hour, sample.threads, sample.heapBytes / 1048576.0, sample.fds, cycles, samples, reconnects,
+                published, failed, publisher.isConnected() ? "" : "  (broker down)"));
+    }
+
+    // Steady hours only, the first one is warmup; the last third may not go above the first third by more than the slack
+    static boolean checkFlat(List<Sample> samples, PrintStream log) {
+        if (samples.size() < 4) {
+            log.println("Too few steady hours to judge, run at least 4 hours");
+            return true;
+        }
+        List<Sample> measured = samples.subList(1, samples.size());
+        int third = Math.max(1, measured.size() / 3);
+        List<Sample> first = measured.subList(0, third);
+        List<Sample> last = measured.subList(measured.size() - third, measured.size());
+
+        int firstThreads = 0, lastThreads = Integer.MAX_VALUE, firstFds = 0, lastFds = Integer.MAX_VALUE;
+        long firstHeap = 0, lastHeap = Long.MAX_VALUE;
+        for (Sample sample : first) {
+            firstThreads = Math.max(firstThreads, sample.threads);
+            firstHeap = Math.max(firstHeap, sample.heapBytes);
+            firstFds = Math.max(firstFds, sample.fds);
+        }
+        // Minimum of the last third, a leak keeps even the quietest sample up
+        for (Sample sample : last) {
+            lastThreads = Math.min(lastThreads, sample.threads);
+            lastHeap = Math.min(lastHeap, sample.heapBytes);
+            lastFds = Math.min(lastFds, sample.fds);
+        }
+        boolean ok = true;
+        ok &= check(log, "threads", firstThreads, lastThreads, THREAD_SLACK);
+        ok &= check(log, "heap bytes", firstHeap, lastHeap, HEAP_SLACK_BYTES);
+        ok &= check(log, "file descriptors", firstFds, lastFds, FD_SLACK);
+        return ok;
+    }
+
+    private static boolean check(PrintStream log, String name, long first, long last, long slack) {
+        boolean flat = last <= first + slack;
+        log.println(String.format(Locale.ENGLISH, "%-17s first third max %10d  last third min %10d  %s", name, first, last, flat ? "flat" : "GROWING"));
+        return flat;
+    }
+}
@@ -0,0 +1,189 @@
+package de.danielh.hondae_insight;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// Plain JVM replay of recorded adapter traffic through the app's reassembly, decoding,
+// range estimate, CSV and MQTT payload code.
+//
+//   TraceReplay [--realtime] [--out FILE] [--golden FILE] TRACE...
+//
+// Each sample produces its CSV line, its MQTT payload and, after a new odometer km, a range line.
+// --out writes these lines (use it to create a golden file), --golden compares against one.
+public class TraceReplay {
+
+    private static final int MAX_REPORTED_MISMATCHES = 10;
+
+    interface Output {
+        void line(String line) throws IOException;
+    }
+
+    // Compares the output line by line with a golden file written by --out
+    static class Golden implements Output {
+        private final BufferedReader _expected;
+        private final List<String> _report = new ArrayList<>();
+        private long _line, _mismatches;
+
+        Golden(BufferedReader expected) {
+            _expected = expected;
+        }
+
+        @Override
+        public void line(String line) throws IOException {
+            _line++;
+            String expected = _expected.readLine();
+            if (!line.equals(expected) && _mismatches++ < MAX_REPORTED_MISMATCHES) {
+                _report.add("line " + _line + ": expected " + expected + "\n" + "line " + _line + ":   actual " + line);
+            }
+        }
+
+        // Counts the golden lines the replay didn't get to as well, returns all mismatches
+        long finish() throws IOException {
+            while (_expected.readLine() != null) {
+                _mismatches++;
+            }
+            _expected.close();
+            return _mismatches;
+        }
+
+        // The first MAX_REPORTED_MISMATCHES differences
+        String report() {
+            return String.join("\n", _report);
+        }
+    }
+
+    private final boolean _realtime;
+    private final Output _output;
+
+    private long _lines, _responses, _samples;
+
+    public TraceReplay(boolean realtime, Output output) {
+        _realtime = realtime;
+        _output = output;
+    }
+
+    public void replay(TraceReader reader) throws IOException, InterruptedException {
+        VehicleState state = new VehicleState();
+        ElmResponseAssembler assembler = new ElmResponseAssembler();
+        String cycleStart = HondaECommands.LOOP_COMMANDS.get(0);
+        int dataMessages = 0;
+        long cycleTimeMs = reader.getStartWallClockMs();
+        long previousNanos = Long.MIN_VALUE;
+        long replayStartNanos = System.nanoTime();
+        long traceStartNanos = Long.MIN_VALUE;
+
+        while (reader.next()) {
+            _lines++;
+            if (_realtime) {
+                if (traceStartNanos == Long.MIN_VALUE) {
+                    traceStartNanos = reader.getNanos();
+                }
+                long waitNanos = (reader.getNanos() - traceStartNanos) - (System.nanoTime() - replayStartNanos);
+                if (waitNanos > 0) {
+                    Thread.sleep(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+                }
+            }
+            previousNanos = reader.getNanos();
+
+            if (reader.isSent()) {
+                if (reader.getLine().trim().equals(cycleStart)) {
+                    emitSample(state, dataMessages, cycleTimeMs);
+                    dataMessages = 0;
+                    cycleTimeMs = reader.currentTimeMillis();
+                }
+            } else if (assembler.accept(reader.getLine())) {
+                _responses++;
+                if (state.decode(assembler.getMessageID(), assembler.getMessage())) {
+                    dataMessages++;
+                    if (state.takeRangeUpdated()) {
+                        _output.line(String.format(Locale.ENGLISH, "range %d %d %d %.2f",
+                                state.getSocRange(), state.getSocMinRange(), state.getSocMaxRange(), state.getBatTempChange()));
+                    }
+                } else {
+                    state.decodeAuxBattery(assembler.getMessage());
+                }
+            }
+        }
+        if (previousNanos != Long.MIN_VALUE) {
+            emitSample(state, dataMessages, cycleTimeMs);
+        }
+    }
+
+    // Same rule as the app: only complete cycles are logged and published
+    private void emitSample(VehicleState state, int dataMessages, long sysTimeMs) throws IOException {
+        if (dataMessages >= VehicleState.DATA_MESSAGES_PER_CYCLE) {
+            _samples++;
+            _output.line(state.toCsvLine(sysTimeMs));
+            _output.line(state.toMqttPayload(sysTimeMs / 1000));
+        }
+    }
+
+    public long getLines() { return _lines; }
+    public long getResponses() { return _responses; }
+    public long getSamples() { return _samples; }
+
+    public static void main(String[] args) throws Exception {
+        boolean realtime = false;
+        String outFile = null;
+        String goldenFile = null;
+        List<String> traces = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--realtime": realtime = true; break;
+                case "--out": outFile = args[++i]; break;
+                case "--golden": goldenFile = args[++i]; break;
+                default: traces.add(args[i]);
+            }
+        }
+        if (traces.isEmpty()) {
+            System.err.println("usage: TraceReplay [--realtime] [--out FILE] [--golden FILE] TRACE...");
+            System.exit(2);
+        }
+
+        final PrintWriter out = outFile != null ? new PrintWriter(outFile, "UTF-8") : null;
+        final Golden golden = goldenFile != null
+                ? new Golden(new BufferedReader(new InputStreamReader(new FileInputStream(goldenFile), StandardCharsets.UTF_8))) : null;
+        TraceReplay replay = new TraceReplay(realtime, line -> {
+            if (out != null) {
+                out.println(line);
+            }
+            if (golden != null) {
+                golden.line(line);
+            }
+        });
+
+        long startNanos = System.nanoTime();
+        for (String trace : traces) {
+            try (TraceReader reader = new TraceReader(new FileInputStream(trace))) {
+                replay.replay(reader);
+            }
+        }
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+
+        long mismatches = golden != null ? golden.finish() : 0;
+        if (mismatches != 0) {
+            System.err.println(golden.report());
+        }
+        if (out != null) {
+            out.close();
+        }
+
+        System.out.println(String.format(Locale.ENGLISH,
+                "%d traces, %d lines, %d responses, %d samples in %.3fs (%.0f samples/s, %.0f lines/s)",
+                traces.size(), replay.getLines(), replay.getResponses(), replay.getSamples(), seconds,
+                replay.getSamples() / seconds, replay.getLines() / seconds));
+        if (golden != null) {
+            System.out.println(mismatches == 0 ? "golden: match" : "golden: " + mismatches + " mismatching lines");
+            if (mismatches != 0) {
+                System.exit(1);
+            }
+        }
+    }
+}
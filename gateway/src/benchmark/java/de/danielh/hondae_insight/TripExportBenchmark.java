@@ -0,0 +1,93 @@
+package de.danielh.hondae_insight;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Random;
+
+// Export speed and output size for a generated drive, one row per second with a couple of
+// meters of GPS noise. Run it with a small heap (-Xmx32m) to see the log is never held in memory:
+//
+//   TripExportBenchmark [--rows 1000000] [--tolerance 0,2,5,20] [--keep]
+public class TripExportBenchmark {
+
+    private static final long SAMPLE_INTERVAL_MS = 1000;
+    private static final double METERS_PER_DEGREE_LAT = 111195;
+
+    public static void main(String[] args) throws IOException {
+        int rows = 1000000;
+        String tolerances = "0,2,5,20";
+        boolean keep = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--rows": rows = Integer.parseInt(args[++i]); break;
+                case "--tolerance": tolerances = args[++i]; break;
+                case "--keep": keep = true; break;
+                default:
+                    System.err.println("usage: TripExportBenchmark [--rows N] [--tolerance M,M,...] [--keep]");
+                    System.exit(2);
+            }
+        }
+
+        File log = File.createTempFile("trip-export-", ".csv");
+        File out = File.createTempFile("trip-export-", ".out");
+        try {
+            writeLog(log, rows);
+            System.out.println(String.format(Locale.ENGLISH, "%d rows, %.0f MB of trip log", rows, log.length() / 1e6));
+            for (String tolerance : tolerances.split(",")) {
+                for (TripExporter.Format format : TripExporter.Format.values()) {
+                    TripExporter exporter = new TripExporter(format, Double.parseDouble(tolerance));
+                    long startNanos = System.nanoTime();
+                    try (OutputStream stream = new FileOutputStream(out)) {
+                        exporter.export(log, stream);
+                    }
+                    double seconds = (System.nanoTime() - startNanos) / 1e9;
+                    Runtime runtime = Runtime.getRuntime();
+                    System.out.println(String.format(Locale.ENGLISH,
+                            "%-7s %4sm  %8d points  %8.1f MB out  %6.0fms  %6.1f MB/s in  heap %5.1f MB",
+                            format.name(), tolerance, exporter.getPoints(), out.length() / 1e6, seconds * 1000,
+                            log.length() / 1e6 / seconds, (runtime.totalMemory() - runtime.freeMemory()) / 1e6));
+                }
+            }
+        } finally {
+            if (keep) {
+                System.out.println("kept " + log + " and " + out);
+            } else {
+                if (!log.delete()) {
+                    log.deleteOnExit();
+                }
+                if (!out.delete()) {
+                    out.deleteOnExit();
+                }
+            }
+        }
+    }
+
+    // City stretches, motorway, stops; the heading drifts and turns now and then
+    private static void writeLog(File file, int rows) throws IOException {
+        Random random = new Random(3);
+        VehicleState state = new VehicleState();
+        double lat = 52.52, lon = 13.40, heading = 0, speedKmh = 0, targetKmh = 50;
+        long startMs = 1700000000000L;
+        try (PrintWriter writer = new PrintWriter(file, "ISO-8859-1")) {
+            writer.println(VehicleState.LOG_FILE_HEADER);
+            for (int i = 0; i < rows; i++) {
+                if (i % 600 == 0) {
+                    targetKmh = new double[]{0, 30, 50, 50, 100, 130}[random.nextInt(6)];
+                }
+                speedKmh += Math.max(-5, Math.min(3, targetKmh - speedKmh));
+                heading += random.nextGaussian() * 0.02 + (random.nextInt(120) == 0 ? (random.nextBoolean() ? 1 : -1) * Math.PI / 2 : 0);
+                double meters = speedKmh / 3.6 * SAMPLE_INTERVAL_MS / 1000;
+                lat += meters * Math.cos(heading) / METERS_PER_DEGREE_LAT;
+                lon += meters * Math.sin(heading) / (METERS_PER_DEGREE_LAT * Math.cos(Math.toRadians(lat)));
+                double noiseLat = random.nextGaussian() * 2 / METERS_PER_DEGREE_LAT;
+                double noiseLon = random.nextGaussian() * 2 / METERS_PER_DEGREE_LAT;
+                state.setLocation(speedKmh, 0, String.valueOf(lat + noiseLat), String.valueOf(lon + noiseLon));
+                writer.println(state.toCsvLine(startMs + i * SAMPLE_INTERVAL_MS));
+            }
+        }
+    }
+}
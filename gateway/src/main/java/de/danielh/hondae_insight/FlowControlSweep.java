@@ -0,0 +1,58 @@
+package de.danielh.hondae_insight;
+
+// Runs the FlowControlCalibrator sweep against one adapter and prints what every candidate did,
+// to compare adapters or check a clone before relying on what the app picked.
+//
+//   FlowControlSweep [--rounds 2] tcp:host:port|serial:/dev/x|sim[:bufferFrames]
+public class FlowControlSweep {
+
+    public static void main(String[] args) throws Exception {
+        int rounds = FlowControlCalibrator.DEFAULT_ROUNDS;
+        String adapter = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--rounds": rounds = Integer.parseInt(args[++i]); break;
+                default: adapter = args[i];
+            }
+        }
+        if (adapter == null) {
+            System.err.println("usage: FlowControlSweep [--rounds N] tcp:host:port|serial:/dev/x|sim[:bufferFrames]");
+            System.exit(2);
+        }
+
+        String[] parts = adapter.split(":");
+        ElmTransport transport;
+        Clock clock = Clock.SYSTEM;
+        switch (parts[0]) {
+            case "tcp":
+                transport = new TcpElmTransport(parts[1], Integer.parseInt(parts[2]));
+                break;
+            case "serial":
+                transport = new SerialElmTransport(parts[1]);
+                break;
+            case "sim":
+                // A clone with a small receive buffer, on a virtual clock so the sweep takes no time
+                VirtualClock virtualClock = new VirtualClock(System.currentTimeMillis());
+                SimulatedElmTransport simulated = new SimulatedElmTransport("JHMZC7FLOW0000001", 1, 20, virtualClock);
+                simulated.setAdapterBuffer(parts.length > 1 ? Integer.parseInt(parts[1]) : 12);
+                transport = simulated;
+                clock = virtualClock;
+                break;
+            default:
+                throw new IllegalArgumentException("unknown adapter " + adapter);
+        }
+        transport.open();
+        try {
+            if (new PollingEngine(transport, new VehicleState(), new TelemetryMetrics(), new PollingEngine.Listener() { }, clock).initialize() == null) {
+                System.err.println("no answer from the car");
+                System.exit(1);
+            }
+            FlowControlCalibrator calibrator = new FlowControlCalibrator(transport, clock);
+            FlowControlProfile best = calibrator.calibrate(FlowControlProfile.CANDIDATES, rounds, FlowControlProfile.DEFAULT);
+            System.out.print(calibrator.report());
+            System.out.println(best != null ? "use " + best.getCommand() : "no stable profile, keep " + FlowControlProfile.DEFAULT.getCommand());
+        } finally {
+            transport.close();
+        }
+    }
+}
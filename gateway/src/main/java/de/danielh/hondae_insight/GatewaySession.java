@@ -0,0 +1,155 @@
+package de.danielh.hondae_insight;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// One adapter and car in gateway mode, the app's VehicleSession publishing to MQTT. Runs as a
+// fixed delay task on the shared gateway pool, so a stuck adapter only ever holds its own task:
+// the engine gives up after a few timeouts and the reconnect backoff keeps the session off the
+// pool until the next attempt.
+public class GatewaySession implements Runnable, VehicleSession.Listener {
+
+    private final String _name;
+    private final VehicleSession _session;
+    private final ReconnectSupervisor _reconnectSupervisor;
+    private final MqttPublisher _mqttPublisher;
+
+    private String _topic;
+    private File _chargeCurveDir;
+    private volatile int _chargeCurves;
+
+    // Reconnect attempts go through the pool, a session only ever has one pending
+    private static class ExecutorScheduler implements ReconnectSupervisor.Scheduler {
+
+        private final ScheduledExecutorService _executor;
+        private ScheduledFuture<?> _pendingReconnect;
+
+        ExecutorScheduler(ScheduledExecutorService executor) {
+            _executor = executor;
+        }
+
+        @Override
+        public synchronized void schedule(Runnable task, long delayMs) {
+            _pendingReconnect = _executor.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public synchronized void cancel(Runnable task) {
+            if (_pendingReconnect != null) {
+                _pendingReconnect.cancel(false);
+                _pendingReconnect = null;
+            }
+        }
+    }
+
+    public GatewaySession(String name, ElmTransport transport, MqttPublisher mqttPublisher, long intervalMs, ScheduledExecutorService executor) {
+        this(name, transport, mqttPublisher, intervalMs, Clock.SYSTEM, new ExecutorScheduler(executor));
+    }
+
+    // The soak harness passes a VirtualClock for both
+    GatewaySession(String name, ElmTransport transport, MqttPublisher mqttPublisher, long intervalMs, Clock clock, ReconnectSupervisor.Scheduler scheduler) {
+        _name = name;
+        _mqttPublisher = mqttPublisher;
+        _reconnectSupervisor = new ReconnectSupervisor(clock, new Random(), scheduler, this::reconnect);
+        _session = new VehicleSession(transport, new VehicleState(), new TelemetryMetrics(), _reconnectSupervisor, clock, intervalMs, this);
+        _reconnectSupervisor.start();
+    }
+
+    // Where finished DC charge curves are written, null only logs them
+    void setChargeCurveDir(File dir) {
+        _chargeCurveDir = dir;
+    }
+
+    @Override
+    public void run() {
+        _session.run();
+    }
+
+    private void reconnect() {
+        _session.requestConnect();
+    }
+
+    @Override
+    public void onConnected(String vin, boolean fastResume) {
+        String topic = "hondae/" + vin + "/status";
+        if (!topic.equals(_topic)) {
+            _topic = topic;
+            log("connected via " + _session.getAdapterName() + ", publishing to " + _topic);
+        }
+    }
+
+    @Override
+    public void onSample(long sysTimeMs) {
+        if (_mqttPublisher == null) {
+            return;
+        }
+        TelemetryMetrics metrics = _session.getMetrics();
+        _mqttPublisher.publish(_topic, _session.getState().toMqttPayload(sysTimeMs / 1000), MqttPublisher.QOS_TELEMETRY, new MqttPublisher.Callback() {
+            @Override
+            public void onPublished(long latencyNanos) {
+                metrics.recordMqttPublish(latencyNanos);
+            }
+
+            @Override
+            public void onFailed(Throwable cause) {
+                metrics.recordMqttFailure();
+            }
+        });
+    }
+
+    @Override
+    public void onStatus(String message) {
+        log(message);
+    }
+
+    @Override
+    public void onConnectionLost(String reason) {
+        long delayMs = _reconnectSupervisor.onConnectionLost();
+        if (delayMs >= 0) {
+            log(reason + ", retry in " + delayMs + "ms (#" + _reconnectSupervisor.getAttempt() + ")");
+        }
+    }
+
+    @Override
+    public void onChargeCurve(ChargeCurve chargeCurve) {
+        _chargeCurves++;
+        if (_chargeCurveDir == null) {
+            log("DC charge over, " + chargeCurve.getSamples() + " samples");
+            return;
+        }
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss");
+        File file = new File(_chargeCurveDir, _session.getVin() + "-" + sdf.format(new Date(chargeCurve.getStartMs())) + ChargeCurve.FILE_SUFFIX);
+        try {
+            chargeCurve.write(file);
+        } catch (IOException e) {
+            log("can't write " + file + ": " + e.getMessage());
+        }
+    }
+
+    public void stop() {
+        _session.stop();
+        _reconnectSupervisor.stop();
+        _session.close();
+    }
+
+    private void log(String message) {
+        System.out.println("[" + _name + "] " + message);
+    }
+
+    public String getName() { return _name; }
+    public String getVin() { return _session.getVin(); }
+    public boolean isConnected() { return _session.isConnected(); }
+    public long getCycles() { return _session.getCycles(); }
+    public long getSamples() { return _session.getSamples(); }
+    public long getReconnects() { return _session.getReconnects(); }
+    public int getChargeCurves() { return _chargeCurves; }
+    public VehicleState getState() { return _session.getState(); }
+    public TelemetryMetrics getMetrics() { return _session.getMetrics(); }
+    public ParkedMonitor getParkedMonitor() { return _session.getParkedMonitor(); }
+}
@@ -0,0 +1,38 @@
+package de.danielh.hondae_insight;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+// USB serial adapters or a bound rfcomm device, e.g. /dev/ttyUSB0 or /dev/rfcomm0.
+// Baud rate and raw mode are expected to be set up front with stty.
+public class SerialElmTransport extends StreamElmTransport {
+
+    private final String _device;
+
+    public SerialElmTransport(String device) {
+        _device = device;
+    }
+
+    @Override
+    public void open() throws IOException {
+        close();
+        _in = new FileInputStream(_device);
+        _out = new FileOutputStream(_device);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (_in != null) {
+            _in.close();
+            _in = null;
+        }
+        if (_out != null) {
+            _out.close();
+            _out = null;
+        }
+    }
+
+    @Override
+    public String toString() { return "serial:" + _device; }
+}
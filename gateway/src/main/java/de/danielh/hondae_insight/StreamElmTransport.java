@@ -0,0 +1,78 @@
+package de.danielh.hondae_insight;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+// Splits a raw adapter byte stream into lines the same way the Bluetooth serial library does:
+// on CR or LF, so the ">" prompt ends up in front of the first line of the next reply.
+// Reads only what available() reports, a waiting request never blocks a shared worker thread.
+public abstract class StreamElmTransport implements ElmTransport {
+
+    private static final long POLL_INTERVAL_MS = 2;
+
+    private final ArrayDeque<String> _lines = new ArrayDeque<>();
+    private final StringBuilder _partialLine = new StringBuilder();
+    private final byte[] _buffer = new byte[512];
+
+    protected InputStream _in;
+    protected OutputStream _out;
+
+    @Override
+    public void send(String command) throws IOException {
+        _out.write((command + "\r").getBytes(StandardCharsets.ISO_8859_1));
+        _out.flush();
+    }
+
+    @Override
+    public String readLine(long timeoutMs) throws IOException, InterruptedException {
+        long deadlineNanos = System.nanoTime() + timeoutMs * 1000000L;
+        while (_lines.isEmpty()) {
+            int available = _in.available();
+            if (available > 0) {
+                int read = _in.read(_buffer, 0, Math.min(available, _buffer.length));
+                if (read < 0) {
+                    throw new IOException("Adapter closed the connection");
+                }
+                splitLines(read);
+            } else if (System.nanoTime() >= deadlineNanos) {
+                return null;
+            } else {
+                Thread.sleep(POLL_INTERVAL_MS);
+            }
+        }
+        return _lines.poll();
+    }
+
+    private void splitLines(int length) {
+        for (int i = 0; i < length; i++) {
+            char c = (char) (_buffer[i] & 0xFF);
+            if (c == '\r' || c == '\n') {
+                if (_partialLine.length() > 0) {
+                    _lines.add(_partialLine.toString());
+                    _partialLine.setLength(0);
+                }
+            } else if (c != 0) {
+                _partialLine.append(c);
+            }
+        }
+    }
+
+    @Override
+    public void discardInput() throws IOException {
+        _lines.clear();
+        // The prompt of the previous reply stays, it belongs to the next line
+        int available = _in.available();
+        while (available > 0) {
+            int read = _in.read(_buffer, 0, Math.min(available, _buffer.length));
+            if (read < 0) {
+                throw new IOException("Adapter closed the connection");
+            }
+            splitLines(read);
+            _lines.clear();
+            available = _in.available();
+        }
+    }
+}
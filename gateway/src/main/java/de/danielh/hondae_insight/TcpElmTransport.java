@@ -0,0 +1,43 @@
+package de.danielh.hondae_insight;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+// WiFi ELM327 clones, usually 192.168.0.10:35000
+public class TcpElmTransport extends StreamElmTransport {
+
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+
+    private final String _host;
+    private final int _port;
+    private Socket _socket;
+
+    public TcpElmTransport(String host, int port) {
+        _host = host;
+        _port = port;
+    }
+
+    @Override
+    public void open() throws IOException {
+        close();
+        _socket = new Socket();
+        _socket.setTcpNoDelay(true);
+        _socket.connect(new InetSocketAddress(_host, _port), CONNECT_TIMEOUT_MS);
+        _in = new BufferedInputStream(_socket.getInputStream());
+        _out = new BufferedOutputStream(_socket.getOutputStream());
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (_socket != null) {
+            _socket.close();
+            _socket = null;
+        }
+    }
+
+    @Override
+    public String toString() { return "tcp:" + _host + ":" + _port; }
+}
@@ -0,0 +1,36 @@
+package de.danielh.hondae_insight;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Half a day of SoakTest on every build: driving, parking, DC charging, adapter drops and a
+// broker outage for four sessions, threads, heap and file descriptors may not keep growing.
+// The full day stays a manual run, ./gradlew :gateway:benchmark -Pmain=SoakTest.
+public class SoakFlatnessTest {
+
+    private static final int HOURS = 12;
+    private static final int SESSIONS = 4;
+
+    @Test
+    public void resourcesStayFlat() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream log = new PrintStream(output, true, "UTF-8");
+        SoakTest.Result result = SoakTest.run(HOURS, SESSIONS, GatewayMain.DEFAULT_INTERVAL_MS, 2, log);
+        boolean flat = SoakTest.checkFlat(result.samples, log);
+        String report = output.toString("UTF-8");
+
+        // Enough steady hours that checkFlat had something to judge
+        assertTrue(report, result.samples.size() >= 6);
+        assertTrue(report, flat);
+        // The sessions kept working through the drops and the outage
+        assertTrue(report, result.samplesPublished > 0);
+        assertTrue(report, result.cycles > HOURS * 3600000L / GatewayMain.DEFAULT_INTERVAL_MS);
+        // Stopped sessions leave no reconnect behind
+        assertEquals(report, 0, result.pendingTasks);
+    }
+}
@@ -0,0 +1,74 @@
+package de.danielh.hondae_insight;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+// Replays a recorded trace through reassembly, decoding, range estimate, CSV and MQTT payload and
+// compares with the golden output. sim-drive is 40 cycles from the simulated car, driving and
+// then DC charging, with a few cycles losing replies. After an intended change of the output
+// write a new golden file with TraceReplay --out and review its diff.
+public class TraceReplayTest {
+
+    private static final String TRACE = "/traces/sim-drive.trace";
+    private static final String GOLDEN = "/traces/sim-drive.golden";
+
+    private static InputStream resource(String name) {
+        InputStream in = TraceReplayTest.class.getResourceAsStream(name);
+        assertNotNull(name, in);
+        return in;
+    }
+
+    private static BufferedReader golden() {
+        return new BufferedReader(new InputStreamReader(resource(GOLDEN), StandardCharsets.UTF_8));
+    }
+
+    private static TraceReplay replay(TraceReplay.Output output) throws IOException, InterruptedException {
+        TraceReplay replay = new TraceReplay(false, output);
+        try (TraceReader reader = new TraceReader(resource(TRACE))) {
+            replay.replay(reader);
+        }
+        return replay;
+    }
+
+    @Test
+    public void matchesGolden() throws Exception {
+        TraceReplay.Golden golden = new TraceReplay.Golden(golden());
+        TraceReplay replay = replay(golden);
+        assertEquals(golden.report(), 0, golden.finish());
+        // Cycles that lost a reply are neither logged nor published
+        assertEquals(37, replay.getSamples());
+        assertEquals(609, replay.getResponses());
+    }
+
+    @Test
+    public void reportsChangedOutput() throws Exception {
+        // The first sample's state of charge off by a hundredth, in the CSV line and the payload
+        TraceReplay.Golden golden = new TraceReplay.Golden(golden());
+        replay(line -> golden.line(line.replaceFirst("^(\\d+,\\d+,)79\\.96,", "$179.97,").replace("{\"soc\":79.96,", "{\"soc\":79.97,")));
+        long mismatches = golden.finish();
+        assertTrue(golden.report(), mismatches >= 2);
+        assertTrue(golden.report(), golden.report().contains("79.97"));
+    }
+
+    @Test
+    public void reportsMissingOutput() throws Exception {
+        TraceReplay.Golden golden = new TraceReplay.Golden(golden());
+        long[] lines = {0};
+        // Stops after the first sample, everything after it is missing
+        replay(line -> {
+            if (lines[0]++ < 3) {
+                golden.line(line);
+            }
+        });
+        assertEquals(lines[0] - 3, golden.finish());
+    }
+}